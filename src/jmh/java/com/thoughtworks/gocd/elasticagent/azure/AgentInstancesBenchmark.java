@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.gocd.elasticagent.azure.BenchmarkFleet.*;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.JOB_IDENTIFIER_TAG_KEY;
+
+/**
+ * The in-memory lookups the plugin makes on every create-agent and should-assign-work request, as the fleet grows.
+ * Run with <code>./gradlew jmh -PjmhIncludes=AgentInstancesBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AgentInstancesBenchmark {
+
+  @Param({"10", "1000", "10000"})
+  private int fleetSize;
+
+  private BenchmarkFleet fleet;
+  private final PluginSettings settings = new PluginSettings();
+  private final String profileHash = PROFILE.hash();
+  private JobIdentifier[] runningJobs;
+  private int next;
+
+  @Setup
+  public void setUp() throws Exception {
+    fleet = new BenchmarkFleet(fleetSize);
+    runningJobs = new JobIdentifier[(fleetSize + 1) / 2];
+    for (int i = 0; i < runningJobs.length; i++) {
+      runningJobs[i] = job(i * 2);
+    }
+  }
+
+  @Benchmark
+  public AzureInstance findByRunningJob() {
+    return fleet.agentInstances().find(runningJobs[next++ % runningJobs.length]);
+  }
+
+  @Benchmark
+  public AzureInstance findByUnknownJob() {
+    return fleet.agentInstances().find(job(-1));
+  }
+
+  @Benchmark
+  public AzureInstance findAvailableInstance() {
+    return fleet.agentInstances().findAvailableInstance(PROFILE);
+  }
+
+  @Benchmark
+  public AzureInstance findAvailableInstanceOfOtherProfile() {
+    return fleet.agentInstances().findAvailableInstance(OTHER_PROFILE);
+  }
+
+  /**
+   * The lookups a create-agent request for a new job makes before it provisions: by job, then by elastic profile.
+   */
+  @Benchmark
+  public AzureInstance createAgentLookups() {
+    AzureInstance running = fleet.agentInstances().find(job(-1));
+    return running != null ? running : fleet.agentInstances().findAvailableInstance(OTHER_PROFILE);
+  }
+
+  /**
+   * Assigning a job to an idle agent and completing it, which moves the agent between the job and profile indexes.
+   */
+  @Benchmark
+  public AzureInstance assignAndCompleteJob() throws IOException {
+    fleet.agentInstances().addTag(settings, agentId(1), JOB_IDENTIFIER_TAG_KEY, job(1).hash());
+    fleet.agentInstances().removeTag(settings, agentId(1), JOB_IDENTIFIER_TAG_KEY);
+    return fleet.agentInstances().find(agentId(1));
+  }
+
+  @Benchmark
+  public int canBeAssigned() {
+    int assignable = 0;
+    for (AzureInstance instance : fleet.instances()) {
+      if (instance.canBeAssigned(profileHash)) {
+        assignable++;
+      }
+    }
+    return assignable;
+  }
+}
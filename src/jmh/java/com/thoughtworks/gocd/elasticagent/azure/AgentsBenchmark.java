@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the agent list GoCD sends with every server-ping, and picking the agents to disable and terminate from it.
+ * Run with <code>./gradlew jmh -PjmhIncludes=AgentsBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AgentsBenchmark {
+
+  private static final Agent.AgentState[] AGENT_STATES = Agent.AgentState.values();
+  private static final Agent.BuildState[] BUILD_STATES = Agent.BuildState.values();
+  private static final Agent.ConfigState[] CONFIG_STATES = Agent.ConfigState.values();
+
+  @Param({"10", "1000", "10000"})
+  private int agentCount;
+
+  private String agentsJson;
+  private Agents agents;
+
+  @Setup
+  public void setUp() {
+    List<Agent> agentList = new ArrayList<>();
+    for (int i = 0; i < agentCount; i++) {
+      agentList.add(new Agent(BenchmarkFleet.agentId(i), AGENT_STATES[i % AGENT_STATES.length],
+          BUILD_STATES[i % BUILD_STATES.length], CONFIG_STATES[i % CONFIG_STATES.length]));
+    }
+    agentsJson = Agent.toJSONArray(agentList);
+    agents = new Agents(agentList);
+  }
+
+  @Benchmark
+  public List<Agent> parseAgents() {
+    return Agent.fromJSONArray(agentsJson);
+  }
+
+  @Benchmark
+  public Collection<Agent> findInstancesToDisable() {
+    return agents.findInstancesToDisable();
+  }
+
+  @Benchmark
+  public Collection<Agent> findInstancesToTerminate() {
+    return agents.findInstancesToTerminate();
+  }
+}
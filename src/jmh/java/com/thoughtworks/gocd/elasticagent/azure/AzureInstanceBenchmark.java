@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.gocd.elasticagent.azure.BenchmarkFleet.*;
+
+/**
+ * The per-instance predicates evaluated for every instance on every server-ping and create-agent request. They read
+ * state parsed from the tags when the instance was built, so the gc profiler should report a
+ * <code>gc.alloc.rate.norm</code> of 0 bytes per operation. Run with
+ * <code>./gradlew jmh -PjmhIncludes=AzureInstanceBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AzureInstanceBenchmark {
+
+  private AzureInstance idle;
+  private AzureInstance busy;
+  private String profileHash;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkFleet fleet = new BenchmarkFleet(2);
+    busy = fleet.instances().get(0);
+    idle = fleet.instances().get(1);
+    profileHash = PROFILE.hash();
+  }
+
+  @Benchmark
+  public boolean canBeAssigned() {
+    return idle.canBeAssigned(profileHash);
+  }
+
+  @Benchmark
+  public boolean canBeAssignedWhenBusy() {
+    return busy.canBeAssigned(profileHash);
+  }
+
+  @Benchmark
+  public boolean isIdleAfterIdleTimeout() {
+    return idle.isIdleAfterIdleTimeout();
+  }
+
+  @Benchmark
+  public boolean canBeTerminated() {
+    return idle.canBeTerminated();
+  }
+
+  @Benchmark
+  public String assignedJobHash() {
+    return busy.assignedJobHash();
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.microsoft.azure.management.compute.ImageReference;
+import com.thoughtworks.gocd.elasticagent.azure.client.*;
+import com.thoughtworks.gocd.elasticagent.azure.metrics.MetricsRegistry;
+import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
+import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
+import com.thoughtworks.gocd.elasticagent.azure.models.ServerInfo;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.thoughtworks.gocd.elasticagent.azure.models.Platform.LINUX;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * A fleet of plugin VMs of one elastic profile, every other one running a job, held by {@link AzureAgentInstances}
+ * backed by a mocked {@link GoCDAzureClient}, so that benchmarks exercise the plugin's own code and not Azure.
+ */
+public class BenchmarkFleet {
+
+  public static final String SERVER_ID = "benchmark-server";
+  public static final String ENVIRONMENT = "production";
+  public static final ElasticProfile PROFILE = new ElasticProfile("Standard_D3_v2", "Canonical:UbuntuServer:16.04.0-LTS",
+      "", "", LINUX, "Standard_LRS", "", "50", "");
+  public static final ElasticProfile OTHER_PROFILE = new ElasticProfile("Standard_D8_v3", "Canonical:UbuntuServer:18.04-LTS",
+      "", "", LINUX, "Premium_LRS", "", "100", "");
+
+  private final List<AzureInstance> instances = new ArrayList<>();
+  private final AzureAgentInstances agentInstances;
+
+  public BenchmarkFleet(int size) throws Exception {
+    DateTime now = DateTime.now();
+    for (int i = 0; i < size; i++) {
+      instances.add(instance(i, now));
+    }
+
+    GoCDAzureClient client = mock(GoCDAzureClient.class);
+    // Stub-only mocks do not record invocations, so benchmarks that change tags do not grow the heap.
+    GoCDAzureClientFactory clientFactory = mock(GoCDAzureClientFactory.class, withSettings().stubOnly());
+    when(clientFactory.initialize(any(PluginSettings.class))).thenReturn(client);
+    when(clientFactory.getClientPool()).thenReturn(new GoCDAzureClientPool());
+    when(clientFactory.getRequestScheduler()).thenReturn(new ArmRequestScheduler());
+    when(clientFactory.getCircuitBreakers()).thenReturn(new AzureCircuitBreakers());
+    when(clientFactory.getMetrics()).thenReturn(new MetricsRegistry());
+
+    AzureInstanceManager instanceManager = mock(AzureInstanceManager.class);
+    when(instanceManager.listInstances(client, SERVER_ID)).thenReturn(instances);
+    when(instanceManager.listCurrentInstances(client, SERVER_ID)).thenReturn(instances);
+    when(instanceManager.getTimelines()).thenReturn(new ProvisioningTimelines());
+    when(instanceManager.getExecutionLogs(anyString())).thenReturn("");
+
+    PluginRequest pluginRequest = mock(PluginRequest.class);
+    when(pluginRequest.getPluginSettings()).thenReturn(new PluginSettings());
+    when(pluginRequest.getServerInfo()).thenReturn(ServerInfo.fromJSON("{\"server_id\": \"" + SERVER_ID + "\"}"));
+
+    agentInstances = new AzureAgentInstances(instanceManager, Clock.DEFAULT, clientFactory, mock(TagSyncer.class, withSettings().stubOnly()));
+    agentInstances.refreshAll(pluginRequest);
+  }
+
+  public AzureAgentInstances agentInstances() {
+    return agentInstances;
+  }
+
+  public List<AzureInstance> instances() {
+    return instances;
+  }
+
+  public int size() {
+    return instances.size();
+  }
+
+  public static String agentId(int index) {
+    return "gocd-agent-" + index;
+  }
+
+  public static boolean isBusy(int index) {
+    return index % 2 == 0;
+  }
+
+  public static JobIdentifier job(int index) {
+    return new JobIdentifier("pipeline", (long) index, "label-" + index, "stage", "1", "job", (long) index);
+  }
+
+  private static AzureInstance instance(int index, DateTime now) {
+    Map<String, String> tags = new HashMap<>();
+    tags.put(GOCD_SERVER_ID_TAG_KEY, SERVER_ID);
+    tags.put(ELASTIC_PROFILE_TAG_KEY, PROFILE.hash());
+    tags.put(ENVIRONMENT_TAG_KEY, ENVIRONMENT);
+    tags.put(IDLE_TIMEOUT, "30");
+    tags.put(LAST_JOB_RUN_TAG_KEY, Long.toString(now.minusMinutes(5).getMillis()));
+    if (isBusy(index)) {
+      tags.put(JOB_IDENTIFIER_TAG_KEY, job(index).hash());
+    }
+    ImageReference image = new ImageReference().withPublisher("Canonical").withOffer("UbuntuServer").withSku("16.04.0-LTS").withVersion("latest");
+    String name = agentId(index);
+    return new AzureInstance(name, name + ".internal.cloudapp.net",
+        "/subscriptions/sub/resourceGroups/agents/providers/Microsoft.Compute/virtualMachines/" + name,
+        now.minusHours(1), image, "Standard_D3_v2", "Linux", 50, "Succeeded", "PowerState/running", "agents",
+        name + "-nic", tags, LINUX);
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.collect.Iterables;
+import com.microsoft.azure.management.compute.*;
+import com.thoughtworks.gocd.elasticagent.azure.client.*;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.GOCD_SERVER_ID_TAG_KEY;
+import static org.mockito.Mockito.*;
+
+/**
+ * The inventory read of the first request after the plugin starts: the paged resource group listing and one instance
+ * view GET per mapped virtual machine, against a backend that answers every ARM call after a fixed latency. Compares
+ * sequential calls with calls fanned out over the default number of workers. Run with
+ * <code>./gradlew jmh -PjmhIncludes=StartupBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StartupBenchmark {
+
+  private static final String SERVER_ID = "benchmark-server";
+  private static final int PAGE_SIZE = 100;
+
+  @Param({"500"})
+  private int virtualMachines;
+
+  @Param({"20"})
+  private int latencyMillis;
+
+  @Param({"1", "8"})
+  private int parallelism;
+
+  private GoCDAzureClient client;
+  private AzureInstanceManager instanceManager;
+
+  @Setup
+  public void setUp() {
+    LatentBackend backend = new LatentBackend(virtualMachines, latencyMillis);
+    FanOut fanOut = new FanOut("benchmark-fan-out", parallelism);
+    InventoryQuery query = new InventoryQuery(backend);
+    client = mock(GoCDAzureClient.class, withSettings().stubOnly());
+    when(client.mapRunningVirtualMachines(eq(SERVER_ID), anyBoolean(), any())).thenAnswer(invocation ->
+        invocation.<Function<Iterable<VirtualMachine>, ?>>getArgument(2).apply(
+            Iterables.filter(query.streamVirtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, SERVER_ID), InventorySnapshot::isRunning)));
+    instanceManager = new AzureInstanceManager(new AzureInstanceMapper(), mock(DownloadUrlResolver.class), Clock.DEFAULT, new ProvisioningTimelines(), fanOut);
+  }
+
+  @Benchmark
+  public List<AzureInstance> listInstances() {
+    return instanceManager.listInstances(client, SERVER_ID);
+  }
+
+  private static void sleep(int millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Serves stub-only virtual machines whose instance views, like the listing pages, take a round trip to fetch.
+   */
+  private static class LatentBackend implements InventoryBackend {
+
+    private final List<VirtualMachine> virtualMachines = new ArrayList<>();
+    private final int latencyMillis;
+
+    LatentBackend(int count, int latencyMillis) {
+      this.latencyMillis = latencyMillis;
+      DateTime provisionedAt = DateTime.now();
+      for (int i = 0; i < count; i++) {
+        String name = "vm-" + i;
+        String id = "/subscriptions/sub/resourceGroups/agents/providers/Microsoft.Compute/virtualMachines/" + name;
+        virtualMachines.add(virtualMachine(id, name, provisionedAt));
+      }
+    }
+
+    @Override
+    public Iterable<VirtualMachine> virtualMachines() {
+      return Iterables.concat(Iterables.transform(Iterables.partition(virtualMachines, PAGE_SIZE), page -> {
+        sleep(latencyMillis);
+        return page;
+      }));
+    }
+
+    private VirtualMachine virtualMachine(String id, String name, DateTime provisionedAt) {
+      VirtualMachineInstanceView instanceView = mock(VirtualMachineInstanceView.class, withSettings().stubOnly());
+      when(instanceView.computerName()).thenReturn(name);
+      when(instanceView.osName()).thenReturn("ubuntu");
+      when(instanceView.statuses()).thenReturn(Collections.singletonList(
+          new InstanceViewStatus().withCode(AzureInstanceMapper.PROVISIONING_STATE_SUCCEEDED).withTime(provisionedAt)));
+
+      VirtualMachine virtualMachine = mock(VirtualMachine.class, withSettings().stubOnly().defaultAnswer(RETURNS_DEEP_STUBS));
+      when(virtualMachine.name()).thenReturn(name);
+      when(virtualMachine.id()).thenReturn(id);
+      when(virtualMachine.tags()).thenReturn(Collections.singletonMap(GOCD_SERVER_ID_TAG_KEY, SERVER_ID));
+      when(virtualMachine.provisioningState()).thenReturn("Succeeded");
+      when(virtualMachine.powerState()).thenReturn(PowerState.RUNNING);
+      when(virtualMachine.osType()).thenReturn(OperatingSystemTypes.LINUX);
+      when(virtualMachine.inner().hardwareProfile().vmSize()).thenReturn(VirtualMachineSizeTypes.STANDARD_D3_V2);
+      when(virtualMachine.primaryNetworkInterfaceId()).thenReturn(id.replace("virtualMachines", "networkInterfaces"));
+      when(virtualMachine.instanceView()).thenAnswer(invocation -> {
+        sleep(latencyMillis);
+        return instanceView;
+      });
+      return virtualMachine;
+    }
+  }
+}
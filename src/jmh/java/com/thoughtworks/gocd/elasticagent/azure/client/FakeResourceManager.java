@@ -0,0 +1,94 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.google.common.collect.Iterables;
+import com.microsoft.azure.management.compute.VirtualMachine;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.GOCD_SERVER_ID_TAG_KEY;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * In-memory stand-in for a subscription. Every ARM round trip and every resource sent over the wire is charged a
+ * fixed amount of CPU work, so benchmark times reflect the number of calls and the size of the responses.
+ */
+class FakeResourceManager implements InventoryBackend {
+
+  static final String SERVER_ID = "server-id";
+  static final int PAGE_SIZE = 100;
+  private static final long ROUND_TRIP_TOKENS = 20_000;
+  private static final long RESOURCE_TOKENS = 50;
+
+  private final List<Map<String, String>> subscriptionTags = new ArrayList<>();
+  private final List<VirtualMachine> resourceGroupVirtualMachines = new ArrayList<>();
+
+  /**
+   * @param unrelatedResourceGroupVirtualMachines virtual machines that share the plugin's resource group without
+   *                                              belonging to this server, such as those of another GoCD server or
+   *                                              ones created by hand. They are part of the subscription too.
+   */
+  FakeResourceManager(int subscriptionSize, int pluginVirtualMachineCount, int unrelatedResourceGroupVirtualMachines) {
+    for (int i = 0; i < subscriptionSize; i++) {
+      Map<String, String> tags = new HashMap<>();
+      if (i < pluginVirtualMachineCount) {
+        tags.put(GOCD_SERVER_ID_TAG_KEY, SERVER_ID);
+        resourceGroupVirtualMachines.add(virtualMachine(tags));
+      } else if (i < pluginVirtualMachineCount + unrelatedResourceGroupVirtualMachines) {
+        tags.put(GOCD_SERVER_ID_TAG_KEY, "other-server-id");
+        resourceGroupVirtualMachines.add(virtualMachine(tags));
+      } else {
+        tags.put("owner", "someone-else");
+      }
+      subscriptionTags.add(tags);
+    }
+    // interleave the unrelated virtual machines with the plugin's, as a listing ordered by name would
+    Collections.shuffle(resourceGroupVirtualMachines, new Random(0));
+  }
+
+  private static VirtualMachine virtualMachine(Map<String, String> tags) {
+    VirtualMachine virtualMachine = mock(VirtualMachine.class);
+    when(virtualMachine.tags()).thenReturn(tags);
+    return virtualMachine;
+  }
+
+  /**
+   * The listing the plugin used before: every virtual machine in the subscription, filtered on the client.
+   */
+  Iterable<Map<String, String>> listAllVirtualMachineTags() {
+    return paged(subscriptionTags);
+  }
+
+  /**
+   * The plugin's resource group: the plugin's virtual machines and the unrelated ones next to them. Disks, network
+   * interfaces and other resources in the group are not part of a virtual machine listing, so they cost nothing here.
+   */
+  @Override
+  public Iterable<VirtualMachine> virtualMachines() {
+    return paged(resourceGroupVirtualMachines);
+  }
+
+  private static <T> Iterable<T> paged(List<T> items) {
+    return Iterables.concat(Iterables.transform(Iterables.partition(items, PAGE_SIZE), page -> {
+      Blackhole.consumeCPU(ROUND_TRIP_TOKENS + RESOURCE_TOKENS * page.size());
+      return page;
+    }));
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.microsoft.azure.management.compute.VirtualMachine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.gocd.elasticagent.azure.client.FakeResourceManager.SERVER_ID;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.GOCD_SERVER_ID_TAG_KEY;
+
+/**
+ * Compares the subscription-wide listing with the resource group inventory query as the number of unrelated virtual
+ * machines in the subscription, and in the plugin's resource group, grows. Run with <code>./gradlew jmh -PjmhIncludes=InventoryQueryBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InventoryQueryBenchmark {
+
+  @Param({"1000", "10000", "50000"})
+  private int subscriptionSize;
+
+  @Param({"100"})
+  private int pluginVirtualMachines;
+
+  @Param({"0", "500"})
+  private int unrelatedResourceGroupVirtualMachines;
+
+  private FakeResourceManager resourceManager;
+  private InventoryQuery inventoryQuery;
+
+  @Setup
+  public void setUp() {
+    resourceManager = new FakeResourceManager(subscriptionSize, pluginVirtualMachines, unrelatedResourceGroupVirtualMachines);
+    inventoryQuery = new InventoryQuery(resourceManager);
+  }
+
+  @Benchmark
+  public int subscriptionScan() {
+    int matches = 0;
+    for (Map<String, String> tags : resourceManager.listAllVirtualMachineTags()) {
+      if (SERVER_ID.equals(tags.get(GOCD_SERVER_ID_TAG_KEY))) {
+        matches++;
+      }
+    }
+    return matches;
+  }
+
+  @Benchmark
+  public List<VirtualMachine> resourceGroupQuery() {
+    return inventoryQuery.virtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, SERVER_ID);
+  }
+}
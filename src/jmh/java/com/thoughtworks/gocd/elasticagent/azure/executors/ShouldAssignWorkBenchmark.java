@@ -0,0 +1,79 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.executors;
+
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import com.thoughtworks.gocd.elasticagent.azure.Agent;
+import com.thoughtworks.gocd.elasticagent.azure.BenchmarkFleet;
+import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
+import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
+import com.thoughtworks.gocd.elasticagent.azure.requests.ShouldAssignWorkRequest;
+import com.thoughtworks.gocd.elasticagent.azure.service.ServerHealthMessagingService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.gocd.elasticagent.azure.BenchmarkFleet.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * GoCD asks every idle agent whether it should take a pending job, so most should-assign-work requests are answered
+ * with no: the agent is busy, of another profile, or not one of ours. Run with
+ * <code>./gradlew jmh -PjmhIncludes=ShouldAssignWorkBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShouldAssignWorkBenchmark {
+
+  @Param({"10", "1000", "10000"})
+  private int fleetSize;
+
+  private BenchmarkFleet fleet;
+  private final PluginSettings pluginSettings = new PluginSettings();
+  private final ServerHealthMessagingService serverHealthMessagingService = mock(ServerHealthMessagingService.class);
+  private int next;
+
+  @Setup
+  public void setUp() throws Exception {
+    fleet = new BenchmarkFleet(fleetSize);
+  }
+
+  @Benchmark
+  public GoPluginApiResponse busyAgent() {
+    int busy = (next++ % ((fleetSize + 1) / 2)) * 2;
+    return execute(agentId(busy), PROFILE);
+  }
+
+  @Benchmark
+  public GoPluginApiResponse agentOfOtherProfile() {
+    return execute(agentId(next++ % fleetSize), OTHER_PROFILE);
+  }
+
+  @Benchmark
+  public GoPluginApiResponse unknownAgent() {
+    return execute("static-agent", PROFILE);
+  }
+
+  private GoPluginApiResponse execute(String agentId, ElasticProfile profile) {
+    ShouldAssignWorkRequest request = new ShouldAssignWorkRequest(new Agent(agentId), ENVIRONMENT, job(-1), profile);
+    return new ShouldAssignWorkRequestExecutor(request, fleet.agentInstances(), pluginSettings, serverHealthMessagingService).execute();
+  }
+}
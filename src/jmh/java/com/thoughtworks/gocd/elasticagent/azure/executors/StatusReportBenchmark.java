@@ -0,0 +1,65 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.executors;
+
+import com.thoughtworks.gocd.elasticagent.azure.BenchmarkFleet;
+import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
+import com.thoughtworks.gocd.elasticagent.azure.models.StatusReport;
+import com.thoughtworks.gocd.elasticagent.azure.utils.TemplateReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.gocd.elasticagent.azure.executors.StatusReportExecutor.STATUS_REPORT_TEMPLATE;
+
+/**
+ * Building the plugin status report model and rendering it, as the fleet grows. Run with
+ * <code>./gradlew jmh -PjmhIncludes=StatusReportBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatusReportBenchmark {
+
+  @Param({"10", "1000", "10000"})
+  private int fleetSize;
+
+  private BenchmarkFleet fleet;
+  private final PluginSettings pluginSettings = new PluginSettings();
+  private TemplateReader templateReader;
+  private StatusReport statusReport;
+
+  @Setup
+  public void setUp() throws Exception {
+    fleet = new BenchmarkFleet(fleetSize);
+    templateReader = new TemplateReader().preload();
+    statusReport = fleet.agentInstances().getStatusReport(pluginSettings);
+  }
+
+  @Benchmark
+  public StatusReport buildReport() {
+    return fleet.agentInstances().getStatusReport(pluginSettings);
+  }
+
+  @Benchmark
+  public String renderReport() throws Exception {
+    return templateReader.read(STATUS_REPORT_TEMPLATE, statusReport);
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.requests;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.GsonBuilder;
+import com.thoughtworks.gocd.elasticagent.azure.BenchmarkFleet;
+import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.gocd.elasticagent.azure.models.Platform.LINUX;
+
+/**
+ * Parsing a create-agent request, which GoCD repeats for every pending job on every scheduling cycle. Run with
+ * <code>./gradlew jmh -PjmhIncludes=CreateAgentRequestBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CreateAgentRequestBenchmark {
+
+  @Param({"0", "4096"})
+  private int customScriptLength;
+
+  private String json;
+
+  @Setup
+  public void setUp() {
+    String customScript = "echo provisioning\n".repeat(customScriptLength / 18 + 1).substring(0, customScriptLength);
+    ElasticProfile profile = new ElasticProfile("Standard_D3_v2", "Canonical:UbuntuServer:16.04.0-LTS", "", customScript,
+        LINUX, "Standard_LRS", "30", "50", "default");
+    CreateAgentRequest request = new CreateAgentRequest("0b7e1f3c-7d0f-4a58-9b0e-5f3e9f6f0d11", profile,
+        BenchmarkFleet.ENVIRONMENT, BenchmarkFleet.job(42));
+    json = new GsonBuilder().setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES).create().toJson(request);
+  }
+
+  @Benchmark
+  public CreateAgentRequest fromJSON() {
+    return CreateAgentRequest.fromJSON(json);
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.vm;
+
+import com.thoughtworks.gocd.elasticagent.azure.utils.TemplateReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares rendering the agent install script with a new FreeMarker configuration per call, as the plugin did before,
+ * with the shared template reader. Run with
+ * <code>./gradlew jmh -PjmhIncludes=ScriptRenderingBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScriptRenderingBenchmark {
+
+  private static final String TEMPLATE = "post_provision_script.template.ftl";
+
+  private final Map<String, String> installParams = new HashMap<>();
+  private TemplateReader sharedReader;
+  private int agents;
+
+  @Setup
+  public void setUp() {
+    installParams.put("version", "23.1.0-16079");
+    installParams.put("go_server_url", "https://gocd.example.com/go");
+    installParams.put("autoregister_key", "0b7e1f3c-7d0f-4a58-9b0e-5f3e9f6f0d11");
+    installParams.put("environment", "production");
+    installParams.put("plugin_id", "com.thoughtworks.gocd.elastic-agent.azure");
+    installParams.put("agent_id", "gocd-agent-0");
+    installParams.put("jre_feature_version", "17");
+    sharedReader = new TemplateReader().preload();
+  }
+
+  @Benchmark
+  public String configurationPerCall() throws Exception {
+    String script = new TemplateReader().read(TEMPLATE, installParams);
+    return Base64.getEncoder().encodeToString(script.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Benchmark
+  public String sharedReaderPerAgent() throws Exception {
+    Map<String, String> params = new HashMap<>(installParams);
+    params.put("agent_id", "gocd-agent-" + agents++);
+    return sharedReader.readBase64(TEMPLATE, params);
+  }
+}
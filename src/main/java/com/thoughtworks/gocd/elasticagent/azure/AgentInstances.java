@@ -16,6 +16,7 @@
 
 package com.thoughtworks.gocd.elasticagent.azure;
 
+import com.thoughtworks.gocd.elasticagent.azure.client.TagChanges;
 import com.thoughtworks.gocd.elasticagent.azure.executors.ServerPingRequestExecutor;
 import com.thoughtworks.gocd.elasticagent.azure.models.AgentStatusReport;
 import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
@@ -53,6 +54,16 @@ public interface AgentInstances<T> {
 
   AzureInstance addTag(PluginSettings settings, String agentId, String tagName, String tagValue) throws IOException;
 
+  /**
+   * Applies several tag changes to the agent instance in a single update.
+   *
+   * @param settings the plugin settings object
+   * @param agentId  the elastic agent id
+   * @param changes  the tags to set and remove
+   * @return the updated agent instance, or <code>null</code> if the agent is not found
+   */
+  AzureInstance updateTags(PluginSettings settings, String agentId, TagChanges changes) throws IOException;
+
   /**
    * This message is sent from the {@link ServerPingRequestExecutor}
    * to terminate instances that did not register with the server after a timeout. The timeout may be configurable and
@@ -119,5 +130,31 @@ public interface AgentInstances<T> {
   AgentStatusReport getAgentStatusReport(PluginSettings pluginSettings, T agentInstance);
 
   void removeTag(PluginSettings settings, String agentId, String tagName) throws Exception;
+
+  /**
+   * Records on the provisioning timeline of the agent that it reached a phase. Only the first time counts.
+   *
+   * @param agentId the elastic agent id
+   * @param phase   the phase the agent reached
+   */
+  void reached(String agentId, ProvisioningPhase phase);
+
+  /**
+   * Leases the agent instance to a job for a short while, unless it is leased to another job. A job tag is only
+   * written on an agent instance while holding its lease.
+   *
+   * @param agentId       the elastic agent id
+   * @param jobIdentifier the job to lease the agent instance to
+   * @return <code>true</code> if the job holds the lease
+   */
+  boolean reserve(String agentId, JobIdentifier jobIdentifier);
+
+  /**
+   * Ends the lease of the job on the agent instance, if it still holds it.
+   *
+   * @param agentId       the elastic agent id
+   * @param jobIdentifier the job holding the lease
+   */
+  void release(String agentId, JobIdentifier jobIdentifier);
 }
 
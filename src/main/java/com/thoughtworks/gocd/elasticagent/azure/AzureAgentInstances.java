@@ -18,31 +18,60 @@ package com.thoughtworks.gocd.elasticagent.azure;
 
 import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClient;
 import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClientFactory;
+import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClientPool;
+import com.thoughtworks.gocd.elasticagent.azure.client.TagChanges;
 import com.thoughtworks.gocd.elasticagent.azure.models.*;
 import com.thoughtworks.gocd.elasticagent.azure.requests.CreateAgentRequest;
 import com.thoughtworks.gocd.elasticagent.azure.utils.Util;
+import org.apache.commons.lang3.tuple.Pair;
 import org.joda.time.DateTime;
 import org.joda.time.Period;
 
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
 import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
 
+/**
+ * The plugin's instances by agent id. Lookups by job and by elastic profile, which every create-agent request makes,
+ * go through secondary indexes that are updated together with the instance under the same map entry, so that they do
+ * not scan the whole fleet. Idle instances handed out to jobs are reserved with {@link InstanceLeases}. Once loaded,
+ * the instances are kept in line with Azure by the {@link InstanceReconciler} in the background.
+ */
 public class AzureAgentInstances implements AgentInstances<AzureInstance> {
 
   public static final Period INSTANCE_CLEANUP_INTERVAL = Period.minutes(10);
+  public static final String AZURE_CLIENT_CACHE_HITS = "Azure client cache hits";
+  public static final String AZURE_CLIENT_CACHE_MISSES = "Azure client cache misses";
+  public static final String PENDING_TAG_WRITES = "Pending tag writes";
+  public static final String FAILED_TAG_WRITES = "Failed tag writes";
   private final ConcurrentHashMap<String, AzureInstance> instances = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, String> instancesByJob = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<String>> unassignedByProfile = new ConcurrentHashMap<>();
+  private final Set<String> tombstones = ConcurrentHashMap.newKeySet();
+  private final Set<String> provisioning = ConcurrentHashMap.newKeySet();
+  private final Set<String> missingFromInventory = new HashSet<>();
 
   private boolean refreshed;
   private Clock clock = Clock.DEFAULT;
   private AzureInstanceManager azureInstanceManager;
   private GoCDAzureClientFactory clientFactory;
+  private TagSyncer tagSyncer = new TagSyncer();
+  private StoppedPool stoppedPool = new StoppedPool();
+  private InstanceLeases leases = new InstanceLeases();
+  private InstanceReconciler reconciler = new InstanceReconciler();
+  private volatile String serverId;
   private DateTime lastCleanup;
 
   public AzureAgentInstances(AzureInstanceManager azureInstanceManager, GoCDAzureClientFactory clientFactory) {
@@ -55,55 +84,182 @@ public class AzureAgentInstances implements AgentInstances<AzureInstance> {
     this.clock = clock;
   }
 
+  public AzureAgentInstances(AzureInstanceManager azureInstanceManager, Clock clock, GoCDAzureClientFactory clientFactory, TagSyncer tagSyncer) {
+    this(azureInstanceManager, clock, clientFactory);
+    this.tagSyncer = tagSyncer;
+  }
+
+  public AzureAgentInstances(AzureInstanceManager azureInstanceManager, Clock clock, GoCDAzureClientFactory clientFactory, TagSyncer tagSyncer, StoppedPool stoppedPool) {
+    this(azureInstanceManager, clock, clientFactory, tagSyncer);
+    this.stoppedPool = stoppedPool;
+  }
+
+  AzureAgentInstances(AzureInstanceManager azureInstanceManager, Clock clock, GoCDAzureClientFactory clientFactory, TagSyncer tagSyncer, InstanceLeases leases) {
+    this(azureInstanceManager, clock, clientFactory, tagSyncer);
+    this.leases = leases;
+  }
+
+  AzureAgentInstances(AzureInstanceManager azureInstanceManager, Clock clock, GoCDAzureClientFactory clientFactory, TagSyncer tagSyncer, InstanceReconciler reconciler) {
+    this(azureInstanceManager, clock, clientFactory, tagSyncer);
+    this.reconciler = reconciler;
+  }
+
   @Override
   public AzureInstance create(CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo) throws Exception {
+    return create(request, settings, serverInfo, ProvisioningListener.NONE);
+  }
+
+  public AzureInstance create(CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo, ProvisioningListener listener) throws Exception {
+    if (request.elasticProfile() != null) {
+      stoppedPool.remember(request.elasticProfile());
+    }
     final AzureInstance instance = find(request.jobIdentifier());
     if (instance != null) {
       LOG.info(MessageFormat.format("Task is already scheduled on instance {0}.", instance.getName()));
       return instance;
     }
-    AzureInstance instanceByElasticProfile = findAvailableInstance(request.elasticProfile());
+    AzureInstance instanceByElasticProfile = reserveAvailableInstance(request.elasticProfile(), request.jobIdentifier());
     if (instanceByElasticProfile != null) {
       LOG.info(MessageFormat.format("Instance {0} provisioned already with the same elastic profile.", instanceByElasticProfile.getName()));
       return instanceByElasticProfile;
     }
+    AzureInstance resumed = resumeParkedInstance(request, settings, serverInfo, listener);
+    if (resumed != null) {
+      return resumed;
+    }
+
+    return provision(request, settings, serverInfo, listener);
+  }
 
+  private AzureInstance resumeParkedInstance(CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo, ProvisioningListener listener) throws IOException {
+    if (request.elasticProfile() == null) {
+      return null;
+    }
+    Optional<AzureInstance> parked = stoppedPool.claim(request.elasticProfile(), Optional.ofNullable(request.environment()).orElse(""));
+    if (!parked.isPresent()) {
+      return null;
+    }
+    GoCDAzureClient goCDAzureClient = clientFactory.initialize(settings);
+    Set<String> names = ConcurrentHashMap.newKeySet();
+    try {
+      AzureInstance azureInstance = azureInstanceManager.resume(goCDAzureClient, parked.get(), request, settings, serverInfo, tracking(listener, names));
+      register(azureInstance);
+      return azureInstance;
+    } catch (Exception e) {
+      LOG.warn("Failed to resume parked instance {}, terminating it and creating a new one: {}", parked.get().getName(), e.getMessage());
+      azureInstanceManager.terminate(goCDAzureClient, parked.get());
+      return null;
+    } finally {
+      provisioning.removeAll(names);
+    }
+  }
+
+  /**
+   * Provisions a new instance without looking for one that is already running for the job or the elastic profile.
+   */
+  public AzureInstance provision(CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo, ProvisioningListener listener) throws Exception {
     GoCDAzureClient goCDAzureClient = clientFactory.initialize(settings);
-    AzureInstance azureInstance = azureInstanceManager.create(goCDAzureClient, request, settings, serverInfo);
-    register(azureInstance);
-    return azureInstance;
+    Set<String> names = ConcurrentHashMap.newKeySet();
+    try {
+      AzureInstance azureInstance = azureInstanceManager.create(goCDAzureClient, request, settings, serverInfo, tracking(listener, names));
+      register(azureInstance);
+      return azureInstance;
+    } finally {
+      provisioning.removeAll(names);
+    }
+  }
+
+  // Reconciliation leaves the VMs named by a running provisioning alone until it registers them.
+  private ProvisioningListener tracking(ProvisioningListener listener, Set<String> names) {
+    return (vmName, state) -> {
+      if (names.add(vmName)) {
+        provisioning.add(vmName);
+      }
+      listener.transitioned(vmName, state);
+    };
   }
 
   @Override
   public void terminate(String agentId, PluginSettings settings) throws Exception {
     GoCDAzureClient goCDAzureClient = clientFactory.initialize(settings);
     Optional.ofNullable(instances.get(agentId)).ifPresent(azureInstance -> {
-      instances.remove(agentId);
+      unregister(agentId);
+      tagSyncer.discard(azureInstance.getId());
       azureInstanceManager.terminate(goCDAzureClient, azureInstance);
     });
   }
 
+  /**
+   * Parks the VM of an idle agent in the {@link StoppedPool} if its elastic profile has room for it, and terminates it
+   * otherwise. The agent is expected to be deleted from the server; a resumed VM registers as a new agent.
+   */
+  public void retire(String agentId, PluginSettings settings) throws Exception {
+    AzureInstance instance = instances.get(agentId);
+    if (instance == null || !stoppedPool.reserve(instance)) {
+      terminate(agentId, settings);
+      return;
+    }
+    GoCDAzureClient goCDAzureClient = clientFactory.initialize(settings);
+    unregister(agentId);
+    tagSyncer.discard(instance.getId());
+    try {
+      stoppedPool.execute(() -> {
+        try {
+          stoppedPool.parked(azureInstanceManager.park(goCDAzureClient, instance));
+        } catch (Exception e) {
+          LOG.error("Failed to park instance {}, terminating it: {}", instance.getName(), e.getMessage());
+          stoppedPool.release(instance.getName());
+          azureInstanceManager.terminate(goCDAzureClient, instance);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.warn("Stopped pool is shut down, terminating instance {} instead of parking it", instance.getName());
+      stoppedPool.release(instance.getName());
+      azureInstanceManager.terminate(goCDAzureClient, instance);
+    }
+  }
+
+  public void terminateExpiredParkedInstances(PluginSettings settings) throws Exception {
+    List<AzureInstance> expired = stoppedPool.expired();
+    if (!expired.isEmpty()) {
+      GoCDAzureClient goCDAzureClient = clientFactory.initialize(settings);
+      for (AzureInstance instance : expired) {
+        LOG.info("Terminating parked instance {}, parked since {}", instance.getName(), instance.getParkedAt());
+        azureInstanceManager.terminate(goCDAzureClient, instance);
+      }
+    }
+  }
+
   @Override
   public AzureInstance addTag(PluginSettings settings, String agentId, String tagName, String tagValue) throws IOException {
-    LOG.info("Adding Tag {} to Agent {} with value {}", tagName, agentId, tagValue);
-    GoCDAzureClient goCDAzureClient = clientFactory.initialize(settings);
-    Optional.ofNullable(instances.get(agentId))
-        .ifPresent(instance -> {
-          AzureInstance instanceWithTags = azureInstanceManager.addTag(goCDAzureClient, instance, tagName, tagValue);
-          register(instanceWithTags);
-        });
-    return instances.get(agentId);
+    return updateTags(settings, agentId, new TagChanges().set(tagName, tagValue));
   }
 
   @Override
   public void removeTag(PluginSettings settings, String agentId, String tagName) throws IOException {
-    LOG.info("Removing Tag {} on Agent {}", tagName, agentId);
+    updateTags(settings, agentId, new TagChanges().remove(tagName));
+  }
+
+  /**
+   * The in-memory instance is updated immediately and the VM tags are written behind by the {@link TagSyncer}. If the
+   * write is given up on, the next reconciliation reverts the in-memory tags to the VM tags.
+   */
+  @Override
+  public AzureInstance updateTags(PluginSettings settings, String agentId, TagChanges changes) throws IOException {
+    LOG.info("Updating Tags on Agent {} with {}", agentId, changes);
     GoCDAzureClient goCDAzureClient = clientFactory.initialize(settings);
-    Optional.ofNullable(instances.get(agentId))
-        .ifPresent(instance -> {
-          AzureInstance instanceWithoutTag = azureInstanceManager.removeTag(goCDAzureClient, instance, tagName);
-          register(instanceWithoutTag);
-        });
+    // the remapping function may be retried and holds the map's bin lock, so the write is handed over after it
+    AzureInstance[] previous = new AzureInstance[1];
+    AzureInstance updated = instances.computeIfPresent(agentId, (id, instance) -> {
+      previous[0] = instance;
+      AzureInstance withChanges = instance.withTags(changes.applyTo(instance.getTags()));
+      index(instance, withChanges);
+      return withChanges;
+    });
+    if (updated != null) {
+      tagSyncer.submit(goCDAzureClient, previous[0].getId(), previous[0].getTags(), changes);
+    }
+    return updated;
   }
 
   @Override
@@ -126,7 +282,7 @@ public class AzureAgentInstances implements AgentInstances<AzureInstance> {
     agents.agents().forEach(agent -> {
       AzureInstance instance = instances.get(agent.elasticAgentId());
       if (instance != null) {
-        if (isCreatedAfterAutoRegisterTimeout(settings, instance) || instance.canBeTerminated()) {
+        if (isCreatedAfterAutoRegisterTimeout(settings, instance) || instance.canBeTerminated(clock)) {
           agentsToBeDisabled.add(agent);
         }
       }
@@ -140,12 +296,87 @@ public class AzureAgentInstances implements AgentInstances<AzureInstance> {
 
   @Override
   public void refreshAll(PluginRequest pluginRequest) throws Exception {
-    GoCDAzureClient goCDAzureClient = clientFactory.initialize(pluginRequest.getPluginSettings());
+    PluginSettings settings = pluginRequest.getPluginSettings();
+    GoCDAzureClient goCDAzureClient = clientFactory.initialize(settings);
     if (!refreshed) {
-      List<AzureInstance> instances = azureInstanceManager.listInstances(goCDAzureClient, pluginRequest.getServerInfo().getServerId());
+      serverId = pluginRequest.getServerInfo().getServerId();
+      List<AzureInstance> instances = azureInstanceManager.listInstances(goCDAzureClient, serverId);
       instances.forEach(instance -> register(instance));
+      azureInstanceManager.listParkedInstances(goCDAzureClient, serverId).forEach(stoppedPool::register);
       refreshed = true;
     }
+    String reconciledServerId = serverId;
+    reconciler.schedule(settings.getReconcileIntervalPeriod(), () -> reconcile(settings, reconciledServerId));
+  }
+
+  /**
+   * Brings the instances in memory in line with a listing of the plugin's running VMs taken now. VMs missing from
+   * memory are added unless the plugin itself terminated them since, a provisioning is still bringing them up, or they
+   * are in the {@link StoppedPool}. Instances whose tags or state differ from their VM adopt the VM's, unless a tag
+   * write for them is pending or completed after the listing started, and instances whose VM is missing from two
+   * listings in a row are removed. An instance that changed while the listing was taken is left to the next run.
+   */
+  public synchronized InstanceReconciler.Drift reconcile(PluginSettings settings, String serverId) throws IOException {
+    GoCDAzureClient goCDAzureClient = clientFactory.initialize(settings);
+    long tagWriteMark = tagSyncer.mark();
+    Map<String, AzureInstance> known = new HashMap<>(instances);
+    Map<String, AzureInstance> listed = new HashMap<>();
+    azureInstanceManager.listCurrentInstances(goCDAzureClient, serverId).forEach(instance -> listed.put(instance.getName(), instance));
+    tombstones.retainAll(listed.keySet());
+
+    int added = 0;
+    int updated = 0;
+    for (AzureInstance instance : listed.values()) {
+      AzureInstance current = known.get(instance.getName());
+      if (current == null) {
+        if (!isOwnedElsewhere(instance.getName()) && registerIfAbsent(instance)) {
+          added++;
+        }
+      } else if (drifted(current, instance) && !tagSyncer.isPendingOrWrittenSince(current.getId(), tagWriteMark) && replaceIfUnchanged(current, instance)) {
+        updated++;
+      }
+    }
+
+    int removed = 0;
+    missingFromInventory.retainAll(known.keySet());
+    for (AzureInstance instance : known.values()) {
+      String agentId = instance.getName();
+      if (listed.containsKey(agentId)) {
+        missingFromInventory.remove(agentId);
+      } else if (!missingFromInventory.add(agentId)) {
+        missingFromInventory.remove(agentId);
+        if (unregisterIfUnchanged(instance)) {
+          tagSyncer.discard(instance.getId());
+          removed++;
+        }
+      }
+    }
+    return new InstanceReconciler.Drift(added, updated, removed);
+  }
+
+  /**
+   * Stops the periodic reconciliation, so that it does not run against a plugin being unloaded.
+   */
+  public void stopReconciling() {
+    reconciler.stop();
+  }
+
+  /**
+   * Waits for the VMs being parked in the {@link StoppedPool}, so that they are not abandoned halfway on unload.
+   *
+   * @return the number of VMs still being parked when the timeout elapsed
+   */
+  public int drainParks(Period timeout) {
+    return stoppedPool.shutdown(timeout);
+  }
+
+  /**
+   * Waits for the tag writes still pending behind the in-memory instances, so that they are not lost on unload.
+   *
+   * @return the number of tag writes still pending when the timeout elapsed
+   */
+  public int flushTagWrites(Period timeout) {
+    return tagSyncer.flush(timeout);
   }
 
   public void terminateProvisionFailedInstances(PluginSettings pluginSettings, ServerInfo serverInfo) throws Exception {
@@ -163,25 +394,227 @@ public class AzureAgentInstances implements AgentInstances<AzureInstance> {
 
   @Override
   public AzureInstance find(JobIdentifier jobIdentifier) {
-    return instances.values().stream().filter((instance) -> instance.jobIdentifierMatches(jobIdentifier)).findFirst().orElse(null);
+    if (jobIdentifier == null) {
+      return null;
+    }
+    String agentId = instancesByJob.get(jobIdentifier.hash());
+    AzureInstance instance = agentId == null ? null : instances.get(agentId);
+    return instance != null && instance.jobIdentifierMatches(jobIdentifier) ? instance : null;
   }
 
   public AzureInstance findAvailableInstance(ElasticProfile elasticProfile) {
-    return instances.values().stream().filter((instance) -> instance.canBeAssigned(elasticProfile)).findFirst().orElse(null);
+    if (elasticProfile == null) {
+      return null;
+    }
+    String profileHash = elasticProfile.hash();
+    Set<String> agentIds = unassignedByProfile.get(profileHash);
+    if (agentIds == null) {
+      return null;
+    }
+    return agentIds.stream()
+        .map(instances::get)
+        .filter(instance -> instance != null && instance.canBeAssigned(profileHash, clock))
+        .findFirst().orElse(null);
+  }
+
+  /**
+   * Finds an instance that can be assigned a job of the elastic profile and leases it to the job, so that concurrent
+   * requests for other jobs do not get the same instance. A job that already holds a lease gets the same instance
+   * back. Otherwise the candidates are tried in the order of the profile's idle set, starting at a position picked by
+   * the job's hash, which spreads concurrent jobs over the idle instances without copying or sorting the set.
+   */
+  public AzureInstance reserveAvailableInstance(ElasticProfile elasticProfile, JobIdentifier jobIdentifier) {
+    if (elasticProfile == null || jobIdentifier == null) {
+      return findAvailableInstance(elasticProfile);
+    }
+    String holder = jobIdentifier.hash();
+    String profileHash = elasticProfile.hash();
+    String leased = leases.leasedTo(holder);
+    if (leased != null) {
+      AzureInstance instance = reserve(leased, holder, profileHash);
+      if (instance != null) {
+        return instance;
+      }
+    }
+    Set<String> agentIds = unassignedByProfile.get(profileHash);
+    if (agentIds == null || agentIds.isEmpty()) {
+      return null;
+    }
+    int start = Math.floorMod(holder.hashCode(), agentIds.size());
+    int position = 0;
+    for (String agentId : agentIds) {
+      if (position++ >= start) {
+        AzureInstance instance = reserve(agentId, holder, profileHash);
+        if (instance != null) {
+          return instance;
+        }
+      }
+    }
+    position = 0;
+    for (String agentId : agentIds) {
+      if (position++ >= start) {
+        break;
+      }
+      AzureInstance instance = reserve(agentId, holder, profileHash);
+      if (instance != null) {
+        return instance;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean reserve(String agentId, JobIdentifier jobIdentifier) {
+    return leases.acquire(agentId, jobIdentifier.hash());
+  }
+
+  @Override
+  public void release(String agentId, JobIdentifier jobIdentifier) {
+    leases.release(agentId, jobIdentifier.hash());
+  }
+
+  // The instance is read again once the lease is held, as a job may have been tagged on it since it was a candidate.
+  private AzureInstance reserve(String agentId, String holder, String profileHash) {
+    AzureInstance candidate = instances.get(agentId);
+    if (candidate == null || !candidate.canBeAssigned(profileHash, clock) || !leases.acquire(agentId, holder)) {
+      return null;
+    }
+    AzureInstance instance = instances.get(agentId);
+    if (instance == null || !instance.canBeAssigned(profileHash, clock)) {
+      leases.release(agentId, holder);
+      return null;
+    }
+    return instance;
+  }
+
+  public List<AzureInstance> instancesWithProfile(ElasticProfile elasticProfile, String environment) {
+    String profileHash = elasticProfile.hash();
+    return instances.values().stream()
+        .filter(instance -> instance.elasticProfileMatches(profileHash) && instance.getEnvironment().equals(environment))
+        .collect(Collectors.toList());
   }
 
   @Override
   public StatusReport getStatusReport(PluginSettings pluginSettings) {
-    return new StatusReport(new ArrayList<>(this.instances.values()), Util.pluginVersion());
+    return new StatusReport(new ArrayList<>(this.instances.values()), Util.pluginVersion(), pluginProperties());
+  }
+
+  private List<Pair<String, String>> pluginProperties() {
+    GoCDAzureClientPool clientPool = clientFactory.getClientPool();
+    List<Pair<String, String>> properties = new ArrayList<>();
+    properties.add(Pair.of(AZURE_CLIENT_CACHE_HITS, Long.toString(clientPool.hits())));
+    properties.add(Pair.of(AZURE_CLIENT_CACHE_MISSES, Long.toString(clientPool.misses())));
+    properties.add(Pair.of(PENDING_TAG_WRITES, Integer.toString(tagSyncer.pending())));
+    properties.add(Pair.of(FAILED_TAG_WRITES, Long.toString(tagSyncer.failed())));
+    properties.addAll(stoppedPool.statusReportProperties());
+    properties.addAll(leases.statusReportProperties());
+    properties.addAll(reconciler.statusReportProperties());
+    properties.addAll(clientFactory.getRequestScheduler().statusReportProperties());
+    properties.addAll(clientFactory.getCircuitBreakers().statusReportProperties());
+    properties.addAll(clientFactory.getMetrics().statusReportProperties());
+    properties.addAll(azureInstanceManager.getTimelines().statusReportProperties());
+    return properties;
   }
 
   @Override
   public AgentStatusReport getAgentStatusReport(PluginSettings pluginSettings, AzureInstance agentInstance) {
-    return new AgentStatusReport(agentInstance, azureInstanceManager.getExecutionLogs(agentInstance.getName()));
+    return new AgentStatusReport(agentInstance, azureInstanceManager.getExecutionLogs(agentInstance.getName()), azureInstanceManager.getTimeline(agentInstance.getName()));
+  }
+
+  @Override
+  public void reached(String agentId, ProvisioningPhase phase) {
+    azureInstanceManager.reached(agentId, phase);
   }
 
   private void register(AzureInstance instance) {
-    instances.put(instance.getName(), instance);
+    tombstones.remove(instance.getName());
+    instances.compute(instance.getName(), (agentId, previous) -> {
+      index(previous, instance);
+      return instance;
+    });
+  }
+
+  // A VM the plugin let go of may still show up in a listing taken before, so reconciliation must not add it back.
+  private void unregister(String agentId) {
+    tombstones.add(agentId);
+    instances.computeIfPresent(agentId, (id, instance) -> {
+      index(instance, null);
+      return null;
+    });
+    leases.release(agentId);
+  }
+
+  private boolean isOwnedElsewhere(String agentId) {
+    return tombstones.contains(agentId) || provisioning.contains(agentId) || stoppedPool.holds(agentId);
+  }
+
+  private boolean registerIfAbsent(AzureInstance instance) {
+    return instances.computeIfAbsent(instance.getName(), agentId -> {
+      index(null, instance);
+      return instance;
+    }) == instance;
+  }
+
+  private boolean replaceIfUnchanged(AzureInstance expected, AzureInstance replacement) {
+    return instances.computeIfPresent(expected.getName(), (agentId, current) -> {
+      if (current != expected) {
+        return current;
+      }
+      index(current, replacement);
+      return replacement;
+    }) == replacement;
+  }
+
+  private boolean unregisterIfUnchanged(AzureInstance expected) {
+    boolean[] removed = {false};
+    instances.computeIfPresent(expected.getName(), (agentId, current) -> {
+      if (current != expected) {
+        return current;
+      }
+      index(current, null);
+      removed[0] = true;
+      return null;
+    });
+    if (removed[0]) {
+      leases.release(expected.getName());
+    }
+    return removed[0];
+  }
+
+  private static boolean drifted(AzureInstance known, AzureInstance listed) {
+    return !Objects.equals(known.getTags(), listed.getTags())
+        || !Objects.equals(known.getPowerState(), listed.getPowerState())
+        || !Objects.equals(known.getProvisioningState(), listed.getProvisioningState());
+  }
+
+  /**
+   * Moves an agent in the job and profile indexes from its previous to its current state; either may be null. Always
+   * called from within a compute on the agent's entry in {@link #instances}, so changes to one agent are serialized.
+   */
+  private void index(AzureInstance previous, AzureInstance current) {
+    if (previous != null) {
+      String job = previous.assignedJobHash();
+      if (job != null) {
+        instancesByJob.remove(job, previous.getName());
+      } else if (previous.elasticProfileHash() != null) {
+        unassignedByProfile.computeIfPresent(previous.elasticProfileHash(), (profile, agentIds) -> {
+          agentIds.remove(previous.getName());
+          return agentIds.isEmpty() ? null : agentIds;
+        });
+      }
+    }
+    if (current != null) {
+      String job = current.assignedJobHash();
+      if (job != null) {
+        instancesByJob.put(job, current.getName());
+      } else if (current.elasticProfileHash() != null) {
+        unassignedByProfile.compute(current.elasticProfileHash(), (profile, agentIds) -> {
+          Set<String> unassigned = agentIds == null ? ConcurrentHashMap.newKeySet() : agentIds;
+          unassigned.add(current.getName());
+          return unassigned;
+        });
+      }
+    }
   }
 
   private List<AzureInstance> unregisteredAfterTimeout(Period autoregisterTimeout, Agents knownAgents) {
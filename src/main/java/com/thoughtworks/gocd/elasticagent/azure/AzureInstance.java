@@ -20,13 +20,15 @@ import com.microsoft.azure.management.compute.ImageReference;
 import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
 import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
 import com.thoughtworks.gocd.elasticagent.azure.models.Platform;
+import lombok.AccessLevel;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.joda.time.DateTime;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.Optional;
-import java.util.UUID;
 
 import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.*;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
@@ -34,6 +36,8 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 @Getter
 @EqualsAndHashCode
 public class AzureInstance {
+  private static final long NEVER = Long.MIN_VALUE;
+
   private String name;
   private String hostName;
   private String id;
@@ -49,6 +53,21 @@ public class AzureInstance {
   private Map<String, String> tags;
   private Platform platform;
 
+  // Parsed from the tags once, so that the predicates that run for every instance on every server-ping and
+  // create-agent request neither parse nor allocate. Tags only change through withTags, which builds a new instance.
+  @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude
+  private final String jobHash;
+  @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude
+  private final boolean assigned;
+  @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude
+  private final String profileHash;
+  @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude
+  private final long lastJobRunMillis;
+  @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude
+  private final long idleTimeoutMillis;
+  @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude
+  private final long idleSinceMillis;
+
   public AzureInstance(String name,
                        String hostName,
                        String id,
@@ -76,14 +95,56 @@ public class AzureInstance {
     this.primaryNetworkInterface = primaryNetworkInterface;
     this.tags = tags;
     this.platform = platform;
+
+    Map<String, String> parsed = tags == null ? Collections.emptyMap() : tags;
+    this.jobHash = parsed.get(JOB_IDENTIFIER_TAG_KEY);
+    this.assigned = isNotBlank(jobHash);
+    this.profileHash = parsed.get(ELASTIC_PROFILE_TAG_KEY);
+    this.lastJobRunMillis = NumberUtils.toLong(parsed.get(LAST_JOB_RUN_TAG_KEY), NEVER);
+    this.idleTimeoutMillis = NumberUtils.toInt(parsed.get(IDLE_TIMEOUT), 0) * 60_000L;
+    this.idleSinceMillis = lastJobRunMillis != NEVER ? lastJobRunMillis : createdAt != null ? createdAt.getMillis() : 0;
+  }
+
+  public AzureInstance withTags(Map<String, String> tags) {
+    return new AzureInstance(name, hostName, id, createdAt, imageReference, size, os, diskSize, provisioningState,
+        powerState, resourceGroupName, primaryNetworkInterface, tags, platform);
+  }
+
+  /**
+   * A copy of a resumed instance, which counts as created when it was resumed.
+   */
+  public AzureInstance withCreatedAt(DateTime createdAt) {
+    return new AzureInstance(name, hostName, id, createdAt, imageReference, size, os, diskSize, provisioningState,
+        powerState, resourceGroupName, primaryNetworkInterface, tags, platform);
   }
 
   public Boolean jobIdentifierMatches(JobIdentifier identifier) {
-    return getJobIdentifierHash().equals(identifier.hash());
+    return jobHash != null && jobHash.equals(identifier.hash());
   }
 
   public Boolean elasticProfileMatches(ElasticProfile elasticProfile){
-    return getElasticProfileHash().equals(elasticProfile.hash());
+    return elasticProfileMatches(elasticProfile.hash());
+  }
+
+  /**
+   * {@link #elasticProfileMatches(ElasticProfile)} for a profile hash the caller has already computed.
+   */
+  public boolean elasticProfileMatches(String elasticProfileHash) {
+    return profileHash != null && profileHash.equals(elasticProfileHash);
+  }
+
+  /**
+   * The hash of the job the instance runs, or null while it is unassigned.
+   */
+  public String assignedJobHash() {
+    return assigned ? jobHash : null;
+  }
+
+  /**
+   * The hash of the elastic profile the instance was created for, or null if it has none.
+   */
+  public String elasticProfileHash() {
+    return profileHash;
   }
 
   public String getEnvironment() {
@@ -91,7 +152,7 @@ public class AzureInstance {
   }
 
   public boolean isAssigned() {
-    return isNotBlank(tags.get(JOB_IDENTIFIER_TAG_KEY));
+    return assigned;
   }
 
   public JobState getJobState() {
@@ -99,45 +160,47 @@ public class AzureInstance {
   }
 
   public boolean canBeAssigned(ElasticProfile elasticProfile) {
-    return getElasticProfileHash().equals(elasticProfile.hash()) && !isAssigned() && (neverAssigned() || !isIdleAfterIdleTimeout());
+    return canBeAssigned(elasticProfile.hash());
   }
 
-  public boolean isIdleAfterIdleTimeout() {
-    return Clock.DEFAULT.now().isAfter(idleSince().plusMinutes(getIdleTimeout()));
+  /**
+   * {@link #canBeAssigned(ElasticProfile)} for a profile hash the caller has already computed.
+   */
+  public boolean canBeAssigned(String elasticProfileHash) {
+    return canBeAssigned(elasticProfileHash, Clock.DEFAULT);
   }
 
-  public boolean canBeTerminated() {
-    return isIdleAfterIdleTimeout() && !neverAssigned();
+  public boolean canBeAssigned(String elasticProfileHash, Clock clock) {
+    return !assigned && elasticProfileMatches(elasticProfileHash) && (neverAssigned() || !isIdleAfterIdleTimeout(clock));
   }
 
-  private boolean neverAssigned() {
-    return getLastJobRunTime() == null;
+  public boolean isIdleAfterIdleTimeout() {
+    return isIdleAfterIdleTimeout(Clock.DEFAULT);
   }
 
-  private String getElasticProfileHash() {
-    return Optional.ofNullable(this.tags.get(ELASTIC_PROFILE_TAG_KEY)).orElse(String.valueOf(UUID.randomUUID()));
+  public boolean isIdleAfterIdleTimeout(Clock clock) {
+    return clock.now().getMillis() > idleSinceMillis + idleTimeoutMillis;
   }
 
-  private DateTime getLastJobRunTime() {
-    String lastJobRunTime = this.tags.get(LAST_JOB_RUN_TAG_KEY);
-    if (lastJobRunTime != null) {
-      return new DateTime(Long.valueOf(lastJobRunTime));
-    }
-    return null;
+  public boolean isParked() {
+    return isNotBlank(tags.get(PARKED_AT_TAG_KEY));
   }
 
-  private String getJobIdentifierHash() {
-    return Optional.ofNullable(this.tags.get(JOB_IDENTIFIER_TAG_KEY)).orElse(String.valueOf(UUID.randomUUID()));
+  public DateTime getParkedAt() {
+    String parkedAt = tags.get(PARKED_AT_TAG_KEY);
+    return isNotBlank(parkedAt) ? new DateTime(Long.valueOf(parkedAt)) : null;
   }
 
-  private int getIdleTimeout(){
-    String idleTimeout = this.tags.get(IDLE_TIMEOUT);
-    return idleTimeout != null ? Integer.valueOf(idleTimeout) : 0;
+  public boolean canBeTerminated() {
+    return canBeTerminated(Clock.DEFAULT);
   }
 
-  private DateTime idleSince(){
-    DateTime lastJobRunTime = getLastJobRunTime();
-    return lastJobRunTime !=null ? lastJobRunTime : createdAt;
+  public boolean canBeTerminated(Clock clock) {
+    return isIdleAfterIdleTimeout(clock) && !neverAssigned();
+  }
+
+  private boolean neverAssigned() {
+    return lastJobRunMillis == NEVER;
   }
 
   public enum JobState {
@@ -17,38 +17,141 @@
 package com.thoughtworks.gocd.elasticagent.azure;
 
 import com.microsoft.azure.management.compute.VirtualMachine;
+import com.thoughtworks.gocd.elasticagent.azure.client.FanOut;
 import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClient;
+import com.thoughtworks.gocd.elasticagent.azure.client.TagChanges;
 import com.thoughtworks.gocd.elasticagent.azure.exceptions.ProvisionFailedException;
 import com.thoughtworks.gocd.elasticagent.azure.models.ServerInfo;
 import com.thoughtworks.gocd.elasticagent.azure.requests.CreateAgentRequest;
 import com.thoughtworks.gocd.elasticagent.azure.vm.VmConfig;
+import org.joda.time.DateTime;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
-import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.GOCD_SERVER_ID_TAG_KEY;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.*;
 
 public class AzureInstanceManager {
 
+  static final String CLOUD_INIT_LOGS = "The agent was bootstrapped with cloud-init, its output is in /var/log/cloud-init-output.log on the VM.";
+  static final String EXTENSION_LOGS = "The agent was bootstrapped with the custom script extension, its output is in the extension status of the VM instance view.";
+
   AzureInstanceMapper mapper;
   private final ConcurrentHashMap<String, String> executionLogs = new ConcurrentHashMap<>();
+  private final DownloadUrlResolver downloadUrlResolver;
+  private final Clock clock;
+  private final ProvisioningTimelines timelines;
+  private final FanOut mapping;
+
+  public AzureInstanceManager(AzureInstanceMapper mapper, DownloadUrlResolver downloadUrlResolver) {
+    this(mapper, downloadUrlResolver, Clock.DEFAULT);
+  }
+
+  AzureInstanceManager(AzureInstanceMapper mapper, DownloadUrlResolver downloadUrlResolver, Clock clock) {
+    this(mapper, downloadUrlResolver, clock, new ProvisioningTimelines());
+  }
 
+  AzureInstanceManager(AzureInstanceMapper mapper, DownloadUrlResolver downloadUrlResolver, Clock clock, ProvisioningTimelines timelines) {
+    this(mapper, downloadUrlResolver, clock, timelines, new FanOut("azure-instance-mapping"));
+  }
 
-  public AzureInstanceManager(AzureInstanceMapper mapper) {
+  AzureInstanceManager(AzureInstanceMapper mapper, DownloadUrlResolver downloadUrlResolver, Clock clock, ProvisioningTimelines timelines, FanOut mapping) {
     this.mapper = mapper;
+    this.downloadUrlResolver = downloadUrlResolver;
+    this.clock = clock;
+    this.timelines = timelines;
+    this.mapping = mapping;
   }
 
   public AzureInstance create(GoCDAzureClient client, CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo) throws ProvisionFailedException {
+    return create(client, request, settings, serverInfo, ProvisioningListener.NONE);
+  }
+
+  public AzureInstance create(GoCDAzureClient client, CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo, ProvisioningListener listener) throws ProvisionFailedException {
     VmConfig config = buildVmConfig(request, settings, serverInfo);
-    VirtualMachine virtualMachine = client.createVM(config);
-    LOG.info("[Instance Manager] Created instance: {}", virtualMachine.name());
-    client.installGoAgent(config);
-    executeCustomScript(client, config);
-    client.startAgent(config);
-    LOG.info("[Instance Manager] Started go-agent on instance: {}", virtualMachine.name());
-    return mapper.map(virtualMachine);
+    String name = config.getName();
+    if (request.elasticProfile() != null) {
+      // a warm pool VM waits idle for its first job, which says nothing about how long it took to provision
+      timelines.start(name, request.elasticProfile().label(), request.receivedAtNanos(),
+          WarmPool.isPoolRequest(request) ? ProvisioningPhase.AGENT_REGISTERED : ProvisioningPhase.FIRST_JOB_ASSIGNED);
+    }
+    try {
+      listener.transitioned(name, ProvisioningState.CREATING_VM);
+      VirtualMachine virtualMachine = client.createVM(config, () -> timelines.reached(name, ProvisioningPhase.NIC_CREATED));
+      timelines.reached(name, ProvisioningPhase.VM_CREATED);
+      LOG.info("[Instance Manager] Created instance: {}", virtualMachine.name());
+      if (config.bootstrapsAtCreate()) {
+        // the agent is installed and started by cloud-init or the custom script extension; an agent that does not register is cleaned up after the auto-register timeout
+        executionLogs.put(name, config.isCloudInitBootstrap() ? CLOUD_INIT_LOGS : EXTENSION_LOGS);
+        return mapper.map(virtualMachine);
+      }
+      listener.transitioned(name, ProvisioningState.INSTALLING_AGENT);
+      client.installGoAgent(config);
+      timelines.reached(name, ProvisioningPhase.AGENT_INSTALLED);
+      listener.transitioned(name, ProvisioningState.RUNNING_CUSTOM_SCRIPT);
+      executeCustomScript(client, config);
+      timelines.reached(name, ProvisioningPhase.CUSTOM_SCRIPT_DONE);
+      listener.transitioned(name, ProvisioningState.STARTING_AGENT);
+      client.startAgent(config);
+      timelines.reached(name, ProvisioningPhase.AGENT_STARTED);
+      LOG.info("[Instance Manager] Started go-agent on instance: {}", virtualMachine.name());
+      return mapper.map(virtualMachine);
+    } catch (ProvisionFailedException | RuntimeException e) {
+      timelines.remove(name);
+      throw e;
+    }
+  }
+
+  /**
+   * Records that the agent on the VM reached a phase after it was provisioned, such as registering with the server.
+   */
+  public void reached(String instanceName, ProvisioningPhase phase) {
+    timelines.reached(instanceName, phase);
+  }
+
+  public ProvisioningTimeline getTimeline(String instanceName) {
+    return timelines.get(instanceName);
+  }
+
+  public ProvisioningTimelines getTimelines() {
+    return timelines;
+  }
+
+  /**
+   * Starts a parked VM again for the request. The VM keeps its disks, network interface and installed agent, so the
+   * agent is only registered again for the request instead of being installed and running the custom script.
+   */
+  public AzureInstance resume(GoCDAzureClient client, AzureInstance parked, CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo, ProvisioningListener listener) {
+    VmConfig config = new VmConfig.Builder().setName(parked.getName()).setRequestParams(request).setSettingsParams(settings).setServerInfoParams(serverInfo)
+        .setDownloadUrlResolver(downloadUrlResolver).build();
+    listener.transitioned(config.getName(), ProvisioningState.RESUMING_VM);
+    client.start(config.getName());
+    listener.transitioned(config.getName(), ProvisioningState.STARTING_AGENT);
+    client.reRegisterAgent(config);
+    LOG.info("[Instance Manager] Resumed instance: {}", config.getName());
+    DateTime resumedAt = clock.now();
+    Map<String, String> tags = client.updateTags(parked.getId(), parked.getTags(), new TagChanges()
+        .remove(PARKED_AT_TAG_KEY)
+        .remove(LAST_JOB_RUN_TAG_KEY)
+        .set(RESUMED_AT_TAG_KEY, String.valueOf(resumedAt.getMillis())));
+    return parked.withTags(tags).withCreatedAt(resumedAt);
+  }
+
+  /**
+   * Tags the VM of an idle agent as parked and deallocates it. The VM is tagged first, so that it is not taken for a
+   * running agent if the plugin restarts before it is deallocated.
+   */
+  public AzureInstance park(GoCDAzureClient client, AzureInstance instance) {
+    Map<String, String> tags = client.updateTags(instance.getId(), instance.getTags(), new TagChanges()
+        .set(PARKED_AT_TAG_KEY, String.valueOf(clock.now().getMillis()))
+        .remove(JOB_IDENTIFIER_TAG_KEY)
+        .remove(RESUMED_AT_TAG_KEY));
+    client.deallocate(instance.getName());
+    timelines.remove(instance.getName());
+    LOG.info("[Instance Manager] Parked instance: {}", instance.getName());
+    return instance.withTags(tags);
   }
 
   private void executeCustomScript(GoCDAzureClient client, VmConfig config) throws ProvisionFailedException {
@@ -57,26 +160,29 @@ public class AzureInstanceManager {
   }
 
   public void terminate(GoCDAzureClient client, AzureInstance instance) {
+    timelines.remove(instance.getName());
     client.terminate(instance.getId());
   }
 
+  // mapping a VM fetches its instance view, so the VMs are mapped in parallel, starting as their listing page arrives
   public List<AzureInstance> listInstances(GoCDAzureClient client, String serverId) {
-    ArrayList<AzureInstance> instances = new ArrayList<>();
-    client.runningVirtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, serverId).forEach((vm) -> instances.add(mapper.map(vm)));
-    return instances;
+    return client.mapRunningVirtualMachines(serverId, false, running -> mapping.map(running, mapper::map));
   }
 
-  public AzureInstance addTag(GoCDAzureClient client, AzureInstance instance, String tagName, String tagValue) {
-    VirtualMachine vm = client.addTag(instance.getId(), tagName, tagValue);
-    return mapper.map(vm);
+  /**
+   * Like {@link #listInstances}, but from a listing taken now.
+   */
+  public List<AzureInstance> listCurrentInstances(GoCDAzureClient client, String serverId) {
+    return client.mapRunningVirtualMachines(serverId, true, running -> mapping.map(running, mapper::map));
   }
 
-  private VmConfig buildVmConfig(CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo) {
-    return new VmConfig.Builder().setRequestParams(request).setSettingsParams(settings).setServerInfoParams(serverInfo).build();
+  public List<AzureInstance> listParkedInstances(GoCDAzureClient client, String serverId) {
+    return mapping.map(client.inventorySnapshot(serverId).parkedVirtualMachines(), mapper::map);
   }
 
-  public AzureInstance removeTag(GoCDAzureClient client, AzureInstance instance, String tagName) {
-    return mapper.map(client.removeTag(instance.getId(), tagName));
+  private VmConfig buildVmConfig(CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo) {
+    return new VmConfig.Builder().setRequestParams(request).setSettingsParams(settings).setServerInfoParams(serverInfo)
+        .setDownloadUrlResolver(downloadUrlResolver).build();
   }
 
   public String getExecutionLogs(String instanceName) {
@@ -84,7 +190,7 @@ public class AzureInstanceManager {
   }
 
   public void terminateProvisionFailedVms(GoCDAzureClient goCDAzureClient, String serverId) {
-    goCDAzureClient.failedProvisioningStateVirtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, serverId).stream()
+    goCDAzureClient.inventorySnapshot(serverId).failedProvisioningVirtualMachines()
         .forEach(vm -> {
           LOG.info("Terminating VM {} with failed provisioning state", vm.name());
           goCDAzureClient.terminate(vm);
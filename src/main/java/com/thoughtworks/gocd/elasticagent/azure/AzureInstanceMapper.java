@@ -20,12 +20,20 @@ import com.microsoft.azure.management.compute.ImageReference;
 import com.microsoft.azure.management.compute.InstanceViewStatus;
 import com.microsoft.azure.management.compute.OperatingSystemTypes;
 import com.microsoft.azure.management.compute.VirtualMachine;
+import com.microsoft.azure.management.compute.VirtualMachineInstanceView;
+import com.microsoft.azure.management.resources.fluentcore.arm.ResourceUtils;
 import com.thoughtworks.gocd.elasticagent.azure.models.Platform;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
 import java.util.Map;
 
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.RESUMED_AT_TAG_KEY;
+
+/**
+ * Maps a VM to an {@link AzureInstance}. Besides the VM itself, which is already fetched, this costs one ARM call for
+ * the instance view; the name of the primary NIC is taken from its id rather than by fetching the NIC.
+ */
 public class AzureInstanceMapper {
 
   public static final String PROVISIONING_STATE_SUCCEEDED = "ProvisioningState/succeeded";
@@ -35,17 +43,18 @@ public class AzureInstanceMapper {
     String name = virtualMachine.name();
     String id = virtualMachine.id();
     String provisioningState = virtualMachine.provisioningState();
+    VirtualMachineInstanceView instanceView = virtualMachine.instanceView();
     String powerState = virtualMachine.powerState().toString();
     int diskSize = virtualMachine.osDiskSize();
-    DateTime createdAt = getProvisionTime(virtualMachine);
+    DateTime createdAt = getProvisionTime(virtualMachine, instanceView);
     ImageReference imageReference = getImageReference(virtualMachine);
-    String hostName = getHostName(virtualMachine);
+    String hostName = instanceView.computerName();
     String size = getSize(virtualMachine);
-    String os = getOs(virtualMachine);
+    String os = instanceView.osName();
     Platform platform = getPlatform(virtualMachine);
     Map<String, String> tags = virtualMachine.tags();
     String resourceGroupName = virtualMachine.resourceGroupName();
-    String primaryNetworkInterface = virtualMachine.getPrimaryNetworkInterface().name();
+    String primaryNetworkInterface = ResourceUtils.nameFromResourceId(virtualMachine.primaryNetworkInterfaceId());
 
     return new AzureInstance(name,
         hostName,
@@ -67,14 +76,6 @@ public class AzureInstanceMapper {
     return virtualMachine.osType().equals(OperatingSystemTypes.WINDOWS) ? Platform.WINDOWS : Platform.LINUX;
   }
 
-  private String getOs(VirtualMachine virtualMachine) {
-    return virtualMachine.instanceView().osName();
-  }
-
-  private String getHostName(VirtualMachine virtualMachine) {
-    return virtualMachine.instanceView().computerName();
-  }
-
   private String getSize(VirtualMachine virtualMachine) {
     return virtualMachine.inner().hardwareProfile().vmSize().toString();
   }
@@ -83,8 +84,13 @@ public class AzureInstanceMapper {
     return virtualMachine.storageProfile().imageReference();
   }
 
-  private DateTime getProvisionTime(VirtualMachine virtualMachine) {
-    return virtualMachine.instanceView().statuses().stream()
+  // a resumed VM counts as created when it was resumed, so that it is not taken for an agent that failed to register
+  private DateTime getProvisionTime(VirtualMachine virtualMachine, VirtualMachineInstanceView instanceView) {
+    String resumedAt = virtualMachine.tags() == null ? null : virtualMachine.tags().get(RESUMED_AT_TAG_KEY);
+    if (resumedAt != null) {
+      return new DateTime(Long.valueOf(resumedAt), DateTimeZone.UTC);
+    }
+    return instanceView.statuses().stream()
         .filter((instanceViewStatus -> instanceViewStatus.code().equals(PROVISIONING_STATE_SUCCEEDED)))
         .findFirst().map(InstanceViewStatus::time)
         .orElse(DateTime.now())
@@ -20,7 +20,9 @@ import com.thoughtworks.go.plugin.api.GoApplicationAccessor;
 import com.thoughtworks.go.plugin.api.GoPlugin;
 import com.thoughtworks.go.plugin.api.GoPluginIdentifier;
 import com.thoughtworks.go.plugin.api.annotation.Extension;
+import com.thoughtworks.go.plugin.api.annotation.UnLoad;
 import com.thoughtworks.go.plugin.api.exceptions.UnhandledRequestTypeException;
+import com.thoughtworks.go.plugin.api.info.PluginContext;
 import com.thoughtworks.go.plugin.api.logging.Logger;
 import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
@@ -28,71 +30,103 @@ import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClientFactory;
 import com.thoughtworks.gocd.elasticagent.azure.exceptions.PluginSettingsNotConfiguredException;
 import com.thoughtworks.gocd.elasticagent.azure.executors.*;
+import com.thoughtworks.gocd.elasticagent.azure.metrics.MetricsRegistry;
+import com.thoughtworks.gocd.elasticagent.azure.metrics.PrometheusFileExporter;
 import com.thoughtworks.gocd.elasticagent.azure.requests.*;
+import com.thoughtworks.gocd.elasticagent.azure.service.CircuitBreakerHealthReporter;
 import com.thoughtworks.gocd.elasticagent.azure.service.ServerHealthMessagingService;
 import com.thoughtworks.gocd.elasticagent.azure.utils.TemplateReader;
 import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.joda.time.Period;
+
+import java.util.function.Function;
+
+import static com.thoughtworks.gocd.elasticagent.azure.metrics.MetricsRegistry.PLUGIN_REQUESTS;
 
 @Extension
 public class AzurePlugin implements GoPlugin {
 
   public static final Logger LOG = Logger.getLoggerFor(AzurePlugin.class);
+  public static final Period PROVISIONING_SHUTDOWN_TIMEOUT = Period.minutes(2);
+  public static final Period TEARDOWN_SHUTDOWN_TIMEOUT = Period.minutes(1);
+  public static final Period TAG_WRITE_SHUTDOWN_TIMEOUT = Period.seconds(30);
+  public static final Period PARK_SHUTDOWN_TIMEOUT = Period.minutes(1);
 
   private PluginRequest pluginRequest;
   private AzureAgentInstances agentInstances;
   private RequestFingerprintCache requestFingerprintCache;
   private GoCDAzureClientFactory clientFactory;
   private ServerHealthMessagingService serverHealthMessagingService;
+  private ProvisioningEngine provisioningEngine;
+  private WarmPool warmPool;
+  private final MetricsRegistry metrics = new MetricsRegistry();
+  private final Function<MetricsRegistry, GoCDAzureClientFactory> clientFactories;
+  private PrometheusFileExporter metricsExporter;
+  private DownloadUrlResolver downloadUrlResolver;
+
+  public AzurePlugin() {
+    this(GoCDAzureClientFactory::new);
+  }
+
+  /**
+   * A plugin whose Azure clients come from the given factory, so that harnesses can point it at a stand-in for Azure.
+   */
+  AzurePlugin(Function<MetricsRegistry, GoCDAzureClientFactory> clientFactories) {
+    this.clientFactories = clientFactories;
+  }
 
   @Override
   public void initializeGoApplicationAccessor(GoApplicationAccessor accessor) {
     pluginRequest = new PluginRequest(accessor);
-    clientFactory = new GoCDAzureClientFactory();
-    agentInstances = new AzureAgentInstances(new AzureInstanceManager(new AzureInstanceMapper()), clientFactory);
+    clientFactory = clientFactories.apply(metrics);
+    downloadUrlResolver = new DownloadUrlResolver();
+    agentInstances = new AzureAgentInstances(new AzureInstanceManager(new AzureInstanceMapper(), downloadUrlResolver), clientFactory);
     requestFingerprintCache = new RequestFingerprintCache();
     serverHealthMessagingService = new ServerHealthMessagingService(pluginRequest);
+    clientFactory.getCircuitBreakers().setListener(new CircuitBreakerHealthReporter(serverHealthMessagingService));
+    provisioningEngine = new ProvisioningEngine(agentInstances, serverHealthMessagingService, requestFingerprintCache);
+    warmPool = new WarmPool(agentInstances, provisioningEngine);
+    metricsExporter = new PrometheusFileExporter(metrics);
+    TemplateReader.instance().preload();
+  }
+
+  @UnLoad
+  public void onUnload(PluginContext context) {
+    if (metricsExporter != null) {
+      metricsExporter.stop();
+    }
+    if (agentInstances != null) {
+      agentInstances.stopReconciling();
+    }
+    if (provisioningEngine != null) {
+      LOG.info("Plugin is being unloaded, waiting for running provisionings to finish");
+      provisioningEngine.shutdown(PROVISIONING_SHUTDOWN_TIMEOUT);
+    }
+    if (agentInstances != null) {
+      int unparked = agentInstances.drainParks(PARK_SHUTDOWN_TIMEOUT);
+      if (unparked > 0) {
+        LOG.warn("Plugin is being unloaded with {} VM park(s) unfinished, those VMs may be left running or unrecorded", unparked);
+      }
+      int unwritten = agentInstances.flushTagWrites(TAG_WRITE_SHUTDOWN_TIMEOUT);
+      if (unwritten > 0) {
+        LOG.warn("Plugin is being unloaded with {} tag write(s) pending, those VM tags are left as they were", unwritten);
+      }
+    }
+    if (downloadUrlResolver != null) {
+      downloadUrlResolver.shutdown();
+    }
+    if (clientFactory != null) {
+      int unfinished = clientFactory.getClientPool().drainTeardowns(TEARDOWN_SHUTDOWN_TIMEOUT);
+      if (unfinished > 0) {
+        LOG.warn("Plugin is being unloaded with {} VM teardown(s) unfinished, their disks and nics may be left behind", unfinished);
+      }
+    }
   }
 
   @Override
   public GoPluginApiResponse handle(GoPluginApiRequest request) throws UnhandledRequestTypeException {
     try {
-      switch (Request.fromString(request.requestName())) {
-        case REQUEST_SHOULD_ASSIGN_WORK:
-          refreshInstances();
-          return ShouldAssignWorkRequest.fromJSON(request.requestBody()).executor(agentInstances, pluginRequest.getPluginSettings(), serverHealthMessagingService).execute();
-        case REQUEST_CREATE_AGENT:
-          refreshInstances();
-          return CreateAgentRequest.fromJSON(request.requestBody()).executor(agentInstances, pluginRequest, requestFingerprintCache, serverHealthMessagingService).execute();
-        case REQUEST_SERVER_PING:
-          refreshInstances();
-          return new ServerPingRequestExecutor(agentInstances, pluginRequest, serverHealthMessagingService).execute();
-        case PLUGIN_SETTINGS_GET_VIEW:
-          return new GetPluginSettingsViewRequestExecutor().execute();
-        case REQUEST_GET_PROFILE_METADATA:
-          return new GetProfileMetadataExecutor().execute();
-        case REQUEST_GET_PROFILE_VIEW:
-          return new GetProfileViewExecutor().execute();
-        case REQUEST_VALIDATE_PROFILE:
-          return ProfileValidateRequest.fromJSON(request.requestBody()).executor(pluginRequest, clientFactory).execute();
-        case PLUGIN_SETTINGS_GET_ICON:
-          return new GetPluginSettingsIconExecutor().execute();
-        case PLUGIN_SETTINGS_GET_CONFIGURATION:
-          return new GetPluginConfigurationExecutor().execute();
-        case PLUGIN_SETTINGS_VALIDATE_CONFIGURATION:
-          return ValidatePluginSettings.fromJSON(request.requestBody()).executor(clientFactory).execute();
-        case REQUEST_STATUS_REPORT:
-          return new StatusReportExecutor(pluginRequest, agentInstances,TemplateReader.instance()).execute();
-        case REQUEST_AGENT_STATUS_REPORT:
-          refreshInstances();
-          return AgentStatusReportRequest.fromJSON(request.requestBody()).executor(pluginRequest, agentInstances, TemplateReader.instance()).execute();
-        case REQUEST_CAPABILITIES:
-          return new GetCapabilitiesExecutor().execute();
-        case REQUEST_JOB_COMPLETION:
-          refreshInstances();
-          return JobCompletionRequest.fromJSON(request.requestBody()).executor(agentInstances, pluginRequest).execute();
-        default:
-          throw new UnhandledRequestTypeException(request.requestName());
-      }
+      return metrics.time(PLUGIN_REQUESTS, request.requestName(), () -> dispatch(request));
     } catch (PluginSettingsNotConfiguredException e) {
       LOG.warn("Request {} failed: {}", request.requestName(), e.getMessage());
       return DefaultGoPluginApiResponse.success(e.getMessage());
@@ -106,6 +140,46 @@ public class AzurePlugin implements GoPlugin {
     }
   }
 
+  private GoPluginApiResponse dispatch(GoPluginApiRequest request) throws Exception {
+    switch (Request.fromString(request.requestName())) {
+      case REQUEST_SHOULD_ASSIGN_WORK:
+        refreshInstances();
+        return ShouldAssignWorkRequest.fromJSON(request.requestBody()).executor(agentInstances, pluginRequest.getPluginSettings(), serverHealthMessagingService).execute();
+      case REQUEST_CREATE_AGENT:
+        refreshInstances();
+        return CreateAgentRequest.fromJSON(request.requestBody()).executor(provisioningEngine, warmPool, pluginRequest, requestFingerprintCache, downloadUrlResolver).execute();
+      case REQUEST_SERVER_PING:
+        refreshInstances();
+        return new ServerPingRequestExecutor(agentInstances, warmPool, pluginRequest, serverHealthMessagingService, metricsExporter, downloadUrlResolver).execute();
+      case PLUGIN_SETTINGS_GET_VIEW:
+        return new GetPluginSettingsViewRequestExecutor().execute();
+      case REQUEST_GET_PROFILE_METADATA:
+        return new GetProfileMetadataExecutor().execute();
+      case REQUEST_GET_PROFILE_VIEW:
+        return new GetProfileViewExecutor().execute();
+      case REQUEST_VALIDATE_PROFILE:
+        return ProfileValidateRequest.fromJSON(request.requestBody()).executor(pluginRequest, clientFactory).execute();
+      case PLUGIN_SETTINGS_GET_ICON:
+        return new GetPluginSettingsIconExecutor().execute();
+      case PLUGIN_SETTINGS_GET_CONFIGURATION:
+        return new GetPluginConfigurationExecutor().execute();
+      case PLUGIN_SETTINGS_VALIDATE_CONFIGURATION:
+        return ValidatePluginSettings.fromJSON(request.requestBody()).executor(clientFactory).execute();
+      case REQUEST_STATUS_REPORT:
+        return new StatusReportExecutor(pluginRequest, agentInstances, provisioningEngine, warmPool, TemplateReader.instance()).execute();
+      case REQUEST_AGENT_STATUS_REPORT:
+        refreshInstances();
+        return AgentStatusReportRequest.fromJSON(request.requestBody()).executor(pluginRequest, agentInstances, TemplateReader.instance()).execute();
+      case REQUEST_CAPABILITIES:
+        return new GetCapabilitiesExecutor().execute();
+      case REQUEST_JOB_COMPLETION:
+        refreshInstances();
+        return JobCompletionRequest.fromJSON(request.requestBody()).executor(agentInstances, pluginRequest).execute();
+      default:
+        throw new UnhandledRequestTypeException(request.requestName());
+    }
+  }
+
   private void refreshInstances() throws Exception {
     agentInstances.refreshAll(pluginRequest);
   }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.thoughtworks.gocd.elasticagent.azure.utils.HttpUtil;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.util.concurrent.*;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Remembers whether agent download URLs exist, so that provisioning rarely waits on the download host. URLs are
+ * checked on a background thread. The first resolution of a URL waits for its check, bounded by the check timeouts,
+ * so that the first agents after a plugin start do not fall back to the default version; after that, while a check
+ * is due, the caller gets the last known answer. Missing or unreachable URLs are remembered for a shorter time than
+ * existing ones.
+ */
+public class DownloadUrlResolver {
+  public static final Period AVAILABLE_TTL = Period.hours(6);
+  public static final Period UNAVAILABLE_TTL = Period.minutes(10);
+  public static final int CONNECT_TIMEOUT_MILLIS = 3000;
+  public static final int READ_TIMEOUT_MILLIS = 3000;
+  public static final Period FIRST_RESOLUTION_TIMEOUT = Period.millis(CONNECT_TIMEOUT_MILLIS);
+
+  private final ConcurrentHashMap<String, Resolution> resolutions = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, CompletableFuture<Void>> checking = new ConcurrentHashMap<>();
+  private final Executor executor;
+  private final Clock clock;
+  private final UrlCheck urlCheck;
+  private final long firstResolutionTimeoutMillis;
+
+  public DownloadUrlResolver() {
+    this(Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("agent-download-url-resolver-%d").build()),
+        Clock.DEFAULT,
+        url -> HttpUtil.isValidUrl(url, CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS));
+  }
+
+  DownloadUrlResolver(Executor executor, Clock clock, UrlCheck urlCheck) {
+    this(executor, clock, urlCheck, FIRST_RESOLUTION_TIMEOUT);
+  }
+
+  DownloadUrlResolver(Executor executor, Clock clock, UrlCheck urlCheck, Period firstResolutionTimeout) {
+    this.executor = executor;
+    this.clock = clock;
+    this.urlCheck = urlCheck;
+    this.firstResolutionTimeoutMillis = firstResolutionTimeout.toStandardDuration().getMillis();
+  }
+
+  /**
+   * Returns the url when it is known to exist, otherwise the fallback. Only blocks when the url has never been
+   * checked, and then for at most the first resolution timeout.
+   */
+  public String resolve(String url, String fallback) {
+    Resolution resolution = resolutions.get(url);
+    if (resolution == null || resolution.isExpired(clock.now())) {
+      CompletableFuture<Void> check = check(url);
+      if (resolution == null && check != null) {
+        awaitFirstCheck(url, check);
+      }
+      resolution = resolutions.get(url);
+    }
+    return resolution != null && resolution.available ? url : fallback;
+  }
+
+  /**
+   * Checks the url in the background if it is not known yet, so that the next {@link #resolve} can use it.
+   */
+  public void prefetch(String url) {
+    Resolution resolution = resolutions.get(url);
+    if (resolution == null || resolution.isExpired(clock.now())) {
+      check(url);
+    }
+  }
+
+  private CompletableFuture<Void> check(String url) {
+    CompletableFuture<Void> check = new CompletableFuture<>();
+    CompletableFuture<Void> running = checking.putIfAbsent(url, check);
+    if (running != null) {
+      return running;
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          boolean available = urlCheck.exists(url);
+          DateTime now = clock.now();
+          resolutions.put(url, new Resolution(available, now.plus(available ? AVAILABLE_TTL : UNAVAILABLE_TTL)));
+          LOG.debug("Agent download URL {} is {}", url, available ? "available" : "unavailable");
+        } catch (Exception e) {
+          LOG.warn("Could not check agent download URL {}", url, e);
+          resolutions.put(url, new Resolution(false, clock.now().plus(UNAVAILABLE_TTL)));
+        } finally {
+          checking.remove(url);
+          check.complete(null);
+        }
+      });
+      return check;
+    } catch (RejectedExecutionException e) {
+      checking.remove(url);
+      check.complete(null);
+      LOG.warn("Could not schedule check of agent download URL {}", url, e);
+      return null;
+    }
+  }
+
+  private void awaitFirstCheck(String url, CompletableFuture<Void> check) {
+    try {
+      check.get(firstResolutionTimeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      LOG.info("Agent download URL {} is still being checked, using the fallback for now", url);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOG.warn("Could not check agent download URL {}", url, e);
+    }
+  }
+
+  /**
+   * Stops the checks and forgets the known URLs, so that an unloaded plugin leaves no checker thread behind. Later
+   * resolutions get the fallback.
+   */
+  public void shutdown() {
+    if (executor instanceof ExecutorService) {
+      ((ExecutorService) executor).shutdownNow();
+    }
+    checking.values().forEach(check -> check.complete(null));
+    checking.clear();
+    resolutions.clear();
+  }
+
+  public interface UrlCheck {
+    boolean exists(String url);
+  }
+
+  private static class Resolution {
+    private final boolean available;
+    private final DateTime expiresAt;
+
+    private Resolution(boolean available, DateTime expiresAt) {
+      this.available = available;
+      this.expiresAt = expiresAt;
+    }
+
+    private boolean isExpired(DateTime now) {
+      return !now.isBefore(expiresAt);
+    }
+  }
+}
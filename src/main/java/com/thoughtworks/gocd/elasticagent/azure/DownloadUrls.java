@@ -16,24 +16,40 @@
 
 package com.thoughtworks.gocd.elasticagent.azure;
 
-import com.thoughtworks.gocd.elasticagent.azure.utils.HttpUtil;
+import org.apache.commons.lang3.StringUtils;
 
 import static com.thoughtworks.gocd.elasticagent.azure.Constants.DEFAULT_GO_SERVER_VERSION;
 
 public class DownloadUrls {
   public static final String UNZIP_TAR_DOWNLOAD_URL = "https://oss.oracle.com/el4/unzip/unzip.tar";
-  private static final String GO_AGENT_WINDOWS_DOWNLOAD_URL_FORMAT = "https://download.gocd.org/binaries/%s/win/go-agent-%s-jre-64bit-setup.exe";
-  public static String GO_AGENT_LINUX_DOWNLOAD_URL_FORMAT = "https://download.gocd.org/binaries/%s/generic/go-agent-%s.zip";
+  public static final String DEFAULT_DOWNLOAD_BASE_URL = "https://download.gocd.org";
+  private static final String GO_AGENT_WINDOWS_DOWNLOAD_URL_FORMAT = "%s/binaries/%s/win/go-agent-%s-jre-64bit-setup.exe";
+  public static String GO_AGENT_LINUX_DOWNLOAD_URL_FORMAT = "%s/binaries/%s/generic/go-agent-%s.zip";
 
-  public static String linuxGoAgent(String goAgentVersion) {
-    String latestGoAgentUrl = String.format(GO_AGENT_LINUX_DOWNLOAD_URL_FORMAT, goAgentVersion, goAgentVersion);
-    String defaultGoAgentUrl = String.format(GO_AGENT_LINUX_DOWNLOAD_URL_FORMAT, DEFAULT_GO_SERVER_VERSION, DEFAULT_GO_SERVER_VERSION);
-    return HttpUtil.isValidUrl(latestGoAgentUrl) ? latestGoAgentUrl : defaultGoAgentUrl;
+  public static String linuxGoAgent(DownloadUrlResolver resolver, String downloadBaseUrl, String goAgentVersion) {
+    return resolver.resolve(url(GO_AGENT_LINUX_DOWNLOAD_URL_FORMAT, downloadBaseUrl, goAgentVersion),
+        url(GO_AGENT_LINUX_DOWNLOAD_URL_FORMAT, downloadBaseUrl, DEFAULT_GO_SERVER_VERSION));
   }
 
-  public static String windowsGoAgent(String goAgentVersion) {
-    String latestGoAgentUrl = String.format(GO_AGENT_WINDOWS_DOWNLOAD_URL_FORMAT, goAgentVersion, goAgentVersion);
-    String defaultGoAgentUrl = String.format(GO_AGENT_WINDOWS_DOWNLOAD_URL_FORMAT, DEFAULT_GO_SERVER_VERSION, DEFAULT_GO_SERVER_VERSION);
-    return HttpUtil.isValidUrl(latestGoAgentUrl) ? latestGoAgentUrl : defaultGoAgentUrl;
+  public static String windowsGoAgent(DownloadUrlResolver resolver, String downloadBaseUrl, String goAgentVersion) {
+    return resolver.resolve(url(GO_AGENT_WINDOWS_DOWNLOAD_URL_FORMAT, downloadBaseUrl, goAgentVersion),
+        url(GO_AGENT_WINDOWS_DOWNLOAD_URL_FORMAT, downloadBaseUrl, DEFAULT_GO_SERVER_VERSION));
+  }
+
+  /**
+   * Starts checking the agent downloads of the server version, so that agents created later do not fall back to the
+   * default version while they are checked.
+   */
+  public static void prefetch(DownloadUrlResolver resolver, String downloadBaseUrl, String goAgentVersion) {
+    if (StringUtils.isBlank(goAgentVersion)) {
+      return;
+    }
+    resolver.prefetch(url(GO_AGENT_LINUX_DOWNLOAD_URL_FORMAT, downloadBaseUrl, goAgentVersion));
+    resolver.prefetch(url(GO_AGENT_WINDOWS_DOWNLOAD_URL_FORMAT, downloadBaseUrl, goAgentVersion));
+  }
+
+  public static String url(String format, String downloadBaseUrl, String goAgentVersion) {
+    String baseUrl = StringUtils.isBlank(downloadBaseUrl) ? DEFAULT_DOWNLOAD_BASE_URL : StringUtils.removeEnd(downloadBaseUrl.trim(), "/");
+    return String.format(format, baseUrl, goAgentVersion, goAgentVersion);
   }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.base.Ticker;
+import org.apache.commons.lang3.tuple.Pair;
+import org.joda.time.Period;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short leases that reserve an idle agent for one job between a create-agent request handing it out and the
+ * should-assign-work request that tags the job on it, so that concurrent requests never point two jobs at the same
+ * agent. A lease is taken with a compare-and-set on the agent's entry: it is granted when the agent is free, its lease
+ * has expired, or the same job already holds it, in which case it is renewed. A job holds one lease at a time, so
+ * leasing another agent releases its previous one.
+ */
+public class InstanceLeases {
+
+  public static final Period DEFAULT_TTL = Period.seconds(30);
+  public static final String LEASED_AGENTS = "Leased agents";
+  public static final String LEASE_CONFLICTS = "Lease conflicts";
+
+  private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, String> agentsByHolder = new ConcurrentHashMap<>();
+  private final AtomicLong conflicts = new AtomicLong();
+  private final long ttlNanos;
+  private final Ticker ticker;
+
+  public InstanceLeases() {
+    this(DEFAULT_TTL, Ticker.systemTicker());
+  }
+
+  InstanceLeases(Period ttl, Ticker ticker) {
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl.toStandardDuration().getMillis());
+    this.ticker = ticker;
+  }
+
+  /**
+   * Reserves the agent for the holder, unless another holder has an unexpired lease on it. The holder's lease on any
+   * other agent is released.
+   *
+   * @return true if the holder now holds the lease
+   */
+  public boolean acquire(String agentId, String holder) {
+    long now = ticker.read();
+    String[] previous = new String[1];
+    Lease lease = leases.compute(agentId, (id, current) -> {
+      if (current != null && !current.holder.equals(holder) && !current.isExpired(now)) {
+        return current;
+      }
+      if (current != null && !current.holder.equals(holder)) {
+        agentsByHolder.remove(current.holder, id);
+      }
+      previous[0] = agentsByHolder.put(holder, id);
+      return new Lease(holder, now + ttlNanos);
+    });
+    if (!lease.holder.equals(holder)) {
+      conflicts.incrementAndGet();
+      return false;
+    }
+    if (previous[0] != null && !previous[0].equals(agentId)) {
+      leases.computeIfPresent(previous[0], (id, current) -> current.holder.equals(holder) ? null : current);
+    }
+    return true;
+  }
+
+  /**
+   * Ends the holder's lease on the agent; a lease taken over by another holder is left alone.
+   */
+  public void release(String agentId, String holder) {
+    leases.computeIfPresent(agentId, (id, current) -> {
+      if (!current.holder.equals(holder)) {
+        return current;
+      }
+      agentsByHolder.remove(holder, id);
+      return null;
+    });
+  }
+
+  /**
+   * Ends any lease on an agent that is going away.
+   */
+  public void release(String agentId) {
+    leases.computeIfPresent(agentId, (id, current) -> {
+      agentsByHolder.remove(current.holder, id);
+      return null;
+    });
+  }
+
+  /**
+   * The agent the holder has an unexpired lease on, or null.
+   */
+  public String leasedTo(String holder) {
+    String agentId = agentsByHolder.get(holder);
+    if (agentId == null) {
+      return null;
+    }
+    Lease lease = leases.get(agentId);
+    return lease != null && lease.holder.equals(holder) && !lease.isExpired(ticker.read()) ? agentId : null;
+  }
+
+  public int size() {
+    long now = ticker.read();
+    return (int) leases.values().stream().filter(lease -> !lease.isExpired(now)).count();
+  }
+
+  public long conflicts() {
+    return conflicts.get();
+  }
+
+  public List<Pair<String, String>> statusReportProperties() {
+    List<Pair<String, String>> properties = new ArrayList<>();
+    properties.add(Pair.of(LEASED_AGENTS, Integer.toString(size())));
+    properties.add(Pair.of(LEASE_CONFLICTS, Long.toString(conflicts())));
+    return properties;
+  }
+
+  private static class Lease {
+    private final String holder;
+    private final long expiresAtNanos;
+
+    Lease(String holder, long expiresAtNanos) {
+      this.holder = holder;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+
+    boolean isExpired(long now) {
+      return now - expiresAtNanos >= 0;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import org.apache.commons.lang3.tuple.Pair;
+import org.joda.time.Period;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Runs the reconciliation of the in-memory instances with an Azure inventory listing on its own scheduler, never on
+ * a GoCD request thread, and counts the drift each run found. Requests only hand over the latest reconciliation to run
+ * and its interval; a zero interval stops reconciling until another interval is handed over, and {@link #stop} stops it
+ * for good.
+ */
+public class InstanceReconciler {
+
+  public static final Period DEFAULT_INTERVAL = Period.minutes(5);
+  public static final String RECONCILIATIONS = "Reconciliations";
+  public static final String FAILED_RECONCILIATIONS = "Failed reconciliations";
+  public static final String RECONCILED_ADDITIONS = "Instances added by reconciliation";
+  public static final String RECONCILED_UPDATES = "Instances updated by reconciliation";
+  public static final String RECONCILED_REMOVALS = "Instances removed by reconciliation";
+
+  private final ScheduledExecutorService scheduler;
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong additions = new AtomicLong();
+  private final AtomicLong updates = new AtomicLong();
+  private final AtomicLong removals = new AtomicLong();
+  private volatile Reconciliation reconciliation;
+  private ScheduledFuture<?> scheduled;
+  private long intervalMillis;
+
+  public InstanceReconciler() {
+    this(Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-instance-reconciler-%d").build()));
+  }
+
+  InstanceReconciler(ScheduledExecutorService scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Runs the reconciliation every interval from now on, starting one interval from now. Calling it again with the
+   * same interval only swaps the reconciliation that the next run uses.
+   */
+  public synchronized void schedule(Period interval, Reconciliation reconciliation) {
+    if (scheduler.isShutdown()) {
+      return;
+    }
+    this.reconciliation = reconciliation;
+    long millis = interval.toStandardDuration().getMillis();
+    if (scheduled != null && millis == intervalMillis) {
+      return;
+    }
+    if (scheduled != null) {
+      scheduled.cancel(false);
+      scheduled = null;
+    }
+    intervalMillis = millis;
+    if (millis > 0) {
+      scheduled = scheduler.scheduleWithFixedDelay(this::reconcile, millis, millis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stops reconciling for good, letting a run in progress finish.
+   */
+  public synchronized void stop() {
+    reconciliation = null;
+    scheduler.shutdown();
+  }
+
+  void reconcile() {
+    Reconciliation current = reconciliation;
+    if (current == null) {
+      return;
+    }
+    try {
+      Drift drift = current.reconcile();
+      runs.incrementAndGet();
+      additions.addAndGet(drift.getAdded());
+      updates.addAndGet(drift.getUpdated());
+      removals.addAndGet(drift.getRemoved());
+      if (drift.hasDrift()) {
+        LOG.info("Reconciled instances with Azure: {}", drift);
+      }
+    } catch (Exception e) {
+      failures.incrementAndGet();
+      LOG.warn("Failed to reconcile instances with Azure: {}", e.getMessage());
+    }
+  }
+
+  public List<Pair<String, String>> statusReportProperties() {
+    List<Pair<String, String>> properties = new ArrayList<>();
+    properties.add(Pair.of(RECONCILIATIONS, Long.toString(runs.get())));
+    properties.add(Pair.of(FAILED_RECONCILIATIONS, Long.toString(failures.get())));
+    properties.add(Pair.of(RECONCILED_ADDITIONS, Long.toString(additions.get())));
+    properties.add(Pair.of(RECONCILED_UPDATES, Long.toString(updates.get())));
+    properties.add(Pair.of(RECONCILED_REMOVALS, Long.toString(removals.get())));
+    return properties;
+  }
+
+  public interface Reconciliation {
+    Drift reconcile() throws Exception;
+  }
+
+  /**
+   * The instances one reconciliation added to, updated in and removed from memory.
+   */
+  @Getter
+  @ToString
+  @EqualsAndHashCode
+  public static class Drift {
+    private final int added;
+    private final int updated;
+    private final int removed;
+
+    public Drift(int added, int updated, int removed) {
+      this.added = added;
+      this.updated = updated;
+      this.removed = removed;
+    }
+
+    public boolean hasDrift() {
+      return added + updated + removed > 0;
+    }
+  }
+}
@@ -22,6 +22,7 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
 import com.microsoft.azure.management.resources.fluentcore.arm.Region;
+import com.thoughtworks.gocd.elasticagent.azure.client.InventorySnapshots;
 import com.thoughtworks.gocd.elasticagent.azure.utils.Util;
 import lombok.AccessLevel;
 import lombok.Getter;
@@ -100,6 +101,21 @@ public class PluginSettings {
   @SerializedName("windows_password")
   private String windowsPassword;
 
+  @Expose
+  @SerializedName("agent_download_base_url")
+  private String agentDownloadBaseUrl;
+
+  @Expose
+  @SerializedName("metrics_export_path")
+  private String metricsExportPath;
+
+  @Expose
+  @SerializedName("reconcile_interval")
+  private String reconcileInterval;
+
+  @Expose
+  @SerializedName("inventory_staleness")
+  private String inventoryStaleness;
 
   private Period autoRegisterPeriod;
   private Period idleTimeoutPeriod;
@@ -182,6 +198,14 @@ public class PluginSettings {
     return this.idleTimeoutPeriod;
   }
 
+  public Period getReconcileIntervalPeriod() {
+    return isBlank(reconcileInterval) ? InstanceReconciler.DEFAULT_INTERVAL : new Period().withMinutes(Integer.parseInt(reconcileInterval));
+  }
+
+  public Period getInventoryStalenessPeriod() {
+    return isBlank(inventoryStaleness) ? InventorySnapshots.DEFAULT_STALENESS : new Period().withSeconds(Integer.parseInt(inventoryStaleness));
+  }
+
   public Region getRegion() {
     return Region.findByLabelOrName(regionName);
   }
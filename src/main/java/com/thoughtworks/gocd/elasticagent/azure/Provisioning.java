@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
+import lombok.Getter;
+import org.joda.time.DateTime;
+
+/**
+ * Tracks one create-agent request through the {@link ProvisioningEngine}.
+ */
+@Getter
+public class Provisioning {
+  private final JobIdentifier jobIdentifier;
+  private final DateTime submittedAt;
+  private volatile String vmName;
+  private volatile ProvisioningState state = ProvisioningState.QUEUED;
+  private volatile DateTime updatedAt;
+  private volatile String error;
+  private volatile boolean resumed;
+
+  public Provisioning(JobIdentifier jobIdentifier, DateTime submittedAt) {
+    this.jobIdentifier = jobIdentifier;
+    this.submittedAt = submittedAt;
+    this.updatedAt = submittedAt;
+  }
+
+  void transition(String vmName, ProvisioningState state, DateTime at) {
+    if (vmName != null) {
+      this.vmName = vmName;
+    }
+    this.state = state;
+    this.updatedAt = at;
+    if (state == ProvisioningState.RESUMING_VM) {
+      this.resumed = true;
+    }
+  }
+
+  void fail(String error, DateTime at) {
+    this.error = error;
+    transition(null, ProvisioningState.FAILED, at);
+  }
+
+  public boolean isFinished() {
+    return state.isFinished();
+  }
+}
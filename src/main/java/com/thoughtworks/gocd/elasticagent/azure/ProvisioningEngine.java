@@ -0,0 +1,212 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.thoughtworks.gocd.elasticagent.azure.exceptions.ProvisionFailedException;
+import com.thoughtworks.gocd.elasticagent.azure.models.PluginHealthMessage;
+import com.thoughtworks.gocd.elasticagent.azure.models.ServerInfo;
+import com.thoughtworks.gocd.elasticagent.azure.requests.CreateAgentRequest;
+import com.thoughtworks.gocd.elasticagent.azure.requests.RequestFingerprintCache;
+import com.thoughtworks.gocd.elasticagent.azure.service.ServerHealthMessagingService;
+import org.apache.commons.lang3.tuple.Pair;
+import org.joda.time.Period;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Provisions agents for create-agent requests on a bounded worker pool, so that the plugin can answer GoCD without
+ * waiting for the VM to be created and the agent to be started. Requests for a job that is already being provisioned
+ * are ignored. Finished provisionings are kept for a while so that they show up in the status report.
+ */
+public class ProvisioningEngine {
+
+  public static final int DEFAULT_WORKERS = 4;
+  public static final Period FINISHED_RETENTION = Period.minutes(15);
+  public static final String PROVISIONINGS_IN_PROGRESS = "Provisionings in progress";
+  public static final String PROVISIONINGS_FAILED = "Recently failed provisionings";
+  public static final String AVERAGE_PROVISIONING_TIME = "Average provisioning time";
+  public static final String AVERAGE_RESUME_TIME = "Average resume time";
+
+  private final Map<String, Provisioning> provisionings = new ConcurrentHashMap<>();
+  private final Average provisioningTimes = new Average();
+  private final Average resumeTimes = new Average();
+  private final AzureAgentInstances agentInstances;
+  private final ServerHealthMessagingService serverHealthMessagingService;
+  private final RequestFingerprintCache requestFingerprintCache;
+  private final ExecutorService workers;
+  private final Clock clock;
+
+  public ProvisioningEngine(AzureAgentInstances agentInstances, ServerHealthMessagingService serverHealthMessagingService, RequestFingerprintCache requestFingerprintCache) {
+    this(agentInstances, serverHealthMessagingService, requestFingerprintCache, defaultWorkers(), Clock.DEFAULT);
+  }
+
+  ProvisioningEngine(AzureAgentInstances agentInstances, ServerHealthMessagingService serverHealthMessagingService, RequestFingerprintCache requestFingerprintCache, ExecutorService workers, Clock clock) {
+    this.agentInstances = agentInstances;
+    this.serverHealthMessagingService = serverHealthMessagingService;
+    this.requestFingerprintCache = requestFingerprintCache;
+    this.workers = workers;
+    this.clock = clock;
+  }
+
+  public Provisioning submit(CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo) {
+    return submit(request, settings, serverInfo, false);
+  }
+
+  /**
+   * Provisions an idle agent for the {@link WarmPool}, even if an instance for the elastic profile is available.
+   * Failures are logged rather than reported to the server, since no job is waiting for the agent.
+   */
+  public Provisioning submitWarm(CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo) {
+    return submit(request, settings, serverInfo, true);
+  }
+
+  private synchronized Provisioning submit(CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo, boolean warm) {
+    pruneFinished();
+    String jobHash = request.jobIdentifier().hash();
+    Provisioning existing = provisionings.get(jobHash);
+    if (existing != null && !existing.isFinished()) {
+      LOG.info("[Provisioning] Job {} is already being provisioned ({}), ignoring the request.", request.jobIdentifier().getRepresentation(), existing.getState());
+      return existing;
+    }
+
+    Provisioning provisioning = new Provisioning(request.jobIdentifier(), clock.now());
+    provisionings.put(jobHash, provisioning);
+    try {
+      workers.execute(() -> provision(provisioning, request, settings, serverInfo, warm));
+    } catch (RejectedExecutionException e) {
+      fail(provisioning, "Provisioning engine is shut down");
+    }
+    return provisioning;
+  }
+
+  public List<Provisioning> provisionings() {
+    List<Provisioning> all = new ArrayList<>(provisionings.values());
+    all.sort(Comparator.comparing(Provisioning::getSubmittedAt));
+    return all;
+  }
+
+  public List<Pair<String, String>> statusReportProperties() {
+    List<Provisioning> all = provisionings();
+    List<Pair<String, String>> properties = new ArrayList<>();
+    properties.add(Pair.of(PROVISIONINGS_IN_PROGRESS, Long.toString(all.stream().filter(p -> !p.isFinished()).count())));
+    properties.add(Pair.of(PROVISIONINGS_FAILED, Long.toString(all.stream().filter(p -> p.getState() == ProvisioningState.FAILED).count())));
+    properties.add(Pair.of(AVERAGE_PROVISIONING_TIME, provisioningTimes.toString()));
+    properties.add(Pair.of(AVERAGE_RESUME_TIME, resumeTimes.toString()));
+    all.stream().filter(p -> p.getState() != ProvisioningState.READY).forEach(p ->
+        properties.add(Pair.of(p.getJobIdentifier().getRepresentation(), describe(p))));
+    return properties;
+  }
+
+  /**
+   * Stops accepting requests and waits for running provisionings to finish. Provisionings still running after the
+   * timeout are interrupted; the VMs they leave behind are cleaned up once the plugin is loaded again.
+   */
+  public void shutdown(Period timeout) {
+    workers.shutdown();
+    try {
+      if (!workers.awaitTermination(timeout.toStandardDuration().getMillis(), TimeUnit.MILLISECONDS)) {
+        LOG.warn("[Provisioning] {} provisioning(s) did not finish within {}, interrupting them", workers.shutdownNow().size(), timeout);
+      }
+    } catch (InterruptedException e) {
+      workers.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void provision(Provisioning provisioning, CreateAgentRequest request, PluginSettings settings, ServerInfo serverInfo, boolean warm) {
+    String jobRepresentation = request.jobIdentifier().getJobRepresentation();
+    ProvisioningListener listener = (vmName, state) -> provisioning.transition(vmName, state, clock.now());
+    try {
+      AzureInstance instance = warm
+          ? agentInstances.provision(request, settings, serverInfo, listener)
+          : agentInstances.create(request, settings, serverInfo, listener);
+      ready(provisioning, instance);
+      if (!warm) {
+        serverHealthMessagingService.clearHealthMessage(jobRepresentation);
+      }
+    } catch (ProvisionFailedException e) {
+      fail(provisioning, e.getMessage());
+      if (!warm) {
+        serverHealthMessagingService.sendHealthMessage(e.jobRepresentation(), PluginHealthMessage.error(e.getMessage()));
+      }
+    } catch (Exception e) {
+      fail(provisioning, e.getMessage());
+      if (!warm) {
+        serverHealthMessagingService.sendHealthMessage(jobRepresentation, PluginHealthMessage.error(e.getMessage()));
+      }
+    }
+  }
+
+  // a request answered with an instance that was already running never names a VM before it is ready
+  private void ready(Provisioning provisioning, AzureInstance instance) {
+    boolean started = provisioning.getVmName() != null;
+    provisioning.transition(instance.getName(), ProvisioningState.READY, clock.now());
+    if (started) {
+      long millis = provisioning.getUpdatedAt().getMillis() - provisioning.getSubmittedAt().getMillis();
+      (provisioning.isResumed() ? resumeTimes : provisioningTimes).add(millis);
+    }
+  }
+
+  private void fail(Provisioning provisioning, String error) {
+    LOG.error("[Provisioning] Failed to provision agent for job {}: {}", provisioning.getJobIdentifier().getRepresentation(), error);
+    provisioning.fail(error, clock.now());
+    requestFingerprintCache.clear(provisioning.getJobIdentifier().hash());
+  }
+
+  private void pruneFinished() {
+    provisionings.values().removeIf(p -> p.isFinished() && clock.now().isAfter(p.getUpdatedAt().plus(FINISHED_RETENTION)));
+  }
+
+  private static String describe(Provisioning provisioning) {
+    StringBuilder description = new StringBuilder(provisioning.getState().name());
+    if (provisioning.getVmName() != null) {
+      description.append(" on ").append(provisioning.getVmName());
+    }
+    description.append(" since ").append(provisioning.getUpdatedAt());
+    if (provisioning.getError() != null) {
+      description.append(": ").append(provisioning.getError());
+    }
+    return description.toString();
+  }
+
+  private static class Average {
+    private long count;
+    private long totalMillis;
+
+    synchronized void add(long millis) {
+      count++;
+      totalMillis += millis;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return count == 0 ? "-" : String.format("%ds over %d agent(s)", totalMillis / count / 1000, count);
+    }
+  }
+
+  private static ExecutorService defaultWorkers() {
+    return Executors.newFixedThreadPool(DEFAULT_WORKERS,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-provisioning-%d").build());
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+/**
+ * The milestones of an agent's life from the create-agent request to its first job, in the order they are reached.
+ */
+public enum ProvisioningPhase {
+  REQUEST_RECEIVED("Request received"),
+  NIC_CREATED("NIC created"),
+  VM_CREATED("VM created"),
+  AGENT_INSTALLED("Agent installed"),
+  CUSTOM_SCRIPT_DONE("Custom script done"),
+  AGENT_STARTED("Agent started"),
+  AGENT_REGISTERED("Agent registered"),
+  FIRST_JOB_ASSIGNED("First job assigned");
+
+  private final String label;
+
+  ProvisioningPhase(String label) {
+    this.label = label;
+  }
+
+  public String label() {
+    return label;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import lombok.Getter;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * When an agent reached each {@link ProvisioningPhase}, as milliseconds on a monotonic clock since its create-agent
+ * request was received. A phase is only recorded the first time it is reached, and phases after the last phase of the
+ * timeline are not recorded.
+ */
+public class ProvisioningTimeline {
+  private static final int UNREACHED = -1;
+
+  @Getter
+  private final String profileKey;
+  @Getter
+  private final DateTime receivedAt;
+  private final long receivedAtNanos;
+  private final ProvisioningPhase lastPhase;
+  private final AtomicIntegerArray offsets = new AtomicIntegerArray(ProvisioningPhase.values().length);
+
+  ProvisioningTimeline(String profileKey, DateTime receivedAt, long receivedAtNanos, ProvisioningPhase lastPhase) {
+    this.profileKey = profileKey;
+    this.receivedAt = receivedAt;
+    this.receivedAtNanos = receivedAtNanos;
+    this.lastPhase = lastPhase;
+    for (int i = 1; i < offsets.length(); i++) {
+      offsets.set(i, UNREACHED);
+    }
+  }
+
+  /**
+   * Records the phase as reached at the given monotonic time, unless it was reached before.
+   *
+   * @return how long the phase took since the previous reached phase, or -1 if it had been reached already or comes
+   * after the last phase
+   */
+  long reached(ProvisioningPhase phase, long nanos) {
+    if (phase.compareTo(lastPhase) > 0) {
+      return -1;
+    }
+    int offset = (int) Math.min(Integer.MAX_VALUE, Math.max(0, TimeUnit.NANOSECONDS.toMillis(nanos - receivedAtNanos)));
+    if (!offsets.compareAndSet(phase.ordinal(), UNREACHED, offset)) {
+      return -1;
+    }
+    return offset - previousOffset(phase);
+  }
+
+  public boolean hasReached(ProvisioningPhase phase) {
+    return offsets.get(phase.ordinal()) != UNREACHED;
+  }
+
+  public long offsetMillis(ProvisioningPhase phase) {
+    return offsets.get(phase.ordinal());
+  }
+
+  public List<Step> getSteps() {
+    long total = 0;
+    for (ProvisioningPhase phase : ProvisioningPhase.values()) {
+      total = Math.max(total, offsetMillis(phase));
+    }
+    List<Step> steps = new ArrayList<>();
+    for (ProvisioningPhase phase : ProvisioningPhase.values()) {
+      if (hasReached(phase)) {
+        long offset = offsetMillis(phase);
+        long previous = previousOffset(phase);
+        steps.add(new Step(phase.label(), previous, offset - previous, total));
+      }
+    }
+    return steps;
+  }
+
+  private long previousOffset(ProvisioningPhase phase) {
+    for (int i = phase.ordinal() - 1; i >= 0; i--) {
+      if (offsets.get(i) != UNREACHED) {
+        return offsets.get(i);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * One bar of the waterfall: the time between the previous reached phase and this one.
+   */
+  @Getter
+  public static class Step {
+    private final String label;
+    private final String startedAfter;
+    private final String took;
+    private final String offsetPercent;
+    private final String widthPercent;
+
+    Step(String label, long startMillis, long durationMillis, long totalMillis) {
+      this.label = label;
+      this.startedAfter = seconds(startMillis);
+      this.took = seconds(durationMillis);
+      this.offsetPercent = percent(startMillis, totalMillis);
+      this.widthPercent = percent(durationMillis, totalMillis);
+    }
+
+    private static String seconds(long millis) {
+      return String.format(Locale.ROOT, "%.1fs", millis / 1000.0);
+    }
+
+    private static String percent(long millis, long totalMillis) {
+      return String.format(Locale.ROOT, "%.2f", totalMillis == 0 ? 0 : 100.0 * millis / totalMillis);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.base.Ticker;
+import com.thoughtworks.gocd.elasticagent.azure.metrics.Histogram;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link ProvisioningTimeline} of every agent the plugin created, by VM name, and per elastic profile the
+ * distribution of how long each phase took, so that the status report shows which phase to optimize per profile.
+ */
+public class ProvisioningTimelines {
+  public static final String PROVISIONING_PHASES = "Provisioning phases";
+
+  private final Ticker ticker;
+  private final Clock clock;
+  private final Map<String, ProvisioningTimeline> timelines = new ConcurrentHashMap<>();
+  private final Map<String, Histogram[]> phaseDurations = new ConcurrentHashMap<>();
+
+  public ProvisioningTimelines() {
+    this(Ticker.systemTicker(), Clock.DEFAULT);
+  }
+
+  ProvisioningTimelines(Ticker ticker, Clock clock) {
+    this.ticker = ticker;
+    this.clock = clock;
+  }
+
+  /**
+   * Starts the timeline of a VM at the monotonic time its create-agent request was received.
+   */
+  public ProvisioningTimeline start(String vmName, String profileKey, long receivedAtNanos) {
+    return start(vmName, profileKey, receivedAtNanos, ProvisioningPhase.FIRST_JOB_ASSIGNED);
+  }
+
+  /**
+   * Starts the timeline of a VM that stops recording at the given phase, such as a warm pool VM whose first job is
+   * assigned after an idle wait that says nothing about provisioning.
+   */
+  public ProvisioningTimeline start(String vmName, String profileKey, long receivedAtNanos, ProvisioningPhase lastPhase) {
+    long sinceReceived = TimeUnit.NANOSECONDS.toMillis(Math.max(0, ticker.read() - receivedAtNanos));
+    ProvisioningTimeline timeline = new ProvisioningTimeline(profileKey, clock.now().minus(sinceReceived), receivedAtNanos, lastPhase);
+    timelines.put(vmName, timeline);
+    return timeline;
+  }
+
+  public void reached(String vmName, ProvisioningPhase phase) {
+    ProvisioningTimeline timeline = timelines.get(vmName);
+    if (timeline == null) {
+      return;
+    }
+    long took = timeline.reached(phase, ticker.read());
+    if (took >= 0) {
+      durations(timeline.getProfileKey())[phase.ordinal()].record(took);
+    }
+  }
+
+  public ProvisioningTimeline get(String vmName) {
+    return timelines.get(vmName);
+  }
+
+  public void remove(String vmName) {
+    timelines.remove(vmName);
+  }
+
+  public List<Pair<String, String>> statusReportProperties() {
+    List<Pair<String, String>> properties = new ArrayList<>();
+    new TreeMap<>(phaseDurations).forEach((profileKey, histograms) -> {
+      List<String> phases = new ArrayList<>();
+      for (ProvisioningPhase phase : ProvisioningPhase.values()) {
+        Histogram histogram = histograms[phase.ordinal()];
+        if (phase != ProvisioningPhase.REQUEST_RECEIVED && histogram.count() > 0) {
+          phases.add(String.format("%s p50 %dms p95 %dms", phase.label(), histogram.percentile(0.5), histogram.percentile(0.95)));
+        }
+      }
+      properties.add(Pair.of(PROVISIONING_PHASES + " " + profileKey, String.join(", ", phases)));
+    });
+    return properties;
+  }
+
+  private Histogram[] durations(String profileKey) {
+    return phaseDurations.computeIfAbsent(profileKey, ignored -> {
+      Histogram[] histograms = new Histogram[ProvisioningPhase.values().length];
+      for (int i = 0; i < histograms.length; i++) {
+        histograms[i] = new Histogram();
+      }
+      return histograms;
+    });
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
+import org.apache.commons.lang3.tuple.Pair;
+import org.joda.time.Period;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the deallocated VMs of idle agents for elastic profiles that configure a stopped pool, so that a later job for
+ * the profile starts one of them again instead of creating a VM. An idle agent is parked only while its profile has
+ * room for it, and parked VMs are terminated once they reach the profile's maximum parked age.
+ */
+public class StoppedPool {
+
+  public static final int DEFAULT_WORKERS = 2;
+  public static final String PARKED_AGENTS = "Parked agents";
+  public static final String PARKING_AGENTS = "Agents being parked";
+
+  private final Map<String, ElasticProfile> profiles = new ConcurrentHashMap<>();
+  private final Map<String, AzureInstance> parked = new ConcurrentHashMap<>();
+  private final Map<String, AzureInstance> parking = new ConcurrentHashMap<>();
+  private final ExecutorService workers;
+  private final Clock clock;
+
+  public StoppedPool() {
+    this(defaultWorkers(), Clock.DEFAULT);
+  }
+
+  StoppedPool(ExecutorService workers, Clock clock) {
+    this.workers = workers;
+    this.clock = clock;
+  }
+
+  /**
+   * Learns the stopped pool settings of a profile from a create-agent request for it.
+   */
+  public void remember(ElasticProfile profile) {
+    profiles.put(profile.hash(), profile);
+  }
+
+  /**
+   * Reserves room for the instance, if the stopped pool of its profile is not full. The reservation ends with
+   * {@link #parked} once the VM is deallocated, or with {@link #release} if parking it failed.
+   */
+  public synchronized boolean reserve(AzureInstance instance) {
+    Optional<ElasticProfile> profile = profileOf(instance);
+    if (!profile.isPresent()) {
+      return false;
+    }
+    String profileHash = profile.get().hash();
+    long used = Stream.concat(parked.values().stream(), parking.values().stream())
+        .filter(other -> other.elasticProfileMatches(profileHash))
+        .count();
+    if (used >= profile.get().getStoppedPoolMaxParked()) {
+      return false;
+    }
+    parking.put(instance.getName(), instance);
+    return true;
+  }
+
+  public synchronized void parked(AzureInstance instance) {
+    parking.remove(instance.getName());
+    register(instance);
+  }
+
+  public void release(String name) {
+    parking.remove(name);
+  }
+
+  /**
+   * Adds a VM that is already parked, such as one found when the plugin starts.
+   */
+  public void register(AzureInstance instance) {
+    parked.put(instance.getName(), instance);
+  }
+
+  /**
+   * Whether the VM is parked, or being parked, in the pool.
+   */
+  public boolean holds(String name) {
+    return parked.containsKey(name) || parking.containsKey(name);
+  }
+
+  /**
+   * Takes the most recently parked VM of the profile and environment out of the pool, if there is one.
+   */
+  public synchronized Optional<AzureInstance> claim(ElasticProfile profile, String environment) {
+    String profileHash = profile.hash();
+    Optional<AzureInstance> claimed = parked.values().stream()
+        .filter(instance -> instance.elasticProfileMatches(profileHash) && instance.getEnvironment().equals(environment))
+        .filter(instance -> !isExpired(instance))
+        .max(Comparator.comparing(AzureInstance::getParkedAt));
+    claimed.ifPresent(instance -> parked.remove(instance.getName()));
+    return claimed;
+  }
+
+  /**
+   * Takes the parked VMs that reached their maximum parked age, or whose profile no longer has a stopped pool, out of
+   * the pool.
+   */
+  public synchronized List<AzureInstance> expired() {
+    List<AzureInstance> expired = parked.values().stream().filter(this::isExpired).collect(Collectors.toList());
+    expired.forEach(instance -> parked.remove(instance.getName()));
+    return expired;
+  }
+
+  public void execute(Runnable task) {
+    workers.execute(task);
+  }
+
+  /**
+   * Stops taking new parks and waits for the ones already handed over to finish, so that a VM is not left tagged as
+   * parked but still running, or deallocated without being recorded.
+   *
+   * @return the number of VMs still being parked when the timeout elapsed
+   */
+  public int shutdown(Period timeout) {
+    workers.shutdown();
+    try {
+      workers.awaitTermination(timeout.toStandardDuration().getMillis(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return parking.size();
+  }
+
+  public List<Pair<String, String>> statusReportProperties() {
+    List<Pair<String, String>> properties = new ArrayList<>();
+    properties.add(Pair.of(PARKED_AGENTS, Integer.toString(parked.size())));
+    properties.add(Pair.of(PARKING_AGENTS, Integer.toString(parking.size())));
+    return properties;
+  }
+
+  // VMs of profiles that were not requested since the plugin started are kept for the default maximum parked age.
+  private boolean isExpired(AzureInstance instance) {
+    Optional<ElasticProfile> profile = profileOf(instance);
+    if (profile.isPresent() && profile.get().getStoppedPoolMaxParked() == 0) {
+      return true;
+    }
+    Period maxParkedAge = profile.map(ElasticProfile::getStoppedPoolMaxParkedAge).orElse(ElasticProfile.DEFAULT_MAX_PARKED_AGE);
+    return clock.now().isAfter(instance.getParkedAt().plus(maxParkedAge));
+  }
+
+  private Optional<ElasticProfile> profileOf(AzureInstance instance) {
+    return profiles.values().stream().filter(instance::elasticProfileMatches).findFirst();
+  }
+
+  private static ExecutorService defaultWorkers() {
+    return Executors.newFixedThreadPool(DEFAULT_WORKERS,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-stopped-pool-%d").build());
+  }
+}
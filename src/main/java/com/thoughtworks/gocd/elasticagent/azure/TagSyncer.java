@@ -0,0 +1,211 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClient;
+import com.thoughtworks.gocd.elasticagent.azure.client.TagChanges;
+import org.joda.time.Period;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Persists tag changes made to the in-memory agent instances back to the VM tags in the background. Changes to the
+ * same VM that arrive while a write is pending or in flight are coalesced into the next write. Failed writes are
+ * retried a bounded number of times before being dropped. A dropped write leaves the in-memory state ahead of the VM
+ * tags only until the next reconciliation, which takes the listed tags as the truth and reverts it. Every completed
+ * write takes the next number of a sequence, so that a reconciliation can tell the VMs written to since its listing
+ * started, whose listed tags may predate the write.
+ */
+public class TagSyncer {
+
+  public static final int DEFAULT_WORKERS = 2;
+  public static final int DEFAULT_MAX_ATTEMPTS = 5;
+  public static final Period DEFAULT_RETRY_BACKOFF = Period.seconds(5);
+
+  private final Map<String, PendingWrite> pendingWrites = new HashMap<>();
+  private final Map<String, Long> lastWrites = new HashMap<>();
+  private final ScheduledExecutorService workers;
+  private final int maxAttempts;
+  private final long retryBackoffMillis;
+  private final AtomicLong completedWrites = new AtomicLong();
+  private final AtomicLong failedWrites = new AtomicLong();
+  private long writeSequence;
+
+  public TagSyncer() {
+    this(defaultWorkers(), DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_BACKOFF);
+  }
+
+  TagSyncer(ScheduledExecutorService workers, int maxAttempts, Period retryBackoff) {
+    this.workers = workers;
+    this.maxAttempts = maxAttempts;
+    this.retryBackoffMillis = retryBackoff.toStandardDuration().getMillis();
+  }
+
+  /**
+   * @param persistedTags the tags of the VM before these changes were applied in memory
+   */
+  public synchronized void submit(GoCDAzureClient client, String vmId, Map<String, String> persistedTags, TagChanges changes) {
+    PendingWrite pendingWrite = pendingWrites.get(vmId);
+    if (pendingWrite != null) {
+      pendingWrite.client = client;
+      pendingWrite.changes.merge(changes);
+      return;
+    }
+    pendingWrites.put(vmId, new PendingWrite(client, persistedTags, changes.copy()));
+    schedule(vmId, 1, 0);
+  }
+
+  public synchronized void discard(String vmId) {
+    remove(vmId);
+    lastWrites.remove(vmId);
+  }
+
+  /**
+   * Waits for the pending writes, including their retries, to finish, and then stops taking new ones.
+   *
+   * @return the number of writes still pending when the timeout elapsed
+   */
+  public synchronized int flush(Period timeout) {
+    long deadline = System.currentTimeMillis() + timeout.toStandardDuration().getMillis();
+    try {
+      for (long remaining = deadline - System.currentTimeMillis(); !pendingWrites.isEmpty() && remaining > 0; remaining = deadline - System.currentTimeMillis()) {
+        wait(remaining);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    workers.shutdown();
+    return pendingWrites.size();
+  }
+
+  /**
+   * The sequence number of the last completed write, to be passed to {@link #isPendingOrWrittenSince} later.
+   */
+  public synchronized long mark() {
+    return writeSequence;
+  }
+
+  /**
+   * Whether a write to the VM is pending, or completed after the mark was taken.
+   */
+  public synchronized boolean isPendingOrWrittenSince(String vmId, long mark) {
+    return pendingWrites.containsKey(vmId) || lastWrites.getOrDefault(vmId, Long.MIN_VALUE) > mark;
+  }
+
+  public synchronized int pending() {
+    return pendingWrites.size();
+  }
+
+  public long completed() {
+    return completedWrites.get();
+  }
+
+  public long failed() {
+    return failedWrites.get();
+  }
+
+  private void schedule(String vmId, int attempt, long delayMillis) {
+    try {
+      workers.schedule(() -> write(vmId, attempt), delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      LOG.error("Could not schedule tag write for vm {}: {}", vmId, e.getMessage());
+      remove(vmId);
+      failedWrites.incrementAndGet();
+    }
+  }
+
+  private void write(String vmId, int attempt) {
+    GoCDAzureClient client;
+    Map<String, String> persistedTags;
+    TagChanges changes;
+    synchronized (this) {
+      PendingWrite pendingWrite = pendingWrites.get(vmId);
+      if (pendingWrite == null) {
+        return;
+      }
+      client = pendingWrite.client;
+      persistedTags = pendingWrite.persistedTags;
+      changes = pendingWrite.changes.copy();
+    }
+
+    try {
+      Map<String, String> writtenTags = client.updateTags(vmId, persistedTags, changes);
+      completedWrites.incrementAndGet();
+      synchronized (this) {
+        PendingWrite pendingWrite = pendingWrites.get(vmId);
+        if (pendingWrite == null) {
+          return;
+        }
+        lastWrites.put(vmId, ++writeSequence);
+        if (pendingWrite.changes.equals(changes)) {
+          remove(vmId);
+        } else {
+          pendingWrite.persistedTags = writtenTags;
+          schedule(vmId, 1, 0);
+        }
+      }
+    } catch (Exception e) {
+      synchronized (this) {
+        if (!pendingWrites.containsKey(vmId)) {
+          return;
+        }
+        if (attempt < maxAttempts) {
+          LOG.warn("Attempt {} to write tags of vm {} failed, retrying: {}", attempt, vmId, e.getMessage());
+          schedule(vmId, attempt + 1, retryBackoffMillis * attempt);
+        } else {
+          LOG.error("Giving up writing tags of vm {} after {} attempts, the next reconciliation reverts them in memory: {}", vmId, attempt, e.getMessage());
+          remove(vmId);
+          failedWrites.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private void remove(String vmId) {
+    pendingWrites.remove(vmId);
+    notifyAll();
+  }
+
+  private static ScheduledExecutorService defaultWorkers() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(DEFAULT_WORKERS,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-tag-sync-%d").build());
+    executor.setKeepAliveTime(1, TimeUnit.MINUTES);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static class PendingWrite {
+    private GoCDAzureClient client;
+    private Map<String, String> persistedTags;
+    private final TagChanges changes;
+
+    private PendingWrite(GoCDAzureClient client, Map<String, String> persistedTags, TagChanges changes) {
+      this.client = client;
+      this.persistedTags = persistedTags;
+      this.changes = changes;
+    }
+  }
+}
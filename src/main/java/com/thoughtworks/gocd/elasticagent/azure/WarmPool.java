@@ -0,0 +1,201 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
+import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
+import com.thoughtworks.gocd.elasticagent.azure.models.ServerInfo;
+import com.thoughtworks.gocd.elasticagent.azure.requests.CreateAgentRequest;
+import org.apache.commons.lang3.tuple.Pair;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Keeps idle agents provisioned for elastic profiles that configure a warm pool, so that jobs are assigned an agent
+ * without waiting for a VM. A pool is learnt from the create-agent requests for its profile and environment and is
+ * refilled through the {@link ProvisioningEngine} on every server ping, never on the job assignment path, since it
+ * looks at every instance of each pool's profile. The server ping also leaves the pool's idle agents enabled, and
+ * disables and terminates the ones above the pool's maximum once they reach their idle timeout.
+ */
+public class WarmPool {
+
+  // Pool agents auto-register with the key of the request the pool was learnt from, which the server expires.
+  public static final Period TEMPLATE_VALIDITY = Period.minutes(10);
+  public static final Period FAILURE_BACKOFF = Period.minutes(5);
+  public static final String WARM_POOL = "Warm pool";
+  static final String PIPELINE_NAME = "warm-pool";
+
+  private final Map<String, Template> templates = new ConcurrentHashMap<>();
+  private final Map<String, List<Provisioning>> provisionings = new ConcurrentHashMap<>();
+  private final AtomicLong sequence = new AtomicLong();
+  private final AzureAgentInstances agentInstances;
+  private final ProvisioningEngine provisioningEngine;
+  private final Clock clock;
+
+  public WarmPool(AzureAgentInstances agentInstances, ProvisioningEngine provisioningEngine) {
+    this(agentInstances, provisioningEngine, Clock.DEFAULT);
+  }
+
+  WarmPool(AzureAgentInstances agentInstances, ProvisioningEngine provisioningEngine, Clock clock) {
+    this.agentInstances = agentInstances;
+    this.provisioningEngine = provisioningEngine;
+    this.clock = clock;
+  }
+
+  /**
+   * Whether the request was made by the pool rather than for a job.
+   */
+  public static boolean isPoolRequest(CreateAgentRequest request) {
+    return request.jobIdentifier() != null && PIPELINE_NAME.equals(request.jobIdentifier().getPipelineName());
+  }
+
+  public void remember(CreateAgentRequest request, ServerInfo serverInfo) {
+    ElasticProfile profile = request.elasticProfile();
+    if (profile == null) {
+      return;
+    }
+    String key = key(profile, environment(request));
+    if (profile.hasWarmPool()) {
+      templates.put(key, new Template(request, serverInfo, clock.now()));
+    } else {
+      templates.remove(key);
+    }
+  }
+
+  public synchronized void replenish(PluginSettings settings) {
+    templates.forEach((key, template) -> replenish(key, template, settings));
+  }
+
+  /**
+   * Ids of the idle pool agents above the maximum idle count of their pool that have reached their idle timeout,
+   * oldest first.
+   */
+  public Set<String> surplusAgentIds() {
+    Set<String> surplus = new LinkedHashSet<>();
+    templates.values().forEach(template -> surplus(template, idleInstances(template)).forEach(instance -> surplus.add(instance.getName())));
+    return surplus;
+  }
+
+  /**
+   * Ids of the idle pool agents the pool keeps, which should not be disabled for having waited for work too long.
+   */
+  public Set<String> retainedAgentIds() {
+    Set<String> retained = new LinkedHashSet<>();
+    templates.values().forEach(template -> {
+      List<AzureInstance> idle = idleInstances(template);
+      idle.removeAll(surplus(template, idle));
+      idle.forEach(instance -> retained.add(instance.getName()));
+    });
+    return retained;
+  }
+
+  public List<Pair<String, String>> statusReportProperties() {
+    List<Pair<String, String>> properties = new ArrayList<>();
+    new TreeMap<>(templates).forEach((key, template) -> {
+      ElasticProfile profile = template.request.elasticProfile();
+      properties.add(Pair.of(WARM_POOL + " " + key, String.format("%d idle (min %d, max %d), %d provisioning",
+          idleInstances(template).size(), profile.getWarmPoolMinIdle(), profile.getWarmPoolMaxIdle(), inFlight(key))));
+    });
+    return properties;
+  }
+
+  private void replenish(String key, Template template, PluginSettings settings) {
+    if (clock.now().isAfter(template.rememberedAt.plus(TEMPLATE_VALIDITY))) {
+      return;
+    }
+    int inFlight = inFlight(key);
+    if (failedRecently(key)) {
+      LOG.debug("[Warm Pool] Not refilling {}, a provisioning failed less than {} ago", key, FAILURE_BACKOFF);
+      return;
+    }
+
+    ElasticProfile profile = template.request.elasticProfile();
+    int total = agentInstances.instancesWithProfile(profile, environment(template.request)).size() + inFlight;
+    int missing = profile.getWarmPoolMinIdle() - idleInstances(template).size() - inFlight;
+    int room = profile.getWarmPoolMaxTotal().map(maxTotal -> maxTotal - total).orElse(missing);
+    int toProvision = Math.min(missing, room);
+    if (toProvision > 0) {
+      LOG.info("[Warm Pool] Provisioning {} agent(s) for {}", toProvision, key);
+    }
+    for (int i = 0; i < toProvision; i++) {
+      Provisioning provisioning = provisioningEngine.submitWarm(poolRequest(template.request), settings, template.serverInfo);
+      provisionings.computeIfAbsent(key, k -> new ArrayList<>()).add(provisioning);
+    }
+  }
+
+  private List<AzureInstance> surplus(Template template, List<AzureInstance> idle) {
+    return idle.stream()
+        .filter(instance -> instance.isIdleAfterIdleTimeout(clock))
+        .sorted(Comparator.comparing(AzureInstance::getCreatedAt))
+        .limit(Math.max(0, idle.size() - template.request.elasticProfile().getWarmPoolMaxIdle()))
+        .collect(Collectors.toList());
+  }
+
+  private List<AzureInstance> idleInstances(Template template) {
+    ElasticProfile profile = template.request.elasticProfile();
+    String profileHash = profile.hash();
+    return agentInstances.instancesWithProfile(profile, environment(template.request)).stream()
+        .filter(instance -> instance.canBeAssigned(profileHash, clock))
+        .collect(Collectors.toCollection(ArrayList::new));
+  }
+
+  private synchronized int inFlight(String key) {
+    List<Provisioning> pool = provisionings.getOrDefault(key, Collections.emptyList());
+    pool.removeIf(p -> p.isFinished() && clock.now().isAfter(p.getUpdatedAt().plus(FAILURE_BACKOFF)));
+    return (int) pool.stream().filter(p -> !p.isFinished()).count();
+  }
+
+  // Failed provisionings are pruned by inFlight() once the backoff has passed.
+  private boolean failedRecently(String key) {
+    return provisionings.getOrDefault(key, Collections.emptyList()).stream()
+        .anyMatch(p -> p.getState() == ProvisioningState.FAILED);
+  }
+
+  private CreateAgentRequest poolRequest(CreateAgentRequest template) {
+    long id = sequence.incrementAndGet();
+    String environment = environment(template);
+    JobIdentifier placeholder = new JobIdentifier(PIPELINE_NAME, id, null, environment, "1", template.elasticProfile().hash(), -id);
+    return new CreateAgentRequest(template.autoRegisterKey(), template.elasticProfile(), environment, placeholder);
+  }
+
+  private static String key(ElasticProfile profile, String environment) {
+    return profile.hash() + "/" + environment;
+  }
+
+  private static String environment(CreateAgentRequest request) {
+    return Optional.ofNullable(request.environment()).orElse("");
+  }
+
+  private static class Template {
+    private final CreateAgentRequest request;
+    private final ServerInfo serverInfo;
+    private final DateTime rememberedAt;
+
+    private Template(CreateAgentRequest request, ServerInfo serverInfo, DateTime rememberedAt) {
+      this.request = request;
+      this.serverInfo = serverInfo;
+      this.rememberedAt = rememberedAt;
+    }
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.google.common.base.Ticker;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.regex.Pattern;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Sends every ARM request of the plugin through client side copies of the subscription's read and write buckets, so
+ * that bursts queue up in the plugin instead of failing with 429. Terminations and tag updates are served before
+ * provisioning, and provisioning before settings validation lookups. Throttled requests, and transient failures of
+ * idempotent requests, are retried after Azure's Retry-After, or else after a jittered exponential backoff.
+ * <p>
+ * This is the only layer that retries a single ARM request: {@link GoCDAzureClientFactory} turns off the retries and
+ * throttling back-off of the Azure SDK when it installs the scheduler. {@link VmTeardown} and
+ * {@link com.thoughtworks.gocd.elasticagent.azure.TagSyncer} retry a whole operation, and only once the scheduler has
+ * given up on it, so one request is attempted at most {@value #MAX_ATTEMPTS} times per operation attempt.
+ */
+public class ArmRequestScheduler implements Interceptor {
+  public static final int READ_BUCKET_SIZE = 250;
+  public static final double READ_REFILL_PER_SECOND = 25;
+  public static final int WRITE_BUCKET_SIZE = 200;
+  public static final double WRITE_REFILL_PER_SECOND = 10;
+  public static final int MAX_ATTEMPTS = 4;
+  public static final long BASE_BACKOFF_MILLIS = 1000;
+  public static final long MAX_BACKOFF_MILLIS = 30000;
+
+  static final String REMAINING_READS = "x-ms-ratelimit-remaining-subscription-reads";
+  static final String REMAINING_WRITES = "x-ms-ratelimit-remaining-subscription-writes";
+  static final String REMAINING_DELETES = "x-ms-ratelimit-remaining-subscription-deletes";
+  private static final Set<Integer> TRANSIENT_STATUS_CODES = Set.of(408, 429, 500, 502, 503, 504);
+  private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "HEAD", "PUT", "DELETE");
+  private static final Pattern TAGS = Pattern.compile("(?i).*/providers/Microsoft\\.Resources/tags/.*");
+  private static final Pattern VALIDATION_LOOKUPS = Pattern.compile("(?i)(" +
+      ".*/providers/Microsoft\\.Network/(virtualNetworks|networkSecurityGroups)/[^/]+" +
+      "|/subscriptions/[^/]+/locations" +
+      "|/subscriptions/[^/]+/resourcegroups/[^/]+" +
+      "|.*/providers/Microsoft\\.Compute/locations/[^/]+/publishers/.*)/?");
+
+  public enum Priority {
+    HIGH, NORMAL, LOW
+  }
+
+  private final TokenBucket reads;
+  private final TokenBucket writes;
+  private final Sleeper sleeper;
+  private final DoubleSupplier jitter;
+
+  public ArmRequestScheduler() {
+    this(Ticker.systemTicker(), millis -> Thread.sleep(millis), () -> ThreadLocalRandom.current().nextDouble());
+  }
+
+  ArmRequestScheduler(Ticker ticker, Sleeper sleeper, DoubleSupplier jitter) {
+    this.reads = new TokenBucket("read", READ_BUCKET_SIZE, READ_REFILL_PER_SECOND, ticker);
+    this.writes = new TokenBucket("write", WRITE_BUCKET_SIZE, WRITE_REFILL_PER_SECOND, ticker);
+    this.sleeper = sleeper;
+    this.jitter = jitter;
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    TokenBucket bucket = bucketFor(request);
+    Priority priority = priorityOf(request);
+    for (int attempt = 1; ; attempt++) {
+      bucket.acquire(priority);
+      Response response;
+      try {
+        response = chain.proceed(request);
+      } catch (IOException e) {
+        if (attempt >= MAX_ATTEMPTS || !IDEMPOTENT_METHODS.contains(request.method())) {
+          throw e;
+        }
+        long backoff = backoffMillis(attempt);
+        LOG.warn("ARM request {} {} failed, retrying in {}ms: {}", request.method(), request.url().encodedPath(), backoff, e.getMessage());
+        sleep(backoff);
+        continue;
+      }
+
+      calibrate(response);
+      if (attempt >= MAX_ATTEMPTS || !isRetryable(request, response.code())) {
+        return response;
+      }
+      long retryAfter = retryAfterMillis(response);
+      long delay = retryAfter >= 0 ? retryAfter : backoffMillis(attempt);
+      LOG.warn("ARM request {} {} returned {}, retrying in {}ms", request.method(), request.url().encodedPath(), response.code(), delay);
+      close(response);
+      if (response.code() == 429) {
+        bucket.pause(delay);
+      } else {
+        sleep(delay);
+      }
+    }
+  }
+
+  /**
+   * A throttled request was refused before ARM acted on it, so it can be sent again whatever its method. Other
+   * transient failures may have been applied, so only idempotent requests are sent again.
+   */
+  static boolean isRetryable(Request request, int statusCode) {
+    return statusCode == 429 || (TRANSIENT_STATUS_CODES.contains(statusCode) && IDEMPOTENT_METHODS.contains(request.method()));
+  }
+
+  public List<Pair<String, String>> statusReportProperties() {
+    List<Pair<String, String>> properties = new ArrayList<>();
+    for (TokenBucket bucket : List.of(reads, writes)) {
+      String name = "ARM " + bucket.name() + " requests";
+      properties.add(Pair.of(name + " bucket", String.format("%d/%d tokens, %d%% saturated, %s remaining at Azure",
+          (long) bucket.tokens(), bucket.capacity(), bucket.saturation(), bucket.lastRemaining() < 0 ? "unknown" : Long.toString(bucket.lastRemaining()))));
+      properties.add(Pair.of(name + " delayed", String.format("%d (%dms in total)", bucket.delayed(), bucket.waitedMillis())));
+      properties.add(Pair.of(name + " throttled by Azure", Long.toString(bucket.throttled())));
+    }
+    return properties;
+  }
+
+  TokenBucket reads() {
+    return reads;
+  }
+
+  TokenBucket writes() {
+    return writes;
+  }
+
+  TokenBucket bucketFor(Request request) {
+    return "GET".equals(request.method()) || "HEAD".equals(request.method()) ? reads : writes;
+  }
+
+  static Priority priorityOf(Request request) {
+    String path = request.url().encodedPath();
+    if ("DELETE".equals(request.method()) || TAGS.matcher(path).matches()) {
+      return Priority.HIGH;
+    }
+    if (("GET".equals(request.method()) || "HEAD".equals(request.method())) && VALIDATION_LOOKUPS.matcher(path).matches()) {
+      return Priority.LOW;
+    }
+    return Priority.NORMAL;
+  }
+
+  long backoffMillis(int attempt) {
+    long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 20));
+    return Math.max(1, (long) (ceiling * jitter.getAsDouble()));
+  }
+
+  private void calibrate(Response response) {
+    calibrate(reads, remaining(response, REMAINING_READS));
+    // writes and deletes share the write bucket, so it follows whichever of the two budgets is nearer to running out
+    long remainingWrites = remaining(response, REMAINING_WRITES);
+    long remainingDeletes = remaining(response, REMAINING_DELETES);
+    if (remainingWrites < 0 || remainingDeletes < 0) {
+      calibrate(writes, Math.max(remainingWrites, remainingDeletes));
+    } else {
+      calibrate(writes, Math.min(remainingWrites, remainingDeletes));
+    }
+  }
+
+  private static void calibrate(TokenBucket bucket, long remaining) {
+    if (remaining >= 0) {
+      bucket.calibrate(remaining);
+    }
+  }
+
+  private static long remaining(Response response, String header) {
+    String remaining = response.header(header);
+    if (remaining == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(remaining.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  static long retryAfterMillis(Response response) {
+    String retryAfter = response.header("Retry-After");
+    if (retryAfter == null) {
+      return -1;
+    }
+    try {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+    } catch (NumberFormatException e) {
+      try {
+        return Math.max(0, ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis());
+      } catch (DateTimeParseException ignored) {
+        return -1;
+      }
+    }
+  }
+
+  private void sleep(long millis) throws IOException {
+    try {
+      sleeper.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while backing off an ARM request");
+    }
+  }
+
+  private static void close(Response response) {
+    ResponseBody body = response.body();
+    if (body != null) {
+      body.close();
+    }
+  }
+
+  interface Sleeper {
+    void sleep(long millis) throws InterruptedException;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.thoughtworks.gocd.elasticagent.azure.Clock;
+import org.apache.commons.lang3.tuple.Pair;
+import org.joda.time.Period;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * One {@link CircuitBreaker} per class of Azure operation, shared by every pooled {@link GoCDAzureClient}, so that a
+ * regional incident affecting one kind of call does not hold GoCD server threads on ARM timeouts while the other
+ * kinds keep working.
+ */
+public class AzureCircuitBreakers {
+  public static final int FAILURE_THRESHOLD = 5;
+  public static final Period OPEN_PERIOD = Period.seconds(30);
+
+  public enum Operation {
+    CREATE("create"), DELETE("delete"), LIST("list"), TAG("tag"), RUN_COMMAND("run-command");
+
+    private final String label;
+
+    Operation(String label) {
+      this.label = label;
+    }
+
+    public String label() {
+      return label;
+    }
+  }
+
+  private final Map<Operation, CircuitBreaker> breakers = new EnumMap<>(Operation.class);
+  private volatile Listener listener = Listener.NONE;
+
+  public AzureCircuitBreakers() {
+    this(Clock.DEFAULT, FAILURE_THRESHOLD, OPEN_PERIOD);
+  }
+
+  AzureCircuitBreakers(Clock clock, int failureThreshold, Period openPeriod) {
+    for (Operation operation : Operation.values()) {
+      breakers.put(operation, new CircuitBreaker(operation.label(), clock, failureThreshold, openPeriod, new CircuitBreaker.Listener() {
+        @Override
+        public void opened(Throwable cause) {
+          notify(() -> listener.opened(operation, cause));
+        }
+
+        @Override
+        public void closed() {
+          notify(() -> listener.closed(operation));
+        }
+      }));
+    }
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  CircuitBreaker breaker(Operation operation) {
+    return breakers.get(operation);
+  }
+
+  public List<Pair<String, String>> statusReportProperties() {
+    List<Pair<String, String>> properties = new ArrayList<>();
+    breakers.forEach((operation, breaker) -> {
+      properties.add(Pair.of("Azure " + operation.label() + " circuit", breaker.describe()));
+      properties.add(Pair.of("Azure " + operation.label() + " requests failed fast", Long.toString(breaker.rejected())));
+    });
+    return properties;
+  }
+
+  private static void notify(Runnable notification) {
+    try {
+      notification.run();
+    } catch (Exception e) {
+      LOG.warn("Failed to report Azure circuit state change: {}", e.getMessage());
+    }
+  }
+
+  public interface Listener {
+    Listener NONE = new Listener() {
+      @Override
+      public void opened(Operation operation, Throwable cause) {
+      }
+
+      @Override
+      public void closed(Operation operation) {
+      }
+    };
+
+    void opened(Operation operation, Throwable cause);
+
+    void closed(Operation operation);
+  }
+}
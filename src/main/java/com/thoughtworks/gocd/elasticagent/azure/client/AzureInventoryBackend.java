@@ -0,0 +1,42 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.VirtualMachine;
+
+/**
+ * Lists the virtual machines of the resource group the plugin provisions into. A single paged listing returns every
+ * virtual machine with its properties and tags, so the inventory costs one ARM read per page rather than one per
+ * virtual machine. Virtual machines left in a resource group that is no longer configured are not listed.
+ */
+public class AzureInventoryBackend implements InventoryBackend {
+
+  private final Azure azure;
+  private final String resourceGroup;
+
+  public AzureInventoryBackend(Azure azure, String resourceGroup) {
+    this.azure = azure;
+    this.resourceGroup = resourceGroup;
+  }
+
+  @Override
+  public Iterable<VirtualMachine> virtualMachines() {
+    // PagedList only fetches the next page once iteration reaches the end of the current one
+    return () -> azure.virtualMachines().listByResourceGroup(resourceGroup).iterator();
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.thoughtworks.gocd.elasticagent.azure.Clock;
+import com.thoughtworks.gocd.elasticagent.azure.exceptions.CircuitOpenException;
+import org.joda.time.Period;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Opens after a run of consecutive outage failures (I/O errors, timeouts, throttling and 5xx answers) and then
+ * rejects calls without reaching Azure until the open period has passed. After that a single probe call is let
+ * through: its success closes the breaker, its failure opens it for another period. Errors Azure answers with
+ * deliberately, such as a 409 or a 400, prove that it is reachable and count as successes.
+ */
+class CircuitBreaker {
+
+  enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String name;
+  private final Clock clock;
+  private final int failureThreshold;
+  private final long openMillis;
+  private final Listener listener;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAt;
+  private boolean probing;
+  private long rejected;
+  private String lastFailure;
+
+  CircuitBreaker(String name, Clock clock, int failureThreshold, Period openPeriod, Listener listener) {
+    this.name = name;
+    this.clock = clock;
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openPeriod.toStandardDuration().getMillis();
+    this.listener = listener;
+  }
+
+  <T, E extends Exception> T call(Action<T, E> action) throws E {
+    acquire();
+    try {
+      T result = action.run();
+      onSuccess();
+      return result;
+    } catch (Throwable t) {
+      onFailure(t);
+      throw t;
+    }
+  }
+
+  <T> CompletableFuture<T> callAsync(Supplier<CompletableFuture<T>> action) {
+    try {
+      acquire();
+    } catch (CircuitOpenException e) {
+      CompletableFuture<T> rejected = new CompletableFuture<>();
+      rejected.completeExceptionally(e);
+      return rejected;
+    }
+    CompletableFuture<T> future;
+    try {
+      future = action.get();
+    } catch (RuntimeException | Error e) {
+      onFailure(e);
+      throw e;
+    }
+    return future.whenComplete((ignored, error) -> {
+      if (error == null) {
+        onSuccess();
+      } else {
+        onFailure(error);
+      }
+    });
+  }
+
+  synchronized State state() {
+    if (state == State.OPEN && openPeriodElapsed()) {
+      return State.HALF_OPEN;
+    }
+    return state;
+  }
+
+  synchronized long rejected() {
+    return rejected;
+  }
+
+  synchronized String describe() {
+    switch (state()) {
+      case OPEN:
+        return String.format("open for another %ds after: %s", Math.max(0, (openedAt + openMillis - clock.now().getMillis()) / 1000), lastFailure);
+      case HALF_OPEN:
+        return "half-open, probing after: " + lastFailure;
+      default:
+        return "closed";
+    }
+  }
+
+  private synchronized void acquire() {
+    if (state == State.OPEN && openPeriodElapsed()) {
+      LOG.info("Azure {} circuit is half-open, letting a probe request through", name);
+      state = State.HALF_OPEN;
+      probing = false;
+    }
+    if (state == State.OPEN || (state == State.HALF_OPEN && probing)) {
+      rejected++;
+      throw new CircuitOpenException(String.format("Azure %s requests are failing fast after repeated failures, the last one being: %s", name, lastFailure));
+    }
+    if (state == State.HALF_OPEN) {
+      probing = true;
+    }
+  }
+
+  private void onSuccess() {
+    boolean closed;
+    synchronized (this) {
+      closed = state != State.CLOSED;
+      state = State.CLOSED;
+      consecutiveFailures = 0;
+      probing = false;
+    }
+    if (closed) {
+      LOG.info("Azure {} circuit closed", name);
+      listener.closed();
+    }
+  }
+
+  private void onFailure(Throwable failure) {
+    if (!VmTeardown.isTransient(failure)) {
+      onSuccess();
+      return;
+    }
+    boolean opened = false;
+    synchronized (this) {
+      lastFailure = failure.getMessage();
+      if (state == State.HALF_OPEN) {
+        state = State.OPEN;
+        openedAt = clock.now().getMillis();
+        probing = false;
+      } else if (state == State.CLOSED && ++consecutiveFailures >= failureThreshold) {
+        state = State.OPEN;
+        openedAt = clock.now().getMillis();
+        opened = true;
+      }
+    }
+    if (opened) {
+      LOG.warn("Azure {} circuit opened after {} consecutive failures, the last one being: {}", name, failureThreshold, failure.getMessage());
+      listener.opened(failure);
+    }
+  }
+
+  private boolean openPeriodElapsed() {
+    return clock.now().getMillis() - openedAt >= openMillis;
+  }
+
+  interface Action<T, E extends Exception> {
+    T run() throws E;
+  }
+
+  interface Listener {
+    void opened(Throwable cause);
+
+    void closed();
+  }
+}
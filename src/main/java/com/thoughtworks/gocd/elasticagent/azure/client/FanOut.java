@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Applies a function that makes blocking ARM calls to every element of a lazily paged source on a bounded number of
+ * workers. Elements are handed out as their page arrives, so the calls for one page overlap with each other and with
+ * fetching the next page. The ARM request scheduler still rate limits the calls themselves. Workers exit when idle.
+ */
+public class FanOut {
+
+  public static final int DEFAULT_PARALLELISM = 8;
+  private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+  private final ExecutorService workers;
+
+  public FanOut(String name) {
+    this(name, DEFAULT_PARALLELISM);
+  }
+
+  public FanOut(String name, int parallelism) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-%d").build());
+    executor.allowCoreThreadTimeOut(true);
+    this.workers = executor;
+  }
+
+  FanOut(ExecutorService workers) {
+    this.workers = workers;
+  }
+
+  /**
+   * @return the results in the order of the source. A failed call is rethrown once the whole source has been handed
+   * out, and the calls still queued are cancelled.
+   */
+  public <T, R> List<R> map(Iterable<T> source, Function<T, R> function) {
+    List<Future<R>> futures = new ArrayList<>();
+    try {
+      for (T element : source) {
+        futures.add(workers.submit(() -> function.apply(element)));
+      }
+      List<R> results = new ArrayList<>(futures.size());
+      for (Future<R> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for ARM calls", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      futures.forEach(future -> future.cancel(false));
+    }
+  }
+}
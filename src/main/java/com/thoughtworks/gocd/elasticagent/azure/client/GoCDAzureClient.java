@@ -16,6 +16,7 @@
 
 package com.thoughtworks.gocd.elasticagent.azure.client;
 
+import com.google.common.collect.Iterators;
 import com.microsoft.azure.CloudException;
 import com.microsoft.azure.PagedList;
 import com.microsoft.azure.management.Azure;
@@ -27,41 +28,89 @@ import com.microsoft.azure.management.network.Network;
 import com.microsoft.azure.management.network.NetworkInterface;
 import com.microsoft.azure.management.network.NetworkSecurityGroup;
 import com.microsoft.azure.management.resources.Location;
+import com.microsoft.azure.management.resources.Tags;
+import com.microsoft.azure.management.resources.TagsPatchResource;
+import com.microsoft.azure.management.resources.TagsPatchResourceOperation;
 import com.microsoft.azure.management.resources.fluentcore.arm.Region;
-import com.microsoft.azure.management.resources.fluentcore.arm.models.HasId;
+import com.thoughtworks.gocd.elasticagent.azure.exceptions.CircuitOpenException;
 import com.thoughtworks.gocd.elasticagent.azure.exceptions.ProvisionFailedException;
+import com.thoughtworks.gocd.elasticagent.azure.metrics.MetricsRegistry;
 import com.thoughtworks.gocd.elasticagent.azure.models.ImageURN;
 import com.thoughtworks.gocd.elasticagent.azure.models.Platform;
 import com.thoughtworks.gocd.elasticagent.azure.vm.AzureVMExtension;
 import com.thoughtworks.gocd.elasticagent.azure.vm.PlatformConfigStrategy;
 import com.thoughtworks.gocd.elasticagent.azure.vm.VmConfig;
 import org.apache.commons.lang3.StringUtils;
+import org.joda.time.Period;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+import static com.thoughtworks.gocd.elasticagent.azure.client.AzureCircuitBreakers.Operation.*;
+import static com.thoughtworks.gocd.elasticagent.azure.metrics.MetricsRegistry.AZURE_OPERATIONS;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.GOCD_SERVER_ID_TAG_KEY;
 import static java.lang.String.format;
 import static org.apache.commons.lang3.StringUtils.isBlank;
-import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 public class GoCDAzureClient {
 
-  private static final String FAILED_PROVISIONING_STATE = "failed";
   private NetworkDecorator networkDecorator;
   private Azure azure;
   private String resourceGroup;
+  private InventoryQuery inventoryQuery;
+  private InventorySnapshots inventorySnapshots;
+  private VmTeardown teardown;
+  private AzureCircuitBreakers circuitBreakers;
+  private MetricsRegistry metrics;
 
   GoCDAzureClient(Azure azure, String resourceGroup, NetworkDecorator networkDecorator) {
+    this(azure, resourceGroup, networkDecorator, new AzureCircuitBreakers(), new MetricsRegistry());
+  }
+
+  GoCDAzureClient(Azure azure, String resourceGroup, NetworkDecorator networkDecorator, AzureCircuitBreakers circuitBreakers, MetricsRegistry metrics) {
+    this(azure, resourceGroup, networkDecorator, new InventoryQuery(new AzureInventoryBackend(azure, resourceGroup)), new InventorySnapshots(), new VmTeardown(azure), circuitBreakers, metrics);
+  }
+
+  GoCDAzureClient(Azure azure, String resourceGroup, NetworkDecorator networkDecorator, InventoryQuery inventoryQuery) {
+    this(azure, resourceGroup, networkDecorator, inventoryQuery, new InventorySnapshots());
+  }
+
+  GoCDAzureClient(Azure azure, String resourceGroup, NetworkDecorator networkDecorator, InventoryQuery inventoryQuery, InventorySnapshots inventorySnapshots) {
+    this(azure, resourceGroup, networkDecorator, inventoryQuery, inventorySnapshots, new VmTeardown(azure), new AzureCircuitBreakers(), new MetricsRegistry());
+  }
+
+  GoCDAzureClient(Azure azure, String resourceGroup, NetworkDecorator networkDecorator, InventoryQuery inventoryQuery, InventorySnapshots inventorySnapshots, VmTeardown teardown, AzureCircuitBreakers circuitBreakers, MetricsRegistry metrics) {
     this.azure = azure;
     this.resourceGroup = resourceGroup;
     this.networkDecorator = networkDecorator;
+    this.inventoryQuery = inventoryQuery;
+    this.inventorySnapshots = inventorySnapshots;
+    this.teardown = teardown;
+    this.circuitBreakers = circuitBreakers;
+    this.metrics = metrics;
   }
 
   public VirtualMachine createVM(VmConfig config) throws ProvisionFailedException {
+    return createVM(config, () -> {
+    });
+  }
+
+  /**
+   * Creates the VM, letting the caller know once its network interface, which is created first, exists.
+   */
+  public VirtualMachine createVM(VmConfig config, Runnable networkInterfaceCreated) throws ProvisionFailedException {
     try {
-      return buildVM(config);
+      VirtualMachine vm = call(CREATE, "create_vm", () -> buildVM(config, networkInterfaceCreated));
+      inventorySnapshots.invalidate();
+      return vm;
+    } catch (CircuitOpenException e) {
+      throw new ProvisionFailedException(config.getJobIdentifier(), String.format("Failed to create vm with name %s for job %s: %s", config.getName(), config.getJobIdentifier().getRepresentation(), e.getMessage()));
     } catch (Exception e) {
       LOG.error("Failed to create vm with name {} for job {} due to error: {}\n{} {}", config.getName(), config.getJobIdentifier().getRepresentation(), e.getMessage(), e.toString());
       tearDown(config);
@@ -72,35 +121,49 @@ public class GoCDAzureClient {
   private void tearDown(VmConfig config) {
     LOG.info("Tearing down vm {}", config.getName());
     VirtualMachine vm = azure.virtualMachines().getByResourceGroup(resourceGroup, config.getName());
-    terminate(vm);
-    cleanup(config);
+    terminate(vm).whenComplete((ignored, error) -> cleanup(config));
   }
 
   private void cleanup(VmConfig config) {
-    NetworkInterface nic = azure.networkInterfaces().getByResourceGroup(resourceGroup, config.getNetworkInterfaceName());
-    if (nic != null) {
-      LOG.info("Cleaning up Network Interface {} of the VM {}", config.getNetworkInterfaceName(), config.getName());
-      azure.networkInterfaces().deleteById(nic.id());
+    try {
+      NetworkInterface nic = azure.networkInterfaces().getByResourceGroup(resourceGroup, config.getNetworkInterfaceName());
+      if (nic != null) {
+        LOG.info("Cleaning up Network Interface {} of the VM {}", config.getNetworkInterfaceName(), config.getName());
+        azure.networkInterfaces().deleteById(nic.id());
+      }
+    } catch (Exception e) {
+      LOG.error("Failed to clean up Network Interface {} of the VM {}: {}", config.getNetworkInterfaceName(), config.getName(), e.getMessage());
     }
   }
 
-  public VirtualMachine addTag(String vmId, String tagName, String tagValue) {
-    VirtualMachine vm = azure.virtualMachines().getById(vmId);
-    return vm.update().withTag(tagName, tagValue).apply();
-  }
-
-  public VirtualMachine removeTag(String vmId, String tagName) {
-    VirtualMachine vm = azure.virtualMachines().getById(vmId);
-    return vm.update().withoutTag(tagName).apply();
+  /**
+   * Writes the VM's tags sub-resource with a single Replace PATCH, without reading or re-writing the VM model. The tag
+   * set sent is the tags the caller last saw on the VM with the changes applied, so sets and removals land together
+   * and a failed write leaves the previous tags whole. Tags written to the VM outside the plugin since the caller's
+   * copy was listed are not kept. The tags ARM returns are handed back.
+   */
+  public Map<String, String> updateTags(String vmId, Map<String, String> currentTags, TagChanges changes) {
+    Map<String, String> updatedTags = changes.applyTo(currentTags);
+    if (changes.isEmpty() || updatedTags.equals(currentTags)) {
+      return updatedTags;
+    }
+    LOG.debug("Updating tags of vm {} with {}", vmId, changes);
+    return call(TAG, "update_tags", () -> {
+      TagsPatchResource patch = new TagsPatchResource()
+          .withOperation(TagsPatchResourceOperation.REPLACE)
+          .withProperties(new Tags().withTags(new HashMap<>(updatedTags)));
+      return azure.genericResources().manager().inner().tags().updateAtScope(vmId, patch).properties().tags();
+    });
   }
 
-  private VirtualMachine buildVM(VmConfig config) throws Exception {
+  private VirtualMachine buildVM(VmConfig config, Runnable networkInterfaceCreated) throws Exception {
     LOG.info("Creating instance with config: {}", config);
     WithNetwork withNetwork = azure.virtualMachines()
         .define(config.getName())
         .withRegion(config.getRegion())
         .withExistingResourceGroup(resourceGroup);
-    WithOS withOS = networkDecorator.add(withNetwork, config);
+    WithOS withOS = metrics.time(AZURE_OPERATIONS, "add_network", () -> networkDecorator.add(withNetwork, config));
+    networkInterfaceCreated.run();
 
     PlatformConfigStrategy configStrategy = config.getPlatformStrategy();
     WithCreate vm = configStrategy.addOS(withOS, config);
@@ -114,56 +177,70 @@ public class GoCDAzureClient {
 
   private WithCreate addPlan(WithCreate vm, ImageReference imageReference, Region region) {
     if (imageReference != null) {
-      PurchasePlan plan = azure.virtualMachineImages().getImage(region,
+      PurchasePlan plan = metrics.time(AZURE_OPERATIONS, "image_plan_lookup", () -> azure.virtualMachineImages().getImage(region,
           imageReference.publisher(),
           imageReference.offer(),
           imageReference.sku(),
-          imageReference.version()).plan();
+          imageReference.version()).plan());
       return plan != null ? vm.withPlan(plan) : vm;
     }
     return vm;
   }
 
-  public void terminate(String resourceId) {
-    terminate(azure.virtualMachines().getById(resourceId));
+  public int pendingTeardowns() {
+    return teardown.pending();
   }
 
-  public boolean imageValidForPlatform(ImageURN imageURN, Platform platform, Region region) {
-    VirtualMachineImage image = azure.virtualMachineImages().getImage(region,
-        imageURN.getPublisher(),
-        imageURN.getOffer(),
-        imageURN.getSku(),
-        imageURN.getVersion());
-    return platform.name().equalsIgnoreCase(image.osDiskImage().operatingSystem().name());
+  /**
+   * @see VmTeardown#drain(Period)
+   */
+  public int drainTeardowns(Period timeout) {
+    return teardown.drain(timeout);
   }
 
-  public void terminate(VirtualMachine vm) {
-    if (vm != null) {
-      ArrayList<String> diskIds = getDiskIds(vm);
-      List<String> networkInterfaceIds = vm.networkInterfaceIds();
+  public CompletableFuture<Void> terminate(String resourceId) {
+    return circuitBreakers.breaker(DELETE).callAsync(() -> metrics.timeAsync(AZURE_OPERATIONS, "terminate", () -> teardown.terminate(resourceId))).whenComplete((ignored, error) -> inventorySnapshots.invalidate());
+  }
 
-      LOG.info("Terminating vm {}", vm.name());
-      azure.virtualMachines().deleteById(vm.id());
+  /**
+   * Stops and deallocates the VM. Its compute is released while its disks and network interface are kept, so that
+   * it can be started again. Counts as a delete for the circuit breakers, and starting it again as a create.
+   */
+  public void deallocate(String vmName) {
+    LOG.info("Deallocating vm {}", vmName);
+    try {
+      call(DELETE, "deallocate", () -> {
+        azure.virtualMachines().deallocate(resourceGroup, vmName);
+        return null;
+      });
+    } finally {
+      inventorySnapshots.invalidate();
+    }
+  }
 
-      LOG.info("Terminating vm {} disks", vm.name());
-      diskIds.stream()
-              .filter(StringUtils::isNotBlank)
-              .forEach((id) -> azure.disks().deleteById(id));
-      LOG.info("Terminating vm {} nics", vm.name());
-      networkInterfaceIds.stream()
-              .filter(StringUtils::isNotBlank)
-              .forEach((id) -> azure.networkInterfaces().deleteById(id));
+  public void start(String vmName) {
+    LOG.info("Starting deallocated vm {}", vmName);
+    try {
+      call(CREATE, "start", () -> {
+        azure.virtualMachines().start(resourceGroup, vmName);
+        return null;
+      });
+    } finally {
+      inventorySnapshots.invalidate();
     }
   }
 
-  private ArrayList<String> getDiskIds(VirtualMachine vm) {
-    ArrayList<String> diskIds = vm.dataDisks()
-        .values()
-        .stream()
-        .map(HasId::id)
-        .collect(Collectors.toCollection(ArrayList::new));
-    diskIds.add(vm.osDiskId());
-    return diskIds;
+  public boolean imageValidForPlatform(ImageURN imageURN, Platform platform, Region region) {
+    VirtualMachineImage image = metrics.time(AZURE_OPERATIONS, "image_lookup", () -> azure.virtualMachineImages().getImage(region,
+        imageURN.getPublisher(),
+        imageURN.getOffer(),
+        imageURN.getSku(),
+        imageURN.getVersion()));
+    return platform.name().equalsIgnoreCase(image.osDiskImage().operatingSystem().name());
+  }
+
+  public CompletableFuture<Void> terminate(VirtualMachine vm) {
+    return circuitBreakers.breaker(DELETE).callAsync(() -> metrics.timeAsync(AZURE_OPERATIONS, "terminate", () -> teardown.terminate(vm))).whenComplete((ignored, error) -> inventorySnapshots.invalidate());
   }
 
   private WithCreate addCustomScriptExtensions(WithCreate vm, List<AzureVMExtension> extensions) throws Exception {
@@ -173,18 +250,40 @@ public class GoCDAzureClient {
     return vm;
   }
 
-  public List<VirtualMachine> runningVirtualMachinesWithTag(String tagName, String tagValue) {
-    return virtualMachinesWithTag(tagName, tagValue).stream().filter(virtualMachine -> {
-      String provisioningState = virtualMachine.provisioningState();
-      return isBlank(provisioningState) || !provisioningState.toLowerCase().equals(FAILED_PROVISIONING_STATE);
-    }).collect(Collectors.toCollection(ArrayList::new));
+  public InventorySnapshot inventorySnapshot(String serverId) {
+    return inventorySnapshots.get(serverId, () -> call(LIST, "list_vms", () -> virtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, serverId)));
+  }
+
+  /**
+   * Applies the mapping to the running virtual machines of the server's inventory. Unless a fresh listing is asked for
+   * and a snapshot within the staleness window exists, the listing is taken now and the mapping gets the running
+   * virtual machines as their page arrives, so that it can work on one page while the next is fetched. The snapshot is
+   * built from the same listing once the mapping is done with it, and shared with later callers.
+   */
+  public <R> R mapRunningVirtualMachines(String serverId, boolean fresh, Function<Iterable<VirtualMachine>, R> mapping) {
+    InventorySnapshot snapshot = fresh ? null : inventorySnapshots.current(serverId);
+    if (snapshot != null) {
+      return mapping.apply(snapshot.runningVirtualMachines());
+    }
+    List<R> mapped = new ArrayList<>(1);
+    inventorySnapshots.refresh(serverId, () -> call(LIST, "list_vms", () -> {
+      List<VirtualMachine> listed = new ArrayList<>();
+      Iterator<VirtualMachine> running = Iterators.filter(
+          Iterators.transform(inventoryQuery.streamVirtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, serverId).iterator(), virtualMachine -> {
+            listed.add(virtualMachine);
+            return virtualMachine;
+          }),
+          InventorySnapshot::isRunning);
+      mapped.add(mapping.apply(() -> running));
+      // the snapshot needs the whole listing, even if the mapping stopped early
+      Iterators.size(running);
+      return listed;
+    }));
+    return mapped.get(0);
   }
 
-  public List<VirtualMachine> failedProvisioningStateVirtualMachinesWithTag(String tagName, String tagValue) {
-    return virtualMachinesWithTag(tagName, tagValue).stream().filter(virtualMachine -> {
-      String provisioningState = virtualMachine.provisioningState();
-      return isNotBlank(provisioningState) && provisioningState.toLowerCase().equals(FAILED_PROVISIONING_STATE);
-    }).collect(Collectors.toCollection(ArrayList::new));
+  public void setInventoryStaleness(Period staleness) {
+    inventorySnapshots.setStaleness(staleness);
   }
 
   public boolean networkExists(String networkId) {
@@ -198,14 +297,11 @@ public class GoCDAzureClient {
   }
 
   private Network getNetwork(String networkId) {
-    return azure.networks().getById(networkId);
+    return metrics.time(AZURE_OPERATIONS, "network_lookup", () -> azure.networks().getById(networkId));
   }
 
   private List<VirtualMachine> virtualMachinesWithTag(String tagName, String tagValue) {
-    return azure.virtualMachines().list()
-        .stream()
-        .filter(virtualMachine -> tagValue.equals(virtualMachine.tags().get(tagName)))
-        .collect(Collectors.toCollection(ArrayList::new));
+    return inventoryQuery.virtualMachinesWithTag(tagName, tagValue);
   }
 
   public boolean subnetExists(String networkId, String subnet) {
@@ -220,7 +316,7 @@ public class GoCDAzureClient {
 
   public boolean networkSecurityGroupExists(String networkSecurityGroupId) {
     try {
-      NetworkSecurityGroup nsg = azure.networkSecurityGroups().getById(networkSecurityGroupId);
+      NetworkSecurityGroup nsg = metrics.time(AZURE_OPERATIONS, "network_security_group_lookup", () -> azure.networkSecurityGroups().getById(networkSecurityGroupId));
       return nsg != null;
     } catch (Exception ex) {
       LOG.error("Network Security Group {} existence check failed with the following exception  {}", networkSecurityGroupId, ex);
@@ -229,20 +325,21 @@ public class GoCDAzureClient {
   }
 
   public boolean resourceGroupExists(String resourceGroup) {
-    return azure.resourceGroups().contain(resourceGroup);
+    return metrics.time(AZURE_OPERATIONS, "resource_group_lookup", () -> azure.resourceGroups().contain(resourceGroup));
   }
 
   public boolean regionExists(String regionName) {
-    PagedList<Location> locations = azure.getCurrentSubscription().listLocations();
-
-    return locations.stream().anyMatch(location -> regionName.equals(location.name()) || regionName.equals(location.displayName()));
+    return metrics.time(AZURE_OPERATIONS, "region_lookup", () -> {
+      PagedList<Location> locations = azure.getCurrentSubscription().listLocations();
+      return locations.stream().anyMatch(location -> regionName.equals(location.name()) || regionName.equals(location.displayName()));
+    });
   }
 
   public String runCustomScript(VmConfig config) throws ProvisionFailedException {
     String logs = "";
     try {
       if (StringUtils.isNotBlank(config.getCustomScript())) {
-        RunCommandResult runCommandResult = config.getPlatformStrategy().runScript(config.getResourceGroup(), config.getName(), azure.virtualMachines(), config.getCustomScript());
+        RunCommandResult runCommandResult = call(RUN_COMMAND, "run_custom_script", () -> config.getPlatformStrategy().runScript(config.getResourceGroup(), config.getName(), azure.virtualMachines(), config.getCustomScript()));
         logs = getLogs(runCommandResult);
         LOG.info("Result of CustomUserScriptExecution on VM {}:", logs);
         runCommandResult.value().forEach(instanceViewStatus -> LOG.info(instanceViewStatus.message()));
@@ -256,7 +353,10 @@ public class GoCDAzureClient {
   public void installGoAgent(VmConfig config) throws ProvisionFailedException {
     try {
       LOG.info("Installing GoCD agent on VM {}", config.getName());
-      config.getPlatformStrategy().installGoAgent(azure.virtualMachines(), config);
+      call(RUN_COMMAND, "install_agent", () -> {
+        config.getPlatformStrategy().installGoAgent(azure.virtualMachines(), config);
+        return null;
+      });
     } catch (Exception e) {
       LOG.error("Failed to install go agent on vm {} due to error: {}\n{} {}", config.getName(), e.getMessage(), e.toString());
       tearDown(config);
@@ -276,7 +376,7 @@ public class GoCDAzureClient {
     try {
       LOG.info("About to start GoCD agent on VM {}", config.getName());
       PlatformConfigStrategy configStrategy = config.getPlatformStrategy();
-      RunCommandResult runCommandResult = configStrategy.startAgent(config.getResourceGroup(), config.getName(), azure.virtualMachines(), config.getAgentConfig());
+      RunCommandResult runCommandResult = call(RUN_COMMAND, "start_agent", () -> configStrategy.startAgent(config.getResourceGroup(), config.getName(), azure.virtualMachines(), config.getAgentConfig()));
       printCommandResult(runCommandResult, format("Logs from go-agent startup on VM %s:", config.getName()));
     } catch (Exception e) {
       LOG.error("Failed to start go-agent VM:{} failed with error: {}", config.getName(), e.getMessage());
@@ -285,6 +385,20 @@ public class GoCDAzureClient {
     }
   }
 
+  /**
+   * Makes the already installed agent of a resumed VM register again for the configured request, then starts it.
+   */
+  public void reRegisterAgent(VmConfig config) {
+    LOG.info("Re-registering GoCD agent on VM {}", config.getName());
+    RunCommandResult runCommandResult = call(RUN_COMMAND, "reregister_agent", () -> config.getPlatformStrategy().reRegisterAgent(config.getResourceGroup(), config.getName(), azure.virtualMachines(), config.getAgentConfig()));
+    printCommandResult(runCommandResult, format("Logs from go-agent re-registration on VM %s:", config.getName()));
+    startAgent(config);
+  }
+
+  private <T, E extends Exception> T call(AzureCircuitBreakers.Operation operation, String name, MetricsRegistry.Action<T, E> action) throws E {
+    return circuitBreakers.breaker(operation).call(() -> metrics.time(AZURE_OPERATIONS, name, action));
+  }
+
   private void printCommandResult(RunCommandResult runCommandResult, String message) {
     LOG.info(message);
     LOG.info(getLogs(runCommandResult));
@@ -17,17 +17,68 @@
 package com.thoughtworks.gocd.elasticagent.azure.client;
 
 import com.microsoft.azure.AzureEnvironment;
+import com.microsoft.azure.AzureResponseBuilder;
 import com.microsoft.azure.credentials.ApplicationTokenCredentials;
+import com.microsoft.azure.credentials.AzureTokenCredentials;
 import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.resources.fluentcore.utils.ProviderRegistrationInterceptor;
+import com.microsoft.azure.serializer.AzureJacksonAdapter;
 import com.microsoft.rest.LogLevel;
+import com.microsoft.rest.RestClient;
+import com.microsoft.rest.retry.RetryStrategy;
 import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
+import com.thoughtworks.gocd.elasticagent.azure.metrics.MetricsRegistry;
+
+import okhttp3.Response;
 
 import java.io.IOException;
 
 public class GoCDAzureClientFactory {
+  private static final RetryStrategy NO_RETRIES = new RetryStrategy("NoRetries", false) {
+    @Override
+    public boolean shouldRetry(int retryCount, Response response) {
+      return false;
+    }
+  };
+
+  private final GoCDAzureClientPool clientPool;
+  private final ArmRequestScheduler requestScheduler;
+  private final AzureCircuitBreakers circuitBreakers;
+  private final MetricsRegistry metrics;
+  private final AzureEnvironment environment;
+
+  public GoCDAzureClientFactory() {
+    this(new MetricsRegistry());
+  }
+
+  public GoCDAzureClientFactory(MetricsRegistry metrics) {
+    this(metrics, AzureEnvironment.AZURE);
+  }
+
+  /**
+   * A factory for clients of another Azure cloud, or of a stand-in for Azure Resource Manager in load tests.
+   */
+  public GoCDAzureClientFactory(MetricsRegistry metrics, AzureEnvironment environment) {
+    this(new GoCDAzureClientPool(), new ArmRequestScheduler(), new AzureCircuitBreakers(), metrics, environment);
+  }
+
+  GoCDAzureClientFactory(GoCDAzureClientPool clientPool, ArmRequestScheduler requestScheduler, AzureCircuitBreakers circuitBreakers, MetricsRegistry metrics) {
+    this(clientPool, requestScheduler, circuitBreakers, metrics, AzureEnvironment.AZURE);
+  }
+
+  GoCDAzureClientFactory(GoCDAzureClientPool clientPool, ArmRequestScheduler requestScheduler, AzureCircuitBreakers circuitBreakers, MetricsRegistry metrics, AzureEnvironment environment) {
+    this.clientPool = clientPool;
+    this.requestScheduler = requestScheduler;
+    this.circuitBreakers = circuitBreakers;
+    this.metrics = metrics;
+    this.environment = environment;
+  }
 
   public GoCDAzureClient initialize(PluginSettings settings) throws IOException {
-    return initialize(settings.getClientId(), settings.getDomain(), settings.getSecret(), settings.getResourceGroup(), settings.getNetworkId());
+    GoCDAzureClient client = clientPool.getOrCreate(settings, () -> initialize(settings.getClientId(), settings.getDomain(), settings.getSecret(), settings.getResourceGroup(), settings.getNetworkId()));
+    // the staleness window is not part of the connection, so a pooled client picks up changes to it here
+    client.setInventoryStaleness(settings.getInventoryStalenessPeriod());
+    return client;
   }
 
   public GoCDAzureClient initialize(String clientId, String domain, String secret, String resourceGroup, String networkID) throws IOException {
@@ -35,16 +86,48 @@ public class GoCDAzureClientFactory {
     return createClient(clientId, domain, secret, resourceGroup, subscriptionID);
   }
 
+  /**
+   * Builds the REST client the way {@code Azure.configure()} does, except that the SDK neither retries failed requests
+   * nor backs off throttled ones: the {@link ArmRequestScheduler} already does both, and retrying in both layers would
+   * multiply the attempts of every request.
+   */
   protected GoCDAzureClient createClient(String clientId, String domain, String secret, String resourceGroup, String subscriptionID) {
-    ApplicationTokenCredentials credentials = new ApplicationTokenCredentials(clientId,
-        domain,
-        secret,
-        AzureEnvironment.AZURE);
-
-    Azure azure = Azure.configure()
+    AzureTokenCredentials credentials = credentials(clientId, domain, secret);
+    RestClient restClient = new RestClient.Builder()
+        .withBaseUrl(credentials.environment(), AzureEnvironment.Endpoint.RESOURCE_MANAGER)
+        .withCredentials(credentials)
+        .withSerializerAdapter(new AzureJacksonAdapter())
+        .withResponseBuilderFactory(new AzureResponseBuilder.Factory())
         .withLogLevel(LogLevel.BASIC)
-        .authenticate(credentials)
+        .withInterceptor(new ProviderRegistrationInterceptor(credentials))
+        .withInterceptor(requestScheduler)
+        .withRetryStrategy(NO_RETRIES)
+        .build();
+    Azure azure = Azure.authenticate(restClient, credentials.domain())
         .withSubscription(subscriptionID);
-    return new GoCDAzureClient(azure, resourceGroup, new NetworkDecorator(azure));
+    return new GoCDAzureClient(azure, resourceGroup, new NetworkDecorator(azure), circuitBreakers, metrics);
+  }
+
+  /**
+   * The credentials also decide the Resource Manager endpoint requests are sent to, which is that of the environment.
+   */
+  protected AzureTokenCredentials credentials(String clientId, String domain, String secret) {
+    return new ApplicationTokenCredentials(clientId, domain, secret, environment);
+  }
+
+  public GoCDAzureClientPool getClientPool() {
+    return clientPool;
+  }
+
+  public ArmRequestScheduler getRequestScheduler() {
+    return requestScheduler;
+  }
+
+  public AzureCircuitBreakers getCircuitBreakers() {
+    return circuitBreakers;
+  }
+
+  public MetricsRegistry getMetrics() {
+    return metrics;
   }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.google.common.hash.Hashing;
+import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
+import org.joda.time.Period;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Keeps authenticated {@link GoCDAzureClient}s keyed by a fingerprint of the plugin settings that identify the
+ * Azure connection (credentials, subscription and resource group). A pooled client keeps its
+ * {@link com.microsoft.azure.credentials.ApplicationTokenCredentials}, which caches the access token and only goes
+ * back to AAD once it expires. Clients built for settings that are no longer current are evicted, but kept aside
+ * until the VM teardowns they started have finished.
+ */
+public class GoCDAzureClientPool {
+
+  private final ConcurrentHashMap<String, GoCDAzureClient> clients = new ConcurrentHashMap<>();
+  private final Set<GoCDAzureClient> evicted = ConcurrentHashMap.newKeySet();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public GoCDAzureClient getOrCreate(PluginSettings settings, ClientSupplier supplier) throws IOException {
+    String fingerprint = fingerprint(settings);
+    GoCDAzureClient client = clients.get(fingerprint);
+    if (client != null) {
+      hits.incrementAndGet();
+      return client;
+    }
+
+    synchronized (this) {
+      client = clients.get(fingerprint);
+      if (client != null) {
+        hits.incrementAndGet();
+        return client;
+      }
+      misses.incrementAndGet();
+      client = supplier.get();
+      evictStaleClients();
+      clients.put(fingerprint, client);
+      LOG.info("Created Azure client for plugin settings fingerprint {} (hits: {}, misses: {})", fingerprint.substring(0, 12), hits.get(), misses.get());
+      return client;
+    }
+  }
+
+  public synchronized void invalidate(PluginSettings settings) {
+    if (clients.remove(fingerprint(settings)) != null) {
+      evictions.incrementAndGet();
+    }
+  }
+
+  public long hits() {
+    return hits.get();
+  }
+
+  public long misses() {
+    return misses.get();
+  }
+
+  public long evictions() {
+    return evictions.get();
+  }
+
+  public int size() {
+    return clients.size();
+  }
+
+  /**
+   * Waits up to the timeout, shared by all clients, for the VM teardowns of the current and evicted clients.
+   *
+   * @return the number of teardowns still running
+   */
+  public int drainTeardowns(Period timeout) {
+    long deadline = System.currentTimeMillis() + timeout.toStandardDuration().getMillis();
+    List<GoCDAzureClient> draining = new ArrayList<>(clients.values());
+    draining.addAll(evicted);
+    int unfinished = 0;
+    for (GoCDAzureClient client : draining) {
+      unfinished += client.drainTeardowns(Period.millis((int) Math.max(0, deadline - System.currentTimeMillis())));
+    }
+    return unfinished;
+  }
+
+  static String fingerprint(PluginSettings settings) {
+    String connection = String.join("\u0000",
+        String.valueOf(settings.getClientId()),
+        String.valueOf(settings.getDomain()),
+        String.valueOf(settings.getSecret()),
+        String.valueOf(settings.getNetworkId()),
+        String.valueOf(settings.getResourceGroup()));
+    return Hashing.sha256().hashString(connection, StandardCharsets.UTF_8).toString();
+  }
+
+  private void evictStaleClients() {
+    int stale = clients.size();
+    if (stale > 0) {
+      LOG.info("Plugin settings changed, evicting {} cached Azure client(s)", stale);
+      evicted.removeIf(client -> client.pendingTeardowns() == 0);
+      clients.values().stream().filter(client -> client.pendingTeardowns() > 0).forEach(evicted::add);
+      clients.clear();
+      evictions.addAndGet(stale);
+    }
+  }
+
+  public interface ClientSupplier {
+    GoCDAzureClient get() throws IOException;
+  }
+}
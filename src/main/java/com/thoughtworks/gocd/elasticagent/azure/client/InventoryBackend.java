@@ -0,0 +1,31 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.microsoft.azure.management.compute.VirtualMachine;
+
+/**
+ * Source of virtual machine inventory for {@link InventoryQuery}.
+ */
+public interface InventoryBackend {
+
+  /**
+   * The virtual machines in the plugin's resource group, with their properties and tags. They are expected to be
+   * streamed lazily, one result page at a time.
+   */
+  Iterable<VirtualMachine> virtualMachines();
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.google.common.collect.Iterables;
+import com.microsoft.azure.management.compute.VirtualMachine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Looks up the virtual machines owned by the plugin, matching their tags as the pages of the {@link InventoryBackend}
+ * listing arrive. Instance views are loaded lazily by the SDK, so they are only requested for the virtual machines
+ * that are actually mapped.
+ */
+public class InventoryQuery {
+
+  private final InventoryBackend backend;
+
+  public InventoryQuery(InventoryBackend backend) {
+    this.backend = backend;
+  }
+
+  public List<VirtualMachine> virtualMachinesWithTag(String tagName, String tagValue) {
+    List<VirtualMachine> virtualMachines = new ArrayList<>();
+    streamVirtualMachinesWithTag(tagName, tagValue).forEach(virtualMachines::add);
+    LOG.debug("Inventory query for tag {}={} matched {} virtual machine(s)", tagName, tagValue, virtualMachines.size());
+    return virtualMachines;
+  }
+
+  /**
+   * Like {@link #virtualMachinesWithTag}, but yields each match while iterating, fetching the next page only once the
+   * matches of the current one have been handed out.
+   */
+  public Iterable<VirtualMachine> streamVirtualMachinesWithTag(String tagName, String tagValue) {
+    return Iterables.filter(backend.virtualMachines(), virtualMachine -> hasTag(virtualMachine, tagName, tagValue));
+  }
+
+  private boolean hasTag(VirtualMachine virtualMachine, String tagName, String tagValue) {
+    return virtualMachine.tags() != null && tagValue.equals(virtualMachine.tags().get(tagName));
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.microsoft.azure.management.compute.PowerState;
+import com.microsoft.azure.management.compute.VirtualMachine;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.util.*;
+
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.ELASTIC_PROFILE_TAG_KEY;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.PARKED_AT_TAG_KEY;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * The virtual machines owned by a GoCD server as returned by a single inventory listing, partitioned by
+ * provisioning state, power state and elastic profile. Parked (deallocated) virtual machines are not running.
+ */
+public class InventorySnapshot {
+
+  private static final String FAILED_PROVISIONING_STATE = "failed";
+
+  private final DateTime takenAt;
+  private final List<VirtualMachine> virtualMachines;
+  private final List<VirtualMachine> runningVirtualMachines = new ArrayList<>();
+  private final List<VirtualMachine> failedProvisioningVirtualMachines = new ArrayList<>();
+  private final List<VirtualMachine> parkedVirtualMachines = new ArrayList<>();
+  private final Map<String, List<VirtualMachine>> virtualMachinesByElasticProfile = new HashMap<>();
+  // power state comes from the instance view, which costs an ARM call per VM, so it is only computed when asked for
+  private final Supplier<Map<PowerState, List<VirtualMachine>>> virtualMachinesByPowerState;
+
+  public InventorySnapshot(List<VirtualMachine> virtualMachines, DateTime takenAt) {
+    this.takenAt = takenAt;
+    this.virtualMachines = Collections.unmodifiableList(new ArrayList<>(virtualMachines));
+    for (VirtualMachine virtualMachine : this.virtualMachines) {
+      if (isRunning(virtualMachine)) {
+        runningVirtualMachines.add(virtualMachine);
+      } else if (isProvisioningFailed(virtualMachine)) {
+        failedProvisioningVirtualMachines.add(virtualMachine);
+      } else {
+        parkedVirtualMachines.add(virtualMachine);
+      }
+      String elasticProfileHash = virtualMachine.tags() == null ? null : virtualMachine.tags().get(ELASTIC_PROFILE_TAG_KEY);
+      if (elasticProfileHash != null) {
+        virtualMachinesByElasticProfile.computeIfAbsent(elasticProfileHash, hash -> new ArrayList<>()).add(virtualMachine);
+      }
+    }
+    this.virtualMachinesByPowerState = Suppliers.memoize(this::partitionByPowerState);
+  }
+
+  public DateTime getTakenAt() {
+    return takenAt;
+  }
+
+  public boolean isStale(DateTime now, Period staleness) {
+    return !now.isBefore(takenAt.plus(staleness));
+  }
+
+  public List<VirtualMachine> allVirtualMachines() {
+    return virtualMachines;
+  }
+
+  public List<VirtualMachine> runningVirtualMachines() {
+    return Collections.unmodifiableList(runningVirtualMachines);
+  }
+
+  public List<VirtualMachine> failedProvisioningVirtualMachines() {
+    return Collections.unmodifiableList(failedProvisioningVirtualMachines);
+  }
+
+  public List<VirtualMachine> parkedVirtualMachines() {
+    return Collections.unmodifiableList(parkedVirtualMachines);
+  }
+
+  public List<VirtualMachine> virtualMachinesWithElasticProfile(String elasticProfileHash) {
+    return Collections.unmodifiableList(virtualMachinesByElasticProfile.getOrDefault(elasticProfileHash, Collections.emptyList()));
+  }
+
+  public List<VirtualMachine> runningVirtualMachinesInPowerState(PowerState powerState) {
+    return Collections.unmodifiableList(virtualMachinesByPowerState.get().getOrDefault(powerState, Collections.emptyList()));
+  }
+
+  private Map<PowerState, List<VirtualMachine>> partitionByPowerState() {
+    Map<PowerState, List<VirtualMachine>> partitions = new HashMap<>();
+    for (VirtualMachine virtualMachine : runningVirtualMachines) {
+      PowerState powerState = virtualMachine.powerState();
+      if (powerState != null) {
+        partitions.computeIfAbsent(powerState, state -> new ArrayList<>()).add(virtualMachine);
+      }
+    }
+    return partitions;
+  }
+
+  /**
+   * Whether the virtual machine belongs in {@link #runningVirtualMachines}, that is neither failed nor parked.
+   */
+  public static boolean isRunning(VirtualMachine virtualMachine) {
+    return !isProvisioningFailed(virtualMachine) && !isParked(virtualMachine);
+  }
+
+  private static boolean isParked(VirtualMachine virtualMachine) {
+    return virtualMachine.tags() != null && isNotBlank(virtualMachine.tags().get(PARKED_AT_TAG_KEY));
+  }
+
+  private static boolean isProvisioningFailed(VirtualMachine virtualMachine) {
+    String provisioningState = virtualMachine.provisioningState();
+    return isNotBlank(provisioningState) && provisioningState.toLowerCase().equals(FAILED_PROVISIONING_STATE);
+  }
+}
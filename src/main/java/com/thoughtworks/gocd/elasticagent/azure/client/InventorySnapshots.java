@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.microsoft.azure.management.compute.VirtualMachine;
+import com.thoughtworks.gocd.elasticagent.azure.Clock;
+import org.joda.time.Period;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Hands out the last {@link InventorySnapshot} per GoCD server while it is fresher than the staleness window, so
+ * that every consumer within a server ping shares one listing. The window follows the plugin settings.
+ * <p>
+ * Listings run without holding any lock, so a slow listing never holds up {@link #invalidate()}. Callers of
+ * {@link #get} that find no snapshot while a listing for the server is under way wait for that listing instead of
+ * starting another one. A listing that was under way when the snapshots were invalidated is not kept.
+ */
+public class InventorySnapshots {
+
+  public static final Period DEFAULT_STALENESS = Period.minutes(1);
+
+  private final ConcurrentMap<String, InventorySnapshot> snapshots = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, CompletableFuture<InventorySnapshot>> listings = new ConcurrentHashMap<>();
+  private final AtomicLong generation = new AtomicLong();
+  private final Clock clock;
+  private volatile Period staleness;
+
+  public InventorySnapshots() {
+    this(Clock.DEFAULT, DEFAULT_STALENESS);
+  }
+
+  public InventorySnapshots(Clock clock, Period staleness) {
+    this.clock = clock;
+    this.staleness = staleness;
+  }
+
+  public InventorySnapshot get(String serverId, Supplier<List<VirtualMachine>> listing) {
+    InventorySnapshot snapshot = current(serverId);
+    if (snapshot != null) {
+      return snapshot;
+    }
+    CompletableFuture<InventorySnapshot> ours = new CompletableFuture<>();
+    CompletableFuture<InventorySnapshot> inFlight = listings.putIfAbsent(serverId, ours);
+    if (inFlight != null) {
+      return join(inFlight);
+    }
+    try {
+      // another listing may have been published between the first look and claiming the listing
+      snapshot = current(serverId);
+      if (snapshot == null) {
+        snapshot = take(serverId, listing);
+        LOG.debug("Took inventory snapshot of {} virtual machine(s) for server {}", snapshot.allVirtualMachines().size(), serverId);
+      }
+      ours.complete(snapshot);
+      return snapshot;
+    } catch (RuntimeException | Error e) {
+      ours.completeExceptionally(e);
+      throw e;
+    } finally {
+      listings.remove(serverId, ours);
+    }
+  }
+
+  /**
+   * The snapshot of the server if it is within the staleness window, or null.
+   */
+  public InventorySnapshot current(String serverId) {
+    InventorySnapshot snapshot = snapshots.get(serverId);
+    return snapshot == null || snapshot.isStale(clock.now(), staleness) ? null : snapshot;
+  }
+
+  /**
+   * Takes a new snapshot now, for consumers that must see the inventory as of after the call, and shares it with
+   * later callers of {@link #get}.
+   */
+  public InventorySnapshot refresh(String serverId, Supplier<List<VirtualMachine>> listing) {
+    return take(serverId, listing);
+  }
+
+  public void setStaleness(Period staleness) {
+    this.staleness = staleness;
+  }
+
+  public void invalidate() {
+    generation.incrementAndGet();
+    listings.clear();
+    snapshots.clear();
+  }
+
+  private InventorySnapshot take(String serverId, Supplier<List<VirtualMachine>> listing) {
+    long startedIn = generation.get();
+    InventorySnapshot snapshot = new InventorySnapshot(listing.get(), clock.now());
+    snapshots.put(serverId, snapshot);
+    // an invalidation during the listing may have cleared the map before the put, so the snapshot is withdrawn
+    if (generation.get() != startedIn) {
+      snapshots.remove(serverId, snapshot);
+    }
+    return snapshot;
+  }
+
+  private static InventorySnapshot join(CompletableFuture<InventorySnapshot> listing) {
+    try {
+      return listing.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
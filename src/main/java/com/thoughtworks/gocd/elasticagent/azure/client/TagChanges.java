@@ -0,0 +1,65 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+import java.util.*;
+
+/**
+ * A set of tag additions and removals that are applied to a VM together, in a single write.
+ */
+@EqualsAndHashCode
+@ToString
+public class TagChanges {
+  private final Map<String, String> tagsToSet = new LinkedHashMap<>();
+  private final Set<String> tagsToRemove = new LinkedHashSet<>();
+
+  public TagChanges set(String tagName, String tagValue) {
+    tagsToRemove.remove(tagName);
+    tagsToSet.put(tagName, tagValue);
+    return this;
+  }
+
+  public TagChanges remove(String tagName) {
+    tagsToSet.remove(tagName);
+    tagsToRemove.add(tagName);
+    return this;
+  }
+
+  public TagChanges merge(TagChanges later) {
+    later.tagsToRemove.forEach(this::remove);
+    later.tagsToSet.forEach(this::set);
+    return this;
+  }
+
+  public TagChanges copy() {
+    return new TagChanges().merge(this);
+  }
+
+  public boolean isEmpty() {
+    return tagsToSet.isEmpty() && tagsToRemove.isEmpty();
+  }
+
+  public Map<String, String> applyTo(Map<String, String> tags) {
+    Map<String, String> updatedTags = new HashMap<>(tags == null ? Collections.emptyMap() : tags);
+    updatedTags.keySet().removeAll(tagsToRemove);
+    updatedTags.putAll(tagsToSet);
+    return updatedTags;
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.google.common.base.Ticker;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side copy of one of ARM's per-subscription request buckets. Tokens refill at a fixed rate up to the bucket
+ * size, and the bucket is corrected with the remaining count Azure reports on every response. Waiting requests are
+ * served by priority: a token is not handed out while a request of a higher priority is waiting for one.
+ */
+class TokenBucket {
+  private static final long MAX_WAIT_NANOS = TimeUnit.MINUTES.toNanos(2);
+
+  private final String name;
+  private final int capacity;
+  private final double refillPerNano;
+  private final Ticker ticker;
+  private final int[] waiting = new int[ArmRequestScheduler.Priority.values().length];
+
+  private double tokens;
+  private long refilledAt;
+  private long pausedUntil;
+  private long lastRemaining = -1;
+  private long delayed;
+  private long throttled;
+  private long waitedNanos;
+
+  TokenBucket(String name, int capacity, double refillPerSecond, Ticker ticker) {
+    this.name = name;
+    this.capacity = capacity;
+    this.refillPerNano = refillPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.ticker = ticker;
+    this.tokens = capacity;
+    this.refilledAt = ticker.read();
+    this.pausedUntil = refilledAt;
+  }
+
+  /**
+   * Takes a token, waiting for one when the bucket is empty, paused by a Retry-After or a request of a higher
+   * priority is waiting. Gives up waiting after two minutes and lets Azure decide.
+   */
+  synchronized void acquire(ArmRequestScheduler.Priority priority) throws InterruptedIOException {
+    long startedAt = ticker.read();
+    boolean waited = false;
+    enqueue(priority);
+    try {
+      long waitNanos;
+      while ((waitNanos = tryAcquire(priority)) > 0) {
+        if (ticker.read() - startedAt >= MAX_WAIT_NANOS) {
+          break;
+        }
+        waited = true;
+        TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for an ARM " + name + " token");
+    } finally {
+      dequeue(priority);
+      if (waited) {
+        delayed++;
+        waitedNanos += ticker.read() - startedAt;
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * Takes a token if the request may have one now, otherwise returns how long to wait before trying again.
+   */
+  synchronized long tryAcquire(ArmRequestScheduler.Priority priority) {
+    long now = ticker.read();
+    refill(now);
+    if (now < pausedUntil) {
+      return pausedUntil - now;
+    }
+    for (int higher = 0; higher < priority.ordinal(); higher++) {
+      if (waiting[higher] > 0) {
+        return TimeUnit.MILLISECONDS.toNanos(10);
+      }
+    }
+    if (tokens >= 1) {
+      tokens--;
+      return 0;
+    }
+    return (long) Math.ceil((1 - tokens) / refillPerNano);
+  }
+
+  synchronized void enqueue(ArmRequestScheduler.Priority priority) {
+    waiting[priority.ordinal()]++;
+  }
+
+  synchronized void dequeue(ArmRequestScheduler.Priority priority) {
+    waiting[priority.ordinal()]--;
+  }
+
+  /**
+   * Corrects the bucket with the number of requests Azure says are left, which also counts requests of other
+   * clients of the subscription.
+   */
+  synchronized void calibrate(long remaining) {
+    refill(ticker.read());
+    lastRemaining = remaining;
+    tokens = Math.min(capacity, remaining);
+  }
+
+  /**
+   * Holds back all requests until Azure's Retry-After has passed.
+   */
+  synchronized void pause(long millis) {
+    throttled++;
+    pausedUntil = Math.max(pausedUntil, ticker.read() + TimeUnit.MILLISECONDS.toNanos(millis));
+    notifyAll();
+  }
+
+  synchronized double tokens() {
+    refill(ticker.read());
+    return tokens;
+  }
+
+  synchronized int saturation() {
+    return (int) Math.round(100 * (1 - tokens() / capacity));
+  }
+
+  String name() {
+    return name;
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  synchronized long lastRemaining() {
+    return lastRemaining;
+  }
+
+  synchronized long delayed() {
+    return delayed;
+  }
+
+  synchronized long throttled() {
+    return throttled;
+  }
+
+  synchronized long waitedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(waitedNanos);
+  }
+
+  private void refill(long now) {
+    if (now > refilledAt) {
+      tokens = Math.min(capacity, tokens + (now - refilledAt) * refillPerNano);
+      refilledAt = now;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.azure.CloudException;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.VirtualMachine;
+import com.microsoft.azure.management.resources.fluentcore.arm.models.HasId;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.Period;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Deletes a VM and the resources it leaves behind without blocking the caller. The VM goes first, because Azure
+ * refuses to delete disks and NICs that are still attached to it; its disks and NICs are then deleted in parallel.
+ * Deletes run on a bounded worker pool and transient ARM failures are retried with a linear backoff.
+ */
+public class VmTeardown {
+
+  public static final int DEFAULT_WORKERS = 4;
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+  public static final Period DEFAULT_RETRY_BACKOFF = Period.seconds(5);
+
+  private final Azure azure;
+  private final ScheduledExecutorService workers;
+  private final int maxAttempts;
+  private final long retryBackoffMillis;
+  private final ConcurrentHashMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
+  public VmTeardown(Azure azure) {
+    this(azure, defaultWorkers(), DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_BACKOFF);
+  }
+
+  VmTeardown(Azure azure, ScheduledExecutorService workers, int maxAttempts, Period retryBackoff) {
+    this.azure = azure;
+    this.workers = workers;
+    this.maxAttempts = maxAttempts;
+    this.retryBackoffMillis = retryBackoff.toStandardDuration().getMillis();
+  }
+
+  public CompletableFuture<Void> terminate(String vmId) {
+    return deduplicate(vmId, () -> attempt("look up vm " + vmId, () -> azure.virtualMachines().getById(vmId))
+        .thenCompose(vm -> vm == null ? CompletableFuture.<Void>completedFuture(null) : teardown(vm)));
+  }
+
+  public CompletableFuture<Void> terminate(VirtualMachine vm) {
+    if (vm == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return deduplicate(vm.id(), () -> teardown(vm));
+  }
+
+  public int pending() {
+    return inFlight.size();
+  }
+
+  /**
+   * Waits up to the timeout for the teardowns in flight to finish, so that the disks and NICs of a deleted VM are not
+   * left behind when the plugin stops; the inventory only lists VMs, so nothing would find them afterwards.
+   *
+   * @return the number of teardowns still running
+   */
+  public int drain(Period timeout) {
+    List<CompletableFuture<Void>> pending = new ArrayList<>(inFlight.values());
+    try {
+      CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).get(timeout.toStandardDuration().getMillis(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      // failed teardowns are logged as they complete
+    }
+    return (int) pending.stream().filter(future -> !future.isDone()).count();
+  }
+
+  private CompletableFuture<Void> deduplicate(String vmId, Callable<CompletableFuture<Void>> teardown) {
+    CompletableFuture<Void> future = inFlight.computeIfAbsent(vmId, id -> {
+      try {
+        return teardown.call();
+      } catch (Exception e) {
+        return failed(e);
+      }
+    });
+    future.whenComplete((ignored, error) -> inFlight.remove(vmId, future));
+    return future;
+  }
+
+  private CompletableFuture<Void> teardown(VirtualMachine vm) {
+    String name = vm.name();
+    List<String> diskIds = Stream.concat(vm.dataDisks().values().stream().map(HasId::id), Stream.of(vm.osDiskId()))
+        .filter(StringUtils::isNotBlank)
+        .collect(Collectors.toList());
+    List<String> networkInterfaceIds = vm.networkInterfaceIds().stream()
+        .filter(StringUtils::isNotBlank)
+        .collect(Collectors.toList());
+    long startedAt = System.currentTimeMillis();
+
+    LOG.info("Terminating vm {}", name);
+    return attempt("delete vm " + name, () -> {
+      azure.virtualMachines().deleteById(vm.id());
+      return null;
+    }).thenCompose(ignored -> {
+      LOG.info("Terminating vm {} disks and nics", name);
+      Stream<CompletableFuture<Object>> disks = diskIds.stream().map(id -> attempt("delete disk " + id, () -> {
+        azure.disks().deleteById(id);
+        return null;
+      }));
+      Stream<CompletableFuture<Object>> nics = networkInterfaceIds.stream().map(id -> attempt("delete nic " + id, () -> {
+        azure.networkInterfaces().deleteById(id);
+        return null;
+      }));
+      return CompletableFuture.allOf(Stream.concat(disks, nics).toArray(CompletableFuture[]::new));
+    }).whenComplete((ignored, error) -> {
+      if (error == null) {
+        LOG.info("Terminated vm {} along with its disks and nics in {}ms", name, System.currentTimeMillis() - startedAt);
+      } else {
+        LOG.error("Failed to terminate vm {}: {}", name, error.getMessage());
+      }
+    });
+  }
+
+  private <T> CompletableFuture<T> attempt(String description, Callable<T> operation) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    schedule(description, operation, 1, 0, result);
+    return result;
+  }
+
+  private <T> void schedule(String description, Callable<T> operation, int attempt, long delayMillis, CompletableFuture<T> result) {
+    try {
+      workers.schedule(() -> {
+        try {
+          result.complete(operation.call());
+        } catch (Exception e) {
+          if (isNotFound(e)) {
+            result.complete(null);
+          } else if (attempt < maxAttempts && isTransient(e)) {
+            LOG.warn("Attempt {} to {} failed, retrying: {}", attempt, description, e.getMessage());
+            schedule(description, operation, attempt + 1, retryBackoffMillis * attempt, result);
+          } else {
+            result.completeExceptionally(e);
+          }
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+    }
+  }
+
+  private static boolean isNotFound(Exception e) {
+    return e instanceof CloudException && ((CloudException) e).response() != null && ((CloudException) e).response().code() == 404;
+  }
+
+  static boolean isTransient(Throwable throwable) {
+    for (Throwable cause : Throwables.getCausalChain(throwable)) {
+      if (cause instanceof IOException) {
+        return true;
+      }
+      if (cause instanceof CloudException && ((CloudException) cause).response() != null) {
+        int code = ((CloudException) cause).response().code();
+        return code == 408 || code == 429 || code >= 500;
+      }
+    }
+    return false;
+  }
+
+  private static <T> CompletableFuture<T> failed(Exception e) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(e);
+    return future;
+  }
+
+  private static ScheduledExecutorService defaultWorkers() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(DEFAULT_WORKERS,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-vm-teardown-%d").build());
+    executor.setKeepAliveTime(1, TimeUnit.MINUTES);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+}
@@ -18,33 +18,37 @@ package com.thoughtworks.gocd.elasticagent.azure.executors;
 
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
-import com.thoughtworks.gocd.elasticagent.azure.AzureAgentInstances;
+import com.thoughtworks.gocd.elasticagent.azure.DownloadUrlResolver;
+import com.thoughtworks.gocd.elasticagent.azure.DownloadUrls;
 import com.thoughtworks.gocd.elasticagent.azure.PluginRequest;
 import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
+import com.thoughtworks.gocd.elasticagent.azure.ProvisioningEngine;
 import com.thoughtworks.gocd.elasticagent.azure.RequestExecutor;
-import com.thoughtworks.gocd.elasticagent.azure.exceptions.ProvisionFailedException;
-import com.thoughtworks.gocd.elasticagent.azure.models.PluginHealthMessage;
+import com.thoughtworks.gocd.elasticagent.azure.WarmPool;
 import com.thoughtworks.gocd.elasticagent.azure.models.ServerInfo;
 import com.thoughtworks.gocd.elasticagent.azure.requests.CreateAgentRequest;
 import com.thoughtworks.gocd.elasticagent.azure.requests.RequestFingerprintCache;
-import com.thoughtworks.gocd.elasticagent.azure.service.ServerHealthMessagingService;
 
 public class CreateAgentRequestExecutor implements RequestExecutor {
-  private final AzureAgentInstances agentInstances;
+  private final ProvisioningEngine provisioningEngine;
+  private final WarmPool warmPool;
   private final PluginRequest pluginRequest;
   private RequestFingerprintCache requestFingerprintCache;
   private final CreateAgentRequest request;
-  private ServerHealthMessagingService serverHealthMessagingService;
+  private final DownloadUrlResolver downloadUrlResolver;
 
   public CreateAgentRequestExecutor(CreateAgentRequest request,
-                                    AzureAgentInstances agentInstances,
+                                    ProvisioningEngine provisioningEngine,
+                                    WarmPool warmPool,
                                     PluginRequest pluginRequest,
-                                    RequestFingerprintCache requestFingerprintCache, ServerHealthMessagingService serverHealthMessagingService) {
+                                    RequestFingerprintCache requestFingerprintCache,
+                                    DownloadUrlResolver downloadUrlResolver) {
     this.request = request;
-    this.agentInstances = agentInstances;
+    this.provisioningEngine = provisioningEngine;
+    this.warmPool = warmPool;
     this.pluginRequest = pluginRequest;
     this.requestFingerprintCache = requestFingerprintCache;
-    this.serverHealthMessagingService = serverHealthMessagingService;
+    this.downloadUrlResolver = downloadUrlResolver;
   }
 
   @Override
@@ -52,17 +56,11 @@ public class CreateAgentRequestExecutor implements RequestExecutor {
     String requestFingerprint = request.jobIdentifier().hash();
     PluginSettings pluginSettings = pluginRequest.getPluginSettings();
     ServerInfo serverInfo = pluginRequest.getServerInfo();
-    try {
-      requestFingerprintCache.getOrExecute(requestFingerprint,
-          pluginSettings.getAutoRegisterPeriod(),
-          () -> {
-            agentInstances.create(request, pluginSettings, serverInfo);
-            serverHealthMessagingService.clearHealthMessage(request.jobIdentifier().getJobRepresentation());
-          });
-    } catch (ProvisionFailedException e) {
-      serverHealthMessagingService.sendHealthMessage(e.jobRepresentation(), PluginHealthMessage.error(e.getMessage()));
-      return DefaultGoPluginApiResponse.error(e.getMessage());
-    }
+    DownloadUrls.prefetch(downloadUrlResolver, pluginSettings.getAgentDownloadBaseUrl(), serverInfo.getServerVersion());
+    warmPool.remember(request, serverInfo);
+    requestFingerprintCache.getOrExecute(requestFingerprint,
+        pluginSettings.getAutoRegisterPeriod(),
+        () -> provisioningEngine.submit(request, pluginSettings, serverInfo));
     return new DefaultGoPluginApiResponse(200);
   }
 }
@@ -51,6 +51,11 @@ public class GetPluginConfigurationExecutor implements RequestExecutor {
   public static final Field WINDOWS_USER_NAME = new WindowsUsernameField("windows_user_name", "Windows User Name", null, true, "13");
   public static final Field WINDOWS_PASSWORD = new WindowsPasswordField("windows_password", "Windows Password", null, true, "14");
 
+  public static final Field AGENT_DOWNLOAD_BASE_URL = new UrlField("agent_download_base_url", "Agent download base URL", null, false, false, "15");
+  public static final Field METRICS_EXPORT_PATH = new Field("metrics_export_path", "Metrics export file", null, false, false, "16");
+  public static final Field RECONCILE_INTERVAL = new NonNegativeNumberField("reconcile_interval", "Instance reconciliation interval (in minutes)", "5", false, false, "17");
+  public static final Field INVENTORY_STALENESS = new NonNegativeNumberField("inventory_staleness", "Inventory cache staleness (in seconds)", "60", false, false, "18");
+
   public static final Map<String, Field> FIELDS = new LinkedHashMap<>();
 
   static {
@@ -72,6 +77,11 @@ public class GetPluginConfigurationExecutor implements RequestExecutor {
     FIELDS.put(NETWORK_ID.key(), NETWORK_ID);
     FIELDS.put(SUBNET_NAMES.key(), SUBNET_NAMES);
     FIELDS.put(NETWORK_SECURITY_GROUP_ID.key(), NETWORK_SECURITY_GROUP_ID);
+
+    FIELDS.put(AGENT_DOWNLOAD_BASE_URL.key(), AGENT_DOWNLOAD_BASE_URL);
+    FIELDS.put(METRICS_EXPORT_PATH.key(), METRICS_EXPORT_PATH);
+    FIELDS.put(RECONCILE_INTERVAL.key(), RECONCILE_INTERVAL);
+    FIELDS.put(INVENTORY_STALENESS.key(), INVENTORY_STALENESS);
   }
 
   public GoPluginApiResponse execute() {
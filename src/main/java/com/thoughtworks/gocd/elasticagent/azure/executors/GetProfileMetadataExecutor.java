@@ -38,6 +38,13 @@ public class GetProfileMetadataExecutor implements RequestExecutor {
   public static final Metadata OS_DISK_STORAGE_ACCOUNT_TYPE = new Metadata(ElasticProfile.OS_DISK_STORAGE_ACCOUNT_TYPE, true, false);
   public static final Metadata OS_DISK_SIZE = new NonNegativeIntegerMetadata(ElasticProfile.OS_DISK_SIZE, false, false);
   public static final Metadata SUBNET_NAME = new Metadata(ElasticProfile.SUBNET_NAME, false, false);
+  public static final Metadata WARM_POOL_MIN_IDLE = new NonNegativeIntegerMetadata(ElasticProfile.WARM_POOL_MIN_IDLE, false, false);
+  public static final Metadata WARM_POOL_MAX_IDLE = new NonNegativeIntegerMetadata(ElasticProfile.WARM_POOL_MAX_IDLE, false, false);
+  public static final Metadata WARM_POOL_MAX_TOTAL = new NonNegativeIntegerMetadata(ElasticProfile.WARM_POOL_MAX_TOTAL, false, false);
+  public static final Metadata STOPPED_POOL_MAX_PARKED = new NonNegativeIntegerMetadata(ElasticProfile.STOPPED_POOL_MAX_PARKED, false, false);
+  public static final Metadata STOPPED_POOL_MAX_PARKED_AGE = new NonNegativeIntegerMetadata(ElasticProfile.STOPPED_POOL_MAX_PARKED_AGE, false, false);
+  public static final Metadata LINUX_BOOTSTRAP = new Metadata(ElasticProfile.LINUX_BOOTSTRAP, false, false);
+  public static final Metadata WINDOWS_BOOTSTRAP = new Metadata(ElasticProfile.WINDOWS_BOOTSTRAP, false, false);
 
   public static final List<Metadata> FIELDS = new ArrayList<>();
 
@@ -51,6 +58,13 @@ public class GetProfileMetadataExecutor implements RequestExecutor {
     FIELDS.add(OS_DISK_STORAGE_ACCOUNT_TYPE);
     FIELDS.add(OS_DISK_SIZE);
     FIELDS.add(SUBNET_NAME);
+    FIELDS.add(WARM_POOL_MIN_IDLE);
+    FIELDS.add(WARM_POOL_MAX_IDLE);
+    FIELDS.add(WARM_POOL_MAX_TOTAL);
+    FIELDS.add(STOPPED_POOL_MAX_PARKED);
+    FIELDS.add(STOPPED_POOL_MAX_PARKED_AGE);
+    FIELDS.add(LINUX_BOOTSTRAP);
+    FIELDS.add(WINDOWS_BOOTSTRAP);
   }
 
   @Override
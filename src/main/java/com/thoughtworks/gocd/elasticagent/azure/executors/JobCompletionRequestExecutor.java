@@ -19,6 +19,7 @@ package com.thoughtworks.gocd.elasticagent.azure.executors;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import com.thoughtworks.gocd.elasticagent.azure.*;
+import com.thoughtworks.gocd.elasticagent.azure.client.TagChanges;
 import com.thoughtworks.gocd.elasticagent.azure.requests.JobCompletionRequest;
 
 import java.io.IOException;
@@ -59,7 +60,7 @@ public class JobCompletionRequestExecutor implements RequestExecutor {
     }
     AzureInstance instance = agentInstances.find(elasticAgentId);
 
-    if (instance.isIdleAfterIdleTimeout()) {
+    if (instance.isIdleAfterIdleTimeout(clock)) {
       return terminateAgent(agent, pluginSettings);
     }
     return updateTags(elasticAgentId, pluginSettings);
@@ -67,8 +68,9 @@ public class JobCompletionRequestExecutor implements RequestExecutor {
 
   private DefaultGoPluginApiResponse updateTags(String elasticAgentId, PluginSettings pluginSettings) throws IOException {
     String jobRunTime = String.valueOf(clock.now().toInstant().getMillis());
-    agentInstances.addTag(pluginSettings, elasticAgentId, LAST_JOB_RUN_TAG_KEY, jobRunTime);
-    agentInstances.removeTag(pluginSettings, elasticAgentId, JOB_IDENTIFIER_TAG_KEY);
+    agentInstances.updateTags(pluginSettings, elasticAgentId, new TagChanges()
+        .set(LAST_JOB_RUN_TAG_KEY, jobRunTime)
+        .remove(JOB_IDENTIFIER_TAG_KEY));
     return DefaultGoPluginApiResponse.success("");
 
   }
@@ -78,8 +80,8 @@ public class JobCompletionRequestExecutor implements RequestExecutor {
     List<Agent> agents = Collections.singletonList(agent);
     pluginRequest.disableAgents(agents);
 
-    LOG.debug("[Job Completion] Terminating elastic agent with id {} on job completion {}.", agent.elasticAgentId(), jobCompletionRequest.jobIdentifier());
-    agentInstances.terminate(agent.elasticAgentId(), pluginSettings);
+    LOG.debug("[Job Completion] Retiring elastic agent with id {} on job completion {}.", agent.elasticAgentId(), jobCompletionRequest.jobIdentifier());
+    agentInstances.retire(agent.elasticAgentId(), pluginSettings);
 
     LOG.debug("[Job Completion] Deleting elastic agent with id {} on job completion {}.", agent.elasticAgentId(), jobCompletionRequest.jobIdentifier());
     pluginRequest.deleteAgents(agents);
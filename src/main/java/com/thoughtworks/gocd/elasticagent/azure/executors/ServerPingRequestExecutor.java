@@ -20,27 +20,38 @@ import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import com.thoughtworks.gocd.elasticagent.azure.*;
 import com.thoughtworks.gocd.elasticagent.azure.exceptions.ServerRequestFailedException;
+import com.thoughtworks.gocd.elasticagent.azure.metrics.PrometheusFileExporter;
+import com.thoughtworks.gocd.elasticagent.azure.models.ServerInfo;
 import com.thoughtworks.gocd.elasticagent.azure.service.ServerHealthMessagingService;
 
 import java.util.Collection;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
 
 public class ServerPingRequestExecutor implements RequestExecutor {
 
   private final AzureAgentInstances agentInstances;
+  private final WarmPool warmPool;
   private final PluginRequest pluginRequest;
   private ServerHealthMessagingService serverHealthMessagingService;
+  private final PrometheusFileExporter metricsExporter;
+  private final DownloadUrlResolver downloadUrlResolver;
 
-  public ServerPingRequestExecutor(AzureAgentInstances agentInstances, PluginRequest pluginRequest, ServerHealthMessagingService serverHealthMessagingService) {
+  public ServerPingRequestExecutor(AzureAgentInstances agentInstances, WarmPool warmPool, PluginRequest pluginRequest, ServerHealthMessagingService serverHealthMessagingService, PrometheusFileExporter metricsExporter, DownloadUrlResolver downloadUrlResolver) {
     this.agentInstances = agentInstances;
+    this.warmPool = warmPool;
     this.pluginRequest = pluginRequest;
     this.serverHealthMessagingService = serverHealthMessagingService;
+    this.metricsExporter = metricsExporter;
+    this.downloadUrlResolver = downloadUrlResolver;
   }
 
   @Override
   public GoPluginApiResponse execute() throws Exception {
     PluginSettings pluginSettings = pluginRequest.getPluginSettings();
+    metricsExporter.exportTo(pluginSettings.getMetricsExportPath());
 
     Agents allAgents = pluginRequest.listAgents();
     Agents missingAgents = new Agents();
@@ -49,11 +60,14 @@ public class ServerPingRequestExecutor implements RequestExecutor {
       if (agentInstances.find(agent.elasticAgentId()) == null) {
         LOG.warn("Was expecting an instance with name " + agent.elasticAgentId() + ", but it was missing!");
         missingAgents.add(agent);
+      } else {
+        agentInstances.reached(agent.elasticAgentId(), ProvisioningPhase.AGENT_REGISTERED);
       }
     }
 
-    Agents agentsToDisable = agentInstances.instancesToBeDisabled(pluginSettings, allAgents);
+    Agents agentsToDisable = withoutRetainedWarmPoolAgents(agentInstances.instancesToBeDisabled(pluginSettings, allAgents));
     agentsToDisable.addAll(missingAgents);
+    agentsToDisable.addAll(surplusWarmPoolAgents(allAgents));
 
     disableIdleAgents(agentsToDisable);
 
@@ -61,11 +75,25 @@ public class ServerPingRequestExecutor implements RequestExecutor {
     terminateDisabledAgents(allAgents, pluginSettings);
 
     agentInstances.terminateUnregisteredInstances(pluginSettings, allAgents);
-    agentInstances.terminateProvisionFailedInstances(pluginSettings, pluginRequest.getServerInfo());
+    ServerInfo serverInfo = pluginRequest.getServerInfo();
+    DownloadUrls.prefetch(downloadUrlResolver, pluginSettings.getAgentDownloadBaseUrl(), serverInfo.getServerVersion());
+    agentInstances.terminateProvisionFailedInstances(pluginSettings, serverInfo);
+    agentInstances.terminateExpiredParkedInstances(pluginSettings);
+    warmPool.replenish(pluginSettings);
     serverHealthMessagingService.clearExpiredHealthMessages();
     return DefaultGoPluginApiResponse.success("");
   }
 
+  private Agents withoutRetainedWarmPoolAgents(Agents agents) {
+    Set<String> retained = warmPool.retainedAgentIds();
+    return new Agents(agents.agents().stream().filter(agent -> !retained.contains(agent.elasticAgentId())).collect(Collectors.toList()));
+  }
+
+  private Collection<Agent> surplusWarmPoolAgents(Agents agents) {
+    Set<String> surplus = warmPool.surplusAgentIds();
+    return agents.agents().stream().filter(agent -> surplus.contains(agent.elasticAgentId())).collect(Collectors.toList());
+  }
+
   private void disableIdleAgents(Agents agents) throws ServerRequestFailedException {
     pluginRequest.disableAgents(agents.findInstancesToDisable());
   }
@@ -74,7 +102,12 @@ public class ServerPingRequestExecutor implements RequestExecutor {
     Collection<Agent> toBeDeleted = agents.findInstancesToTerminate();
 
     for (Agent agent : toBeDeleted) {
-      agentInstances.terminate(agent.elasticAgentId(), pluginSettings);
+      // only agents that stopped for want of work are kept in the stopped pool, not ones that lost contact
+      if (agent.agentState() == Agent.AgentState.Idle) {
+        agentInstances.retire(agent.elasticAgentId(), pluginSettings);
+      } else {
+        agentInstances.terminate(agent.elasticAgentId(), pluginSettings);
+      }
     }
 
     pluginRequest.deleteAgents(toBeDeleted);
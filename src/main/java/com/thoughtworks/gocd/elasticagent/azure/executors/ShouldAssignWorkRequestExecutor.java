@@ -21,6 +21,7 @@ import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import com.thoughtworks.gocd.elasticagent.azure.AgentInstances;
 import com.thoughtworks.gocd.elasticagent.azure.AzureInstance;
 import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
+import com.thoughtworks.gocd.elasticagent.azure.ProvisioningPhase;
 import com.thoughtworks.gocd.elasticagent.azure.RequestExecutor;
 import com.thoughtworks.gocd.elasticagent.azure.requests.ShouldAssignWorkRequest;
 import com.thoughtworks.gocd.elasticagent.azure.service.ServerHealthMessagingService;
@@ -49,11 +50,24 @@ public class ShouldAssignWorkRequestExecutor implements RequestExecutor {
       if (instance == null) {
         return DefaultGoPluginApiResponse.success("false");
       }
+      agentInstances.reached(instance.getName(), ProvisioningPhase.AGENT_REGISTERED);
 
-      if (instance.canBeAssigned(request.elasticProfile())) {
-        agentInstances.addTag(pluginSettings, instance.getName(), JOB_IDENTIFIER_TAG_KEY, request.jobIdentifier().hash());
-        serverHealthMessagingService.clearHealthMessage(request.jobIdentifier().getJobRepresentation());
-        return DefaultGoPluginApiResponse.success("true");
+      // Checking and tagging happen under the lease, so that concurrent requests assign the agent only once.
+      String agentId = instance.getName();
+      String profileHash = request.elasticProfile().hash();
+      if (!agentInstances.reserve(agentId, request.jobIdentifier())) {
+        return DefaultGoPluginApiResponse.success("false");
+      }
+      try {
+        instance = agentInstances.find(agentId);
+        if (instance != null && instance.canBeAssigned(profileHash)) {
+          agentInstances.addTag(pluginSettings, agentId, JOB_IDENTIFIER_TAG_KEY, request.jobIdentifier().hash());
+          agentInstances.reached(agentId, ProvisioningPhase.FIRST_JOB_ASSIGNED);
+          serverHealthMessagingService.clearHealthMessage(request.jobIdentifier().getJobRepresentation());
+          return DefaultGoPluginApiResponse.success("true");
+        }
+      } finally {
+        agentInstances.release(agentId, request.jobIdentifier());
       }
 
       return DefaultGoPluginApiResponse.success("false");
@@ -22,7 +22,9 @@ import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import com.thoughtworks.gocd.elasticagent.azure.AzureAgentInstances;
 import com.thoughtworks.gocd.elasticagent.azure.PluginRequest;
+import com.thoughtworks.gocd.elasticagent.azure.ProvisioningEngine;
 import com.thoughtworks.gocd.elasticagent.azure.RequestExecutor;
+import com.thoughtworks.gocd.elasticagent.azure.WarmPool;
 import com.thoughtworks.gocd.elasticagent.azure.exceptions.PluginSettingsNotConfiguredException;
 import com.thoughtworks.gocd.elasticagent.azure.models.StatusReport;
 import com.thoughtworks.gocd.elasticagent.azure.utils.TemplateReader;
@@ -36,12 +38,16 @@ public class StatusReportExecutor implements RequestExecutor {
   public static final String ERROR_TEMPLATE = "error.template.ftlh";
   private final PluginRequest pluginRequest;
   private final AzureAgentInstances agentInstances;
+  private final ProvisioningEngine provisioningEngine;
+  private final WarmPool warmPool;
   private static final Logger LOG = Logger.getLoggerFor(AgentStatusReportExecutor.class);
   private final TemplateReader templateReader;
 
-  public StatusReportExecutor(PluginRequest pluginRequest, AzureAgentInstances agentInstances, TemplateReader templateReader) {
+  public StatusReportExecutor(PluginRequest pluginRequest, AzureAgentInstances agentInstances, ProvisioningEngine provisioningEngine, WarmPool warmPool, TemplateReader templateReader) {
     this.pluginRequest = pluginRequest;
     this.agentInstances = agentInstances;
+    this.provisioningEngine = provisioningEngine;
+    this.warmPool = warmPool;
     this.templateReader = templateReader;
   }
 
@@ -50,7 +56,9 @@ public class StatusReportExecutor implements RequestExecutor {
     LOG.info("[status-report] Generating status report");
     try {
       agentInstances.refreshAll(pluginRequest);
-      StatusReport statusReport = agentInstances.getStatusReport(pluginRequest.getPluginSettings());
+      StatusReport statusReport = agentInstances.getStatusReport(pluginRequest.getPluginSettings())
+          .withPluginProperties(provisioningEngine.statusReportProperties())
+          .withPluginProperties(warmPool.statusReportProperties());
 
       final String statusReportView = templateReader.read(STATUS_REPORT_TEMPLATE, statusReport);
 
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.metrics;
+
+import com.google.common.base.Ticker;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * In-plugin registry of operation timers, grouped in families that share a metric name and a label. Timing an
+ * operation only touches lock-free counters, so it can wrap every Azure call and every plugin request.
+ */
+public class MetricsRegistry {
+  public static final Family AZURE_OPERATIONS = new Family("gocd_azure_operation", "Azure operations made by the plugin", "operation", "Azure");
+  public static final Family PLUGIN_REQUESTS = new Family("gocd_plugin_request", "Requests from the GoCD server handled by the plugin", "request", "Request");
+
+  private final Ticker ticker;
+  private final Map<Family, ConcurrentHashMap<String, Timer>> timers = new ConcurrentHashMap<>();
+
+  public MetricsRegistry() {
+    this(Ticker.systemTicker());
+  }
+
+  MetricsRegistry(Ticker ticker) {
+    this.ticker = ticker;
+  }
+
+  public Timer timer(Family family, String label) {
+    ConcurrentHashMap<String, Timer> labelled = timers.computeIfAbsent(family, ignored -> new ConcurrentHashMap<>());
+    Timer timer = labelled.get(label);
+    return timer != null ? timer : labelled.computeIfAbsent(label, ignored -> new Timer());
+  }
+
+  public <T, E extends Exception> T time(Family family, String label, Action<T, E> action) throws E {
+    Timer timer = timer(family, label);
+    long start = ticker.read();
+    boolean failed = true;
+    try {
+      T result = action.run();
+      failed = false;
+      return result;
+    } finally {
+      timer.record(elapsedMicros(start), failed);
+    }
+  }
+
+  public <T> CompletableFuture<T> timeAsync(Family family, String label, Supplier<CompletableFuture<T>> action) {
+    Timer timer = timer(family, label);
+    long start = ticker.read();
+    CompletableFuture<T> future;
+    try {
+      future = action.get();
+    } catch (RuntimeException e) {
+      timer.record(elapsedMicros(start), true);
+      throw e;
+    }
+    return future.whenComplete((ignored, error) -> timer.record(elapsedMicros(start), error != null));
+  }
+
+  /**
+   * Every timer in Prometheus text exposition format, as a summary of latencies in seconds plus a failure counter.
+   */
+  public String toPrometheusText() {
+    StringBuilder text = new StringBuilder();
+    sorted().forEach((family, labelled) -> {
+      String summary = family.name() + "_duration_seconds";
+      text.append("# HELP ").append(summary).append(' ').append(family.help()).append(", in seconds\n");
+      text.append("# TYPE ").append(summary).append(" summary\n");
+      labelled.forEach((label, timer) -> {
+        Histogram latencies = timer.latencies();
+        for (double quantile : new double[]{0.5, 0.95, 0.99}) {
+          text.append(summary).append('{').append(labels(family, label)).append(",quantile=\"").append(quantile).append("\"} ")
+              .append(seconds(latencies.percentile(quantile))).append('\n');
+        }
+        text.append(summary).append("_sum{").append(labels(family, label)).append("} ").append(seconds(latencies.sum())).append('\n');
+        text.append(summary).append("_count{").append(labels(family, label)).append("} ").append(latencies.count()).append('\n');
+      });
+      String failures = family.name() + "_failures_total";
+      text.append("# HELP ").append(failures).append(' ').append(family.help()).append(" that failed\n");
+      text.append("# TYPE ").append(failures).append(" counter\n");
+      labelled.forEach((label, timer) -> text.append(failures).append('{').append(labels(family, label)).append("} ").append(timer.failures()).append('\n'));
+    });
+    return text.toString();
+  }
+
+  public List<Pair<String, String>> statusReportProperties() {
+    List<Pair<String, String>> properties = new ArrayList<>();
+    sorted().forEach((family, labelled) -> labelled.forEach((label, timer) -> {
+      Histogram latencies = timer.latencies();
+      properties.add(Pair.of(family.displayPrefix() + " " + label, String.format("%d calls, %d failed, p50 %dms, p95 %dms, p99 %dms, max %dms",
+          latencies.count(), timer.failures(), millis(latencies.percentile(0.5)), millis(latencies.percentile(0.95)),
+          millis(latencies.percentile(0.99)), millis(latencies.max()))));
+    }));
+    return properties;
+  }
+
+  private Map<Family, Map<String, Timer>> sorted() {
+    Map<Family, Map<String, Timer>> sorted = new TreeMap<>((a, b) -> a.name().compareTo(b.name()));
+    timers.forEach((family, labelled) -> sorted.put(family, new TreeMap<>(labelled)));
+    return sorted;
+  }
+
+  private long elapsedMicros(long start) {
+    return TimeUnit.NANOSECONDS.toMicros(ticker.read() - start);
+  }
+
+  private static String labels(Family family, String label) {
+    return family.labelName() + "=\"" + label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+  }
+
+  private static String seconds(long micros) {
+    return Double.toString(micros / 1_000_000.0);
+  }
+
+  private static long millis(long micros) {
+    return TimeUnit.MICROSECONDS.toMillis(micros);
+  }
+
+  public interface Action<T, E extends Exception> {
+    T run() throws E;
+  }
+
+  public static class Family {
+    private final String name;
+    private final String help;
+    private final String labelName;
+    private final String displayPrefix;
+
+    Family(String name, String help, String labelName, String displayPrefix) {
+      this.name = name;
+      this.help = help;
+      this.labelName = labelName;
+      this.displayPrefix = displayPrefix;
+    }
+
+    public String name() {
+      return name;
+    }
+
+    public String help() {
+      return help;
+    }
+
+    public String labelName() {
+      return labelName;
+    }
+
+    public String displayPrefix() {
+      return displayPrefix;
+    }
+  }
+}
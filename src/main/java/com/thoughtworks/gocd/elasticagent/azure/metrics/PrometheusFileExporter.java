@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.metrics;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.Period;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Periodically writes the registry in Prometheus text format to a local file, for a node exporter textfile
+ * collector or a sidecar to pick up. The file is replaced atomically, so readers never see a partial export.
+ */
+public class PrometheusFileExporter {
+  public static final Period EXPORT_INTERVAL = Period.seconds(30);
+
+  private final MetricsRegistry registry;
+  private final ScheduledExecutorService scheduler;
+  private final long intervalMillis;
+  private volatile Path path;
+  private ScheduledFuture<?> scheduled;
+
+  public PrometheusFileExporter(MetricsRegistry registry) {
+    this(registry, Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("azure-metrics-export-%d").build()), EXPORT_INTERVAL);
+  }
+
+  PrometheusFileExporter(MetricsRegistry registry, ScheduledExecutorService scheduler, Period interval) {
+    this.registry = registry;
+    this.scheduler = scheduler;
+    this.intervalMillis = interval.toStandardDuration().getMillis();
+  }
+
+  /**
+   * Exports to the given path from now on, or stops exporting when it is blank. Does nothing once stopped.
+   */
+  public synchronized void exportTo(String exportPath) {
+    if (scheduler.isShutdown()) {
+      return;
+    }
+    path = StringUtils.isBlank(exportPath) ? null : Paths.get(exportPath.trim());
+    if (path == null && scheduled != null) {
+      scheduled.cancel(false);
+      scheduled = null;
+    } else if (path != null && scheduled == null) {
+      scheduled = scheduler.scheduleWithFixedDelay(this::export, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stops exporting for good and lets the export thread go, so that nothing writes the file after the plugin is
+   * unloaded.
+   */
+  public synchronized void stop() {
+    path = null;
+    if (scheduled != null) {
+      scheduled.cancel(false);
+      scheduled = null;
+    }
+    scheduler.shutdown();
+  }
+
+  void export() {
+    Path target = path;
+    if (target == null) {
+      return;
+    }
+    try {
+      Path directory = target.toAbsolutePath().getParent();
+      Files.createDirectories(directory);
+      Path temporary = Files.createTempFile(directory, target.getFileName().toString(), ".tmp");
+      try {
+        Files.write(temporary, registry.toPrometheusText().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Failed to export metrics to {}: {}", target, e.getMessage());
+    }
+  }
+}
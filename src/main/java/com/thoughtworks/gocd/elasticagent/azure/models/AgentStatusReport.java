@@ -18,12 +18,16 @@ package com.thoughtworks.gocd.elasticagent.azure.models;
 
 import com.microsoft.azure.management.compute.ImageReference;
 import com.thoughtworks.gocd.elasticagent.azure.AzureInstance;
+import com.thoughtworks.gocd.elasticagent.azure.ProvisioningTimeline;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 
+import java.util.Collections;
+import java.util.List;
+
 @Getter
 @EqualsAndHashCode
 public class AgentStatusReport {
@@ -42,8 +46,13 @@ public class AgentStatusReport {
   private final String nic;
   private final AzureInstance.JobState state;
   private final String customScriptExecutionLogs;
+  private final List<ProvisioningTimeline.Step> timeline;
 
   public AgentStatusReport(AzureInstance agentInstance, String customScriptExecutionLogs) {
+    this(agentInstance, customScriptExecutionLogs, null);
+  }
+
+  public AgentStatusReport(AzureInstance agentInstance, String customScriptExecutionLogs, ProvisioningTimeline timeline) {
     this.elasticAgentId = agentInstance.getName();
     this.createdAt = agentInstance.getCreatedAt();
     this.status = getStatus(agentInstance);
@@ -58,6 +67,7 @@ public class AgentStatusReport {
     this.platform = agentInstance.getPlatform();
     this.state = agentInstance.getJobState();
     this.customScriptExecutionLogs = customScriptExecutionLogs;
+    this.timeline = timeline == null ? Collections.emptyList() : timeline.getSteps();
   }
 
   private String getStatus(AzureInstance agentInstance) {
@@ -42,6 +42,18 @@ public class ElasticProfile {
   public static final String IDLE_TIMEOUT = "idle_timeout";
   public static final String OS_DISK_SIZE = "os_disk_size";
   public static final String SUBNET_NAME = "subnet_name";
+  public static final String WARM_POOL_MIN_IDLE = "warm_pool_min_idle";
+  public static final String WARM_POOL_MAX_IDLE = "warm_pool_max_idle";
+  public static final String WARM_POOL_MAX_TOTAL = "warm_pool_max_total";
+  public static final String STOPPED_POOL_MAX_PARKED = "stopped_pool_max_parked";
+  public static final String STOPPED_POOL_MAX_PARKED_AGE = "stopped_pool_max_parked_age";
+  public static final Period DEFAULT_MAX_PARKED_AGE = Period.days(1);
+  public static final String LINUX_BOOTSTRAP = "linux_bootstrap";
+  public static final String LINUX_BOOTSTRAP_EXTENSION = "extension";
+  public static final String LINUX_BOOTSTRAP_CLOUD_INIT = "cloud-init";
+  public static final String WINDOWS_BOOTSTRAP = "windows_bootstrap";
+  public static final String WINDOWS_BOOTSTRAP_RUN_COMMAND = "run-command";
+  public static final String WINDOWS_BOOTSTRAP_EXTENSION = "extension";
 
   @SerializedName(VM_SIZE)
   private String vmSize;
@@ -71,6 +83,42 @@ public class ElasticProfile {
   @SerializedName(SUBNET_NAME)
   private String subnetName;
 
+  // Warm pool sizing does not change the VMs, so it is left out of hash() to keep existing VMs matching the profile.
+  @SerializedName(WARM_POOL_MIN_IDLE)
+  @Getter(AccessLevel.NONE)
+  @EqualsAndHashCode.Exclude
+  private String warmPoolMinIdle;
+
+  @SerializedName(WARM_POOL_MAX_IDLE)
+  @Getter(AccessLevel.NONE)
+  @EqualsAndHashCode.Exclude
+  private String warmPoolMaxIdle;
+
+  @SerializedName(WARM_POOL_MAX_TOTAL)
+  @Getter(AccessLevel.NONE)
+  @EqualsAndHashCode.Exclude
+  private String warmPoolMaxTotal;
+
+  @SerializedName(STOPPED_POOL_MAX_PARKED)
+  @Getter(AccessLevel.NONE)
+  @EqualsAndHashCode.Exclude
+  private String stoppedPoolMaxParked;
+
+  @SerializedName(STOPPED_POOL_MAX_PARKED_AGE)
+  @Getter(AccessLevel.NONE)
+  @EqualsAndHashCode.Exclude
+  private String stoppedPoolMaxParkedAge;
+
+  @SerializedName(LINUX_BOOTSTRAP)
+  @Getter(AccessLevel.NONE)
+  @EqualsAndHashCode.Exclude
+  private String linuxBootstrap;
+
+  @SerializedName(WINDOWS_BOOTSTRAP)
+  @Getter(AccessLevel.NONE)
+  @EqualsAndHashCode.Exclude
+  private String windowsBootstrap;
+
   public ElasticProfile() { }
 
   public ElasticProfile(String vmSize,
@@ -91,6 +139,20 @@ public class ElasticProfile {
     this.subnetName = subnet;
   }
 
+  public ElasticProfile(String vmSize,
+                        String vmImageURN,
+                        String customImageId,
+                        String customScript,
+                        Platform platform,
+                        String osDiskStorageAccountType,
+                        String idleTimeout, String osDiskSize, String subnet,
+                        String warmPoolMinIdle, String warmPoolMaxIdle, String warmPoolMaxTotal) {
+    this(vmSize, vmImageURN, customImageId, customScript, platform, osDiskStorageAccountType, idleTimeout, osDiskSize, subnet);
+    this.warmPoolMinIdle = warmPoolMinIdle;
+    this.warmPoolMaxIdle = warmPoolMaxIdle;
+    this.warmPoolMaxTotal = warmPoolMaxTotal;
+  }
+
   public ImageReference getImageReference() {
     return isBlank(vmImageURN) ? null : new ImageURN(vmImageURN).toImageReference();
   }
@@ -99,6 +161,15 @@ public class ElasticProfile {
     return String.valueOf(hashCode());
   }
 
+  /**
+   * Names the profile in status reports by its platform, VM size and image, with the hash to tell apart profiles that
+   * only differ in other settings.
+   */
+  public String label() {
+    String image = isBlank(vmImageURN) ? StringUtils.substringAfterLast(StringUtils.defaultString(vmCustomImageId), "/") : vmImageURN;
+    return String.format("%s %s %s (%s)", platform, StringUtils.defaultString(vmSize), image, hash());
+  }
+
   public StorageAccountTypes getOsDiskStorageAccountType() {
     return isBlank(osDiskStorageAccountType) ? StorageAccountTypes.STANDARD_SSD_LRS : StorageAccountTypes.fromString(osDiskStorageAccountType);
   }
@@ -117,4 +188,69 @@ public class ElasticProfile {
   public Optional<String> getSubnetName() {
     return isBlank(subnetName) ? Optional.empty() : Optional.of(subnetName);
   }
+
+  public boolean hasWarmPool() {
+    return getWarmPoolMinIdle() > 0;
+  }
+
+  public int getWarmPoolMinIdle() {
+    return isBlank(warmPoolMinIdle) ? 0 : Integer.parseInt(warmPoolMinIdle);
+  }
+
+  /**
+   * Defaults to the minimum idle count, so that VMs above the minimum are terminated once they reach the idle timeout.
+   */
+  public int getWarmPoolMaxIdle() {
+    return isBlank(warmPoolMaxIdle) ? getWarmPoolMinIdle() : Integer.parseInt(warmPoolMaxIdle);
+  }
+
+  public Optional<Integer> getWarmPoolMaxTotal() {
+    return isBlank(warmPoolMaxTotal) ? Optional.empty() : Optional.of(Integer.parseInt(warmPoolMaxTotal));
+  }
+
+  public int getStoppedPoolMaxParked() {
+    return isBlank(stoppedPoolMaxParked) ? 0 : Integer.parseInt(stoppedPoolMaxParked);
+  }
+
+  public Period getStoppedPoolMaxParkedAge() {
+    return isBlank(stoppedPoolMaxParkedAge) ? DEFAULT_MAX_PARKED_AGE : Period.minutes(Integer.parseInt(stoppedPoolMaxParkedAge));
+  }
+
+  /**
+   * Linux VMs bootstrapped with cloud-init install and start the agent from their custom data at first boot, instead
+   * of through the custom script extension and run commands.
+   */
+  public boolean isCloudInitBootstrap() {
+    return platform == Platform.LINUX && LINUX_BOOTSTRAP_CLOUD_INIT.equals(linuxBootstrap);
+  }
+
+  public ElasticProfile withLinuxBootstrap(String linuxBootstrap) {
+    ElasticProfile profile = withStoppedPool(stoppedPoolMaxParked, stoppedPoolMaxParkedAge);
+    profile.linuxBootstrap = linuxBootstrap;
+    return profile;
+  }
+
+  /**
+   * Windows VMs bootstrapped with the custom script extension install, customize and start the agent while the VM is
+   * created, instead of through sequential run commands.
+   */
+  public boolean isWindowsExtensionBootstrap() {
+    return platform == Platform.WINDOWS && WINDOWS_BOOTSTRAP_EXTENSION.equals(windowsBootstrap);
+  }
+
+  public ElasticProfile withWindowsBootstrap(String windowsBootstrap) {
+    ElasticProfile profile = withStoppedPool(stoppedPoolMaxParked, stoppedPoolMaxParkedAge);
+    profile.windowsBootstrap = windowsBootstrap;
+    return profile;
+  }
+
+  public ElasticProfile withStoppedPool(String maxParked, String maxParkedAge) {
+    ElasticProfile profile = new ElasticProfile(vmSize, vmImageURN, vmCustomImageId, customScript, platform, osDiskStorageAccountType,
+        idleTimeout, osDiskSize, subnetName, warmPoolMinIdle, warmPoolMaxIdle, warmPoolMaxTotal);
+    profile.stoppedPoolMaxParked = maxParked;
+    profile.stoppedPoolMaxParkedAge = maxParkedAge;
+    profile.linuxBootstrap = linuxBootstrap;
+    profile.windowsBootstrap = windowsBootstrap;
+    return profile;
+  }
 }
@@ -17,6 +17,7 @@
 package com.thoughtworks.gocd.elasticagent.azure.models;
 
 import com.google.gson.annotations.SerializedName;
+import com.thoughtworks.gocd.elasticagent.azure.DownloadUrlResolver;
 import com.thoughtworks.gocd.elasticagent.azure.vm.CustomScriptBuilder;
 import com.thoughtworks.gocd.elasticagent.azure.vm.LinuxPlatformConfigStrategy;
 import com.thoughtworks.gocd.elasticagent.azure.vm.PlatformConfigStrategy;
@@ -29,8 +30,8 @@ public enum Platform {
     private static final int MIN_LINUX_DISK_SIZE = 30;
 
     @Override
-    public PlatformConfigStrategy getConfigStrategy() {
-      return new LinuxPlatformConfigStrategy(new CustomScriptBuilder());
+    public PlatformConfigStrategy getConfigStrategy(DownloadUrlResolver downloadUrlResolver) {
+      return new LinuxPlatformConfigStrategy(new CustomScriptBuilder(), downloadUrlResolver);
     }
 
     @Override
@@ -44,8 +45,8 @@ public enum Platform {
     private static final int MIN_WINDOWS_DISK_SIZE = 127;
 
     @Override
-    public PlatformConfigStrategy getConfigStrategy() {
-      return new WindowsPlatformConfigStrategy(new CustomScriptBuilder());
+    public PlatformConfigStrategy getConfigStrategy(DownloadUrlResolver downloadUrlResolver) {
+      return new WindowsPlatformConfigStrategy(new CustomScriptBuilder(), downloadUrlResolver);
     }
 
     @Override
@@ -56,7 +57,7 @@ public enum Platform {
 
   public static final int MAX_OS_DISK_SIZE = 1023;
 
-  public abstract PlatformConfigStrategy getConfigStrategy();
+  public abstract PlatformConfigStrategy getConfigStrategy(DownloadUrlResolver downloadUrlResolver);
 
   public abstract Range<Integer> osDiskSizeRange();
 }
@@ -22,6 +22,7 @@ import lombok.Getter;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -35,10 +36,24 @@ public class StatusReport {
   public static final String TOTAL_NUMBER_OF_LINUX_VIRTUAL_MACHINES = "Linux virtual machines";
   private final String version;
   private final List<AgentStatusReport> agentStatusReports;
+  private final List<Pair<String, String>> pluginProperties;
 
   public StatusReport(List<AzureInstance> instances, String version) {
+    this(instances, version, Collections.emptyList());
+  }
+
+  public StatusReport(List<AzureInstance> instances, String version, List<Pair<String, String>> pluginProperties) {
     this.agentStatusReports = instances.stream().map(agentInstance -> new AgentStatusReport(agentInstance, "")).collect(Collectors.toCollection(ArrayList::new));
     this.version = version;
+    this.pluginProperties = pluginProperties;
+  }
+
+  public StatusReport withPluginProperties(List<Pair<String, String>> additionalProperties) {
+    List<Pair<String, String>> properties = new ArrayList<>(pluginProperties);
+    properties.addAll(additionalProperties);
+    StatusReport statusReport = new StatusReport(Collections.emptyList(), version, properties);
+    statusReport.agentStatusReports.addAll(agentStatusReports);
+    return statusReport;
   }
 
   public List<Pair<String, String>> getProperties() {
@@ -46,6 +61,7 @@ public class StatusReport {
       add(Pair.of(TOTAL_NUMBER_OF_VIRTUAL_MACHINES, Integer.toString(agentStatusReports.size())));
       add(Pair.of(TOTAL_NUMBER_OF_LINUX_VIRTUAL_MACHINES, Integer.toString(linuxInstanceCount())));
       add(Pair.of(TOTAL_NUMBER_OF_WINDOWS_VIRTUAL_MACHINES, Integer.toString(windowsInstanceCount())));
+      addAll(pluginProperties);
     }};
   }
 
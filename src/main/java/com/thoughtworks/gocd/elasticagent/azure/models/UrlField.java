@@ -0,0 +1,46 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.models;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import static java.lang.String.format;
+
+public class UrlField extends Field {
+
+  public UrlField(String key, String displayName, String defaultValue, Boolean required, Boolean secure, String displayOrder) {
+    super(key, displayName, defaultValue, required, secure, displayOrder);
+  }
+
+  @Override
+  public String doValidate(String input) {
+    if (StringUtils.isBlank(input)) {
+      return required ? format("%s must not be blank.", this.displayName) : null;
+    }
+    try {
+      String protocol = new URL(input.trim()).getProtocol();
+      if ("http".equals(protocol) || "https".equals(protocol)) {
+        return null;
+      }
+    } catch (MalformedURLException ignored) {
+    }
+    return format("%s must be an http or https URL.", this.displayName);
+  }
+}
@@ -20,14 +20,15 @@ import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.SerializedName;
-import com.thoughtworks.gocd.elasticagent.azure.AzureAgentInstances;
 import com.thoughtworks.gocd.elasticagent.azure.Constants;
+import com.thoughtworks.gocd.elasticagent.azure.DownloadUrlResolver;
 import com.thoughtworks.gocd.elasticagent.azure.PluginRequest;
+import com.thoughtworks.gocd.elasticagent.azure.ProvisioningEngine;
 import com.thoughtworks.gocd.elasticagent.azure.RequestExecutor;
+import com.thoughtworks.gocd.elasticagent.azure.WarmPool;
 import com.thoughtworks.gocd.elasticagent.azure.executors.CreateAgentRequestExecutor;
 import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
 import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
-import com.thoughtworks.gocd.elasticagent.azure.service.ServerHealthMessagingService;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.Properties;
@@ -47,6 +48,8 @@ public class CreateAgentRequest {
   @SerializedName("job_identifier")
   private JobIdentifier jobIdentifier;
 
+  // monotonic time the request was received at, for the provisioning timeline
+  private transient long receivedAtNanos = System.nanoTime();
 
   public CreateAgentRequest() {
   }
@@ -74,12 +77,16 @@ public class CreateAgentRequest {
     return jobIdentifier;
   }
 
+  public long receivedAtNanos() {
+    return receivedAtNanos;
+  }
+
   public static CreateAgentRequest fromJSON(String json) {
     return GSON.fromJson(json, CreateAgentRequest.class);
   }
 
-  public RequestExecutor executor(AzureAgentInstances agentInstances, PluginRequest pluginRequest, RequestFingerprintCache requestFingerprintCache, ServerHealthMessagingService serverHealthMessagingService) {
-    return new CreateAgentRequestExecutor(this, agentInstances, pluginRequest, requestFingerprintCache, serverHealthMessagingService);
+  public RequestExecutor executor(ProvisioningEngine provisioningEngine, WarmPool warmPool, PluginRequest pluginRequest, RequestFingerprintCache requestFingerprintCache, DownloadUrlResolver downloadUrlResolver) {
+    return new CreateAgentRequestExecutor(this, provisioningEngine, warmPool, pluginRequest, requestFingerprintCache, downloadUrlResolver);
   }
 
   public Properties autoregisterProperties(String elasticAgentId) {
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.service;
+
+import com.thoughtworks.gocd.elasticagent.azure.client.AzureCircuitBreakers;
+import com.thoughtworks.gocd.elasticagent.azure.exceptions.ServerRequestFailedException;
+import com.thoughtworks.gocd.elasticagent.azure.models.PluginHealthMessage;
+
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Shows a server health warning for every class of Azure operation that is failing fast, and clears it once the
+ * circuit closes again.
+ */
+public class CircuitBreakerHealthReporter implements AzureCircuitBreakers.Listener {
+  private final ServerHealthMessagingService serverHealthMessagingService;
+
+  public CircuitBreakerHealthReporter(ServerHealthMessagingService serverHealthMessagingService) {
+    this.serverHealthMessagingService = serverHealthMessagingService;
+  }
+
+  @Override
+  public void opened(AzureCircuitBreakers.Operation operation, Throwable cause) {
+    String message = String.format("Azure %s requests are failing repeatedly and are being rejected without calling Azure until it recovers. Last error: %s",
+        operation.label(), cause.getMessage());
+    try {
+      serverHealthMessagingService.sendHealthMessage(key(operation), PluginHealthMessage.warning(message));
+    } catch (ServerRequestFailedException e) {
+      LOG.error("Failed to report open Azure {} circuit to the server: {}", operation.label(), e.getMessage());
+    }
+  }
+
+  @Override
+  public void closed(AzureCircuitBreakers.Operation operation) {
+    try {
+      serverHealthMessagingService.clearHealthMessage(key(operation));
+    } catch (ServerRequestFailedException e) {
+      LOG.error("Failed to clear open Azure {} circuit warning on the server: {}", operation.label(), e.getMessage());
+    }
+  }
+
+  static String key(AzureCircuitBreakers.Operation operation) {
+    return "azure-circuit-" + operation.label();
+  }
+}
@@ -23,15 +23,28 @@ import java.net.URL;
 
 public class HttpUtil {
 
+    public static final int DEFAULT_TIMEOUT_MILLIS = 5000;
+
     public static boolean isValidUrl(String url) {
+        return isValidUrl(url, DEFAULT_TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public static boolean isValidUrl(String url, int connectTimeoutMillis, int readTimeoutMillis) {
+        HttpURLConnection huc = null;
         try {
             URL u = new URL(url);
-            HttpURLConnection huc = (HttpURLConnection) u.openConnection();
+            huc = (HttpURLConnection) u.openConnection();
+            huc.setConnectTimeout(connectTimeoutMillis);
+            huc.setReadTimeout(readTimeoutMillis);
             huc.setRequestMethod("HEAD");
             huc.connect();
             return huc.getResponseCode() == HttpStatus.SC_OK;
         } catch (java.io.IOException e) {
             return false;
+        } finally {
+            if (huc != null) {
+                huc.disconnect();
+            }
         }
     }
 }
@@ -17,6 +17,7 @@
 package com.thoughtworks.gocd.elasticagent.azure.utils;
 
 import freemarker.cache.ClassTemplateLoader;
+import freemarker.cache.StrongCacheStorage;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
@@ -24,35 +25,100 @@ import freemarker.template.TemplateExceptionHandler;
 
 import java.io.IOException;
 import java.io.StringWriter;
-import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
+
+/**
+ * Renders the bundled FreeMarker templates. A single instance is shared by the whole plugin: templates are parsed
+ * once and kept, and rendering is thread-safe.
+ */
 public class TemplateReader {
+  public static final List<String> TEMPLATES = Collections.unmodifiableList(Arrays.asList(
+      "agent-status-report.template.ftlh",
+      "error.template.ftlh",
+      "not-running.template.ftlh",
+      "plugin-status-report.template.ftlh",
+      "linux_cloud_init.template.ftl",
+      "linux_reregister_go_agent.template.ftl",
+      "linux_start_go_agent.template.ftl",
+      "post_provision_script.template.ftl",
+      "windows_install_go_agent.template.ftl",
+      "windows_reregister_go_agent.template.ftl",
+      "windows_start_go_agent.template.ftl"));
+  private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
   private final Configuration configuration;
+  private final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<>();
+  private final ThreadLocal<StringWriter> buffers = ThreadLocal.withInitial(StringWriter::new);
 
-  private static TemplateReader reader;
+  private static class Holder {
+    private static final TemplateReader INSTANCE = new TemplateReader();
+  }
 
   public static TemplateReader instance() {
-    if (reader == null) {
-      reader = new TemplateReader();
-    }
-    return reader;
+    return Holder.INSTANCE;
   }
 
   public TemplateReader() {
     configuration = new Configuration(Configuration.VERSION_2_3_23);
     configuration.setTemplateLoader(new ClassTemplateLoader(getClass(), "/"));
+    configuration.setCacheStorage(new StrongCacheStorage());
+    configuration.setTemplateUpdateDelayMilliseconds(Long.MAX_VALUE);
     configuration.setDefaultEncoding("UTF-8");
     configuration.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
     configuration.setLogTemplateExceptions(false);
     configuration.setDateTimeFormat("iso");
   }
 
+  /**
+   * Parses all bundled templates, so that the first request that needs one does not pay for it.
+   */
+  public TemplateReader preload() {
+    for (String path : TEMPLATES) {
+      try {
+        template(path);
+      } catch (IOException e) {
+        LOG.error("Could not compile template {}", path, e);
+      }
+    }
+    return this;
+  }
+
   public String read(String path, Object data) throws IOException, TemplateException {
-    Writer writer = new StringWriter();
-    Template template = configuration.getTemplate(path);
-    template.process(data, writer);
-    return writer.toString();
+    Template template = template(path);
+    StringWriter writer = buffers.get();
+    writer.getBuffer().setLength(0);
+    try {
+      template.process(data, writer);
+      return writer.toString();
+    } finally {
+      if (writer.getBuffer().capacity() > MAX_RETAINED_BUFFER) {
+        buffers.remove();
+      }
+    }
   }
 
-}
+  /**
+   * Renders the template base64 encoded. The result is not kept: agent scripts carry the agent id and autoregister
+   * key, so the same data is never rendered twice.
+   */
+  public String readBase64(String path, Map<String, String> data) throws IOException, TemplateException {
+    return Base64.getEncoder().encodeToString(read(path, data).getBytes(StandardCharsets.UTF_8));
+  }
 
+  private Template template(String path) throws IOException {
+    Template template = templates.get(path);
+    if (template == null) {
+      template = configuration.getTemplate(path);
+      templates.putIfAbsent(path, template);
+    }
+    return template;
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.validations;
+
+import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
+import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClient;
+import com.thoughtworks.gocd.elasticagent.azure.models.Platform;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static com.thoughtworks.gocd.elasticagent.azure.executors.GetProfileMetadataExecutor.LINUX_BOOTSTRAP;
+import static com.thoughtworks.gocd.elasticagent.azure.executors.GetProfileMetadataExecutor.PLATFORM;
+import static com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile.LINUX_BOOTSTRAP_CLOUD_INIT;
+import static com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile.LINUX_BOOTSTRAP_EXTENSION;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+public class LinuxBootstrapValidation implements Validation {
+  @Override
+  public Map<String, String> run(Map<String, String> properties, PluginSettings settings, GoCDAzureClient client) {
+    String bootstrap = properties.get(LINUX_BOOTSTRAP.getKey());
+    if (isBlank(bootstrap) || LINUX_BOOTSTRAP_EXTENSION.equals(bootstrap)) {
+      return Collections.emptyMap();
+    }
+    if (!LINUX_BOOTSTRAP_CLOUD_INIT.equals(bootstrap)) {
+      return Collections.singletonMap(LINUX_BOOTSTRAP.getKey(), String.format("Supported agent bootstraps: %s, %s.", LINUX_BOOTSTRAP_EXTENSION, LINUX_BOOTSTRAP_CLOUD_INIT));
+    }
+    if (Platform.WINDOWS.name().equals(properties.get(PLATFORM.getKey()))) {
+      return Collections.singletonMap(LINUX_BOOTSTRAP.getKey(), "Cloud-init bootstrap is only supported for Linux.");
+    }
+    return Collections.emptyMap();
+  }
+}
@@ -29,6 +29,9 @@ public interface Validation {
       new MetadataValidation(),
       new OsDiskSizeValidation(),
       new SubnetNameValidation(),
+      new WarmPoolValidation(),
+      new LinuxBootstrapValidation(),
+      new WindowsBootstrapValidation(),
       new UnknownProfileFieldValidation(),
       new ImageValidation());
 
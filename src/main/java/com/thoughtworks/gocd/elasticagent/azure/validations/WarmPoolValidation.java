@@ -0,0 +1,44 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.validations;
+
+import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
+import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClient;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.thoughtworks.gocd.elasticagent.azure.executors.GetProfileMetadataExecutor.*;
+
+public class WarmPoolValidation implements Validation {
+  @Override
+  public Map<String, String> run(Map<String, String> properties, PluginSettings settings, GoCDAzureClient client) {
+    Map<String, String> errors = new HashMap<>();
+    int minIdle = NumberUtils.toInt(properties.get(WARM_POOL_MIN_IDLE.getKey()), 0);
+    int maxIdle = NumberUtils.toInt(properties.get(WARM_POOL_MAX_IDLE.getKey()), minIdle);
+    int maxTotal = NumberUtils.toInt(properties.get(WARM_POOL_MAX_TOTAL.getKey()), Integer.MAX_VALUE);
+
+    if (maxIdle < minIdle) {
+      errors.put(WARM_POOL_MAX_IDLE.getKey(), "Warm pool maximum idle agents should not be less than the minimum idle agents.");
+    }
+    if (maxTotal < Math.max(minIdle, maxIdle)) {
+      errors.put(WARM_POOL_MAX_TOTAL.getKey(), "Warm pool maximum agents should not be less than the idle agents.");
+    }
+    return errors;
+  }
+}
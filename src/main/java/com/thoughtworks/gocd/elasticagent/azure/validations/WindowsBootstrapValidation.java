@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.validations;
+
+import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
+import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClient;
+import com.thoughtworks.gocd.elasticagent.azure.models.Platform;
+import com.thoughtworks.gocd.elasticagent.azure.vm.WindowsCustomScriptExtension;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import static com.thoughtworks.gocd.elasticagent.azure.executors.GetProfileMetadataExecutor.CUSTOM_SCRIPT;
+import static com.thoughtworks.gocd.elasticagent.azure.executors.GetProfileMetadataExecutor.PLATFORM;
+import static com.thoughtworks.gocd.elasticagent.azure.executors.GetProfileMetadataExecutor.WINDOWS_BOOTSTRAP;
+import static com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile.WINDOWS_BOOTSTRAP_EXTENSION;
+import static com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile.WINDOWS_BOOTSTRAP_RUN_COMMAND;
+import static org.apache.commons.lang3.StringUtils.defaultString;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+public class WindowsBootstrapValidation implements Validation {
+  /**
+   * The UTF-8 bytes set aside for the agent install and start scripts that the custom script is sent with: their
+   * templates plus the server url, autoregister key, credentials and installer url filled into them.
+   */
+  static final int BOOTSTRAP_SCRIPTS_ALLOWANCE = 3072;
+
+  @Override
+  public Map<String, String> run(Map<String, String> properties, PluginSettings settings, GoCDAzureClient client) {
+    String bootstrap = properties.get(WINDOWS_BOOTSTRAP.getKey());
+    if (isBlank(bootstrap) || WINDOWS_BOOTSTRAP_RUN_COMMAND.equals(bootstrap)) {
+      return Collections.emptyMap();
+    }
+    if (!WINDOWS_BOOTSTRAP_EXTENSION.equals(bootstrap)) {
+      return Collections.singletonMap(WINDOWS_BOOTSTRAP.getKey(), String.format("Supported agent bootstraps: %s, %s.", WINDOWS_BOOTSTRAP_RUN_COMMAND, WINDOWS_BOOTSTRAP_EXTENSION));
+    }
+    if (Platform.LINUX.name().equals(properties.get(PLATFORM.getKey()))) {
+      return Collections.singletonMap(WINDOWS_BOOTSTRAP.getKey(), "Custom script extension bootstrap is only supported for Windows.");
+    }
+    int maxCustomScriptBytes = WindowsCustomScriptExtension.maxScriptBytes() - BOOTSTRAP_SCRIPTS_ALLOWANCE;
+    if (defaultString(properties.get(CUSTOM_SCRIPT.getKey())).getBytes(StandardCharsets.UTF_8).length > maxCustomScriptBytes) {
+      return Collections.singletonMap(CUSTOM_SCRIPT.getKey(), String.format("Custom script extension bootstrap passes the custom script on a command line " +
+          "limited to %d characters, so the script must be at most %d bytes. Shorten it or use the %s bootstrap.",
+          WindowsCustomScriptExtension.MAX_COMMAND_LENGTH, maxCustomScriptBytes, WINDOWS_BOOTSTRAP_RUN_COMMAND));
+    }
+    return Collections.emptyMap();
+  }
+}
@@ -20,41 +20,61 @@ import com.thoughtworks.gocd.elasticagent.azure.utils.TemplateReader;
 import freemarker.template.TemplateException;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.Map;
 
 import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
 
+/**
+ * Builds agent scripts from a template or plain text. Every step returns a new builder, so a builder can be shared by
+ * concurrent provisionings.
+ */
 public class CustomScriptBuilder {
 
-  private String script;
+  private final TemplateReader reader;
+  private final String script;
+  private final String template;
+  private final Map<String, String> data;
+  private final boolean base64Encoded;
 
-  public CustomScriptBuilder(){ }
+  public CustomScriptBuilder() {
+    this(TemplateReader.instance());
+  }
 
-  public CustomScriptBuilder withScript(String script){
+  CustomScriptBuilder(TemplateReader reader) {
+    this(reader, null, null, null, false);
+  }
+
+  private CustomScriptBuilder(TemplateReader reader, String script, String template, Map<String, String> data, boolean base64Encoded) {
+    this.reader = reader;
     this.script = script;
-    return this;
+    this.template = template;
+    this.data = data;
+    this.base64Encoded = base64Encoded;
+  }
+
+  public CustomScriptBuilder withScript(String script) {
+    return new CustomScriptBuilder(reader, script, null, null, false);
   }
 
   public CustomScriptBuilder withScript(String template, Map<String, String> data) {
-    TemplateReader reader = new TemplateReader();
-    try {
-      this.script = reader.read(template, data);
-    } catch (IOException | TemplateException e) {
-      LOG.error("Error generating the script file from the template {} and data {} provided: ", template, data, e);
-      throw new RuntimeException(e);
-    }
-    return this;
+    return new CustomScriptBuilder(reader, null, template, data, false);
   }
 
   public CustomScriptBuilder base64Encoded() {
-    if(this.script!= null){
-      this.script = Base64.getEncoder().encodeToString(this.script.getBytes());
-    }
-    return this;
+    return new CustomScriptBuilder(reader, script, template, data, true);
   }
 
   public String build() {
-    return script;
+    if (template == null) {
+      return base64Encoded && script != null ? Base64.getEncoder().encodeToString(script.getBytes(StandardCharsets.UTF_8)) : script;
+    }
+    try {
+      return base64Encoded ? reader.readBase64(template, data) : reader.read(template, data);
+    } catch (IOException | TemplateException e) {
+      LOG.error("Error generating the script file from the template {} and data {} provided: ", template, data, e);
+      throw new RuntimeException(e);
+    }
   }
 }
@@ -17,6 +17,7 @@
 package com.thoughtworks.gocd.elasticagent.azure.vm;
 
 import com.thoughtworks.gocd.elasticagent.azure.Constants;
+import com.thoughtworks.gocd.elasticagent.azure.DownloadUrlResolver;
 import com.thoughtworks.gocd.elasticagent.azure.DownloadUrls;
 
 import java.util.*;
@@ -27,6 +28,10 @@ public class LinuxCustomScriptExtension implements AzureVMExtension {
 
   private String goAgentVersion;
 
+  private String downloadBaseUrl;
+
+  private DownloadUrlResolver downloadUrlResolver;
+
   private Map<String, String> installParams;
 
   public LinuxCustomScriptExtension(String goAgentVersion,
@@ -34,8 +39,22 @@ public class LinuxCustomScriptExtension implements AzureVMExtension {
                                     String autoRegisterKey,
                                     String environment,
                                     String pluginId,
-                                    String agentId) {
+                                    String agentId,
+                                    DownloadUrlResolver downloadUrlResolver) {
+    this(goAgentVersion, goServerUrl, autoRegisterKey, environment, pluginId, agentId, null, downloadUrlResolver);
+  }
+
+  public LinuxCustomScriptExtension(String goAgentVersion,
+                                    String goServerUrl,
+                                    String autoRegisterKey,
+                                    String environment,
+                                    String pluginId,
+                                    String agentId,
+                                    String downloadBaseUrl,
+                                    DownloadUrlResolver downloadUrlResolver) {
     this.goAgentVersion = goAgentVersion;
+    this.downloadBaseUrl = downloadBaseUrl;
+    this.downloadUrlResolver = downloadUrlResolver;
     this.installParams = new HashMap<>() {{
       put("version", goAgentVersion);
       put("go_server_url", goServerUrl);
@@ -56,7 +75,7 @@ public class LinuxCustomScriptExtension implements AzureVMExtension {
   public List<String> getFileUris() {
     List<String> files = new ArrayList<>();
     files.add(UNZIP_TAR_DOWNLOAD_URL);
-    files.add(DownloadUrls.linuxGoAgent(goAgentVersion));
+    files.add(DownloadUrls.linuxGoAgent(downloadUrlResolver, downloadBaseUrl, goAgentVersion));
     return files;
   }
 
@@ -105,11 +124,12 @@ public class LinuxCustomScriptExtension implements AzureVMExtension {
     if (o == null || getClass() != o.getClass()) return false;
     LinuxCustomScriptExtension that = (LinuxCustomScriptExtension) o;
     return Objects.equals(goAgentVersion, that.goAgentVersion) &&
+        Objects.equals(downloadBaseUrl, that.downloadBaseUrl) &&
         Objects.equals(installParams, that.installParams);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(goAgentVersion, installParams);
+    return Objects.hash(goAgentVersion, downloadBaseUrl, installParams);
   }
 }
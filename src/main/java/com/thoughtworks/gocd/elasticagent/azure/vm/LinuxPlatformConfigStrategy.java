@@ -19,53 +19,49 @@ package com.thoughtworks.gocd.elasticagent.azure.vm;
 import com.microsoft.azure.management.compute.RunCommandResult;
 import com.microsoft.azure.management.compute.VirtualMachine;
 import com.microsoft.azure.management.compute.VirtualMachine.DefinitionStages.WithCreate;
+import com.microsoft.azure.management.compute.VirtualMachine.DefinitionStages.WithManagedCreate;
 import com.microsoft.azure.management.compute.VirtualMachines;
 import com.thoughtworks.gocd.elasticagent.azure.AgentConfig;
 import com.thoughtworks.gocd.elasticagent.azure.Constants;
+import com.thoughtworks.gocd.elasticagent.azure.DownloadUrlResolver;
 import com.thoughtworks.gocd.elasticagent.azure.utils.Util;
+import org.apache.commons.lang3.StringUtils;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class LinuxPlatformConfigStrategy implements PlatformConfigStrategy {
   public static final String LINUX_START_GO_AGENT_TEMPLATE = "linux_start_go_agent.template.ftl";
+  public static final String LINUX_REREGISTER_GO_AGENT_TEMPLATE = "linux_reregister_go_agent.template.ftl";
+  public static final String LINUX_CLOUD_INIT_TEMPLATE = "linux_cloud_init.template.ftl";
   private CustomScriptBuilder customScriptBuilder;
+  private final DownloadUrlResolver downloadUrlResolver;
 
-  public LinuxPlatformConfigStrategy(CustomScriptBuilder customScriptBuilder) {
+  public LinuxPlatformConfigStrategy(CustomScriptBuilder customScriptBuilder, DownloadUrlResolver downloadUrlResolver) {
     this.customScriptBuilder = customScriptBuilder;
+    this.downloadUrlResolver = downloadUrlResolver;
   }
 
   @Override
   public WithCreate addOS(VirtualMachine.DefinitionStages.WithOS withOS, VmConfig config) {
-    if (config.getImageReference() == null) {
-      return withOS
-          .withLinuxCustomImage(config.getCustomImageId())
-          .withRootUsername(config.getUserName())
-          .withSsh(config.getSshKey())
-          .withOSDiskStorageAccountType(config.getOsDiskStorageAccountType())
-          .withSize(config.getSize());
-    } else {
-      return withOS
-          .withSpecificLinuxImageVersion(config.getImageReference())
-          .withRootUsername(config.getUserName())
-          .withSsh(config.getSshKey())
-          .withOSDiskStorageAccountType(config.getOsDiskStorageAccountType())
-          .withSize(config.getSize());
-    }
+    VirtualMachine.DefinitionStages.WithLinuxCreateManaged withLinux = config.getImageReference() == null
+        ? withOS.withLinuxCustomImage(config.getCustomImageId()).withRootUsername(config.getUserName()).withSsh(config.getSshKey())
+        : withOS.withSpecificLinuxImageVersion(config.getImageReference()).withRootUsername(config.getUserName()).withSsh(config.getSshKey());
+    WithManagedCreate withCreate = config.isCloudInitBootstrap() ? withLinux.withCustomData(cloudInit(config)) : withLinux;
+    return withCreate
+        .withOSDiskStorageAccountType(config.getOsDiskStorageAccountType())
+        .withSize(config.getSize());
   }
 
   @Override
   public List<AzureVMExtension> getExtensions(VmConfig config) {
-    AgentConfig agentConfig = config.getAgentConfig();
-    return Arrays.asList(new LinuxCustomScriptExtension(agentConfig.getVersion(),
-        agentConfig.getServerUrl(),
-        agentConfig.getAutoRegisterKey(),
-        config.getEnvironment(),
-        Util.pluginId(),
-        agentConfig.getAgentId()
-    ));
+    if (config.isCloudInitBootstrap()) {
+      return Collections.emptyList();
+    }
+    return Arrays.asList(installExtension(config));
   }
 
   @Override
@@ -83,6 +79,47 @@ public class LinuxPlatformConfigStrategy implements PlatformConfigStrategy {
     // Agent installed in custom script extension for Linux
   }
 
+  @Override
+  public RunCommandResult reRegisterAgent(String resourceGroup, String name, VirtualMachines virtualMachines, AgentConfig agentConfig) {
+    String script = customScriptBuilder.withScript(LINUX_REREGISTER_GO_AGENT_TEMPLATE, Map.of(
+        "autoregister_key", agentConfig.getAutoRegisterKey(),
+        "environment", StringUtils.defaultString(agentConfig.getEnvironment()),
+        "plugin_id", Util.pluginId(),
+        "agent_id", agentConfig.getAgentId())).build();
+    return virtualMachines.runShellScript(resourceGroup, name, Collections.singletonList(script), Collections.emptyList());
+  }
+
+  /**
+   * A single cloud-init document, passed as custom data, that installs the agent, runs the custom script and starts
+   * the agent at first boot, so that the VM needs no extension or run command after it is created. The steps stop at
+   * the first failure, which leaves the VM without an agent until the registration timeout replaces it; the failing
+   * command is written to /var/lib/go-agent-bootstrap/failed on the VM.
+   */
+  String cloudInit(VmConfig config) {
+    LinuxCustomScriptExtension install = installExtension(config);
+    List<String> fileUris = install.getFileUris();
+    Map<String, String> params = new HashMap<>();
+    params.put("install_script", install.getScript());
+    params.put("custom_script", customScriptBuilder.withScript(StringUtils.defaultString(config.getCustomScript())).base64Encoded().build());
+    params.put("start_script", customScriptBuilder.withScript(startGoAgentScript(config.getAgentConfig())).base64Encoded().build());
+    params.put("unzip_url", fileUris.get(0));
+    params.put("go_agent_url", fileUris.get(1));
+    return customScriptBuilder.withScript(LINUX_CLOUD_INIT_TEMPLATE, params).base64Encoded().build();
+  }
+
+  private LinuxCustomScriptExtension installExtension(VmConfig config) {
+    AgentConfig agentConfig = config.getAgentConfig();
+    return new LinuxCustomScriptExtension(agentConfig.getVersion(),
+        agentConfig.getServerUrl(),
+        agentConfig.getAutoRegisterKey(),
+        config.getEnvironment(),
+        Util.pluginId(),
+        agentConfig.getAgentId(),
+        config.getAgentDownloadBaseUrl(),
+        downloadUrlResolver
+    );
+  }
+
   private String startGoAgentScript(AgentConfig agentConfig) {
     return customScriptBuilder.withScript(LINUX_START_GO_AGENT_TEMPLATE, Map.of("go_server_url", agentConfig.getServerUrl(), "jre_feature_version", Constants.DEFAULT_JRE_FEATURE_VERSION)).build();
   }
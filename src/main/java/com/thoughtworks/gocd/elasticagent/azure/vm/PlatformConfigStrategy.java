@@ -34,4 +34,10 @@ public interface PlatformConfigStrategy {
   RunCommandResult startAgent(String resourceGroup, String name, VirtualMachines virtualMachines, AgentConfig agentConfig);
 
   void installGoAgent(VirtualMachines virtualMachines, VmConfig config);
+
+  /**
+   * Prepares the agent of a resumed VM to auto-register again, with the details of the request it is resumed for.
+   * The agent is started afterwards with {@link #startAgent}.
+   */
+  RunCommandResult reRegisterAgent(String resourceGroup, String name, VirtualMachines virtualMachines, AgentConfig agentConfig);
 }
@@ -24,4 +24,6 @@ public class VMTags {
   public static final String GOCD_SERVER_ID_TAG_KEY = "gocd-server-id";
   public static final String LAST_JOB_RUN_TAG_KEY = "last-job-run";
   public static final String IDLE_TIMEOUT = "idle-time-in-mins";
+  public static final String PARKED_AT_TAG_KEY = "parked-at";
+  public static final String RESUMED_AT_TAG_KEY = "resumed-at";
 }
@@ -21,6 +21,7 @@ import com.microsoft.azure.management.compute.StorageAccountTypes;
 import com.microsoft.azure.management.compute.VirtualMachineSizeTypes;
 import com.microsoft.azure.management.resources.fluentcore.arm.Region;
 import com.thoughtworks.gocd.elasticagent.azure.AgentConfig;
+import com.thoughtworks.gocd.elasticagent.azure.DownloadUrlResolver;
 import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
 import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
 import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
@@ -63,6 +64,10 @@ public class VmConfig {
   private final StorageAccountTypes osDiskStorageAccountType;
   private final Optional<Integer> osDiskSize;
   private final JobIdentifier jobIdentifier;
+  private final boolean cloudInitBootstrap;
+  private final boolean windowsExtensionBootstrap;
+  private final String agentDownloadBaseUrl;
+  private final DownloadUrlResolver downloadUrlResolver;
 
   @Override
   public String toString() {
@@ -93,7 +98,7 @@ public class VmConfig {
 
   // ToDo: Find server version, check vm name limit, How to specify Custom image id ?
   VmConfig(Builder builder) {
-    this.name = uniqueString(VM_NAME_PREFIX);
+    this.name = Optional.ofNullable(builder.name).orElseGet(() -> uniqueString(VM_NAME_PREFIX));
     this.environment = builder.environment;
     this.agentConfig = new AgentConfig(builder.goServerUrl, builder.autoregisterKey, builder.serverVersion,
         this.environment, this.name);
@@ -114,10 +119,21 @@ public class VmConfig {
     this.osDiskSize = builder.osDiskSize;
     this.tags = builder.tags;
     this.jobIdentifier = builder.jobIdentifier;
+    this.cloudInitBootstrap = builder.cloudInitBootstrap;
+    this.windowsExtensionBootstrap = builder.windowsExtensionBootstrap;
+    this.agentDownloadBaseUrl = builder.agentDownloadBaseUrl;
+    this.downloadUrlResolver = builder.downloadUrlResolver;
+  }
+
+  /**
+   * Whether the agent is installed, customized and started as part of the VM creation, so no run commands follow it.
+   */
+  public boolean bootstrapsAtCreate() {
+    return cloudInitBootstrap || windowsExtensionBootstrap;
   }
 
   public PlatformConfigStrategy getPlatformStrategy() {
-    return platform.getConfigStrategy();
+    return platform.getConfigStrategy(downloadUrlResolver);
   }
 
   public String getNetworkInterfaceName() {
@@ -134,6 +150,7 @@ public class VmConfig {
     private String customImageId;
     private StorageAccountTypes osDiskStorageAccountType;
     private Optional<Integer> osDiskSize;
+    private String name;
     private String environment;
     private String autoregisterKey;
     private String goServerUrl;
@@ -150,6 +167,10 @@ public class VmConfig {
     private String customScript;
     private Map<String, String> tags = new HashMap<>();
     private JobIdentifier jobIdentifier;
+    private boolean cloudInitBootstrap;
+    private boolean windowsExtensionBootstrap;
+    private String agentDownloadBaseUrl;
+    private DownloadUrlResolver downloadUrlResolver;
 
     public VmConfig build() {
       this.goServerUrl = settings.getGoServerUrl();
@@ -159,6 +180,7 @@ public class VmConfig {
       this.sshKey = settings.getSshKey();
       this.region = Optional.ofNullable(settings.getRegion()).orElse(Region.US_WEST);
       this.windowsPassword = settings.getWindowsPassword();
+      this.agentDownloadBaseUrl = settings.getAgentDownloadBaseUrl();
 
       this.environment = Optional.ofNullable(request.environment()).orElse("");
       this.autoregisterKey = request.autoRegisterKey();
@@ -172,6 +194,8 @@ public class VmConfig {
       this.customScript = getCustomScript(elasticProfile);
       this.platform = getPlatform(elasticProfile);
       this.jobIdentifier = request.jobIdentifier();
+      this.cloudInitBootstrap = elasticProfile != null && elasticProfile.isCloudInitBootstrap();
+      this.windowsExtensionBootstrap = elasticProfile != null && elasticProfile.isWindowsExtensionBootstrap();
       //overrides
       this.userName = LINUX.equals(platform) ? settings.getLinuxUserName() : settings.getWindowsUserName();
 
@@ -207,11 +231,27 @@ public class VmConfig {
       return this;
     }
 
+    /**
+     * Configures an existing VM, such as a parked VM that is resumed, instead of a VM with a new name.
+     */
+    public Builder setName(String name) {
+      this.name = name;
+      return this;
+    }
+
     public Builder setSettingsParams(PluginSettings settings) {
       this.settings = settings;
       return this;
     }
 
+    /**
+     * The resolver the platform strategy checks the agent downloads with.
+     */
+    public Builder setDownloadUrlResolver(DownloadUrlResolver downloadUrlResolver) {
+      this.downloadUrlResolver = downloadUrlResolver;
+      return this;
+    }
+
     public Builder setServerInfoParams(ServerInfo serverInfo) {
       tags.put(GOCD_SERVER_ID_TAG_KEY, serverInfo.getServerId());
       this.serverVersion = Optional.ofNullable(serverInfo.getServerVersion()).orElse(DEFAULT_GO_SERVER_VERSION);
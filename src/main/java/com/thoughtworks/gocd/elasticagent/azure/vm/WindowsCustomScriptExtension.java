@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.vm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * Runs the agent bootstrap PowerShell script as part of the Windows VM creation. The script is passed base64 encoded
+ * in the protected command, written to a file next to the extension and run from there, so no script has to be
+ * hosted for download. Windows limits a command line to 8191 characters, which bounds the size of the script.
+ */
+public class WindowsCustomScriptExtension implements AzureVMExtension {
+  public static final int MAX_COMMAND_LENGTH = 8191;
+  static final String SCRIPT_FILE = "go-agent-bootstrap.ps1";
+  private static final String COMMAND_FORMAT = "powershell -NoProfile -ExecutionPolicy Unrestricted -Command \"" +
+      "[IO.File]::WriteAllText('%1$s', [Text.Encoding]::UTF8.GetString([Convert]::FromBase64String('%2$s'))); " +
+      "& .\\%1$s\"";
+
+  private final String script;
+
+  public WindowsCustomScriptExtension(String script) {
+    this.script = script;
+    int length = getCommandToExecute().length();
+    if (length > MAX_COMMAND_LENGTH) {
+      throw new IllegalArgumentException(String.format("The agent bootstrap script makes a %d character command, longer than the %d characters Windows allows. " +
+          "Shorten the custom script or use the run-command bootstrap.", length, MAX_COMMAND_LENGTH));
+    }
+  }
+
+  /**
+   * The largest script, in UTF-8 bytes, that still fits the command line once base64 encoded.
+   */
+  public static int maxScriptBytes() {
+    int encodedLength = MAX_COMMAND_LENGTH - String.format(COMMAND_FORMAT, SCRIPT_FILE, "").length();
+    return encodedLength / 4 * 3;
+  }
+
+  @Override
+  public String getName() {
+    return "go-agent-bootstrap";
+  }
+
+  public String getScript() {
+    return Base64.getEncoder().encodeToString(script.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public String getCommandToExecute() {
+    return String.format(COMMAND_FORMAT, SCRIPT_FILE, getScript());
+  }
+
+  @Override
+  public String getPublisher() {
+    return "Microsoft.Compute";
+  }
+
+  @Override
+  public String getType() {
+    return "CustomScriptExtension";
+  }
+
+  @Override
+  public String getVersion() {
+    return "1.10";
+  }
+
+  @Override
+  public HashMap<String, Object> publicSettings() {
+    return new HashMap<>();
+  }
+
+  @Override
+  public HashMap<String, Object> protectedSettings() {
+    HashMap<String, Object> settings = new HashMap<>();
+    settings.put("commandToExecute", this.getCommandToExecute());
+    return settings;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    WindowsCustomScriptExtension that = (WindowsCustomScriptExtension) o;
+    return Objects.equals(script, that.script);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(script);
+  }
+}
@@ -20,8 +20,10 @@ import com.microsoft.azure.management.compute.RunCommandResult;
 import com.microsoft.azure.management.compute.VirtualMachine;
 import com.microsoft.azure.management.compute.VirtualMachines;
 import com.thoughtworks.gocd.elasticagent.azure.AgentConfig;
+import com.thoughtworks.gocd.elasticagent.azure.DownloadUrlResolver;
 import com.thoughtworks.gocd.elasticagent.azure.DownloadUrls;
 import com.thoughtworks.gocd.elasticagent.azure.utils.Util;
+import org.apache.commons.lang3.StringUtils;
 
 import java.util.Collections;
 import java.util.HashMap;
@@ -33,10 +35,13 @@ import static com.thoughtworks.gocd.elasticagent.azure.AzurePlugin.LOG;
 public class WindowsPlatformConfigStrategy implements PlatformConfigStrategy {
   public static final String WINDOWS_START_GO_AGENT_TEMPLATE = "windows_start_go_agent.template.ftl";
   public static final String WINDOWS_INSTALL_GO_AGENT_TEMPLATE = "windows_install_go_agent.template.ftl";
+  public static final String WINDOWS_REREGISTER_GO_AGENT_TEMPLATE = "windows_reregister_go_agent.template.ftl";
   private CustomScriptBuilder customScriptBuilder;
+  private final DownloadUrlResolver downloadUrlResolver;
 
-  public WindowsPlatformConfigStrategy(CustomScriptBuilder scriptBuilder) {
+  public WindowsPlatformConfigStrategy(CustomScriptBuilder scriptBuilder, DownloadUrlResolver downloadUrlResolver) {
     this.customScriptBuilder = scriptBuilder;
+    this.downloadUrlResolver = downloadUrlResolver;
   }
 
   @Override
@@ -60,7 +65,11 @@ public class WindowsPlatformConfigStrategy implements PlatformConfigStrategy {
 
   @Override
   public List<AzureVMExtension> getExtensions(VmConfig config) {
-    return Collections.emptyList();
+    if (!config.isWindowsExtensionBootstrap()) {
+      return Collections.emptyList();
+    }
+    String script = String.join("\n", installGoAgentScript(config), StringUtils.defaultString(config.getCustomScript()), startAgentScript());
+    return Collections.singletonList(new WindowsCustomScriptExtension(script));
   }
 
   @Override
@@ -80,6 +89,16 @@ public class WindowsPlatformConfigStrategy implements PlatformConfigStrategy {
     runCommandResult.value().forEach(instanceViewStatus -> LOG.debug(instanceViewStatus.message()));
   }
 
+  @Override
+  public RunCommandResult reRegisterAgent(String resourceGroup, String name, VirtualMachines virtualMachines, AgentConfig agentConfig) {
+    String script = customScriptBuilder.withScript(WINDOWS_REREGISTER_GO_AGENT_TEMPLATE, Map.of(
+        "autoregister_key", agentConfig.getAutoRegisterKey(),
+        "environment", StringUtils.defaultString(agentConfig.getEnvironment()),
+        "plugin_id", Util.pluginId(),
+        "agent_id", agentConfig.getAgentId())).build();
+    return virtualMachines.runPowerShellScript(resourceGroup, name, Collections.singletonList(script), Collections.emptyList());
+  }
+
   private String installGoAgentScript(VmConfig config) {
     return customScriptBuilder.withScript(WINDOWS_INSTALL_GO_AGENT_TEMPLATE, agentInstallationParams(config)).build();
   }
@@ -94,7 +113,7 @@ public class WindowsPlatformConfigStrategy implements PlatformConfigStrategy {
       put("agent_id", agentConfig.getAgentId());
       put("username", config.getUserName());
       put("password", config.getPassword());
-      put("go_agent_installer_url", DownloadUrls.windowsGoAgent(agentConfig.getVersion()));
+      put("go_agent_installer_url", DownloadUrls.windowsGoAgent(downloadUrlResolver, config.getAgentDownloadBaseUrl(), agentConfig.getVersion()));
     }};
   }
 
@@ -0,0 +1,21 @@
+<#-- @ftlvariable name="install_script" type="java.lang.String" -->
+<#-- @ftlvariable name="custom_script" type="java.lang.String" -->
+<#-- @ftlvariable name="start_script" type="java.lang.String" -->
+<#-- @ftlvariable name="unzip_url" type="java.lang.String" -->
+<#-- @ftlvariable name="go_agent_url" type="java.lang.String" -->
+#cloud-config
+write_files:
+  - path: /var/lib/go-agent-bootstrap/install_go_agent.sh
+    permissions: '0700'
+    encoding: b64
+    content: '${install_script}'
+  - path: /var/lib/go-agent-bootstrap/custom_script.sh
+    permissions: '0700'
+    encoding: b64
+    content: '${custom_script}'
+  - path: /var/lib/go-agent-bootstrap/start_go_agent.sh
+    permissions: '0700'
+    encoding: b64
+    content: '${start_script}'
+runcmd:
+  - [bash, -c, "set -e; trap 'echo $BASH_COMMAND > /var/lib/go-agent-bootstrap/failed' ERR; cd /var/lib/go-agent-bootstrap; wget -q -O unzip.tar '${unzip_url}'; wget -q '${go_agent_url}'; bash install_go_agent.sh; bash custom_script.sh; bash start_go_agent.sh"]
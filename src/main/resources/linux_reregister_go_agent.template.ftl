@@ -0,0 +1,28 @@
+<#-- @ftlvariable name="agent_id" type="java.lang.String" -->
+<#-- @ftlvariable name="plugin_id" type="java.lang.String" -->
+<#-- @ftlvariable name="environment" type="java.lang.String" -->
+<#-- @ftlvariable name="autoregister_key" type="java.lang.String" -->
+#!/usr/bin/env bash
+
+set -e
+
+agent_dir="/var/lib/go-agent"
+
+cd $agent_dir
+if [ -f ./bin/go-agent ]; then
+  ./bin/go-agent stop || true
+fi
+
+echo "Removing the identity of the previous registration"
+rm -f config/guid.txt config/token config/agent.jks config/agent-truststore.jks
+
+echo "Creating autoregister.properties file"
+mkdir -p config
+(
+cat <<PROPERTIES
+agent.auto.register.key=${autoregister_key}
+agent.auto.register.environments=${environment}
+agent.auto.register.elasticAgent.pluginId=${plugin_id}
+agent.auto.register.elasticAgent.agentId=${agent_id}
+PROPERTIES
+) > ./config/autoregister.properties
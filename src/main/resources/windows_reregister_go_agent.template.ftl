@@ -0,0 +1,24 @@
+$ErrorActionPreference = 'Stop';
+
+$plugin_id = '${plugin_id}'
+$agent_id = '${agent_id}'
+$environment = '${environment}'
+$autoregister_key = '${autoregister_key}'
+$install_dir = 'C:\go-agent';
+
+Write-Host "Stopping Go Agent service";
+stop-service "Go Agent" -ErrorAction SilentlyContinue;
+
+Write-Host "Removing the identity of the previous registration";
+foreach ($file in @("guid.txt", "token", "agent.jks", "agent-truststore.jks")) {
+  Remove-Item -Force -ErrorAction SilentlyContinue "$install_dir\config\$file"
+}
+
+Write-Host "Adding UTF-8 encoded autoregister.properties file"
+$file_content = "`r`nagent.auto.register.key=$autoregister_key`r`n
+agent.auto.register.environments=$environment`r`n
+agent.auto.register.elasticAgent.pluginId=$plugin_id`r`n
+agent.auto.register.elasticAgent.agentId=$agent_id";
+
+New-Item -ItemType Directory -Force -Path "$install_dir\config"
+[System.IO.File]::WriteAllLines("$install_dir\config\autoregister.properties", $file_content)
@@ -19,6 +19,7 @@ package com.thoughtworks.gocd.elasticagent.azure;
 import com.microsoft.azure.management.compute.ImageReference;
 import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClient;
 import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClientFactory;
+import com.thoughtworks.gocd.elasticagent.azure.client.TagChanges;
 import com.thoughtworks.gocd.elasticagent.azure.models.*;
 import com.thoughtworks.gocd.elasticagent.azure.requests.CreateAgentRequest;
 import org.joda.time.DateTime;
@@ -30,13 +31,28 @@ import org.mockito.Mock;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.ELASTIC_PROFILE_TAG_KEY;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.JOB_IDENTIFIER_TAG_KEY;
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.openMocks;
 
@@ -55,10 +71,13 @@ class AzureAgentInstancesTest extends BaseTest {
   @Mock
   private Clock mockClock;
 
+  @Mock
+  private TagSyncer mockTagSyncer;
+
   @BeforeEach
   void setup() {
     openMocks(this);
-    instances = new AzureAgentInstances(mockAzureInstanceManager, mockClock, mockClientFactory);
+    instances = new AzureAgentInstances(mockAzureInstanceManager, mockClock, mockClientFactory, mockTagSyncer);
   }
 
   @Test
@@ -71,11 +90,11 @@ class AzureAgentInstancesTest extends BaseTest {
     when(serverInfo.getServerId()).thenReturn("server_id");
     when(expectedInstance.getName()).thenReturn("Agent-new");
     when(mockClientFactory.initialize(settings)).thenReturn(mockGoCDAzureClient);
-    when(mockAzureInstanceManager.create(mockGoCDAzureClient, request, settings, serverInfo)).thenReturn(expectedInstance);
+    when(mockAzureInstanceManager.create(eq(mockGoCDAzureClient), eq(request), eq(settings), eq(serverInfo), any(ProvisioningListener.class))).thenReturn(expectedInstance);
 
     AzureInstance azureInstance = instances.create(request, settings, serverInfo);
 
-    verify(mockAzureInstanceManager).create(mockGoCDAzureClient, request, settings, serverInfo);
+    verify(mockAzureInstanceManager).create(eq(mockGoCDAzureClient), eq(request), eq(settings), eq(serverInfo), any(ProvisioningListener.class));
     assertEquals(expectedInstance, instances.find("Agent-new"));
     assertEquals(expectedInstance, azureInstance);
   }
@@ -90,7 +109,7 @@ class AzureAgentInstancesTest extends BaseTest {
 
     AzureInstance azureInstance = instances.create(request, settings, serverInfo);
 
-    verify(mockAzureInstanceManager, times(1)).create(mockGoCDAzureClient, request, settings, serverInfo);
+    verify(mockAzureInstanceManager, times(1)).create(eq(mockGoCDAzureClient), eq(request), eq(settings), eq(serverInfo), any(ProvisioningListener.class));
     assertEquals(expectedInstance, azureInstance);
   }
 
@@ -182,19 +201,20 @@ class AzureAgentInstancesTest extends BaseTest {
     AzureInstance expectedInstance = mock(AzureInstance.class);
     ServerInfo mockServerInfo = mock(ServerInfo.class);
     when(expectedInstance.getName()).thenReturn("instance-with-ep");
-    when(expectedInstance.elasticProfileMatches(profile)).thenReturn(true);
+    when(expectedInstance.elasticProfileMatches(profile.hash())).thenReturn(true);
+    when(expectedInstance.elasticProfileHash()).thenReturn(profile.hash());
 
     when(request1.elasticProfile()).thenReturn(profile);
     when(request2.elasticProfile()).thenReturn(profile);
-    when(mockAzureInstanceManager.create(mockGoCDAzureClient, request1, settings, mockServerInfo))
+    when(mockAzureInstanceManager.create(eq(mockGoCDAzureClient), eq(request1), eq(settings), eq(mockServerInfo), any(ProvisioningListener.class)))
         .thenReturn(expectedInstance);
 
     AzureInstance instanceForRequest1 = instances.create(request1, settings, mockServerInfo);
-    when(instanceForRequest1.canBeAssigned(profile)).thenReturn(true);
+    when(instanceForRequest1.canBeAssigned(eq(profile.hash()), any(Clock.class))).thenReturn(true);
 
     AzureInstance instanceForRequest2 = instances.create(request2, settings, mockServerInfo);
 
-    verify(mockAzureInstanceManager).create(mockGoCDAzureClient, request1, settings, mockServerInfo);
+    verify(mockAzureInstanceManager).create(eq(mockGoCDAzureClient), eq(request1), eq(settings), eq(mockServerInfo), any(ProvisioningListener.class));
     assertEquals(expectedInstance, instanceForRequest1);
     assertEquals(expectedInstance, instanceForRequest2);
   }
@@ -210,7 +230,7 @@ class AzureAgentInstancesTest extends BaseTest {
     when(request.elasticProfile()).thenReturn(elasticProfile);
     AzureInstance expectedAvailableInstance = insertMockAzureInstance(instances, settings, "instance-with-ep-job-unassigned", request, serverInfo);
     insertMockAzureInstance(instances, settings, "instance-with-someother-ep", getCreateAgentRequestForJob(new JobIdentifier(1L)), serverInfo);
-    when(expectedAvailableInstance.canBeAssigned(elasticProfile)).thenReturn(true);
+    when(expectedAvailableInstance.canBeAssigned(eq(elasticProfile.hash()), any(Clock.class))).thenReturn(true);
 
     assertEquals(expectedAvailableInstance, instances.findAvailableInstance(elasticProfile));
     assertNull(instances.findAvailableInstance(new ElasticProfile()));
@@ -317,44 +337,205 @@ class AzureAgentInstancesTest extends BaseTest {
   }
 
   @Test
-  void shouldAddTagToAzureInstance() throws Exception {
+  void shouldAddTagToAzureInstanceInMemoryAndWriteItBehind() throws Exception {
     PluginSettings settings = createPluginSettings();
     CreateAgentRequest request = mock(CreateAgentRequest.class);
     when(mockClientFactory.initialize(settings)).thenReturn(mockGoCDAzureClient);
     AzureInstance instance = insertMockAzureInstance(instances, settings, "agent-123", request, mock(ServerInfo.class));
-    AzureInstance mockInstanceWithTag = mock(AzureInstance.class);
-    when(mockInstanceWithTag.getName()).thenReturn("agent-123");
-    when(mockAzureInstanceManager.addTag(eq(mockGoCDAzureClient), eq(instance), anyString(), anyString())).thenReturn(mockInstanceWithTag);
+    Map<String, String> tags = Collections.singletonMap("tag-2", "value-2");
+    when(instance.getId()).thenReturn("vm-id");
+    when(instance.getTags()).thenReturn(tags);
+    AzureInstance instanceWithTag = mock(AzureInstance.class);
+    Map<String, String> expectedTags = new HashMap<>();
+    expectedTags.put("tag-1", "value-1");
+    expectedTags.put("tag-2", "value-2");
+    when(instance.withTags(expectedTags)).thenReturn(instanceWithTag);
+
+    AzureInstance updatedInstance = instances.addTag(settings, "agent-123", "tag-1", "value-1");
+
+    assertEquals(instanceWithTag, updatedInstance);
+    assertEquals(instanceWithTag, instances.find("agent-123"));
+    verify(mockTagSyncer).submit(mockGoCDAzureClient, "vm-id", tags, new TagChanges().set("tag-1", "value-1"));
+    verify(mockGoCDAzureClient, never()).updateTags(anyString(), anyMap(), any());
+  }
 
-    instances.addTag(settings, "agent-123", "tag-1", "value-1");
+  @Test
+  void shouldRemoveTagFromAzureInstanceInMemoryAndWriteItBehind() throws Exception {
+    PluginSettings settings = createPluginSettings();
+    CreateAgentRequest request = mock(CreateAgentRequest.class);
+    when(mockClientFactory.initialize(settings)).thenReturn(mockGoCDAzureClient);
+    AzureInstance instance = insertMockAzureInstance(instances, settings, "agent-123", request, mock(ServerInfo.class));
+    Map<String, String> tags = Collections.singletonMap("tag-1", "value-1");
+    when(instance.getId()).thenReturn("vm-id");
+    when(instance.getTags()).thenReturn(tags);
+    AzureInstance instanceWithoutTag = mock(AzureInstance.class);
+    when(instance.withTags(Collections.emptyMap())).thenReturn(instanceWithoutTag);
 
-    verify(mockAzureInstanceManager).addTag(mockGoCDAzureClient, instance, "tag-1", "value-1");
-    assertEquals(mockInstanceWithTag, instances.find("agent-123"));
+    instances.removeTag(settings, "agent-123", "tag-1");
+
+    assertEquals(instanceWithoutTag, instances.find("agent-123"));
+    verify(mockTagSyncer).submit(mockGoCDAzureClient, "vm-id", tags, new TagChanges().remove("tag-1"));
   }
 
   @Test
-  void shouldRemoveTagFromAzureInstance() throws Exception {
+  void shouldApplySeveralTagChangesInOneUpdate() throws Exception {
     PluginSettings settings = createPluginSettings();
     CreateAgentRequest request = mock(CreateAgentRequest.class);
     when(mockClientFactory.initialize(settings)).thenReturn(mockGoCDAzureClient);
     AzureInstance instance = insertMockAzureInstance(instances, settings, "agent-123", request, mock(ServerInfo.class));
-    AzureInstance mockInstanceWithoutTag = mock(AzureInstance.class);
-    when(mockInstanceWithoutTag.getName()).thenReturn("agent-123");
-    when(mockAzureInstanceManager.removeTag(eq(mockGoCDAzureClient), eq(instance), anyString())).thenReturn(mockInstanceWithoutTag);
+    when(instance.getId()).thenReturn("vm-id");
+    when(instance.getTags()).thenReturn(Collections.singletonMap("tag-2", "value-2"));
+    AzureInstance mockUpdatedInstance = mock(AzureInstance.class);
+    when(instance.withTags(Collections.singletonMap("tag-1", "value-1"))).thenReturn(mockUpdatedInstance);
+    TagChanges changes = new TagChanges().set("tag-1", "value-1").remove("tag-2");
 
-    instances.removeTag(settings, "agent-123", "tag-1");
+    AzureInstance updatedInstance = instances.updateTags(settings, "agent-123", changes);
 
-    verify(mockAzureInstanceManager).removeTag(mockGoCDAzureClient, instance, "tag-1");
-    assertEquals(mockInstanceWithoutTag, instances.find("agent-123"));
+    verify(mockTagSyncer, times(1)).submit(any(), anyString(), anyMap(), any());
+    assertEquals(mockUpdatedInstance, updatedInstance);
   }
 
   @Test
   void shouldNotAddTagIfTheAgentIsNoLongerRegistered() throws IOException {
     PluginSettings settings = createPluginSettings();
 
-    instances.addTag(settings, "agent-123", "tag-1", "value-1");
+    assertNull(instances.addTag(settings, "agent-123", "tag-1", "value-1"));
+
+    verifyNoInteractions(mockTagSyncer);
+  }
+
+  @Test
+  void shouldDiscardPendingTagWritesOfTerminatedInstance() throws Exception {
+    PluginSettings settings = createPluginSettings();
+    CreateAgentRequest request = mock(CreateAgentRequest.class);
+    when(mockClientFactory.initialize(settings)).thenReturn(mockGoCDAzureClient);
+    AzureInstance instance = insertMockAzureInstance(instances, settings, "agent-123", request, mock(ServerInfo.class));
+    when(instance.getId()).thenReturn("vm-id");
+
+    instances.terminate("agent-123", settings);
+
+    verify(mockTagSyncer).discard("vm-id");
+  }
+
+  @Test
+  void shouldResumeParkedInstanceBeforeCreatingAnInstance() throws Exception {
+    StoppedPool stoppedPool = mock(StoppedPool.class);
+    AzureAgentInstances instances = new AzureAgentInstances(mockAzureInstanceManager, mockClock, mockClientFactory, mockTagSyncer, stoppedPool);
+    PluginSettings settings = createPluginSettings();
+    ServerInfo serverInfo = mock(ServerInfo.class);
+    ElasticProfile profile = new ElasticProfile();
+    CreateAgentRequest request = getCreateAgentRequestForJob(new JobIdentifier(2L));
+    when(request.elasticProfile()).thenReturn(profile);
+    when(request.environment()).thenReturn("env");
+    AzureInstance parked = mock(AzureInstance.class);
+    AzureInstance resumed = mock(AzureInstance.class);
+    when(resumed.getName()).thenReturn("parked-agent");
+    when(stoppedPool.claim(profile, "env")).thenReturn(Optional.of(parked));
+    when(mockClientFactory.initialize(settings)).thenReturn(mockGoCDAzureClient);
+    when(mockAzureInstanceManager.resume(eq(mockGoCDAzureClient), eq(parked), eq(request), eq(settings), eq(serverInfo), any(ProvisioningListener.class))).thenReturn(resumed);
+
+    AzureInstance instance = instances.create(request, settings, serverInfo);
+
+    assertEquals(resumed, instance);
+    assertEquals(resumed, instances.find("parked-agent"));
+    verify(stoppedPool).remember(profile);
+    verify(mockAzureInstanceManager, never()).create(any(), any(), any(), any(), any());
+  }
+
+  @Test
+  void shouldTerminateParkedInstanceThatFailedToResumeAndCreateAnInstance() throws Exception {
+    StoppedPool stoppedPool = mock(StoppedPool.class);
+    AzureAgentInstances instances = new AzureAgentInstances(mockAzureInstanceManager, mockClock, mockClientFactory, mockTagSyncer, stoppedPool);
+    PluginSettings settings = createPluginSettings();
+    ServerInfo serverInfo = mock(ServerInfo.class);
+    ElasticProfile profile = new ElasticProfile();
+    CreateAgentRequest request = getCreateAgentRequestForJob(new JobIdentifier(2L));
+    when(request.elasticProfile()).thenReturn(profile);
+    AzureInstance parked = mock(AzureInstance.class);
+    AzureInstance created = mock(AzureInstance.class);
+    when(created.getName()).thenReturn("new-agent");
+    when(stoppedPool.claim(profile, "")).thenReturn(Optional.of(parked));
+    when(mockClientFactory.initialize(settings)).thenReturn(mockGoCDAzureClient);
+    when(mockAzureInstanceManager.resume(eq(mockGoCDAzureClient), eq(parked), eq(request), eq(settings), eq(serverInfo), any(ProvisioningListener.class))).thenThrow(new RuntimeException("start failed"));
+    when(mockAzureInstanceManager.create(eq(mockGoCDAzureClient), eq(request), eq(settings), eq(serverInfo), any(ProvisioningListener.class))).thenReturn(created);
+
+    AzureInstance instance = instances.create(request, settings, serverInfo);
+
+    assertEquals(created, instance);
+    verify(mockAzureInstanceManager).terminate(mockGoCDAzureClient, parked);
+  }
+
+  @Test
+  void shouldParkRetiredInstanceWhenStoppedPoolHasRoom() throws Exception {
+    StoppedPool stoppedPool = mock(StoppedPool.class);
+    doAnswer(invocation -> {
+      ((Runnable) invocation.getArgument(0)).run();
+      return null;
+    }).when(stoppedPool).execute(any());
+    AzureAgentInstances instances = new AzureAgentInstances(mockAzureInstanceManager, mockClock, mockClientFactory, mockTagSyncer, stoppedPool);
+    PluginSettings settings = createPluginSettings();
+    when(mockClientFactory.initialize(settings)).thenReturn(mockGoCDAzureClient);
+    AzureInstance instance = insertMockAzureInstance(instances, settings, "agent-123", getCreateAgentRequestForJob(new JobIdentifier(2L)), mock(ServerInfo.class));
+    when(instance.getId()).thenReturn("vm-id");
+    AzureInstance parked = mock(AzureInstance.class);
+    when(stoppedPool.reserve(instance)).thenReturn(true);
+    when(mockAzureInstanceManager.park(mockGoCDAzureClient, instance)).thenReturn(parked);
+
+    instances.retire("agent-123", settings);
+
+    assertNull(instances.find("agent-123"));
+    verify(mockTagSyncer).discard("vm-id");
+    verify(stoppedPool).parked(parked);
+    verify(mockAzureInstanceManager, never()).terminate(any(), any());
+  }
+
+  @Test
+  void shouldTerminateInstanceThatFailedToPark() throws Exception {
+    StoppedPool stoppedPool = mock(StoppedPool.class);
+    doAnswer(invocation -> {
+      ((Runnable) invocation.getArgument(0)).run();
+      return null;
+    }).when(stoppedPool).execute(any());
+    AzureAgentInstances instances = new AzureAgentInstances(mockAzureInstanceManager, mockClock, mockClientFactory, mockTagSyncer, stoppedPool);
+    PluginSettings settings = createPluginSettings();
+    when(mockClientFactory.initialize(settings)).thenReturn(mockGoCDAzureClient);
+    AzureInstance instance = insertMockAzureInstance(instances, settings, "agent-123", getCreateAgentRequestForJob(new JobIdentifier(2L)), mock(ServerInfo.class));
+    when(stoppedPool.reserve(instance)).thenReturn(true);
+    when(mockAzureInstanceManager.park(mockGoCDAzureClient, instance)).thenThrow(new RuntimeException("deallocation failed"));
+
+    instances.retire("agent-123", settings);
+
+    verify(stoppedPool).release("agent-123");
+    verify(mockAzureInstanceManager).terminate(mockGoCDAzureClient, instance);
+  }
+
+  @Test
+  void shouldTerminateRetiredInstanceWhenStoppedPoolIsFull() throws Exception {
+    StoppedPool stoppedPool = mock(StoppedPool.class);
+    AzureAgentInstances instances = new AzureAgentInstances(mockAzureInstanceManager, mockClock, mockClientFactory, mockTagSyncer, stoppedPool);
+    PluginSettings settings = createPluginSettings();
+    when(mockClientFactory.initialize(settings)).thenReturn(mockGoCDAzureClient);
+    AzureInstance instance = insertMockAzureInstance(instances, settings, "agent-123", getCreateAgentRequestForJob(new JobIdentifier(2L)), mock(ServerInfo.class));
+    when(stoppedPool.reserve(instance)).thenReturn(false);
+
+    instances.retire("agent-123", settings);
+
+    verify(mockAzureInstanceManager).terminate(mockGoCDAzureClient, instance);
+    verify(mockAzureInstanceManager, never()).park(any(), any());
+  }
+
+  @Test
+  void shouldTerminateExpiredParkedInstances() throws Exception {
+    StoppedPool stoppedPool = mock(StoppedPool.class);
+    AzureAgentInstances instances = new AzureAgentInstances(mockAzureInstanceManager, mockClock, mockClientFactory, mockTagSyncer, stoppedPool);
+    PluginSettings settings = createPluginSettings();
+    when(mockClientFactory.initialize(settings)).thenReturn(mockGoCDAzureClient);
+    AzureInstance expired = mock(AzureInstance.class);
+    when(stoppedPool.expired()).thenReturn(singletonList(expired));
+
+    instances.terminateExpiredParkedInstances(settings);
 
-    verify(mockAzureInstanceManager, never()).addTag(eq(mockGoCDAzureClient), any(AzureInstance.class), eq("tag-1"), eq("value-1"));
+    verify(mockAzureInstanceManager).terminate(mockGoCDAzureClient, expired);
   }
 
   @Test
@@ -467,6 +648,228 @@ class AzureAgentInstancesTest extends BaseTest {
     return runningAgent;
   }
 
+  @Test
+  void shouldKeepJobAndProfileLookupsInStepWithTagChanges() throws Exception {
+    PluginSettings settings = createPluginSettings();
+    ElasticProfile profile = new ElasticProfile("Size-1", "urn-1", "", "", Platform.LINUX, "Standard_LRS", "", "50", "");
+    JobIdentifier job = new JobIdentifier("pipeline", 1L, "1", "stage", "1", "job", 1L);
+    refresh(settings, createAzureInstance("agent-1", Collections.singletonMap(ELASTIC_PROFILE_TAG_KEY, profile.hash())));
+
+    assertEquals("agent-1", instances.findAvailableInstance(profile).getName());
+    assertNull(instances.find(job));
+
+    instances.addTag(settings, "agent-1", JOB_IDENTIFIER_TAG_KEY, job.hash());
+
+    assertEquals("agent-1", instances.find(job).getName());
+    assertNull(instances.findAvailableInstance(profile));
+
+    instances.removeTag(settings, "agent-1", JOB_IDENTIFIER_TAG_KEY);
+
+    assertNull(instances.find(job));
+    assertEquals("agent-1", instances.findAvailableInstance(profile).getName());
+  }
+
+  @Test
+  void shouldDropTerminatedInstancesFromJobAndProfileLookups() throws Exception {
+    PluginSettings settings = createPluginSettings();
+    ElasticProfile profile = new ElasticProfile("Size-1", "urn-1", "", "", Platform.LINUX, "Standard_LRS", "", "50", "");
+    JobIdentifier job = new JobIdentifier("pipeline", 1L, "1", "stage", "1", "job", 1L);
+    Map<String, String> busyTags = new HashMap<>();
+    busyTags.put(ELASTIC_PROFILE_TAG_KEY, profile.hash());
+    busyTags.put(JOB_IDENTIFIER_TAG_KEY, job.hash());
+    refresh(settings, createAzureInstance("busy-agent", busyTags),
+        createAzureInstance("idle-agent", Collections.singletonMap(ELASTIC_PROFILE_TAG_KEY, profile.hash())));
+
+    instances.terminate("busy-agent", settings);
+    instances.terminate("idle-agent", settings);
+
+    assertNull(instances.find(job));
+    assertNull(instances.findAvailableInstance(profile));
+  }
+
+  @Test
+  void shouldHandTheSameIdleInstanceBackToAJobThatAlreadyReservedIt() throws Exception {
+    PluginSettings settings = createPluginSettings();
+    ElasticProfile profile = new ElasticProfile("Size-1", "urn-1", "", "", Platform.LINUX, "Standard_LRS", "", "50", "");
+    List<AzureInstance> idle = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      idle.add(createAzureInstance("agent-" + i, Collections.singletonMap(ELASTIC_PROFILE_TAG_KEY, profile.hash())));
+    }
+    refresh(settings, idle.toArray(new AzureInstance[0]));
+    JobIdentifier job = new JobIdentifier("pipeline", 1L, "1", "stage", "1", "job", 1L);
+
+    AzureInstance reserved = instances.reserveAvailableInstance(profile, job);
+
+    assertEquals(reserved, instances.reserveAvailableInstance(profile, job));
+    assertFalse(instances.reserve(reserved.getName(), new JobIdentifier("pipeline", 2L, "2", "stage", "1", "job", 2L)));
+    assertTrue(instances.reserve(reserved.getName(), job));
+  }
+
+  @Test
+  void shouldReserveEachIdleInstanceForOneJobUnderConcurrentCreateRequests() throws Exception {
+    PluginSettings settings = createPluginSettings();
+    ElasticProfile profile = new ElasticProfile("Size-1", "urn-1", "", "", Platform.LINUX, "Standard_LRS", "", "50", "");
+    int idleInstances = 20;
+    int jobs = 200;
+    List<AzureInstance> idle = new ArrayList<>();
+    for (int i = 0; i < idleInstances; i++) {
+      idle.add(createAzureInstance("agent-" + i, Collections.singletonMap(ELASTIC_PROFILE_TAG_KEY, profile.hash())));
+    }
+    refresh(settings, idle.toArray(new AzureInstance[0]));
+
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    CountDownLatch start = new CountDownLatch(1);
+    Map<String, JobIdentifier> reservations = new ConcurrentHashMap<>();
+    List<Future<Boolean>> results = new ArrayList<>();
+    try {
+      for (int i = 0; i < jobs; i++) {
+        JobIdentifier job = new JobIdentifier("pipeline", (long) i, Integer.toString(i), "stage", "1", "job", (long) i);
+        results.add(executor.submit(() -> {
+          start.await();
+          AzureInstance instance = instances.reserveAvailableInstance(profile, job);
+          return instance == null || reservations.putIfAbsent(instance.getName(), job) == null;
+        }));
+      }
+      start.countDown();
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get(30, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(idleInstances, reservations.size());
+  }
+
+  @Test
+  void shouldReconcileInstancesAddedToAndRemovedFromAzure() throws Exception {
+    PluginSettings settings = createPluginSettings();
+    AzureInstance kept = createAzureInstance("agent-1");
+    AzureInstance deleted = createAzureInstance("agent-2");
+    AzureInstance unknown = createAzureInstance("agent-3");
+    refresh(settings, kept, deleted);
+    when(mockAzureInstanceManager.listCurrentInstances(mockGoCDAzureClient, "server_id")).thenReturn(asList(kept, unknown));
+
+    assertEquals(new InstanceReconciler.Drift(1, 0, 0), instances.reconcile(settings, "server_id"));
+    assertEquals(unknown, instances.find("agent-3"));
+    assertEquals(deleted, instances.find("agent-2"));
+
+    assertEquals(new InstanceReconciler.Drift(0, 0, 1), instances.reconcile(settings, "server_id"));
+    assertNull(instances.find("agent-2"));
+    verify(mockTagSyncer).discard(deleted.getId());
+  }
+
+  @Test
+  void shouldAdoptTagsChangedInAzureUnlessATagWriteIsPending() throws Exception {
+    PluginSettings settings = createPluginSettings();
+    ElasticProfile profile = new ElasticProfile("Size-1", "urn-1", "", "", Platform.LINUX, "Standard_LRS", "", "50", "");
+    JobIdentifier job = new JobIdentifier("pipeline", 1L, "1", "stage", "1", "job", 1L);
+    AzureInstance drifted = createAzureInstance("agent-1", Collections.singletonMap(ELASTIC_PROFILE_TAG_KEY, profile.hash()));
+    AzureInstance pending = createAzureInstance("agent-2", Collections.singletonMap(ELASTIC_PROFILE_TAG_KEY, profile.hash()));
+    refresh(settings, drifted, pending);
+    Map<String, String> assignedTags = new HashMap<>();
+    assignedTags.put(ELASTIC_PROFILE_TAG_KEY, profile.hash());
+    assignedTags.put(JOB_IDENTIFIER_TAG_KEY, job.hash());
+    when(mockTagSyncer.isPendingOrWrittenSince(pending.getId(), 0L)).thenReturn(true);
+    when(mockAzureInstanceManager.listCurrentInstances(mockGoCDAzureClient, "server_id"))
+        .thenReturn(asList(drifted.withTags(assignedTags), pending.withTags(Collections.emptyMap())));
+
+    assertEquals(new InstanceReconciler.Drift(0, 1, 0), instances.reconcile(settings, "server_id"));
+    assertEquals("agent-1", instances.find(job).getName());
+    assertEquals(pending, instances.find("agent-2"));
+    assertEquals("agent-2", instances.findAvailableInstance(profile).getName());
+  }
+
+  @Test
+  void shouldNotAddBackInstancesTerminatedSinceTheListing() throws Exception {
+    PluginSettings settings = createPluginSettings();
+    AzureInstance terminated = createAzureInstance("agent-1");
+    refresh(settings, terminated);
+    instances.terminate("agent-1", settings);
+    when(mockAzureInstanceManager.listCurrentInstances(mockGoCDAzureClient, "server_id")).thenReturn(singletonList(terminated));
+
+    assertEquals(new InstanceReconciler.Drift(0, 0, 0), instances.reconcile(settings, "server_id"));
+    assertNull(instances.find("agent-1"));
+  }
+
+  @Test
+  void shouldNotAdoptTagsListedBeforeATagWriteThatCompletedDuringTheListing() throws Exception {
+    ScheduledExecutorService workers = Executors.newSingleThreadScheduledExecutor();
+    TagSyncer tagSyncer = new TagSyncer(workers, 1, Period.millis(1));
+    instances = new AzureAgentInstances(mockAzureInstanceManager, mockClock, mockClientFactory, tagSyncer);
+    PluginSettings settings = createPluginSettings();
+    ElasticProfile profile = new ElasticProfile("Size-1", "urn-1", "", "", Platform.LINUX, "Standard_LRS", "", "50", "");
+    JobIdentifier job = new JobIdentifier("pipeline", 1L, "1", "stage", "1", "job", 1L);
+    AzureInstance idle = createAzureInstance("agent-1", Collections.singletonMap(ELASTIC_PROFILE_TAG_KEY, profile.hash()));
+    refresh(settings, idle);
+    CountDownLatch releaseWrite = new CountDownLatch(1);
+    when(mockGoCDAzureClient.updateTags(eq(idle.getId()), anyMap(), any())).thenAnswer(invocation -> {
+      releaseWrite.await();
+      return Collections.emptyMap();
+    });
+    instances.addTag(settings, "agent-1", JOB_IDENTIFIER_TAG_KEY, job.hash());
+    when(mockAzureInstanceManager.listCurrentInstances(mockGoCDAzureClient, "server_id")).thenAnswer(invocation -> {
+      releaseWrite.countDown();
+      assertEquals(0, tagSyncer.flush(Period.seconds(5)));
+      return singletonList(idle);
+    });
+
+    try {
+      assertEquals(new InstanceReconciler.Drift(0, 0, 0), instances.reconcile(settings, "server_id"));
+      assertEquals("agent-1", instances.find(job).getName());
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  @Test
+  void shouldNotAddInstancesThatAreStillBeingProvisioned() throws Exception {
+    PluginSettings settings = createPluginSettings();
+    ServerInfo serverInfo = mock(ServerInfo.class);
+    CreateAgentRequest request = getCreateAgentRequestForJob(new JobIdentifier(1L));
+    AzureInstance provisioned = createAzureInstance("agent-1");
+    refresh(settings);
+    when(mockAzureInstanceManager.listCurrentInstances(mockGoCDAzureClient, "server_id")).thenReturn(singletonList(provisioned));
+    List<InstanceReconciler.Drift> drifts = new ArrayList<>();
+    when(mockAzureInstanceManager.create(eq(mockGoCDAzureClient), eq(request), eq(settings), eq(serverInfo), any(ProvisioningListener.class))).thenAnswer(invocation -> {
+      invocation.<ProvisioningListener>getArgument(4).transitioned("agent-1", ProvisioningState.CREATING_VM);
+      drifts.add(instances.reconcile(settings, "server_id"));
+      return provisioned;
+    });
+
+    instances.create(request, settings, serverInfo);
+
+    assertEquals(singletonList(new InstanceReconciler.Drift(0, 0, 0)), drifts);
+    assertEquals(provisioned, instances.find("agent-1"));
+  }
+
+  @Test
+  void shouldNotAddInstancesHeldByTheStoppedPool() throws Exception {
+    StoppedPool stoppedPool = mock(StoppedPool.class);
+    instances = new AzureAgentInstances(mockAzureInstanceManager, mockClock, mockClientFactory, mockTagSyncer, stoppedPool);
+    PluginSettings settings = createPluginSettings();
+    AzureInstance parking = createAzureInstance("agent-1");
+    refresh(settings);
+    when(stoppedPool.holds("agent-1")).thenReturn(true);
+    when(mockAzureInstanceManager.listCurrentInstances(mockGoCDAzureClient, "server_id")).thenReturn(singletonList(parking));
+
+    assertEquals(new InstanceReconciler.Drift(0, 0, 0), instances.reconcile(settings, "server_id"));
+    assertNull(instances.find("agent-1"));
+  }
+
+  private void refresh(PluginSettings settings, AzureInstance... azureInstances) throws Exception {
+    PluginRequest request = mock(PluginRequest.class, RETURNS_DEEP_STUBS);
+    when(request.getPluginSettings()).thenReturn(settings);
+    when(request.getServerInfo().getServerId()).thenReturn("server_id");
+    when(mockClientFactory.initialize(settings)).thenReturn(mockGoCDAzureClient);
+    when(mockAzureInstanceManager.listInstances(mockGoCDAzureClient, "server_id")).thenReturn(asList(azureInstances));
+    instances.refreshAll(request);
+  }
+
+  private AzureInstance createAzureInstance(String name, Map<String, String> tags) {
+    return createAzureInstance(name).withTags(tags);
+  }
+
   private CreateAgentRequest getCreateAgentRequestForJob(JobIdentifier jobIdentifier) {
     CreateAgentRequest request = mock(CreateAgentRequest.class);
     when(request.jobIdentifier()).thenReturn(jobIdentifier);
@@ -478,7 +881,14 @@ class AzureAgentInstancesTest extends BaseTest {
     when(instance.getName()).thenReturn(instanceName);
     JobIdentifier identifier = request.jobIdentifier();
     when(instance.jobIdentifierMatches(identifier)).thenReturn(true);
-    when(mockAzureInstanceManager.create(mockGoCDAzureClient, request, settings, serverInfo)).thenReturn(instance);
+    if (identifier != null) {
+      when(instance.assignedJobHash()).thenReturn(identifier.hash());
+    }
+    ElasticProfile elasticProfile = request.elasticProfile();
+    if (elasticProfile != null) {
+      when(instance.elasticProfileHash()).thenReturn(elasticProfile.hash());
+    }
+    when(mockAzureInstanceManager.create(eq(mockGoCDAzureClient), eq(request), eq(settings), eq(serverInfo), any(ProvisioningListener.class))).thenReturn(instance);
     instances.create(request, settings, serverInfo);
     return instance;
   }
@@ -19,11 +19,14 @@ package com.thoughtworks.gocd.elasticagent.azure;
 import com.microsoft.azure.management.compute.KnownLinuxVirtualMachineImage;
 import com.microsoft.azure.management.compute.VirtualMachine;
 import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClient;
+import com.thoughtworks.gocd.elasticagent.azure.client.InventorySnapshot;
+import com.thoughtworks.gocd.elasticagent.azure.client.TagChanges;
 import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
 import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
 import com.thoughtworks.gocd.elasticagent.azure.models.ServerInfo;
 import com.thoughtworks.gocd.elasticagent.azure.requests.CreateAgentRequest;
 import com.thoughtworks.gocd.elasticagent.azure.vm.VmConfig;
+import org.joda.time.DateTime;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
@@ -31,13 +34,16 @@ import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 import static com.thoughtworks.gocd.elasticagent.azure.models.Platform.LINUX;
-import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.GOCD_SERVER_ID_TAG_KEY;
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static com.thoughtworks.gocd.elasticagent.azure.models.Platform.WINDOWS;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.*;
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.openMocks;
 
@@ -54,7 +60,7 @@ class AzureInstanceManagerTest extends BaseTest {
   @BeforeEach
   void setup() {
     openMocks(this);
-    azureInstanceManager = new AzureInstanceManager(mapper);
+    azureInstanceManager = new AzureInstanceManager(mapper, mock(DownloadUrlResolver.class));
   }
 
   @Test
@@ -77,14 +83,15 @@ class AzureInstanceManagerTest extends BaseTest {
     VirtualMachine mockVM = mock(VirtualMachine.class, Mockito.RETURNS_DEEP_STUBS);
     AzureInstance mappedAzureInstance = mock(AzureInstance.class);
     when(mapper.map(mockVM)).thenReturn(mappedAzureInstance);
-    when(mockGoCDAzureClient.createVM(vmConfigCaptor.capture())).thenReturn(mockVM);
+    when(mockGoCDAzureClient.createVM(vmConfigCaptor.capture(), any())).thenReturn(mockVM);
     when(mockGoCDAzureClient.runCustomScript(any())).thenReturn("execution logs");
     when(serverInfo.getServerId()).thenReturn("server_id");
     when(mockVM.name()).thenReturn("vmName");
     PluginSettings settings = createPluginSettings();
 
     InOrder inOrder = inOrder(mockGoCDAzureClient);
-    AzureInstance azureInstance = azureInstanceManager.create(mockGoCDAzureClient, request, settings, serverInfo);
+    List<ProvisioningState> transitions = new ArrayList<>();
+    AzureInstance azureInstance = azureInstanceManager.create(mockGoCDAzureClient, request, settings, serverInfo, (vmName, state) -> transitions.add(state));
 
     assertEquals(mappedAzureInstance, azureInstance);
     VmConfig actualVmConfig = vmConfigCaptor.getValue();
@@ -103,6 +110,170 @@ class AzureInstanceManagerTest extends BaseTest {
     inOrder.verify(mockGoCDAzureClient).startAgent(actualVmConfig);
 
     assertEquals("execution logs", azureInstanceManager.getExecutionLogs(actualVmConfig.getName()));
+    assertEquals(Arrays.asList(ProvisioningState.CREATING_VM, ProvisioningState.INSTALLING_AGENT,
+        ProvisioningState.RUNNING_CUSTOM_SCRIPT, ProvisioningState.STARTING_AGENT), transitions);
+  }
+
+  @Test
+  void shouldRecordProvisioningPhasesOnTheTimelineOfTheVm() throws Exception {
+    ElasticProfile elasticProfile = new ElasticProfile("Standard_D3_v2", "Canonical:UbuntuServer:16.04.0-LTS", "", "",
+        LINUX, "Standard_LRS", "", "50", "");
+    CreateAgentRequest request = new CreateAgentRequest("key", elasticProfile, "env", new JobIdentifier(2L));
+    VirtualMachine mockVM = mock(VirtualMachine.class, Mockito.RETURNS_DEEP_STUBS);
+    ArgumentCaptor<VmConfig> vmConfigCaptor = ArgumentCaptor.forClass(VmConfig.class);
+    when(mapper.map(mockVM)).thenReturn(mock(AzureInstance.class));
+    when(mockGoCDAzureClient.createVM(vmConfigCaptor.capture(), any())).thenAnswer(invocation -> {
+      invocation.<Runnable>getArgument(1).run();
+      return mockVM;
+    });
+
+    azureInstanceManager.create(mockGoCDAzureClient, request, createPluginSettings(), mock(ServerInfo.class));
+    String name = vmConfigCaptor.getValue().getName();
+    azureInstanceManager.reached(name, ProvisioningPhase.AGENT_REGISTERED);
+
+    ProvisioningTimeline timeline = azureInstanceManager.getTimeline(name);
+    assertEquals(elasticProfile.label(), timeline.getProfileKey());
+    for (ProvisioningPhase phase : ProvisioningPhase.values()) {
+      assertEquals(phase != ProvisioningPhase.FIRST_JOB_ASSIGNED, timeline.hasReached(phase), phase.name());
+    }
+  }
+
+  @Test
+  void shouldNotRecordTheFirstJobOfWarmPoolVms() throws Exception {
+    ElasticProfile elasticProfile = new ElasticProfile("Standard_D3_v2", "Canonical:UbuntuServer:16.04.0-LTS", "", "",
+        LINUX, "Standard_LRS", "", "50", "");
+    JobIdentifier placeholder = new JobIdentifier(WarmPool.PIPELINE_NAME, 1L, null, "env", "1", elasticProfile.hash(), -1L);
+    ArgumentCaptor<VmConfig> vmConfigCaptor = ArgumentCaptor.forClass(VmConfig.class);
+    when(mockGoCDAzureClient.createVM(vmConfigCaptor.capture(), any())).thenReturn(mock(VirtualMachine.class, Mockito.RETURNS_DEEP_STUBS));
+
+    azureInstanceManager.create(mockGoCDAzureClient, new CreateAgentRequest("key", elasticProfile, "env", placeholder), createPluginSettings(), mock(ServerInfo.class));
+    String name = vmConfigCaptor.getValue().getName();
+    azureInstanceManager.reached(name, ProvisioningPhase.AGENT_REGISTERED);
+    azureInstanceManager.reached(name, ProvisioningPhase.FIRST_JOB_ASSIGNED);
+
+    ProvisioningTimeline timeline = azureInstanceManager.getTimeline(name);
+    assertTrue(timeline.hasReached(ProvisioningPhase.AGENT_REGISTERED));
+    assertFalse(timeline.hasReached(ProvisioningPhase.FIRST_JOB_ASSIGNED));
+  }
+
+  @Test
+  void shouldCreateAnInstanceWithoutATimelineWhenTheRequestHasNoElasticProfile() throws Exception {
+    ArgumentCaptor<VmConfig> vmConfigCaptor = ArgumentCaptor.forClass(VmConfig.class);
+    AzureInstance mappedAzureInstance = mock(AzureInstance.class);
+    VirtualMachine mockVM = mock(VirtualMachine.class, Mockito.RETURNS_DEEP_STUBS);
+    when(mapper.map(mockVM)).thenReturn(mappedAzureInstance);
+    when(mockGoCDAzureClient.createVM(vmConfigCaptor.capture(), any())).thenReturn(mockVM);
+
+    AzureInstance azureInstance = azureInstanceManager.create(mockGoCDAzureClient,
+        new CreateAgentRequest("key", null, "env", new JobIdentifier(2L)), createPluginSettings(), mock(ServerInfo.class));
+
+    assertEquals(mappedAzureInstance, azureInstance);
+    assertNull(azureInstanceManager.getTimeline(vmConfigCaptor.getValue().getName()));
+  }
+
+  @Test
+  void shouldDropTheTimelineOfAVmThatFailedToProvision() throws Exception {
+    ElasticProfile elasticProfile = new ElasticProfile("Standard_D3_v2", "Canonical:UbuntuServer:16.04.0-LTS", "", "",
+        LINUX, "Standard_LRS", "", "50", "");
+    ArgumentCaptor<VmConfig> vmConfigCaptor = ArgumentCaptor.forClass(VmConfig.class);
+    when(mockGoCDAzureClient.createVM(vmConfigCaptor.capture(), any())).thenReturn(mock(VirtualMachine.class));
+    doThrow(new RuntimeException("boom")).when(mockGoCDAzureClient).startAgent(any());
+
+    assertThrows(RuntimeException.class, () -> azureInstanceManager.create(mockGoCDAzureClient,
+        new CreateAgentRequest("key", elasticProfile, "env", new JobIdentifier(2L)), createPluginSettings(), mock(ServerInfo.class)));
+
+    assertNull(azureInstanceManager.getTimeline(vmConfigCaptor.getValue().getName()));
+  }
+
+  @Test
+  void shouldLeaveAgentInstallAndStartToCloudInit() throws Exception {
+    ElasticProfile elasticProfile = new ElasticProfile("Standard_D3_v2", "Canonical:UbuntuServer:16.04.0-LTS", "", "echo custom",
+        LINUX, "Standard_LRS", "", "50", "").withLinuxBootstrap(ElasticProfile.LINUX_BOOTSTRAP_CLOUD_INIT);
+    CreateAgentRequest request = new CreateAgentRequest("key", elasticProfile, "env", new JobIdentifier(2L));
+    VirtualMachine mockVM = mock(VirtualMachine.class, Mockito.RETURNS_DEEP_STUBS);
+    AzureInstance mappedAzureInstance = mock(AzureInstance.class);
+    ArgumentCaptor<VmConfig> vmConfigCaptor = ArgumentCaptor.forClass(VmConfig.class);
+    when(mapper.map(mockVM)).thenReturn(mappedAzureInstance);
+    when(mockGoCDAzureClient.createVM(vmConfigCaptor.capture(), any())).thenReturn(mockVM);
+    List<ProvisioningState> transitions = new ArrayList<>();
+
+    AzureInstance azureInstance = azureInstanceManager.create(mockGoCDAzureClient, request, createPluginSettings(), mock(ServerInfo.class), (vmName, state) -> transitions.add(state));
+
+    assertEquals(mappedAzureInstance, azureInstance);
+    assertTrue(vmConfigCaptor.getValue().isCloudInitBootstrap());
+    verify(mockGoCDAzureClient, never()).installGoAgent(any());
+    verify(mockGoCDAzureClient, never()).runCustomScript(any());
+    verify(mockGoCDAzureClient, never()).startAgent(any());
+    assertEquals(AzureInstanceManager.CLOUD_INIT_LOGS, azureInstanceManager.getExecutionLogs(vmConfigCaptor.getValue().getName()));
+    assertEquals(Arrays.asList(ProvisioningState.CREATING_VM), transitions);
+  }
+
+  @Test
+  void shouldLeaveAgentInstallAndStartToTheWindowsCustomScriptExtension() throws Exception {
+    ElasticProfile elasticProfile = new ElasticProfile("Standard_D3_v2", "MicrosoftWindowsServer:WindowsServer:2016-Datacenter", "", "echo custom",
+        WINDOWS, "Standard_LRS", "", "50", "").withWindowsBootstrap(ElasticProfile.WINDOWS_BOOTSTRAP_EXTENSION);
+    CreateAgentRequest request = new CreateAgentRequest("key", elasticProfile, "env", new JobIdentifier(2L));
+    VirtualMachine mockVM = mock(VirtualMachine.class, Mockito.RETURNS_DEEP_STUBS);
+    AzureInstance mappedAzureInstance = mock(AzureInstance.class);
+    ArgumentCaptor<VmConfig> vmConfigCaptor = ArgumentCaptor.forClass(VmConfig.class);
+    when(mapper.map(mockVM)).thenReturn(mappedAzureInstance);
+    when(mockGoCDAzureClient.createVM(vmConfigCaptor.capture(), any())).thenReturn(mockVM);
+
+    AzureInstance azureInstance = azureInstanceManager.create(mockGoCDAzureClient, request, createPluginSettings(), mock(ServerInfo.class));
+
+    assertEquals(mappedAzureInstance, azureInstance);
+    assertTrue(vmConfigCaptor.getValue().isWindowsExtensionBootstrap());
+    verify(mockGoCDAzureClient, never()).installGoAgent(any());
+    verify(mockGoCDAzureClient, never()).runCustomScript(any());
+    verify(mockGoCDAzureClient, never()).startAgent(any());
+    assertEquals(AzureInstanceManager.EXTENSION_LOGS, azureInstanceManager.getExecutionLogs(vmConfigCaptor.getValue().getName()));
+  }
+
+  @Test
+  void shouldResumeParkedInstanceWithoutInstallingTheAgent() {
+    Clock.TestClock clock = new Clock.TestClock();
+    AzureInstanceManager azureInstanceManager = new AzureInstanceManager(mapper, mock(DownloadUrlResolver.class), clock);
+    ElasticProfile elasticProfile = new ElasticProfile("Standard_D3_v2", "Canonical:UbuntuServer:16.04.0-LTS", "", "", LINUX, "Standard_LRS", "", "50", "");
+    CreateAgentRequest request = new CreateAgentRequest("key", elasticProfile, "env", new JobIdentifier(2L));
+    Map<String, String> parkedTags = Map.of(PARKED_AT_TAG_KEY, "1000", LAST_JOB_RUN_TAG_KEY, "900");
+    AzureInstance parked = new AzureInstance("agent-1", "host", "vm-id", new DateTime(0), null, "size", "os", 50, "Succeeded", "deallocated", "rg", "nic", parkedTags, LINUX);
+    TagChanges changes = new TagChanges().remove(PARKED_AT_TAG_KEY).remove(LAST_JOB_RUN_TAG_KEY).set(RESUMED_AT_TAG_KEY, String.valueOf(clock.now().getMillis()));
+    when(mockGoCDAzureClient.updateTags("vm-id", parkedTags, changes)).thenReturn(changes.applyTo(parkedTags));
+    ArgumentCaptor<VmConfig> vmConfigCaptor = ArgumentCaptor.forClass(VmConfig.class);
+    List<ProvisioningState> transitions = new ArrayList<>();
+
+    AzureInstance resumed = azureInstanceManager.resume(mockGoCDAzureClient, parked, request, createPluginSettings(), mock(ServerInfo.class), (vmName, state) -> transitions.add(state));
+
+    InOrder inOrder = inOrder(mockGoCDAzureClient);
+    inOrder.verify(mockGoCDAzureClient).start("agent-1");
+    inOrder.verify(mockGoCDAzureClient).reRegisterAgent(vmConfigCaptor.capture());
+    assertEquals("agent-1", vmConfigCaptor.getValue().getName());
+    assertEquals("key", vmConfigCaptor.getValue().getAgentConfig().getAutoRegisterKey());
+    verify(mockGoCDAzureClient, never()).createVM(any(), any());
+    verify(mockGoCDAzureClient, never()).installGoAgent(any());
+    verify(mockGoCDAzureClient, never()).runCustomScript(any());
+    assertFalse(resumed.isParked());
+    assertEquals(clock.now(), resumed.getCreatedAt());
+    assertEquals(Arrays.asList(ProvisioningState.RESUMING_VM, ProvisioningState.STARTING_AGENT), transitions);
+  }
+
+  @Test
+  void shouldTagInstanceAsParkedBeforeDeallocatingIt() {
+    Clock.TestClock clock = new Clock.TestClock();
+    AzureInstanceManager azureInstanceManager = new AzureInstanceManager(mapper, mock(DownloadUrlResolver.class), clock);
+    Map<String, String> tags = Map.of(JOB_IDENTIFIER_TAG_KEY, "job-hash", LAST_JOB_RUN_TAG_KEY, "900");
+    AzureInstance instance = new AzureInstance("agent-1", "host", "vm-id", new DateTime(0), null, "size", "os", 50, "Succeeded", "running", "rg", "nic", tags, LINUX);
+    TagChanges changes = new TagChanges().set(PARKED_AT_TAG_KEY, String.valueOf(clock.now().getMillis())).remove(JOB_IDENTIFIER_TAG_KEY).remove(RESUMED_AT_TAG_KEY);
+    when(mockGoCDAzureClient.updateTags("vm-id", tags, changes)).thenReturn(changes.applyTo(tags));
+
+    AzureInstance parked = azureInstanceManager.park(mockGoCDAzureClient, instance);
+
+    InOrder inOrder = inOrder(mockGoCDAzureClient);
+    inOrder.verify(mockGoCDAzureClient).updateTags("vm-id", tags, changes);
+    inOrder.verify(mockGoCDAzureClient).deallocate("agent-1");
+    assertTrue(parked.isParked());
+    assertFalse(parked.isAssigned());
+    assertEquals(clock.now(), parked.getParkedAt());
   }
 
   @Test
@@ -123,7 +294,8 @@ class AzureInstanceManagerTest extends BaseTest {
 
     when(mapper.map(mockVm1)).thenReturn(mockAzureInstance1);
     when(mapper.map(mockVm2)).thenReturn(mockAzureInstance2);
-    when(mockGoCDAzureClient.runningVirtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, "server_id")).thenReturn(Arrays.asList(mockVm1, mockVm2));
+    when(mockGoCDAzureClient.mapRunningVirtualMachines(eq("server_id"), eq(false), any())).thenAnswer(invocation ->
+        invocation.<Function<Iterable<VirtualMachine>, List<AzureInstance>>>getArgument(2).apply(Arrays.asList(mockVm1, mockVm2)));
 
     List<AzureInstance> azureInstances = azureInstanceManager.listInstances(mockGoCDAzureClient, "server_id");
 
@@ -132,50 +304,21 @@ class AzureInstanceManagerTest extends BaseTest {
     assertEquals(mockAzureInstance2, azureInstances.get(1));
   }
 
-  @Test
-  void shouldAddTagToTheAgent() {
-    AzureInstance instance = mock(AzureInstance.class);
-    AzureInstance expectedInstanceWithTags = mock(AzureInstance.class);
-    when(instance.getId()).thenReturn("vm-id");
-    VirtualMachine vmWithTags = mock(VirtualMachine.class, RETURNS_DEEP_STUBS);
-    when(mockGoCDAzureClient.addTag("vm-id", "tag-1", "value-1"))
-        .thenReturn(vmWithTags);
-    when(mapper.map(vmWithTags)).thenReturn(expectedInstanceWithTags);
-
-    AzureInstance instanceWithTags = azureInstanceManager.addTag(mockGoCDAzureClient, instance, "tag-1", "value-1");
-
-    verify(mockGoCDAzureClient, times(1)).addTag("vm-id", "tag-1", "value-1");
-    assertEquals(expectedInstanceWithTags, instanceWithTags);
-  }
-
-
-  @Test
-  void shouldRemoveTagFromAgent() {
-    AzureInstance instance = mock(AzureInstance.class);
-    AzureInstance expectedInstanceWithoutTag = mock(AzureInstance.class);
-    when(instance.getId()).thenReturn("vm-id");
-    VirtualMachine vmWithoutTag = mock(VirtualMachine.class, RETURNS_DEEP_STUBS);
-    when(mockGoCDAzureClient.removeTag("vm-id", "tag-1"))
-        .thenReturn(vmWithoutTag);
-    when(mapper.map(vmWithoutTag)).thenReturn(expectedInstanceWithoutTag);
-
-    AzureInstance instanceWithoutTag = azureInstanceManager.removeTag(mockGoCDAzureClient, instance, "tag-1");
-
-    verify(mockGoCDAzureClient, times(1)).removeTag("vm-id", "tag-1");
-    assertEquals(expectedInstanceWithoutTag, instanceWithoutTag);
-  }
-
   @Test
   void shouldTerminateVmsWithFailedProvisioningState() {
     VirtualMachine failedVm1 = mock(VirtualMachine.class);
     VirtualMachine failedVm2 = mock(VirtualMachine.class);
-    List<VirtualMachine> failedVms = Arrays.asList(failedVm1, failedVm2);
+    VirtualMachine runningVm = mock(VirtualMachine.class);
+    when(failedVm1.provisioningState()).thenReturn("Failed");
+    when(failedVm2.provisioningState()).thenReturn("Failed");
+    when(runningVm.provisioningState()).thenReturn("Succeeded");
 
-    when(mockGoCDAzureClient.failedProvisioningStateVirtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, "serverId")).thenReturn(failedVms);
+    when(mockGoCDAzureClient.inventorySnapshot("serverId")).thenReturn(new InventorySnapshot(Arrays.asList(failedVm1, runningVm, failedVm2), new DateTime()));
 
     azureInstanceManager.terminateProvisionFailedVms(mockGoCDAzureClient, "serverId");
 
     verify(mockGoCDAzureClient).terminate(failedVm1);
     verify(mockGoCDAzureClient).terminate(failedVm2);
+    verify(mockGoCDAzureClient, never()).terminate(runningVm);
   }
 }
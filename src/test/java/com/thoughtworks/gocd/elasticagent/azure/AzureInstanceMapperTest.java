@@ -55,7 +55,7 @@ class AzureInstanceMapperTest {
     when(mockVM.instanceView().osName()).thenReturn("Windows Server");
     when(mockVM.osDiskSize()).thenReturn(2);
     when(mockVM.resourceGroupName()).thenReturn("resource-group");
-    when(mockVM.getPrimaryNetworkInterface().name()).thenReturn("nic-123");
+    when(mockVM.primaryNetworkInterfaceId()).thenReturn("/subscriptions/sub/resourceGroups/resource-group/providers/Microsoft.Network/networkInterfaces/nic-123");
     when(mockVM.osType()).thenReturn(OperatingSystemTypes.WINDOWS);
 
     AzureInstance instance = new AzureInstanceMapper().map(mockVM);
@@ -74,6 +74,7 @@ class AzureInstanceMapperTest {
     assertEquals("resource-group", instance.getResourceGroupName());
     assertEquals("nic-123", instance.getPrimaryNetworkInterface());
     assertEquals(Platform.WINDOWS, instance.getPlatform());
+    verify(mockVM, never()).getPrimaryNetworkInterface();
 
   }
 
@@ -21,6 +21,7 @@ import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
 import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
 import com.thoughtworks.gocd.elasticagent.azure.models.Platform;
 import org.joda.time.DateTime;
+import org.joda.time.Period;
 import org.junit.jupiter.api.Test;
 
 import java.util.Collections;
@@ -308,6 +309,64 @@ class AzureInstanceTest {
     assertTrue(instance.canBeAssigned(elasticProfile));
   }
 
+  @Test
+  void shouldTellIdleTimeoutByTheGivenClock() {
+    Clock.TestClock clock = new Clock.TestClock();
+    AzureInstance instance = new AzureInstance(null, null, null, clock.now(),
+        null, null, null, null, null, null,
+        null, null,
+        Collections.singletonMap(IDLE_TIMEOUT, "10"), Platform.LINUX);
+
+    assertFalse(instance.isIdleAfterIdleTimeout(clock));
+    clock.forward(Period.minutes(11));
+    assertTrue(instance.isIdleAfterIdleTimeout(clock));
+  }
+
+  @Test
+  void shouldReadStateFromTagsOfTheCopyWhenTagsChange() {
+    ElasticProfile elasticProfile = new ElasticProfile();
+    JobIdentifier jobIdentifier = new JobIdentifier(1L);
+    AzureInstance instance = new AzureInstance(null, null, null, DateTime.now(),
+        null, null, null, null, null, null,
+        null, null,
+        Collections.singletonMap(ELASTIC_PROFILE_TAG_KEY, elasticProfile.hash()), Platform.LINUX);
+
+    HashMap<String, String> tags = new HashMap<>(instance.getTags());
+    tags.put(JOB_IDENTIFIER_TAG_KEY, jobIdentifier.hash());
+    AzureInstance assigned = instance.withTags(tags);
+
+    assertTrue(instance.canBeAssigned(elasticProfile.hash()));
+    assertNull(instance.assignedJobHash());
+    assertFalse(assigned.canBeAssigned(elasticProfile.hash()));
+    assertEquals(jobIdentifier.hash(), assigned.assignedJobHash());
+    assertTrue(assigned.jobIdentifierMatches(jobIdentifier));
+  }
+
+  @Test
+  void shouldNotMatchJobOrProfileWhenTheirTagsAreMissing() {
+    AzureInstance instance = new AzureInstance(null, null, null, DateTime.now(),
+        null, null, null, null, null, null,
+        null, null, Collections.emptyMap(), Platform.LINUX);
+
+    assertFalse(instance.jobIdentifierMatches(new JobIdentifier(1L)));
+    assertFalse(instance.elasticProfileMatches(new ElasticProfile()));
+    assertNull(instance.elasticProfileHash());
+  }
+
+  @Test
+  void shouldTreatMalformedTimingTagsAsMissing() {
+    HashMap<String, String> tags = new HashMap<>();
+    tags.put(LAST_JOB_RUN_TAG_KEY, "yesterday");
+    tags.put(IDLE_TIMEOUT, "ten");
+
+    AzureInstance instance = new AzureInstance(null, null, null, DateTime.now().minusMinutes(1),
+        null, null, null, null, null, null,
+        null, null, tags, Platform.LINUX);
+
+    assertTrue(instance.isIdleAfterIdleTimeout());
+    assertFalse(instance.canBeTerminated());
+  }
+
   private String getMillis(DateTime lastJobRunTime) {
     return String.valueOf(lastJobRunTime.toInstant().getMillis());
   }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.sun.net.httpserver.HttpServer;
+import com.thoughtworks.gocd.elasticagent.azure.utils.HttpUtil;
+import org.joda.time.Period;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DownloadUrlResolverTest {
+
+  private static final String FALLBACK = "https://download.gocd.org/binaries/22.3.0-15301/generic/go-agent-22.3.0-15301.zip";
+
+  private HttpServer mirror;
+  private AtomicInteger requests;
+  private Clock.TestClock clock;
+  private DownloadUrlResolver resolver;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    requests = new AtomicInteger();
+    mirror = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    mirror.createContext("/binaries/", exchange -> {
+      requests.incrementAndGet();
+      int status = exchange.getRequestURI().getPath().contains("23.1.0") ? 200 : 404;
+      exchange.sendResponseHeaders(status, -1);
+      exchange.close();
+    });
+    mirror.createContext("/slow/", exchange -> {
+      try {
+        Thread.sleep(2000);
+      } catch (InterruptedException ignored) {
+      }
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    });
+    mirror.start();
+    clock = new Clock.TestClock();
+    resolver = new DownloadUrlResolver(MoreExecutors.directExecutor(), clock, url -> HttpUtil.isValidUrl(url, 500, 500));
+  }
+
+  @AfterEach
+  void tearDown() {
+    mirror.stop(0);
+  }
+
+  @Test
+  void shouldResolvePublishedAgentFromTheMirror() {
+    String url = mirrorUrl("23.1.0");
+
+    assertEquals(url, resolver.resolve(url, FALLBACK));
+    assertEquals(url, resolver.resolve(url, FALLBACK));
+    assertEquals(1, requests.get());
+  }
+
+  @Test
+  void shouldRememberMissingAgentsUntilTheyExpire() {
+    String url = mirrorUrl("19.xyz");
+
+    assertEquals(FALLBACK, resolver.resolve(url, FALLBACK));
+    clock.forward(DownloadUrlResolver.UNAVAILABLE_TTL.minusSeconds(1));
+    assertEquals(FALLBACK, resolver.resolve(url, FALLBACK));
+    assertEquals(1, requests.get());
+
+    clock.forward(Period.seconds(1));
+    assertEquals(FALLBACK, resolver.resolve(url, FALLBACK));
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  void shouldCheckPublishedAgentsAgainAfterTheyExpire() {
+    String url = mirrorUrl("23.1.0");
+    resolver.resolve(url, FALLBACK);
+
+    clock.forward(DownloadUrlResolver.AVAILABLE_TTL);
+
+    assertEquals(url, resolver.resolve(url, FALLBACK));
+    assertEquals(2, requests.get());
+  }
+
+  @Test
+  void shouldGiveUpOnSlowMirrors() {
+    String url = String.format("http://127.0.0.1:%d/slow/go-agent.zip", mirror.getAddress().getPort());
+    long start = System.currentTimeMillis();
+
+    assertEquals(FALLBACK, resolver.resolve(url, FALLBACK));
+    assertTrue(System.currentTimeMillis() - start < 2000);
+  }
+
+  @Test
+  void shouldWaitForTheFirstCheckOfAUrl() {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      DownloadUrlResolver resolver = new DownloadUrlResolver(executor, clock, url -> HttpUtil.isValidUrl(url, 500, 500));
+      String url = mirrorUrl("23.1.0");
+
+      assertEquals(url, resolver.resolve(url, FALLBACK));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void shouldWaitForTheFirstCheckOnlyUntilTheTimeout() {
+    DownloadUrlResolver resolver = new DownloadUrlResolver(check -> {
+    }, clock, url -> true, Period.millis(100));
+    long start = System.currentTimeMillis();
+
+    assertEquals(FALLBACK, resolver.resolve(mirrorUrl("23.1.0"), FALLBACK));
+    assertTrue(System.currentTimeMillis() - start < 2000);
+  }
+
+  @Test
+  void shouldNotWaitForLaterChecksAndServeTheLastAnswerWhileTheyRun() {
+    List<Runnable> checks = new ArrayList<>();
+    DownloadUrlResolver resolver = new DownloadUrlResolver(checks::add, clock, url -> true, Period.millis(10));
+    String url = mirrorUrl("23.1.0");
+
+    assertEquals(FALLBACK, resolver.resolve(url, FALLBACK));
+    assertEquals(FALLBACK, resolver.resolve(url, FALLBACK));
+    assertEquals(1, checks.size());
+
+    checks.remove(0).run();
+    assertEquals(url, resolver.resolve(url, FALLBACK));
+
+    clock.forward(DownloadUrlResolver.AVAILABLE_TTL);
+    assertEquals(url, resolver.resolve(url, FALLBACK));
+    assertEquals(1, checks.size());
+  }
+
+  @Test
+  void shouldPrefetchUrlsInTheBackground() {
+    List<Runnable> checks = new ArrayList<>();
+    DownloadUrlResolver resolver = new DownloadUrlResolver(checks::add, clock, url -> true);
+    String url = mirrorUrl("23.1.0");
+
+    resolver.prefetch(url);
+    checks.remove(0).run();
+
+    assertEquals(url, resolver.resolve(url, FALLBACK));
+    assertEquals(0, checks.size());
+  }
+
+  @Test
+  void shouldStopCheckingAndForgetKnownUrlsOnShutdown() {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    DownloadUrlResolver resolver = new DownloadUrlResolver(executor, clock, url -> true);
+    String url = mirrorUrl("23.1.0");
+    assertEquals(url, resolver.resolve(url, FALLBACK));
+
+    resolver.shutdown();
+
+    assertTrue(executor.isShutdown());
+    assertEquals(FALLBACK, resolver.resolve(url, FALLBACK));
+  }
+
+  private String mirrorUrl(String version) {
+    return DownloadUrls.url(DownloadUrls.GO_AGENT_LINUX_DOWNLOAD_URL_FORMAT, String.format("http://127.0.0.1:%d/", mirror.getAddress().getPort()), version);
+  }
+}
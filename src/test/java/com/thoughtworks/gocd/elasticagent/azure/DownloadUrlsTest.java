@@ -16,29 +16,40 @@
 
 package com.thoughtworks.gocd.elasticagent.azure;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 class DownloadUrlsTest {
+  private final DownloadUrlResolver resolver = new DownloadUrlResolver();
+
+  @AfterEach
+  void tearDown() {
+    resolver.shutdown();
+  }
 
   @Test
   void testLinuxGoAgentDownloadUrlShouldFetchDefaultURLForVersionNotPublished() {
-    assertEquals("https://download.gocd.org/binaries/22.3.0-15301/generic/go-agent-22.3.0-15301.zip", DownloadUrls.linuxGoAgent("not valid"));
+    assertEquals("https://download.gocd.org/binaries/22.3.0-15301/generic/go-agent-22.3.0-15301.zip", DownloadUrls.linuxGoAgent(resolver, null, "not valid"));
   }
 
   @Test
   void testWindowsGoAgentDownloadUrlShouldFetchDefaultURLForVersionNotPublished() {
-    assertEquals("https://download.gocd.org/binaries/22.3.0-15301/win/go-agent-22.3.0-15301-jre-64bit-setup.exe", DownloadUrls.windowsGoAgent("19.xyz"));
+    assertEquals("https://download.gocd.org/binaries/22.3.0-15301/win/go-agent-22.3.0-15301-jre-64bit-setup.exe", DownloadUrls.windowsGoAgent(resolver, null, "19.xyz"));
   }
 
   @Test
-  void testWindowsGoAgentDownloadUrlShouldFetchURLForPublishedVersion() {
-    assertEquals("https://download.gocd.org/binaries/19.6.0-9515/win/go-agent-19.6.0-9515-jre-64bit-setup.exe", DownloadUrls.windowsGoAgent("19.6.0-9515"));
+  void testGoAgentDownloadUrlShouldFallBackToDefaultVersionOnTheMirror() {
+    assertEquals("http://mirror.example.com/gocd/binaries/22.3.0-15301/generic/go-agent-22.3.0-15301.zip", DownloadUrls.linuxGoAgent(resolver, "http://mirror.example.com/gocd/", "not valid"));
+    assertEquals("http://mirror.example.com/gocd/binaries/22.3.0-15301/win/go-agent-22.3.0-15301-jre-64bit-setup.exe", DownloadUrls.windowsGoAgent(resolver, "http://mirror.example.com/gocd", "19.xyz"));
   }
 
   @Test
-  void testLinuxGoAgentDownloadUrlShouldFetchURLForPublishedVersion() {
-    assertEquals("https://download.gocd.org/binaries/19.6.0-9515/generic/go-agent-19.6.0-9515.zip", DownloadUrls.linuxGoAgent("19.6.0-9515"));
+  void testGoAgentDownloadUrlShouldUseTheMirror() {
+    assertEquals("http://mirror.example.com/gocd/binaries/19.6.0-9515/win/go-agent-19.6.0-9515-jre-64bit-setup.exe",
+        DownloadUrls.url("%s/binaries/%s/win/go-agent-%s-jre-64bit-setup.exe", "http://mirror.example.com/gocd/", "19.6.0-9515"));
+    assertEquals("https://download.gocd.org/binaries/19.6.0-9515/generic/go-agent-19.6.0-9515.zip",
+        DownloadUrls.url(DownloadUrls.GO_AGENT_LINUX_DOWNLOAD_URL_FORMAT, "", "19.6.0-9515"));
   }
 }
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.thoughtworks.go.plugin.api.GoApplicationAccessor;
+import com.thoughtworks.go.plugin.api.request.DefaultGoPluginApiRequest;
+import com.thoughtworks.go.plugin.api.request.GoApiRequest;
+import com.thoughtworks.go.plugin.api.response.DefaultGoApiResponse;
+import com.thoughtworks.go.plugin.api.response.GoApiResponse;
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import com.thoughtworks.gocd.elasticagent.azure.client.FakeAzureResourceManager;
+import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
+import com.thoughtworks.gocd.elasticagent.azure.utils.Util;
+import org.joda.time.Period;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.thoughtworks.gocd.elasticagent.azure.Constants.*;
+import static com.thoughtworks.gocd.elasticagent.azure.client.FakeAzureResourceManager.*;
+
+/**
+ * Stands in for a GoCD server in front of {@link AzurePlugin}, which talks to a {@link FakeAzureResourceManager}.
+ * Pending jobs from a {@link SimulationTrace} are offered to idle agents through should-assign-work, or sent as
+ * create-agent requests, from many threads at once, and server-ping runs periodically as on a real server. A virtual
+ * machine registers as an agent once the plugin has started the agent on it with a run command and it has then been
+ * quiet for the registration delay.
+ */
+public class GoCDServerSimulator extends GoApplicationAccessor {
+
+  public static final String SERVER_ID = "simulated-gocd-server";
+  public static final String ENVIRONMENT = "simulated";
+  public static final String CREATE_AGENT = "cd.go.elastic-agent.create-agent";
+  public static final String SHOULD_ASSIGN_WORK = "cd.go.elastic-agent.should-assign-work";
+  public static final String JOB_COMPLETION = "cd.go.elastic-agent.job-completion";
+  public static final String SERVER_PING = "cd.go.elastic-agent.server-ping";
+  public static final Period SCHEDULING_INTERVAL = Period.millis(100);
+  public static final Period SERVER_PING_INTERVAL = Period.seconds(1);
+
+  private final FakeAzureResourceManager arm;
+  private final long registrationDelayMillis;
+  private final AzurePlugin plugin;
+  private final Map<String, SimulatedAgent> agents = new ConcurrentHashMap<>();
+  private final Set<String> deletedAgents = ConcurrentHashMap.newKeySet();
+  private final Map<String, SimulationReport.RequestStats> requests = new ConcurrentHashMap<>();
+  private final AtomicInteger healthMessages = new AtomicInteger();
+
+  public GoCDServerSimulator(FakeAzureResourceManager arm, Period registrationDelay) {
+    this.arm = arm;
+    this.registrationDelayMillis = registrationDelay.toStandardDuration().getMillis();
+    this.plugin = new AzurePlugin(arm::clientFactory);
+    plugin.initializeGoApplicationAccessor(this);
+  }
+
+  /**
+   * Plays the trace until every job has completed or the timeout passes, then waits for provisioning still in flight
+   * before counting the virtual machines left behind.
+   */
+  public SimulationReport run(SimulationTrace trace, int threads, Period timeout) throws InterruptedException {
+    ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gocd-simulator-%d").build());
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gocd-simulator-timer").build());
+    List<SimulatedJob> jobs = trace.jobs().stream().map(SimulatedJob::new).collect(Collectors.toList());
+    CountDownLatch completed = new CountDownLatch(jobs.size());
+    long start = System.currentTimeMillis();
+
+    timer.scheduleWithFixedDelay(() -> {
+      long elapsed = System.currentTimeMillis() - start;
+      for (SimulatedJob job : jobs) {
+        if (job.isPending(elapsed) && job.scheduling.compareAndSet(false, true)) {
+          workers.execute(() -> schedule(job, timer, workers, completed));
+        }
+      }
+    }, 0, SCHEDULING_INTERVAL.toStandardDuration().getMillis(), TimeUnit.MILLISECONDS);
+    long ping = SERVER_PING_INTERVAL.toStandardDuration().getMillis();
+    timer.scheduleWithFixedDelay(() -> workers.execute(() -> send(SERVER_PING, "")), ping, ping, TimeUnit.MILLISECONDS);
+
+    completed.await(timeout.toStandardDuration().getMillis(), TimeUnit.MILLISECONDS);
+    long elapsed = System.currentTimeMillis() - start;
+    timer.shutdownNow();
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.MINUTES);
+    plugin.onUnload(null);
+
+    Thread.sleep(registrationDelayMillis);
+    registerStartedAgents();
+    int leaked = (int) arm.virtualMachineIds().stream().filter(id -> !agents.containsKey(agentId(id))).count();
+    return new SimulationReport(Util.pluginVersion(), elapsed, jobs.size(), jobs.size() - (int) completed.getCount(),
+        arm.createdVirtualMachineCount(), leaked, healthMessages.get(), new TreeMap<>(requests));
+  }
+
+  @Override
+  public GoApiResponse submit(GoApiRequest request) {
+    switch (request.api()) {
+      case REQUEST_SERVER_GET_PLUGIN_SETTINGS:
+        return DefaultGoApiResponse.success(pluginSettings());
+      case REQUEST_SERVER_INFO:
+        return DefaultGoApiResponse.success(serverInfo());
+      case REQUEST_SERVER_LIST_AGENTS:
+        registerStartedAgents();
+        return DefaultGoApiResponse.success(Agent.toJSONArray(agents.values().stream().map(SimulatedAgent::toAgent).collect(Collectors.toList())));
+      case REQUEST_SERVER_DISABLE_AGENT:
+        Agent.fromJSONArray(request.requestBody()).forEach(agent -> agents.computeIfPresent(agent.elasticAgentId(), (id, simulated) -> simulated.disable()));
+        return DefaultGoApiResponse.success("");
+      case REQUEST_SERVER_DELETE_AGENT:
+        Agent.fromJSONArray(request.requestBody()).forEach(agent -> {
+          deletedAgents.add(agent.elasticAgentId());
+          agents.remove(agent.elasticAgentId());
+        });
+        return DefaultGoApiResponse.success("");
+      case REQUEST_ADD_SERVER_HEALTH_MESSAGES:
+        healthMessages.incrementAndGet();
+        return DefaultGoApiResponse.success("");
+      default:
+        return DefaultGoApiResponse.badRequest("Unsupported request " + request.api());
+    }
+  }
+
+  private void schedule(SimulatedJob job, ScheduledExecutorService timer, ExecutorService workers, CountDownLatch completed) {
+    try {
+      for (SimulatedAgent agent : agents.values()) {
+        if (!agent.claim()) {
+          continue;
+        }
+        GoPluginApiResponse response = send(SHOULD_ASSIGN_WORK, shouldAssignWork(agent, job));
+        if (response != null && "true".equals(response.responseBody())) {
+          job.assigned = true;
+          timer.schedule(() -> workers.execute(() -> {
+            send(JOB_COMPLETION, jobCompletion(agent, job));
+            agent.release();
+            completed.countDown();
+          }), job.durationMillis, TimeUnit.MILLISECONDS);
+          return;
+        }
+        agent.release();
+      }
+      send(CREATE_AGENT, createAgent(job));
+    } finally {
+      job.scheduling.set(false);
+    }
+  }
+
+  private GoPluginApiResponse send(String name, String body) {
+    DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest("elastic-agent", EXTENSION_API_VERSION, name);
+    request.setRequestBody(body);
+    long start = System.nanoTime();
+    GoPluginApiResponse response = null;
+    try {
+      response = plugin.handle(request);
+      return response;
+    } catch (Exception e) {
+      AzurePlugin.LOG.warn("Simulated " + name + " request failed", e);
+      return null;
+    } finally {
+      requests.computeIfAbsent(name, key -> new SimulationReport.RequestStats())
+          .record(System.nanoTime() - start, response == null || response.responseCode() != 200);
+    }
+  }
+
+  private void registerStartedAgents() {
+    long now = System.currentTimeMillis();
+    for (String id : arm.virtualMachineIds()) {
+      String agentId = agentId(id);
+      if (!agents.containsKey(agentId) && !deletedAgents.contains(agentId)
+          && !arm.commands(id).isEmpty() && now - arm.lastActivity(id) >= registrationDelayMillis) {
+        agents.putIfAbsent(agentId, new SimulatedAgent(agentId));
+      }
+    }
+  }
+
+  private static String agentId(String virtualMachineId) {
+    return virtualMachineId.substring(virtualMachineId.lastIndexOf('/') + 1);
+  }
+
+  private String pluginSettings() {
+    JsonObject settings = new JsonObject();
+    settings.addProperty("go_server_url", "https://gocd.example.com:8154/go");
+    settings.addProperty("auto_register_timeout", "10");
+    settings.addProperty("idle_timeout", "30");
+    settings.addProperty("domain", "simulated-tenant");
+    settings.addProperty("client_id", "simulated-client");
+    settings.addProperty("secret", "simulated-secret");
+    settings.addProperty("network_id", arm.networkId());
+    settings.addProperty("subnet", SUBNET);
+    settings.addProperty("network_security_group_id", arm.networkSecurityGroupId());
+    settings.addProperty("resource_group", RESOURCE_GROUP);
+    settings.addProperty("region_name", REGION);
+    settings.addProperty("linux_user_name", "gocd");
+    settings.addProperty("ssh_key", "ssh-rsa AAAAB3NzaC1yc2EAAAADAQABAAABAQC simulated");
+    settings.addProperty("windows_user_name", "gocd");
+    settings.addProperty("windows_password", "Simulated-Passw0rd");
+    return settings.toString();
+  }
+
+  private static String serverInfo() {
+    JsonObject info = new JsonObject();
+    info.addProperty("server_id", SERVER_ID);
+    info.addProperty("site_url", "http://gocd.example.com:8153/go");
+    info.addProperty("secure_site_url", "https://gocd.example.com:8154/go");
+    return info.toString();
+  }
+
+  private static JsonObject profile() {
+    JsonObject profile = new JsonObject();
+    profile.addProperty("vm_size", "Standard_D2s_v3");
+    profile.addProperty("vm_image_urn", "Canonical:UbuntuServer:16.04.0-LTS");
+    profile.addProperty("platform", "LINUX");
+    profile.addProperty("os_disk_storage_account_type", "Standard_LRS");
+    profile.addProperty("idle_timeout", "30");
+    profile.addProperty("os_disk_size", "30");
+    return profile;
+  }
+
+  private static String createAgent(SimulatedJob job) {
+    JsonObject request = new JsonObject();
+    request.addProperty("auto_register_key", "simulated-auto-register-key");
+    request.add("properties", profile());
+    request.addProperty("environment", ENVIRONMENT);
+    request.add("job_identifier", JsonParser.parseString(job.identifier.toJson()));
+    return request.toString();
+  }
+
+  private static String shouldAssignWork(SimulatedAgent agent, SimulatedJob job) {
+    JsonObject request = new JsonObject();
+    request.add("agent", JsonParser.parseString(Agent.toJSONArray(List.of(agent.toAgent()))).getAsJsonArray().get(0));
+    request.addProperty("environment", ENVIRONMENT);
+    request.add("properties", profile());
+    request.add("job_identifier", JsonParser.parseString(job.identifier.toJson()));
+    return request.toString();
+  }
+
+  private static String jobCompletion(SimulatedAgent agent, SimulatedJob job) {
+    JsonObject request = new JsonObject();
+    request.addProperty("elastic_agent_id", agent.id);
+    request.add("job_identifier", JsonParser.parseString(job.identifier.toJson()));
+    return request.toString();
+  }
+
+  private static class SimulatedJob {
+    private final JobIdentifier identifier;
+    private final long pendingAfterMillis;
+    private final long durationMillis;
+    private final AtomicBoolean scheduling = new AtomicBoolean();
+    private volatile boolean assigned;
+
+    SimulatedJob(SimulationTrace.Job job) {
+      this.identifier = job.getIdentifier();
+      this.pendingAfterMillis = job.getPendingAfterMillis();
+      this.durationMillis = job.getDurationMillis();
+    }
+
+    boolean isPending(long elapsedMillis) {
+      return !assigned && elapsedMillis >= pendingAfterMillis;
+    }
+  }
+
+  private static class SimulatedAgent {
+    private final String id;
+    private final AtomicBoolean building = new AtomicBoolean();
+    private volatile Agent.ConfigState configState = Agent.ConfigState.Enabled;
+
+    SimulatedAgent(String id) {
+      this.id = id;
+    }
+
+    boolean claim() {
+      return configState == Agent.ConfigState.Enabled && building.compareAndSet(false, true);
+    }
+
+    void release() {
+      building.set(false);
+    }
+
+    SimulatedAgent disable() {
+      configState = Agent.ConfigState.Disabled;
+      return this;
+    }
+
+    Agent toAgent() {
+      boolean busy = building.get();
+      return new Agent(id, busy ? Agent.AgentState.Building : Agent.AgentState.Idle,
+          busy ? Agent.BuildState.Building : Agent.BuildState.Idle, configState);
+    }
+  }
+}
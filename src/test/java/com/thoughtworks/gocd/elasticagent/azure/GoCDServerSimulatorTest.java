@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.thoughtworks.gocd.elasticagent.azure.client.FakeAzureResourceManager;
+import org.joda.time.Period;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class GoCDServerSimulatorTest {
+
+  @Test
+  void shouldRunEveryJobWithoutDuplicateOrLeakedVirtualMachines() throws Exception {
+    try (FakeAzureResourceManager arm = new FakeAzureResourceManager().withLatency(Period.millis(5), Period.millis(5))) {
+      GoCDServerSimulator simulator = new GoCDServerSimulator(arm, Period.millis(200));
+
+      SimulationReport report = simulator.run(SimulationTrace.generate(20, Period.seconds(2), Period.millis(300), 42), 8, Period.minutes(2));
+
+      assertThat(report.toString(), report.getCompletedJobs(), is(20));
+      assertThat(report.toString(), report.getCreatedVirtualMachines(), greaterThan(0L));
+      assertEquals(0, report.getDuplicateVirtualMachines(), report.toString());
+      assertEquals(0, report.getLeakedVirtualMachines(), report.toString());
+      assertThat(report.getRequests().get(GoCDServerSimulator.CREATE_AGENT).count(), greaterThan(0L));
+      assertThat(report.getRequests().get(GoCDServerSimulator.JOB_COMPLETION).count(), is(20L));
+    }
+  }
+
+  @Test
+  void shouldReplayTraceLines() {
+    SimulationTrace trace = SimulationTrace.replay(List.of(
+        "# pending_after_millis,pipeline,pipeline_counter,stage,job,duration_millis",
+        "500, build-linux, 7, test, unit, 2000",
+        "",
+        "100,build-linux,7,compile,jar,1000"));
+
+    assertThat(trace.jobs().size(), is(2));
+    assertThat(trace.jobs().get(0).getPendingAfterMillis(), is(100L));
+    assertThat(trace.jobs().get(0).getIdentifier().getRepresentation(), is("build-linux/7/compile/1/jar"));
+    assertThat(trace.jobs().get(1).getIdentifier().getRepresentation(), is("build-linux/7/test/1/unit"));
+    assertThat(trace.jobs().get(1).getDurationMillis(), is(2000L));
+  }
+
+  @Test
+  void shouldRejectMalformedTraceLines() {
+    assertThrows(IllegalArgumentException.class, () -> SimulationTrace.replay(List.of("100,build-linux,7")));
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.base.Ticker;
+import org.apache.commons.lang3.tuple.Pair;
+import org.joda.time.Period;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InstanceLeasesTest {
+
+  private final AtomicLong nanos = new AtomicLong(TimeUnit.SECONDS.toNanos(100));
+  private InstanceLeases leases;
+
+  @BeforeEach
+  void setUp() {
+    leases = new InstanceLeases(Period.seconds(30), new Ticker() {
+      @Override
+      public long read() {
+        return nanos.get();
+      }
+    });
+  }
+
+  @Test
+  void shouldLeaseAnAgentToOneJobAtATime() {
+    assertTrue(leases.acquire("agent-1", "job-1"));
+    assertTrue(leases.acquire("agent-1", "job-1"));
+    assertFalse(leases.acquire("agent-1", "job-2"));
+
+    assertEquals("agent-1", leases.leasedTo("job-1"));
+    assertNull(leases.leasedTo("job-2"));
+    assertEquals(1, leases.conflicts());
+  }
+
+  @Test
+  void shouldGrantAnExpiredLeaseToAnotherJob() {
+    leases.acquire("agent-1", "job-1");
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(30));
+
+    assertNull(leases.leasedTo("job-1"));
+    assertTrue(leases.acquire("agent-1", "job-2"));
+    assertEquals("agent-1", leases.leasedTo("job-2"));
+  }
+
+  @Test
+  void shouldRenewTheLeaseWhenTheSameJobAcquiresItAgain() {
+    leases.acquire("agent-1", "job-1");
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(20));
+    leases.acquire("agent-1", "job-1");
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(20));
+
+    assertFalse(leases.acquire("agent-1", "job-2"));
+  }
+
+  @Test
+  void shouldOnlyReleaseTheLeaseOfItsHolder() {
+    leases.acquire("agent-1", "job-1");
+
+    leases.release("agent-1", "job-2");
+    assertFalse(leases.acquire("agent-1", "job-2"));
+
+    leases.release("agent-1", "job-1");
+    assertTrue(leases.acquire("agent-1", "job-2"));
+
+    leases.release("agent-1");
+    assertNull(leases.leasedTo("job-2"));
+    assertEquals(0, leases.size());
+  }
+
+  @Test
+  void shouldReleaseThePreviousLeaseOfAJobThatLeasesAnotherAgent() {
+    leases.acquire("agent-1", "job-1");
+
+    assertTrue(leases.acquire("agent-2", "job-1"));
+
+    assertEquals("agent-2", leases.leasedTo("job-1"));
+    assertEquals(1, leases.size());
+    assertTrue(leases.acquire("agent-1", "job-2"));
+  }
+
+  @Test
+  void shouldKeepThePreviousLeaseWhenAnotherAgentCannotBeLeased() {
+    leases.acquire("agent-1", "job-1");
+    leases.acquire("agent-2", "job-2");
+
+    assertFalse(leases.acquire("agent-2", "job-1"));
+
+    assertEquals("agent-1", leases.leasedTo("job-1"));
+    assertEquals(2, leases.size());
+  }
+
+  @Test
+  void shouldLeaseEachAgentExactlyOnceUnderContention() throws Exception {
+    int agents = 100;
+    int threads = 32;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    Map<String, String> winners = new ConcurrentHashMap<>();
+    AtomicLong granted = new AtomicLong();
+    List<Future<?>> futures = new ArrayList<>();
+    try {
+      for (int thread = 0; thread < threads; thread++) {
+        String job = "job-" + thread;
+        futures.add(executor.submit(() -> {
+          start.await();
+          for (int agent = 0; agent < agents; agent++) {
+            if (leases.acquire("agent-" + agent, job)) {
+              granted.incrementAndGet();
+              assertNull(winners.put("agent-" + agent, job));
+            }
+          }
+          return null;
+        }));
+      }
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(agents, granted.get());
+    assertEquals(agents, winners.size());
+    assertEquals((long) agents * (threads - 1), leases.conflicts());
+  }
+
+  @Test
+  void shouldReportLeasesOnTheStatusReport() {
+    leases.acquire("agent-1", "job-1");
+    leases.acquire("agent-1", "job-2");
+
+    assertEquals(Pair.of(InstanceLeases.LEASED_AGENTS, "1"), leases.statusReportProperties().get(0));
+    assertEquals(Pair.of(InstanceLeases.LEASE_CONFLICTS, "1"), leases.statusReportProperties().get(1));
+  }
+}
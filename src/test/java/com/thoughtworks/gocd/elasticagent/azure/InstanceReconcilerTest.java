@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.joda.time.Period;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItems;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class InstanceReconcilerTest {
+
+  private ScheduledExecutorService scheduler;
+  private ScheduledFuture future;
+  private InstanceReconciler reconciler;
+
+  @BeforeEach
+  void setUp() {
+    scheduler = mock(ScheduledExecutorService.class);
+    future = mock(ScheduledFuture.class);
+    when(scheduler.scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class))).thenReturn(future);
+    reconciler = new InstanceReconciler(scheduler);
+  }
+
+  @Test
+  void shouldScheduleOnlyWhenTheIntervalChanges() {
+    reconciler.schedule(Period.minutes(5), () -> new InstanceReconciler.Drift(0, 0, 0));
+    reconciler.schedule(Period.minutes(5), () -> new InstanceReconciler.Drift(0, 0, 0));
+
+    verify(scheduler, times(1)).scheduleWithFixedDelay(any(Runnable.class), eq(300000L), eq(300000L), eq(TimeUnit.MILLISECONDS));
+
+    reconciler.schedule(Period.minutes(1), () -> new InstanceReconciler.Drift(0, 0, 0));
+
+    verify(future).cancel(false);
+    verify(scheduler).scheduleWithFixedDelay(any(Runnable.class), eq(60000L), eq(60000L), eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  void shouldStopReconcilingWhenTheIntervalIsZero() {
+    reconciler.schedule(Period.minutes(5), () -> new InstanceReconciler.Drift(0, 0, 0));
+    reconciler.schedule(Period.minutes(0), () -> new InstanceReconciler.Drift(0, 0, 0));
+
+    verify(future).cancel(false);
+    verify(scheduler, times(1)).scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class));
+  }
+
+  @Test
+  void shouldNotReconcileOnceStopped() {
+    reconciler.schedule(Period.minutes(5), () -> new InstanceReconciler.Drift(1, 0, 0));
+
+    reconciler.stop();
+    when(scheduler.isShutdown()).thenReturn(true);
+    reconciler.reconcile();
+    reconciler.schedule(Period.minutes(1), () -> new InstanceReconciler.Drift(1, 0, 0));
+
+    verify(scheduler).shutdown();
+    verify(scheduler, times(1)).scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class));
+    assertThat(reconciler.statusReportProperties(), hasItems(Pair.of(InstanceReconciler.RECONCILIATIONS, "0")));
+  }
+
+  @Test
+  void shouldRunTheLatestReconciliationAndCountTheDrift() {
+    reconciler.schedule(Period.minutes(5), () -> new InstanceReconciler.Drift(9, 9, 9));
+    reconciler.schedule(Period.minutes(5), () -> new InstanceReconciler.Drift(1, 2, 3));
+
+    reconciler.reconcile();
+    reconciler.reconcile();
+
+    assertThat(reconciler.statusReportProperties(), hasItems(
+        Pair.of(InstanceReconciler.RECONCILIATIONS, "2"),
+        Pair.of(InstanceReconciler.FAILED_RECONCILIATIONS, "0"),
+        Pair.of(InstanceReconciler.RECONCILED_ADDITIONS, "2"),
+        Pair.of(InstanceReconciler.RECONCILED_UPDATES, "4"),
+        Pair.of(InstanceReconciler.RECONCILED_REMOVALS, "6")));
+  }
+
+  @Test
+  void shouldCountFailedReconciliations() {
+    reconciler.schedule(Period.minutes(5), () -> {
+      throw new RuntimeException("Azure is down");
+    });
+
+    reconciler.reconcile();
+
+    assertThat(reconciler.statusReportProperties(), hasItems(
+        Pair.of(InstanceReconciler.RECONCILIATIONS, "0"),
+        Pair.of(InstanceReconciler.FAILED_RECONCILIATIONS, "1")));
+  }
+}
@@ -17,6 +17,7 @@
 package com.thoughtworks.gocd.elasticagent.azure;
 
 import com.microsoft.azure.management.resources.fluentcore.arm.Region;
+import com.thoughtworks.gocd.elasticagent.azure.client.InventorySnapshots;
 import org.joda.time.Period;
 import org.junit.jupiter.api.Test;
 
@@ -61,6 +62,26 @@ class PluginSettingsTest {
     assertEquals(new Period().withMinutes(0), pluginSettings.getIdleTimeoutPeriod());
   }
 
+  @Test
+  void shouldReturnReconcileIntervalPeriodIfConfigured() {
+    PluginSettings pluginSettings = PluginSettings.fromJSON("{ \"reconcile_interval\": \"0\" }");
+
+    assertEquals(new Period().withMinutes(0), pluginSettings.getReconcileIntervalPeriod());
+  }
+
+  @Test
+  void shouldReturnDefaultReconcileIntervalPeriodIfNotConfigured() {
+    PluginSettings pluginSettings = PluginSettings.fromJSON("{ \"client_id\": \"bob\" }");
+
+    assertEquals(InstanceReconciler.DEFAULT_INTERVAL, pluginSettings.getReconcileIntervalPeriod());
+  }
+
+  @Test
+  void shouldReturnInventoryStalenessPeriodInSeconds() {
+    assertEquals(new Period().withSeconds(15), PluginSettings.fromJSON("{ \"inventory_staleness\": \"15\" }").getInventoryStalenessPeriod());
+    assertEquals(InventorySnapshots.DEFAULT_STALENESS, PluginSettings.fromJSON("{}").getInventoryStalenessPeriod());
+  }
+
   @Test
   void shouldReturnRegionForRegionName() {
     PluginSettings pluginSettings = PluginSettings.fromJSON("{ \"region_name\": \"East US\" }");
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.thoughtworks.gocd.elasticagent.azure.exceptions.ProvisionFailedException;
+import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
+import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifierMother;
+import com.thoughtworks.gocd.elasticagent.azure.models.PluginHealthMessage;
+import com.thoughtworks.gocd.elasticagent.azure.models.ServerInfo;
+import com.thoughtworks.gocd.elasticagent.azure.requests.CreateAgentRequest;
+import com.thoughtworks.gocd.elasticagent.azure.requests.RequestFingerprintCache;
+import com.thoughtworks.gocd.elasticagent.azure.service.ServerHealthMessagingService;
+import org.apache.commons.lang3.tuple.Pair;
+import org.joda.time.Period;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+class ProvisioningEngineTest {
+
+  @Mock
+  private AzureAgentInstances agentInstances;
+
+  @Mock
+  private ServerHealthMessagingService serverHealthMessagingService;
+
+  @Mock
+  private RequestFingerprintCache requestFingerprintCache;
+
+  @Mock
+  private PluginSettings settings;
+
+  @Mock
+  private ServerInfo serverInfo;
+
+  private Clock.TestClock clock;
+  private JobIdentifier jobIdentifier;
+  private CreateAgentRequest request;
+
+  @BeforeEach
+  void setUp() {
+    openMocks(this);
+    clock = new Clock.TestClock();
+    jobIdentifier = JobIdentifierMother.get();
+    request = new CreateAgentRequest("key", null, null, jobIdentifier);
+  }
+
+  @Test
+  void shouldTrackProvisioningThroughEachStateUntilReady() throws Exception {
+    AzureInstance instance = mock(AzureInstance.class);
+    when(instance.getName()).thenReturn("vm-1");
+    when(agentInstances.create(eq(request), eq(settings), eq(serverInfo), any())).thenAnswer(invocation -> {
+      ProvisioningListener listener = invocation.getArgument(3);
+      listener.transitioned("vm-1", ProvisioningState.CREATING_VM);
+      listener.transitioned("vm-1", ProvisioningState.STARTING_AGENT);
+      return instance;
+    });
+
+    Provisioning provisioning = engine(MoreExecutors.newDirectExecutorService()).submit(request, settings, serverInfo);
+
+    assertEquals(ProvisioningState.READY, provisioning.getState());
+    assertEquals("vm-1", provisioning.getVmName());
+    verify(serverHealthMessagingService).clearHealthMessage(jobIdentifier.getJobRepresentation());
+  }
+
+  @Test
+  void shouldReportProvisionFailureAndAllowTheJobToBeRetried() throws Exception {
+    when(agentInstances.create(eq(request), eq(settings), eq(serverInfo), any()))
+        .thenThrow(new ProvisionFailedException(jobIdentifier, "provision failed"));
+    ProvisioningEngine engine = engine(MoreExecutors.newDirectExecutorService());
+
+    Provisioning provisioning = engine.submit(request, settings, serverInfo);
+
+    assertEquals(ProvisioningState.FAILED, provisioning.getState());
+    assertEquals("provision failed", provisioning.getError());
+    verify(serverHealthMessagingService).sendHealthMessage(eq(jobIdentifier.getJobRepresentation()), any(PluginHealthMessage.class));
+    verify(requestFingerprintCache).clear(jobIdentifier.hash());
+
+    assertNotSame(provisioning, engine.submit(request, settings, serverInfo));
+    verify(agentInstances, times(2)).create(eq(request), eq(settings), eq(serverInfo), any());
+  }
+
+  @Test
+  void shouldProvisionWarmPoolAgentsWithoutReusingAvailableInstances() throws Exception {
+    AzureInstance instance = mock(AzureInstance.class);
+    when(instance.getName()).thenReturn("vm-1");
+    when(agentInstances.provision(eq(request), eq(settings), eq(serverInfo), any())).thenReturn(instance);
+
+    Provisioning provisioning = engine(MoreExecutors.newDirectExecutorService()).submitWarm(request, settings, serverInfo);
+
+    assertEquals(ProvisioningState.READY, provisioning.getState());
+    verify(agentInstances, never()).create(any(), any(), any(), any());
+    verifyNoInteractions(serverHealthMessagingService);
+  }
+
+  @Test
+  void shouldNotReportWarmPoolProvisionFailuresToTheServer() throws Exception {
+    when(agentInstances.provision(eq(request), eq(settings), eq(serverInfo), any()))
+        .thenThrow(new ProvisionFailedException(jobIdentifier, "quota exceeded"));
+
+    Provisioning provisioning = engine(MoreExecutors.newDirectExecutorService()).submitWarm(request, settings, serverInfo);
+
+    assertEquals(ProvisioningState.FAILED, provisioning.getState());
+    assertEquals("quota exceeded", provisioning.getError());
+    verifyNoInteractions(serverHealthMessagingService);
+  }
+
+  @Test
+  void shouldNotProvisionTheSameJobTwiceWhileItIsInProgress() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AzureInstance instance = mock(AzureInstance.class);
+    when(agentInstances.create(eq(request), eq(settings), eq(serverInfo), any())).thenAnswer(invocation -> {
+      release.await();
+      return instance;
+    });
+    ExecutorService workers = Executors.newFixedThreadPool(2);
+    ProvisioningEngine engine = engine(workers);
+
+    Provisioning first = engine.submit(request, settings, serverInfo);
+    Provisioning second = engine.submit(new CreateAgentRequest("key", null, null, jobIdentifier), settings, serverInfo);
+    release.countDown();
+    engine.shutdown(Period.seconds(5));
+
+    assertSame(first, second);
+    assertTrue(workers.isTerminated());
+    assertEquals(ProvisioningState.READY, first.getState());
+    verify(agentInstances, times(1)).create(any(), any(), any(), any());
+  }
+
+  @Test
+  void shouldFailRequestsSubmittedAfterShutdown() {
+    ProvisioningEngine engine = engine(MoreExecutors.newDirectExecutorService());
+    engine.shutdown(Period.seconds(1));
+
+    Provisioning provisioning = engine.submit(request, settings, serverInfo);
+
+    assertEquals(ProvisioningState.FAILED, provisioning.getState());
+    verify(requestFingerprintCache).clear(jobIdentifier.hash());
+  }
+
+  @Test
+  void shouldListUnfinishedAndFailedProvisioningsInStatusReport() throws Exception {
+    when(agentInstances.create(eq(request), eq(settings), eq(serverInfo), any()))
+        .thenThrow(new ProvisionFailedException(jobIdentifier, "quota exceeded"));
+    ProvisioningEngine engine = engine(MoreExecutors.newDirectExecutorService());
+    engine.submit(request, settings, serverInfo);
+
+    List<Pair<String, String>> properties = engine.statusReportProperties();
+
+    assertEquals(Pair.of(ProvisioningEngine.PROVISIONINGS_IN_PROGRESS, "0"), properties.get(0));
+    assertEquals(Pair.of(ProvisioningEngine.PROVISIONINGS_FAILED, "1"), properties.get(1));
+    assertEquals(jobIdentifier.getRepresentation(), properties.get(4).getKey());
+    assertTrue(properties.get(4).getValue().startsWith("FAILED"));
+    assertTrue(properties.get(4).getValue().endsWith("quota exceeded"));
+  }
+
+  @Test
+  void shouldAverageResumeTimeSeparatelyFromProvisioningTime() throws Exception {
+    AzureInstance instance = mock(AzureInstance.class);
+    when(instance.getName()).thenReturn("vm-1");
+    CreateAgentRequest resumeRequest = new CreateAgentRequest("key", null, null, new JobIdentifier(42L));
+    when(agentInstances.create(eq(request), eq(settings), eq(serverInfo), any())).thenAnswer(invocation -> {
+      ((ProvisioningListener) invocation.getArgument(3)).transitioned("vm-1", ProvisioningState.CREATING_VM);
+      clock.forward(Period.minutes(4));
+      return instance;
+    });
+    when(agentInstances.create(eq(resumeRequest), eq(settings), eq(serverInfo), any())).thenAnswer(invocation -> {
+      ((ProvisioningListener) invocation.getArgument(3)).transitioned("vm-1", ProvisioningState.RESUMING_VM);
+      clock.forward(Period.seconds(50));
+      return instance;
+    });
+    ProvisioningEngine engine = engine(MoreExecutors.newDirectExecutorService());
+
+    engine.submit(request, settings, serverInfo);
+    Provisioning resumed = engine.submit(resumeRequest, settings, serverInfo);
+
+    assertTrue(resumed.isResumed());
+    List<Pair<String, String>> properties = engine.statusReportProperties();
+    assertTrue(properties.contains(Pair.of(ProvisioningEngine.AVERAGE_PROVISIONING_TIME, "240s over 1 agent(s)")));
+    assertTrue(properties.contains(Pair.of(ProvisioningEngine.AVERAGE_RESUME_TIME, "50s over 1 agent(s)")));
+  }
+
+  @Test
+  void shouldNotAverageRequestsAnsweredWithAnAvailableInstance() throws Exception {
+    AzureInstance instance = mock(AzureInstance.class);
+    when(instance.getName()).thenReturn("vm-1");
+    when(agentInstances.create(eq(request), eq(settings), eq(serverInfo), any())).thenReturn(instance);
+
+    ProvisioningEngine engine = engine(MoreExecutors.newDirectExecutorService());
+    engine.submit(request, settings, serverInfo);
+
+    assertTrue(engine.statusReportProperties().contains(Pair.of(ProvisioningEngine.AVERAGE_PROVISIONING_TIME, "-")));
+  }
+
+  @Test
+  void shouldForgetFinishedProvisioningsAfterRetentionPeriod() throws Exception {
+    when(agentInstances.create(eq(request), eq(settings), eq(serverInfo), any()))
+        .thenThrow(new ProvisionFailedException(jobIdentifier, "provision failed"));
+    ProvisioningEngine engine = engine(MoreExecutors.newDirectExecutorService());
+    engine.submit(request, settings, serverInfo);
+
+    clock.forward(ProvisioningEngine.FINISHED_RETENTION.plusMinutes(1));
+    engine.submit(new CreateAgentRequest("key", null, null, new JobIdentifier(42L)), settings, serverInfo);
+
+    assertEquals(1, engine.provisionings().size());
+  }
+
+  private ProvisioningEngine engine(ExecutorService workers) {
+    return new ProvisioningEngine(agentInstances, serverHealthMessagingService, requestFingerprintCache, workers, clock);
+  }
+}
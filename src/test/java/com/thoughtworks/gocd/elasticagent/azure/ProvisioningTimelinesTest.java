@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.base.Ticker;
+import org.apache.commons.lang3.tuple.Pair;
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.thoughtworks.gocd.elasticagent.azure.ProvisioningPhase.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProvisioningTimelinesTest {
+
+  private final AtomicLong nanos = new AtomicLong(TimeUnit.SECONDS.toNanos(100));
+  private Clock.TestClock clock;
+  private ProvisioningTimelines timelines;
+
+  @BeforeEach
+  void setUp() {
+    clock = new Clock.TestClock(new DateTime(2026, 1, 1, 12, 0, 0));
+    timelines = new ProvisioningTimelines(new Ticker() {
+      @Override
+      public long read() {
+        return nanos.get();
+      }
+    }, clock);
+  }
+
+  @Test
+  void shouldRecordPhasesAsOffsetsFromTheRequest() {
+    long receivedAt = nanos.get();
+    advance(2000);
+    ProvisioningTimeline timeline = timelines.start("vm-1", "profile", receivedAt);
+    advance(1000);
+    timelines.reached("vm-1", NIC_CREATED);
+    advance(30000);
+    timelines.reached("vm-1", VM_CREATED);
+    advance(5000);
+    timelines.reached("vm-1", VM_CREATED);
+
+    assertEquals(new DateTime(2026, 1, 1, 11, 59, 58), timeline.getReceivedAt());
+    assertEquals(0, timeline.offsetMillis(REQUEST_RECEIVED));
+    assertEquals(3000, timeline.offsetMillis(NIC_CREATED));
+    assertEquals(33000, timeline.offsetMillis(VM_CREATED));
+    assertFalse(timeline.hasReached(AGENT_STARTED));
+  }
+
+  @Test
+  void shouldRenderReachedPhasesAsAWaterfall() {
+    timelines.start("vm-1", "profile", nanos.get());
+    advance(10000);
+    timelines.reached("vm-1", VM_CREATED);
+    advance(30000);
+    timelines.reached("vm-1", AGENT_REGISTERED);
+
+    List<ProvisioningTimeline.Step> steps = timelines.get("vm-1").getSteps();
+
+    assertEquals(3, steps.size());
+    ProvisioningTimeline.Step registered = steps.get(2);
+    assertEquals("Agent registered", registered.getLabel());
+    assertEquals("10.0s", registered.getStartedAfter());
+    assertEquals("30.0s", registered.getTook());
+    assertEquals("25.00", registered.getOffsetPercent());
+    assertEquals("75.00", registered.getWidthPercent());
+  }
+
+  @Test
+  void shouldAggregatePhaseDurationsPerProfile() {
+    for (int i = 1; i <= 4; i++) {
+      timelines.start("vm-" + i, "linux", nanos.get());
+      advance(i * 3);
+      timelines.reached("vm-" + i, VM_CREATED);
+      advance(1);
+      timelines.reached("vm-" + i, AGENT_STARTED);
+    }
+    timelines.reached("unknown-vm", VM_CREATED);
+
+    assertEquals(List.of(Pair.of("Provisioning phases linux", "VM created p50 6ms p95 12ms, Agent started p50 1ms p95 1ms")),
+        timelines.statusReportProperties());
+  }
+
+  @Test
+  void shouldNotRecordPhasesAfterTheLastPhaseOfTheTimeline() {
+    timelines.start("vm-1", "warm", nanos.get(), AGENT_REGISTERED);
+    advance(1000);
+    timelines.reached("vm-1", AGENT_REGISTERED);
+    advance(60000);
+    timelines.reached("vm-1", FIRST_JOB_ASSIGNED);
+
+    assertTrue(timelines.get("vm-1").hasReached(AGENT_REGISTERED));
+    assertFalse(timelines.get("vm-1").hasReached(FIRST_JOB_ASSIGNED));
+    assertEquals(List.of(Pair.of("Provisioning phases warm", "Agent registered p50 1000ms p95 1000ms")), timelines.statusReportProperties());
+  }
+
+  @Test
+  void shouldForgetRemovedTimelines() {
+    timelines.start("vm-1", "profile", nanos.get());
+    timelines.remove("vm-1");
+
+    timelines.reached("vm-1", VM_CREATED);
+
+    assertNull(timelines.get("vm-1"));
+    assertTrue(timelines.statusReportProperties().isEmpty());
+  }
+
+  private void advance(long millis) {
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.thoughtworks.gocd.elasticagent.azure.metrics.Histogram;
+import lombok.Getter;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What a {@link GoCDServerSimulator} run measured for one plugin build: request throughput and latencies as GoCD saw
+ * them, and the virtual machines created beyond one per job or left behind without a registered agent.
+ */
+@Getter
+public class SimulationReport {
+
+  private final String pluginVersion;
+  private final long elapsedMillis;
+  private final int jobs;
+  private final int completedJobs;
+  private final long createdVirtualMachines;
+  private final int leakedVirtualMachines;
+  private final int healthMessages;
+  private final Map<String, RequestStats> requests;
+
+  SimulationReport(String pluginVersion, long elapsedMillis, int jobs, int completedJobs, long createdVirtualMachines,
+                   int leakedVirtualMachines, int healthMessages, Map<String, RequestStats> requests) {
+    this.pluginVersion = pluginVersion;
+    this.elapsedMillis = elapsedMillis;
+    this.jobs = jobs;
+    this.completedJobs = completedJobs;
+    this.createdVirtualMachines = createdVirtualMachines;
+    this.leakedVirtualMachines = leakedVirtualMachines;
+    this.healthMessages = healthMessages;
+    this.requests = requests;
+  }
+
+  public long getDuplicateVirtualMachines() {
+    return Math.max(0, createdVirtualMachines - jobs);
+  }
+
+  public double getRequestsPerSecond() {
+    long total = requests.values().stream().mapToLong(RequestStats::count).sum();
+    return elapsedMillis == 0 ? 0 : total * 1000.0 / elapsedMillis;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("Plugin %s: %d/%d jobs completed in %dms, %.1f requests/s%n",
+        pluginVersion, completedJobs, jobs, elapsedMillis, getRequestsPerSecond()));
+    report.append(String.format("VMs created %d, duplicate %d, leaked %d, health messages %d%n",
+        createdVirtualMachines, getDuplicateVirtualMachines(), leakedVirtualMachines, healthMessages));
+    requests.forEach((name, stats) -> report.append(String.format("%s: %s%n", name, stats)));
+    return report.toString();
+  }
+
+  /**
+   * Latencies of one request type, in microseconds.
+   */
+  public static class RequestStats {
+    private final Histogram latencies = new Histogram();
+    private final LongAdder failures = new LongAdder();
+
+    void record(long nanos, boolean failed) {
+      latencies.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+      if (failed) {
+        failures.increment();
+      }
+    }
+
+    public long count() {
+      return latencies.count();
+    }
+
+    public long failures() {
+      return failures.sum();
+    }
+
+    public long percentileMillis(double fraction) {
+      return TimeUnit.MICROSECONDS.toMillis(latencies.percentile(fraction));
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d requests, %d failed, p50 %dms, p95 %dms, p99 %dms, max %dms", count(), failures(),
+          percentileMillis(0.5), percentileMillis(0.95), percentileMillis(0.99), TimeUnit.MICROSECONDS.toMillis(latencies.max()));
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
+import lombok.Getter;
+import org.joda.time.Period;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The jobs a GoCD server schedules on elastic agents: when each job becomes pending, relative to the start of a
+ * simulation, and how long it then builds. Traces are generated, or replayed from lines of
+ * <code>pending_after_millis,pipeline,pipeline_counter,stage,job,duration_millis</code>.
+ */
+public class SimulationTrace {
+
+  private final List<Job> jobs;
+
+  private SimulationTrace(List<Job> jobs) {
+    jobs.sort(Comparator.comparingLong(Job::getPendingAfterMillis));
+    this.jobs = jobs;
+  }
+
+  /**
+   * Jobs becoming pending at random within the arrival window, each building for half to one and a half times the
+   * duration. The same seed always generates the same trace.
+   */
+  public static SimulationTrace generate(int count, Period arrivalWindow, Period duration, long seed) {
+    Random random = new Random(seed);
+    long window = arrivalWindow.toStandardDuration().getMillis();
+    long millis = duration.toStandardDuration().getMillis();
+    List<Job> jobs = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      long pipelineCounter = i / 20 + 1;
+      JobIdentifier identifier = new JobIdentifier("pipeline-" + i % 20, pipelineCounter, Long.toString(pipelineCounter),
+          "build", "1", "job-" + i, (long) i + 1);
+      jobs.add(new Job(identifier, window == 0 ? 0 : (long) (random.nextDouble() * window), millis / 2 + (long) (random.nextDouble() * millis)));
+    }
+    return new SimulationTrace(jobs);
+  }
+
+  public static SimulationTrace replay(List<String> lines) {
+    List<Job> jobs = new ArrayList<>();
+    for (String line : lines) {
+      if (line.isBlank() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.trim().split("\\s*,\\s*");
+      if (fields.length != 6) {
+        throw new IllegalArgumentException("Expected 6 fields in trace line: " + line);
+      }
+      long pipelineCounter = Long.parseLong(fields[2]);
+      JobIdentifier identifier = new JobIdentifier(fields[1], pipelineCounter, fields[2], fields[3], "1", fields[4], (long) jobs.size() + 1);
+      jobs.add(new Job(identifier, Long.parseLong(fields[0]), Long.parseLong(fields[5])));
+    }
+    return new SimulationTrace(jobs);
+  }
+
+  public List<Job> jobs() {
+    return jobs;
+  }
+
+  @Getter
+  public static class Job {
+    private final JobIdentifier identifier;
+    private final long pendingAfterMillis;
+    private final long durationMillis;
+
+    Job(JobIdentifier identifier, long pendingAfterMillis, long durationMillis) {
+      this.identifier = identifier;
+      this.pendingAfterMillis = pendingAfterMillis;
+      this.durationMillis = durationMillis;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
+import com.thoughtworks.gocd.elasticagent.azure.models.Platform;
+import org.apache.commons.lang3.tuple.Pair;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StoppedPoolTest {
+
+  private Clock.TestClock clock;
+  private StoppedPool stoppedPool;
+  private ElasticProfile profile;
+
+  @BeforeEach
+  void setUp() {
+    clock = new Clock.TestClock();
+    stoppedPool = new StoppedPool(MoreExecutors.newDirectExecutorService(), clock);
+    profile = profile("2", "60");
+  }
+
+  @Test
+  void shouldNotReserveRoomForInstancesOfUnknownProfiles() {
+    assertFalse(stoppedPool.reserve(instance("vm-1", profile, clock.now())));
+  }
+
+  @Test
+  void shouldReserveRoomUpToTheMaximumParkedCountOfTheProfile() {
+    stoppedPool.remember(profile);
+
+    assertTrue(stoppedPool.reserve(instance("vm-1", profile, clock.now())));
+    stoppedPool.parked(instance("vm-1", profile, clock.now()));
+    assertTrue(stoppedPool.reserve(instance("vm-2", profile, clock.now())));
+    assertFalse(stoppedPool.reserve(instance("vm-3", profile, clock.now())));
+
+    stoppedPool.release("vm-2");
+    assertTrue(stoppedPool.reserve(instance("vm-3", profile, clock.now())));
+  }
+
+  @Test
+  void shouldNotReserveRoomWhenTheProfileHasNoStoppedPool() {
+    ElasticProfile withoutPool = profile(null, null);
+    stoppedPool.remember(withoutPool);
+
+    assertFalse(stoppedPool.reserve(instance("vm-1", withoutPool, clock.now())));
+  }
+
+  @Test
+  void shouldClaimTheMostRecentlyParkedInstanceOfTheProfileAndEnvironment() {
+    stoppedPool.remember(profile);
+    AzureInstance older = instance("vm-1", profile, clock.now().minusMinutes(10));
+    AzureInstance newer = instance("vm-2", profile, clock.now().minusMinutes(5));
+    stoppedPool.register(older);
+    stoppedPool.register(newer);
+
+    assertEquals(Optional.of(newer), stoppedPool.claim(profile, "prod"));
+    assertEquals(Optional.of(older), stoppedPool.claim(profile, "prod"));
+    assertEquals(Optional.empty(), stoppedPool.claim(profile, "prod"));
+  }
+
+  @Test
+  void shouldNotClaimInstancesOfAnotherEnvironment() {
+    stoppedPool.remember(profile);
+    stoppedPool.register(instance("vm-1", profile, clock.now()));
+
+    assertEquals(Optional.empty(), stoppedPool.claim(profile, "test"));
+  }
+
+  @Test
+  void shouldExpireInstancesParkedLongerThanTheMaximumParkedAge() {
+    stoppedPool.remember(profile);
+    AzureInstance expired = instance("vm-1", profile, clock.now().minusMinutes(61));
+    AzureInstance fresh = instance("vm-2", profile, clock.now().minusMinutes(59));
+    stoppedPool.register(expired);
+    stoppedPool.register(fresh);
+
+    assertEquals(Collections.singletonList(expired), stoppedPool.expired());
+    assertEquals(Optional.of(fresh), stoppedPool.claim(profile, "prod"));
+  }
+
+  @Test
+  void shouldKeepInstancesOfUnknownProfilesForTheDefaultMaximumParkedAge() {
+    stoppedPool.register(instance("vm-1", profile, clock.now()));
+
+    assertTrue(stoppedPool.expired().isEmpty());
+
+    clock.forward(ElasticProfile.DEFAULT_MAX_PARKED_AGE.plus(Period.minutes(1)));
+    assertEquals(1, stoppedPool.expired().size());
+  }
+
+  @Test
+  void shouldReportParkedAndParkingInstances() {
+    stoppedPool.remember(profile);
+    stoppedPool.register(instance("vm-1", profile, clock.now()));
+    stoppedPool.reserve(instance("vm-2", profile, clock.now()));
+
+    assertEquals(Pair.of(StoppedPool.PARKED_AGENTS, "1"), stoppedPool.statusReportProperties().get(0));
+    assertEquals(Pair.of(StoppedPool.PARKING_AGENTS, "1"), stoppedPool.statusReportProperties().get(1));
+  }
+
+  @Test
+  void shouldWaitForParksInProgressWhenShutDown() {
+    ExecutorService workers = Executors.newSingleThreadExecutor();
+    StoppedPool pool = new StoppedPool(workers, clock);
+    pool.remember(profile);
+    AzureInstance instance = instance("vm-1", profile, clock.now());
+    assertTrue(pool.reserve(instance));
+    pool.execute(() -> {
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      pool.parked(instance);
+    });
+
+    assertEquals(0, pool.shutdown(Period.seconds(5)));
+    assertTrue(workers.isTerminated());
+    assertTrue(pool.holds("vm-1"));
+  }
+
+  @Test
+  void shouldReturnTheParksStillInProgressWhenShutdownTimesOut() throws Exception {
+    CountDownLatch releasePark = new CountDownLatch(1);
+    ExecutorService workers = Executors.newSingleThreadExecutor();
+    StoppedPool pool = new StoppedPool(workers, clock);
+    pool.remember(profile);
+    assertTrue(pool.reserve(instance("vm-1", profile, clock.now())));
+    pool.execute(() -> {
+      try {
+        releasePark.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    assertEquals(1, pool.shutdown(Period.millis(100)));
+    releasePark.countDown();
+  }
+
+  private ElasticProfile profile(String maxParked, String maxParkedAge) {
+    return new ElasticProfile("Standard_D3_v2", "Canonical:UbuntuServer:16.04-LTS:latest", null, null, Platform.LINUX,
+        "Standard_LRS", "30", null, null).withStoppedPool(maxParked, maxParkedAge);
+  }
+
+  private AzureInstance instance(String name, ElasticProfile profile, DateTime parkedAt) {
+    AzureInstance instance = mock(AzureInstance.class);
+    when(instance.getName()).thenReturn(name);
+    when(instance.elasticProfileMatches(profile.hash())).thenReturn(true);
+    when(instance.getEnvironment()).thenReturn("prod");
+    when(instance.getParkedAt()).thenReturn(parkedAt);
+    return instance;
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.thoughtworks.gocd.elasticagent.azure.client.GoCDAzureClient;
+import com.thoughtworks.gocd.elasticagent.azure.client.TagChanges;
+import org.joda.time.Period;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+class TagSyncerTest {
+
+  @Mock
+  private GoCDAzureClient client;
+
+  private ScheduledThreadPoolExecutor workers;
+  private TagSyncer tagSyncer;
+
+  @BeforeEach
+  void setUp() {
+    openMocks(this);
+    workers = new ScheduledThreadPoolExecutor(1);
+    tagSyncer = new TagSyncer(workers, 3, Period.millis(1));
+  }
+
+  @AfterEach
+  void tearDown() {
+    workers.shutdownNow();
+  }
+
+  @Test
+  void shouldWriteTagChangesInTheBackground() {
+    Map<String, String> tags = Collections.singletonMap("job-identifier", "job-hash");
+    TagChanges changes = new TagChanges().remove("job-identifier");
+
+    tagSyncer.submit(client, "vm-id", tags, changes);
+
+    verify(client, timeout(5000)).updateTags("vm-id", tags, changes);
+    waitUntilNothingIsPending();
+    assertEquals(1, tagSyncer.completed());
+  }
+
+  @Test
+  void shouldCoalesceChangesMadeWhileAWriteIsInFlight() throws Exception {
+    CountDownLatch firstWriteStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+    Map<String, String> tags = Collections.emptyMap();
+    Map<String, String> tagsAfterFirstWrite = Collections.singletonMap("job-identifier", "job-hash");
+    when(client.updateTags(eq("vm-id"), eq(tags), any())).thenAnswer(invocation -> {
+      firstWriteStarted.countDown();
+      releaseFirstWrite.await();
+      return tagsAfterFirstWrite;
+    });
+
+    tagSyncer.submit(client, "vm-id", tags, new TagChanges().set("job-identifier", "job-hash"));
+    firstWriteStarted.await();
+    tagSyncer.submit(client, "vm-id", tagsAfterFirstWrite, new TagChanges().set("last-job-run", "1000"));
+    tagSyncer.submit(client, "vm-id", tagsAfterFirstWrite, new TagChanges().remove("job-identifier"));
+    releaseFirstWrite.countDown();
+
+    TagChanges coalesced = new TagChanges().set("last-job-run", "1000").remove("job-identifier");
+    verify(client, timeout(5000)).updateTags("vm-id", tagsAfterFirstWrite, coalesced);
+    waitUntilNothingIsPending();
+    verify(client, times(2)).updateTags(eq("vm-id"), anyMap(), any());
+  }
+
+  @Test
+  void shouldTellTheVmsWrittenToSinceAMark() {
+    Map<String, String> tags = Collections.emptyMap();
+    TagChanges changes = new TagChanges().set("last-job-run", "1000");
+    tagSyncer.submit(client, "vm-1", tags, changes);
+    waitUntilNothingIsPending();
+    long mark = tagSyncer.mark();
+
+    tagSyncer.submit(client, "vm-2", tags, changes);
+    waitUntilNothingIsPending();
+
+    assertTrue(tagSyncer.isPendingOrWrittenSince("vm-1", mark - 1));
+    assertFalse(tagSyncer.isPendingOrWrittenSince("vm-1", mark));
+    assertTrue(tagSyncer.isPendingOrWrittenSince("vm-2", mark));
+    tagSyncer.discard("vm-2");
+    assertFalse(tagSyncer.isPendingOrWrittenSince("vm-2", mark));
+  }
+
+  @Test
+  void shouldRetryFailedWritesAndGiveUpAfterMaxAttempts() {
+    Map<String, String> tags = new HashMap<>();
+    TagChanges changes = new TagChanges().set("last-job-run", "1000");
+    when(client.updateTags("vm-id", tags, changes)).thenThrow(new RuntimeException("throttled"));
+
+    tagSyncer.submit(client, "vm-id", tags, changes);
+
+    verify(client, timeout(5000).times(3)).updateTags("vm-id", tags, changes);
+    waitUntilNothingIsPending();
+    assertEquals(1, tagSyncer.failed());
+  }
+
+  @Test
+  void shouldNotWriteTagsOfDiscardedVm() throws Exception {
+    ScheduledThreadPoolExecutor pausedWorkers = new ScheduledThreadPoolExecutor(1);
+    CountDownLatch paused = new CountDownLatch(1);
+    pausedWorkers.submit(() -> {
+      paused.await();
+      return null;
+    });
+    TagSyncer syncer = new TagSyncer(pausedWorkers, 3, Period.millis(1));
+
+    syncer.submit(client, "vm-id", Collections.emptyMap(), new TagChanges().set("last-job-run", "1000"));
+    syncer.discard("vm-id");
+    paused.countDown();
+    pausedWorkers.shutdown();
+    pausedWorkers.awaitTermination(5, TimeUnit.SECONDS);
+
+    verifyNoInteractions(client);
+    assertEquals(0, syncer.pending());
+  }
+
+  @Test
+  void shouldWaitForPendingWritesWhenFlushed() {
+    Map<String, String> tags = Collections.emptyMap();
+    TagChanges changes = new TagChanges().set("last-job-run", "1000");
+    when(client.updateTags("vm-id", tags, changes)).thenAnswer(invocation -> {
+      Thread.sleep(200);
+      return changes.applyTo(tags);
+    });
+
+    tagSyncer.submit(client, "vm-id", tags, changes);
+
+    assertEquals(0, tagSyncer.flush(Period.seconds(5)));
+    assertEquals(1, tagSyncer.completed());
+    assertTrue(workers.isShutdown());
+  }
+
+  @Test
+  void shouldReturnTheWritesStillPendingWhenFlushTimesOut() throws Exception {
+    CountDownLatch releaseWrite = new CountDownLatch(1);
+    when(client.updateTags(eq("vm-id"), anyMap(), any())).thenAnswer(invocation -> {
+      releaseWrite.await();
+      return Collections.emptyMap();
+    });
+
+    tagSyncer.submit(client, "vm-id", Collections.emptyMap(), new TagChanges().set("last-job-run", "1000"));
+
+    assertEquals(1, tagSyncer.flush(Period.millis(100)));
+    releaseWrite.countDown();
+  }
+
+  private void waitUntilNothingIsPending() {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (tagSyncer.pending() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.yield();
+    }
+    assertEquals(0, tagSyncer.pending());
+  }
+}
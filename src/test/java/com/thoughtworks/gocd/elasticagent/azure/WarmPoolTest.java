@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure;
+
+import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
+import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifierMother;
+import com.thoughtworks.gocd.elasticagent.azure.models.Platform;
+import com.thoughtworks.gocd.elasticagent.azure.models.ServerInfo;
+import com.thoughtworks.gocd.elasticagent.azure.requests.CreateAgentRequest;
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+class WarmPoolTest {
+
+  @Mock
+  private AzureAgentInstances agentInstances;
+
+  @Mock
+  private ProvisioningEngine provisioningEngine;
+
+  @Mock
+  private PluginSettings settings;
+
+  @Mock
+  private ServerInfo serverInfo;
+
+  private Clock.TestClock clock;
+  private WarmPool warmPool;
+
+  @BeforeEach
+  void setUp() {
+    openMocks(this);
+    clock = new Clock.TestClock();
+    warmPool = new WarmPool(agentInstances, provisioningEngine, clock);
+    when(provisioningEngine.submitWarm(any(), any(), any())).thenAnswer(invocation -> new Provisioning(JobIdentifierMother.get(), clock.now()));
+  }
+
+  @Test
+  void shouldProvisionAgentsUpToTheMinimumIdleCount() {
+    ElasticProfile profile = profile("2", null, null);
+    when(agentInstances.instancesWithProfile(profile, "prod")).thenReturn(Collections.singletonList(idle(profile, false)));
+    warmPool.remember(request(profile), serverInfo);
+
+    warmPool.replenish(settings);
+
+    ArgumentCaptor<CreateAgentRequest> captor = ArgumentCaptor.forClass(CreateAgentRequest.class);
+    verify(provisioningEngine, times(1)).submitWarm(captor.capture(), eq(settings), eq(serverInfo));
+    CreateAgentRequest poolRequest = captor.getValue();
+    assertEquals(profile, poolRequest.elasticProfile());
+    assertEquals("prod", poolRequest.environment());
+    assertEquals("auto-register-key", poolRequest.autoRegisterKey());
+    assertTrue(poolRequest.jobIdentifier().getJobRepresentation().startsWith(WarmPool.PIPELINE_NAME));
+  }
+
+  @Test
+  void shouldNotProvisionAgainWhileProvisioningsAreInProgress() {
+    ElasticProfile profile = profile("2", null, null);
+    when(agentInstances.instancesWithProfile(profile, "prod")).thenReturn(Collections.emptyList());
+    warmPool.remember(request(profile), serverInfo);
+
+    warmPool.replenish(settings);
+    warmPool.replenish(settings);
+
+    verify(provisioningEngine, times(2)).submitWarm(any(), any(), any());
+  }
+
+  @Test
+  void shouldNotProvisionBeyondTheMaximumTotal() {
+    ElasticProfile profile = profile("2", null, "2");
+    AzureInstance busy = mock(AzureInstance.class);
+    when(agentInstances.instancesWithProfile(profile, "prod")).thenReturn(Collections.singletonList(busy));
+    warmPool.remember(request(profile), serverInfo);
+
+    warmPool.replenish(settings);
+
+    verify(provisioningEngine, times(1)).submitWarm(any(), any(), any());
+  }
+
+  @Test
+  void shouldBackOffAfterAFailedProvisioning() {
+    ElasticProfile profile = profile("1", null, null);
+    when(agentInstances.instancesWithProfile(profile, "prod")).thenReturn(Collections.emptyList());
+    Provisioning failed = new Provisioning(JobIdentifierMother.get(), clock.now());
+    failed.fail("quota exceeded", clock.now());
+    when(provisioningEngine.submitWarm(any(), any(), any())).thenReturn(failed);
+    warmPool.remember(request(profile), serverInfo);
+
+    warmPool.replenish(settings);
+    warmPool.replenish(settings);
+    verify(provisioningEngine, times(1)).submitWarm(any(), any(), any());
+
+    clock.forward(WarmPool.FAILURE_BACKOFF.plusSeconds(1));
+    warmPool.remember(request(profile), serverInfo);
+    warmPool.replenish(settings);
+    verify(provisioningEngine, times(2)).submitWarm(any(), any(), any());
+  }
+
+  @Test
+  void shouldStopRefillingOnceTheRememberedRequestIsTooOld() {
+    ElasticProfile profile = profile("1", null, null);
+    when(agentInstances.instancesWithProfile(profile, "prod")).thenReturn(Collections.emptyList());
+    warmPool.remember(request(profile), serverInfo);
+
+    clock.forward(WarmPool.TEMPLATE_VALIDITY.plusMinutes(1));
+    warmPool.replenish(settings);
+
+    verifyNoInteractions(provisioningEngine);
+  }
+
+  @Test
+  void shouldForgetProfilesWhoseWarmPoolWasRemoved() {
+    ElasticProfile pooled = profile("1", null, null);
+    warmPool.remember(request(pooled), serverInfo);
+    warmPool.remember(request(profile(null, null, null)), serverInfo);
+
+    warmPool.replenish(settings);
+
+    verifyNoInteractions(provisioningEngine);
+    assertTrue(warmPool.statusReportProperties().isEmpty());
+  }
+
+  @Test
+  void shouldReturnOldestIdleAgentsAboveMaximumIdleThatReachedTheirIdleTimeout() {
+    ElasticProfile profile = profile("1", "2", null);
+    AzureInstance oldest = idle(profile, true, "vm-1", clock.now().minusHours(3));
+    AzureInstance older = idle(profile, true, "vm-2", clock.now().minusHours(2));
+    AzureInstance recent = idle(profile, false, "vm-3", clock.now().minusMinutes(1));
+    AzureInstance newest = idle(profile, false, "vm-4", clock.now());
+    List<AzureInstance> instances = Arrays.asList(newest, older, recent, oldest);
+    when(agentInstances.instancesWithProfile(profile, "prod")).thenReturn(instances);
+    warmPool.remember(request(profile), serverInfo);
+
+    assertEquals(Arrays.asList("vm-1", "vm-2"), List.copyOf(warmPool.surplusAgentIds()));
+  }
+
+  @Test
+  void shouldRetainIdleAgentsThatAreNotSurplus() {
+    ElasticProfile profile = profile("1", "1", null);
+    AzureInstance oldest = idle(profile, true, "vm-1", clock.now().minusHours(3));
+    AzureInstance recent = idle(profile, false, "vm-2", clock.now());
+    when(agentInstances.instancesWithProfile(profile, "prod")).thenReturn(Arrays.asList(recent, oldest));
+    warmPool.remember(request(profile), serverInfo);
+
+    assertEquals(Collections.singleton("vm-1"), warmPool.surplusAgentIds());
+    assertEquals(Collections.singleton("vm-2"), warmPool.retainedAgentIds());
+  }
+
+  @Test
+  void shouldNotReturnIdleAgentsThatHaveNotReachedTheirIdleTimeout() {
+    ElasticProfile profile = profile("1", null, null);
+    List<AzureInstance> instances = Arrays.asList(idle(profile, false), idle(profile, false));
+    when(agentInstances.instancesWithProfile(profile, "prod")).thenReturn(instances);
+    warmPool.remember(request(profile), serverInfo);
+
+    assertTrue(warmPool.surplusAgentIds().isEmpty());
+  }
+
+  private ElasticProfile profile(String minIdle, String maxIdle, String maxTotal) {
+    return new ElasticProfile("Standard_D3_v2", "Canonical:UbuntuServer:16.04-LTS:latest", null, null, Platform.LINUX,
+        "Standard_LRS", "30", null, null, minIdle, maxIdle, maxTotal);
+  }
+
+  private CreateAgentRequest request(ElasticProfile profile) {
+    return new CreateAgentRequest("auto-register-key", profile, "prod", JobIdentifierMother.get());
+  }
+
+  private AzureInstance idle(ElasticProfile profile, boolean idleTimedOut) {
+    return idle(profile, idleTimedOut, "vm", clock.now());
+  }
+
+  private AzureInstance idle(ElasticProfile profile, boolean idleTimedOut, String name, DateTime createdAt) {
+    AzureInstance instance = mock(AzureInstance.class);
+    when(instance.canBeAssigned(eq(profile.hash()), any(Clock.class))).thenReturn(true);
+    when(instance.isIdleAfterIdleTimeout(clock)).thenReturn(idleTimedOut);
+    when(instance.getName()).thenReturn(name);
+    when(instance.getCreatedAt()).thenReturn(createdAt);
+    return instance;
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.thoughtworks.gocd.elasticagent.azure.client.TokenBucketTest.FakeTicker;
+import okhttp3.*;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.gocd.elasticagent.azure.client.ArmRequestScheduler.Priority.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ArmRequestSchedulerTest {
+
+  private static final String VM_URL = "https://management.azure.com/subscriptions/sub/resourceGroups/rg/providers/Microsoft.Compute/virtualMachines/vm";
+
+  private FakeTicker ticker;
+  private List<Long> sleeps;
+  private ArmRequestScheduler scheduler;
+  private Interceptor.Chain chain;
+
+  @BeforeEach
+  void setUp() {
+    ticker = new FakeTicker();
+    sleeps = new ArrayList<>();
+    scheduler = new ArmRequestScheduler(ticker, millis -> {
+      sleeps.add(millis);
+      ticker.advance(TimeUnit.MILLISECONDS.toNanos(millis));
+    }, () -> 0.5);
+    chain = mock(Interceptor.Chain.class);
+  }
+
+  @Test
+  void shouldRetryThrottledRequestsAfterRetryAfter() throws IOException {
+    Request request = request("GET", VM_URL);
+    when(chain.request()).thenReturn(request);
+    when(chain.proceed(request)).thenReturn(response(request, 429, "Retry-After", "3"), response(request, 200));
+
+    Response response = scheduler.intercept(chain);
+
+    assertEquals(200, response.code());
+    assertEquals(List.of(3000L), sleeps);
+    assertEquals(1, scheduler.reads().throttled());
+    assertEquals(0, scheduler.writes().throttled());
+  }
+
+  @Test
+  void shouldBackOffExponentiallyWithJitterOnTransientErrors() throws IOException {
+    Request request = request("PUT", VM_URL);
+    when(chain.request()).thenReturn(request);
+    when(chain.proceed(request)).thenReturn(response(request, 503), response(request, 500), response(request, 502), response(request, 503));
+
+    Response response = scheduler.intercept(chain);
+
+    assertEquals(503, response.code());
+    assertEquals(List.of(500L, 1000L, 2000L), sleeps);
+    verify(chain, times(ArmRequestScheduler.MAX_ATTEMPTS)).proceed(request);
+  }
+
+  @Test
+  void shouldNotRetryServerErrorsOfNonIdempotentRequests() throws IOException {
+    Request request = request("POST", VM_URL + "/runCommand");
+    when(chain.request()).thenReturn(request);
+    when(chain.proceed(request)).thenReturn(response(request, 500), response(request, 200));
+
+    assertEquals(500, scheduler.intercept(chain).code());
+    verify(chain, times(1)).proceed(request);
+    assertTrue(sleeps.isEmpty());
+  }
+
+  @Test
+  void shouldRetryThrottledNonIdempotentRequests() throws IOException {
+    Request request = request("POST", VM_URL + "/start");
+    when(chain.request()).thenReturn(request);
+    when(chain.proceed(request)).thenReturn(response(request, 429, "Retry-After", "1"), response(request, 202));
+
+    assertEquals(202, scheduler.intercept(chain).code());
+    verify(chain, times(2)).proceed(request);
+  }
+
+  @Test
+  void shouldNotRetryClientErrors() throws IOException {
+    Request request = request("GET", VM_URL);
+    when(chain.request()).thenReturn(request);
+    when(chain.proceed(request)).thenReturn(response(request, 404));
+
+    assertEquals(404, scheduler.intercept(chain).code());
+    assertTrue(sleeps.isEmpty());
+  }
+
+  @Test
+  void shouldRetryConnectionFailuresOnlyForIdempotentRequests() throws IOException {
+    Request get = request("GET", VM_URL);
+    when(chain.request()).thenReturn(get);
+    when(chain.proceed(get)).thenThrow(new IOException("reset")).thenReturn(response(get, 200));
+
+    assertEquals(200, scheduler.intercept(chain).code());
+
+    Request post = request("POST", VM_URL + "/start");
+    when(chain.request()).thenReturn(post);
+    when(chain.proceed(post)).thenThrow(new IOException("reset"));
+
+    assertThrows(IOException.class, () -> scheduler.intercept(chain));
+    verify(chain, times(1)).proceed(post);
+  }
+
+  @Test
+  void shouldCalibrateBucketsFromTheRemainingRequestHeaders() throws IOException {
+    Request request = request("GET", VM_URL);
+    when(chain.request()).thenReturn(request);
+    when(chain.proceed(request)).thenReturn(new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(200).message("OK")
+        .header(ArmRequestScheduler.REMAINING_READS, "42")
+        .header(ArmRequestScheduler.REMAINING_WRITES, "7")
+        .build());
+
+    scheduler.intercept(chain);
+
+    assertEquals(42, scheduler.reads().lastRemaining());
+    assertEquals(42, scheduler.reads().tokens(), 0.001);
+    assertEquals(7, scheduler.writes().tokens(), 0.001);
+  }
+
+  @Test
+  void shouldCalibrateTheWriteBucketFromTheLowerOfTheRemainingWritesAndDeletes() throws IOException {
+    Request request = request("DELETE", VM_URL);
+    when(chain.request()).thenReturn(request);
+    when(chain.proceed(request)).thenReturn(new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(200).message("OK")
+        .header(ArmRequestScheduler.REMAINING_WRITES, "120")
+        .header(ArmRequestScheduler.REMAINING_DELETES, "9")
+        .build());
+
+    scheduler.intercept(chain);
+
+    assertEquals(9, scheduler.writes().lastRemaining());
+    assertEquals(9, scheduler.writes().tokens(), 0.001);
+  }
+
+  @Test
+  void shouldPrioritizeTerminationsAndTagUpdatesOverValidationLookups() {
+    assertEquals(HIGH, ArmRequestScheduler.priorityOf(request("DELETE", VM_URL)));
+    assertEquals(HIGH, ArmRequestScheduler.priorityOf(request("PUT", VM_URL + "/providers/Microsoft.Resources/tags/default")));
+    assertEquals(NORMAL, ArmRequestScheduler.priorityOf(request("PUT", VM_URL)));
+    assertEquals(NORMAL, ArmRequestScheduler.priorityOf(request("GET", VM_URL)));
+    assertEquals(LOW, ArmRequestScheduler.priorityOf(request("GET", "https://management.azure.com/subscriptions/sub/resourceGroups/rg/providers/Microsoft.Network/virtualNetworks/vnet")));
+    assertEquals(LOW, ArmRequestScheduler.priorityOf(request("GET", "https://management.azure.com/subscriptions/sub/resourceGroups/rg/providers/Microsoft.Network/networkSecurityGroups/nsg")));
+    assertEquals(LOW, ArmRequestScheduler.priorityOf(request("HEAD", "https://management.azure.com/subscriptions/sub/resourcegroups/rg")));
+    assertEquals(LOW, ArmRequestScheduler.priorityOf(request("GET", "https://management.azure.com/subscriptions/sub/locations")));
+    assertEquals(LOW, ArmRequestScheduler.priorityOf(request("GET", "https://management.azure.com/subscriptions/sub/providers/Microsoft.Compute/locations/westus/publishers/Canonical/artifacttypes/vmimage/offers/UbuntuServer/skus/18.04-LTS/versions/latest")));
+  }
+
+  @Test
+  void shouldUseTheReadBucketForReadsOnly() {
+    assertSame(scheduler.reads(), scheduler.bucketFor(request("GET", VM_URL)));
+    assertSame(scheduler.reads(), scheduler.bucketFor(request("HEAD", VM_URL)));
+    assertSame(scheduler.writes(), scheduler.bucketFor(request("PUT", VM_URL)));
+    assertSame(scheduler.writes(), scheduler.bucketFor(request("DELETE", VM_URL)));
+  }
+
+  @Test
+  void shouldReportBucketSaturation() {
+    scheduler.writes().calibrate(50);
+    scheduler.writes().pause(1000);
+
+    List<Pair<String, String>> properties = scheduler.statusReportProperties();
+
+    assertEquals(Pair.of("ARM read requests bucket", "250/250 tokens, 0% saturated, unknown remaining at Azure"), properties.get(0));
+    assertEquals(Pair.of("ARM write requests bucket", "50/200 tokens, 75% saturated, 50 remaining at Azure"), properties.get(3));
+    assertEquals(Pair.of("ARM write requests throttled by Azure", "1"), properties.get(5));
+  }
+
+  private static Request request(String method, String url) {
+    RequestBody body = "GET".equals(method) || "HEAD".equals(method) ? null : RequestBody.create((MediaType) null, new byte[0]);
+    return new Request.Builder().url(url).method(method, body).build();
+  }
+
+  private static Response response(Request request, int code, String... headers) {
+    Response.Builder builder = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(code).message("status " + code);
+    for (int i = 0; i < headers.length; i += 2) {
+      builder.header(headers[i], headers[i + 1]);
+    }
+    return builder.build();
+  }
+}
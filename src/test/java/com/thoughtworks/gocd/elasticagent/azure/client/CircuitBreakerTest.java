@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.microsoft.azure.CloudError;
+import com.microsoft.azure.CloudException;
+import com.thoughtworks.gocd.elasticagent.azure.Clock;
+import com.thoughtworks.gocd.elasticagent.azure.exceptions.CircuitOpenException;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import org.joda.time.Period;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import retrofit2.Response;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class CircuitBreakerTest {
+
+  private Clock.TestClock clock;
+  private CircuitBreaker.Listener listener;
+  private CircuitBreaker breaker;
+
+  @BeforeEach
+  void setUp() {
+    clock = new Clock.TestClock();
+    listener = mock(CircuitBreaker.Listener.class);
+    breaker = new CircuitBreaker("create", clock, 3, Period.seconds(30), listener);
+  }
+
+  @Test
+  void shouldOpenAfterConsecutiveOutageFailuresAndFailFast() {
+    failTimes(3);
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+    verify(listener).opened(any(UncheckedIOException.class));
+    CircuitBreaker.Action<String, RuntimeException> action = mock(CircuitBreaker.Action.class);
+    CircuitOpenException exception = assertThrows(CircuitOpenException.class, () -> breaker.call(action));
+    assertTrue(exception.getMessage().contains("connect timed out"));
+    verifyNoInteractions(action);
+    assertEquals(1, breaker.rejected());
+  }
+
+  @Test
+  void shouldResetFailureCountOnSuccess() {
+    failTimes(2);
+    breaker.call(() -> "ok");
+    failTimes(2);
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    verifyNoInteractions(listener);
+  }
+
+  @Test
+  void shouldNotCountErrorsAzureAnswersDeliberately() {
+    for (int i = 0; i < 5; i++) {
+      assertThrows(CloudException.class, () -> breaker.call(() -> {
+        throw cloudException(409);
+      }));
+    }
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+  }
+
+  @Test
+  void shouldLetASingleProbeThroughOnceOpenPeriodHasPassedAndCloseOnSuccess() {
+    failTimes(3);
+    clock.forward(Period.seconds(30));
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+
+    String result = breaker.call(() -> {
+      assertThrows(CircuitOpenException.class, () -> breaker.call(() -> "concurrent"));
+      return "probe";
+    });
+
+    assertEquals("probe", result);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    verify(listener).closed();
+  }
+
+  @Test
+  void shouldReopenWhenProbeFails() {
+    failTimes(3);
+    clock.forward(Period.seconds(30));
+
+    failTimes(1);
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+    assertTrue(breaker.describe().startsWith("open for another 30s"));
+    verify(listener, times(1)).opened(any());
+  }
+
+  @Test
+  void shouldTrackAsyncOutcomes() {
+    CompletableFuture<Void> pending = new CompletableFuture<>();
+    CompletableFuture<Void> result = breaker.callAsync(() -> pending);
+    pending.completeExceptionally(cloudException(503));
+    failTimes(2);
+
+    assertThrows(CompletionException.class, result::join);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+    CompletionException rejected = assertThrows(CompletionException.class, () -> breaker.callAsync(() -> CompletableFuture.completedFuture(null)).join());
+    assertTrue(rejected.getCause() instanceof CircuitOpenException);
+  }
+
+  private void failTimes(int times) {
+    for (int i = 0; i < times; i++) {
+      assertThrows(UncheckedIOException.class, () -> breaker.call(() -> {
+        throw new UncheckedIOException(new IOException("connect timed out"));
+      }));
+    }
+  }
+
+  private CloudException cloudException(int code) {
+    return new CloudException("request failed", Response.error(code, ResponseBody.create(MediaType.parse("application/json"), "{}")), new CloudError());
+  }
+}
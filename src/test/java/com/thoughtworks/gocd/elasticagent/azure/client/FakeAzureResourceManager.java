@@ -0,0 +1,786 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.*;
+import com.microsoft.azure.AzureEnvironment;
+import com.microsoft.azure.credentials.AzureTokenCredentials;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.thoughtworks.gocd.elasticagent.azure.metrics.MetricsRegistry;
+import org.joda.time.Period;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for Azure Resource Manager, serving the virtual machine, network interface, disk, network,
+ * network security group, image, tag and run command endpoints the Azure SDK calls for the plugin from an in-memory
+ * store. Every write succeeds synchronously. Latency, subscription throttling (429 with Retry-After) and failures can
+ * be injected, so that provisioning can be exercised end to end, and under load, without a subscription:
+ * <pre>
+ * try (FakeAzureResourceManager arm = new FakeAzureResourceManager().withLatency(Period.millis(50), Period.millis(20))) {
+ *   GoCDAzureClient client = arm.client();
+ *   ...
+ * }
+ * </pre>
+ */
+public class FakeAzureResourceManager implements AutoCloseable {
+
+  public static final String SUBSCRIPTION_ID = "8a2f5a8c-4f31-4c4e-9d6a-0f3e1b2c3d4e";
+  public static final String RESOURCE_GROUP = "gocd-agents";
+  public static final String REGION = "eastus";
+  public static final String SUBNET = "default";
+
+  private static final Gson GSON = new GsonBuilder().serializeNulls().create();
+  private static final Pattern TAGS = Pattern.compile("(?i)(.+)/providers/Microsoft\\.Resources/tags/default");
+  private static final Pattern LOCATIONS = Pattern.compile("(?i)/subscriptions/[^/]+/locations");
+  private static final Pattern RESOURCE_GROUP_RESOURCES = Pattern.compile("(?i)/subscriptions/[^/]+/resourcegroups/[^/]+/resources");
+  private static final Pattern IMAGE = Pattern.compile("(?i)/subscriptions/[^/]+/providers/Microsoft\\.Compute/locations/([^/]+)/publishers/([^/]+)" +
+      "/artifacttypes/vmimage/offers/([^/]+)/skus/([^/]+)/versions(?:/([^/]+))?");
+  private static final Pattern VIRTUAL_MACHINE_ACTION = Pattern.compile("(?i)(.+/providers/Microsoft\\.Compute/virtualMachines/[^/]+)" +
+      "/(start|deallocate|powerOff|restart|runCommand|instanceView)");
+  private static final Pattern VIRTUAL_MACHINE_ID = Pattern.compile("(?i).+/providers/Microsoft\\.Compute/virtualMachines/[^/]+");
+  private static final Pattern TAG_FILTER = Pattern.compile("(?i)tagname eq '([^']*)' and tagvalue eq '([^']*)'");
+  private static final String VIRTUAL_MACHINE_TYPE = "Microsoft.Compute/virtualMachines";
+
+  private final HttpServer server;
+  private final ExecutorService handlers;
+  private final AzureEnvironment environment;
+  private final Map<String, JsonObject> resources = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+  private final Map<String, String> powerStates = new ConcurrentHashMap<>();
+  private final Map<String, List<String>> commands = new ConcurrentHashMap<>();
+  private final Map<String, Long> lastActivity = new ConcurrentHashMap<>();
+  private final Queue<Fault> faults = new ConcurrentLinkedQueue<>();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong throttled = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong createdVirtualMachines = new AtomicLong();
+
+  private volatile long latencyMillis;
+  private volatile long latencyJitterMillis;
+  private volatile double failureRate;
+  private volatile int requestsPerSecond;
+  private long windowStart;
+  private int windowRequests;
+
+  public FakeAzureResourceManager() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    handlers = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("fake-arm-%d").setDaemon(true).build());
+    server.setExecutor(handlers);
+    server.createContext("/", this::handle);
+    server.start();
+
+    Map<String, String> endpoints = new HashMap<>(AzureEnvironment.AZURE.endpoints());
+    endpoints.put("resourceManagerEndpointUrl", String.format("http://%s:%d/", server.getAddress().getHostString(), server.getAddress().getPort()));
+    environment = new AzureEnvironment(endpoints);
+    seed();
+  }
+
+  /**
+   * Delays every response by the latency plus a uniformly distributed share of the jitter.
+   */
+  public FakeAzureResourceManager withLatency(Period latency, Period jitter) {
+    this.latencyMillis = latency.toStandardDuration().getMillis();
+    this.latencyJitterMillis = jitter.toStandardDuration().getMillis();
+    return this;
+  }
+
+  /**
+   * Throttles the subscription like ARM does: requests beyond the limit within a second are refused with 429 and a
+   * Retry-After, and every response reports the requests remaining. Zero, the default, is unlimited.
+   */
+  public FakeAzureResourceManager withRequestsPerSecond(int requestsPerSecond) {
+    this.requestsPerSecond = requestsPerSecond;
+    return this;
+  }
+
+  /**
+   * Fails the given fraction of requests, chosen at random, with 500.
+   */
+  public FakeAzureResourceManager withFailureRate(double failureRate) {
+    this.failureRate = failureRate;
+    return this;
+  }
+
+  /**
+   * Fails the next request whose method and path match with the status code.
+   */
+  public FakeAzureResourceManager failNext(String method, String pathRegex, int status) {
+    faults.add(new Fault(method, Pattern.compile(pathRegex, Pattern.CASE_INSENSITIVE), status));
+    return this;
+  }
+
+  public AzureEnvironment environment() {
+    return environment;
+  }
+
+  /**
+   * Credentials for the fake's environment that hand out a static token instead of going to Azure Active Directory.
+   */
+  public AzureTokenCredentials credentials() {
+    return new AzureTokenCredentials(environment, "fake-tenant") {
+      @Override
+      public String getToken(String resource) {
+        return "fake-token";
+      }
+    };
+  }
+
+  public GoCDAzureClientFactory clientFactory() {
+    return clientFactory(new MetricsRegistry());
+  }
+
+  public GoCDAzureClientFactory clientFactory(MetricsRegistry metrics) {
+    return new GoCDAzureClientFactory(metrics, environment) {
+      @Override
+      protected AzureTokenCredentials credentials(String clientId, String domain, String secret) {
+        return FakeAzureResourceManager.this.credentials();
+      }
+    };
+  }
+
+  public GoCDAzureClient client() throws IOException {
+    return clientFactory().initialize("fake-client", "fake-tenant", "fake-secret", RESOURCE_GROUP, networkId());
+  }
+
+  public String resourceGroupId() {
+    return "/subscriptions/" + SUBSCRIPTION_ID + "/resourceGroups/" + RESOURCE_GROUP;
+  }
+
+  public String networkId() {
+    return resourceGroupId() + "/providers/Microsoft.Network/virtualNetworks/gocd-vnet";
+  }
+
+  public String networkSecurityGroupId() {
+    return resourceGroupId() + "/providers/Microsoft.Network/networkSecurityGroups/gocd-nsg";
+  }
+
+  public String virtualMachineId(String name) {
+    return resourceGroupId() + "/providers/Microsoft.Compute/virtualMachines/" + name;
+  }
+
+  public String networkInterfaceId(String name) {
+    return resourceGroupId() + "/providers/Microsoft.Network/networkInterfaces/" + name;
+  }
+
+  public String diskId(String name) {
+    return resourceGroupId() + "/providers/Microsoft.Compute/disks/" + name;
+  }
+
+  /**
+   * Adds a running Linux virtual machine with its network interface and OS disk, as if it had been provisioned before.
+   */
+  public String addVirtualMachine(String name, Map<String, String> tags) {
+    String nicId = networkInterfaceId(name + "-nic");
+    store(nicId, networkInterface(nicId));
+    JsonObject properties = new JsonObject();
+    properties.add("hardwareProfile", object("vmSize", "Standard_D3_v2"));
+    JsonObject osDisk = new JsonObject();
+    osDisk.addProperty("createOption", "FromImage");
+    osDisk.addProperty("diskSizeGB", 50);
+    JsonObject imageReference = object("publisher", "Canonical");
+    imageReference.addProperty("offer", "UbuntuServer");
+    imageReference.addProperty("sku", "16.04.0-LTS");
+    imageReference.addProperty("version", "latest");
+    JsonObject storageProfile = new JsonObject();
+    storageProfile.add("imageReference", imageReference);
+    storageProfile.add("osDisk", osDisk);
+    properties.add("storageProfile", storageProfile);
+    properties.add("osProfile", object("computerName", name));
+    JsonObject nic = object("id", nicId);
+    nic.add("properties", object("primary", true));
+    JsonArray nics = new JsonArray();
+    nics.add(nic);
+    properties.add("networkProfile", member("networkInterfaces", nics));
+    JsonObject vm = new JsonObject();
+    vm.addProperty("location", REGION);
+    vm.add("tags", GSON.toJsonTree(tags));
+    vm.add("properties", properties);
+    String id = virtualMachineId(name);
+    store(id, vm);
+    return id;
+  }
+
+  public boolean contains(String id) {
+    return resources.containsKey(id);
+  }
+
+  public Map<String, String> tags(String id) {
+    JsonObject resource = resources.get(id);
+    Map<String, String> tags = new HashMap<>();
+    if (resource != null && resource.has("tags")) {
+      resource.getAsJsonObject("tags").entrySet().forEach(tag -> tags.put(tag.getKey(), tag.getValue().getAsString()));
+    }
+    return tags;
+  }
+
+  public String powerState(String virtualMachineId) {
+    return powerStates.get(virtualMachineId.toLowerCase(Locale.ROOT));
+  }
+
+  public List<String> commands(String virtualMachineId) {
+    return commands.getOrDefault(virtualMachineId.toLowerCase(Locale.ROOT), Collections.emptyList());
+  }
+
+  /**
+   * The ids of the virtual machines that exist now.
+   */
+  public List<String> virtualMachineIds() {
+    List<String> ids = new ArrayList<>();
+    resources.forEach((id, resource) -> {
+      if (VIRTUAL_MACHINE_TYPE.equalsIgnoreCase(resource.get("type").getAsString())) {
+        ids.add(id);
+      }
+    });
+    return ids;
+  }
+
+  /**
+   * When the virtual machine, one of its extensions or a run command on it was last written to, in epoch millis.
+   */
+  public long lastActivity(String virtualMachineId) {
+    return lastActivity.getOrDefault(virtualMachineId.toLowerCase(Locale.ROOT), 0L);
+  }
+
+  /**
+   * How many virtual machines have been created, including those deleted since.
+   */
+  public long createdVirtualMachineCount() {
+    return createdVirtualMachines.get();
+  }
+
+  public long requestCount() {
+    return requests.get();
+  }
+
+  public long throttledCount() {
+    return throttled.get();
+  }
+
+  public long failedCount() {
+    return failed.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    handlers.shutdownNow();
+  }
+
+  private void seed() {
+    JsonObject subscription = object("subscriptionId", SUBSCRIPTION_ID);
+    subscription.addProperty("displayName", "Fake subscription");
+    subscription.addProperty("state", "Enabled");
+    store("/subscriptions/" + SUBSCRIPTION_ID, subscription);
+
+    JsonObject resourceGroup = new JsonObject();
+    resourceGroup.addProperty("location", REGION);
+    store(resourceGroupId(), resourceGroup);
+
+    JsonObject subnet = object("name", SUBNET);
+    subnet.addProperty("id", networkId() + "/subnets/" + SUBNET);
+    subnet.add("properties", object("addressPrefix", "10.0.0.0/24"));
+    JsonArray subnets = new JsonArray();
+    subnets.add(subnet);
+    JsonObject networkProperties = member("addressSpace", member("addressPrefixes", array("10.0.0.0/16")));
+    networkProperties.add("subnets", subnets);
+    JsonObject network = new JsonObject();
+    network.addProperty("location", REGION);
+    network.add("properties", networkProperties);
+    store(networkId(), network);
+
+    JsonObject nsg = new JsonObject();
+    nsg.addProperty("location", REGION);
+    nsg.add("properties", member("securityRules", new JsonArray()));
+    store(networkSecurityGroupId(), nsg);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      requests.incrementAndGet();
+      delay();
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getPath().replaceAll("/+$", "");
+
+      if (!admit(exchange)) {
+        throttled.incrementAndGet();
+        exchange.getResponseHeaders().add("Retry-After", "1");
+        error(exchange, 429, "TooManyRequests", "The request is being throttled.");
+        return;
+      }
+      Integer faultStatus = fault(method, path);
+      if (faultStatus != null) {
+        failed.incrementAndGet();
+        error(exchange, faultStatus, "InjectedFailure", "Failure injected by the fake Azure Resource Manager.");
+        return;
+      }
+      route(exchange, method, path, readBody(exchange));
+    } catch (RuntimeException e) {
+      error(exchange, 500, "InternalServerError", String.valueOf(e.getMessage()));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void route(HttpExchange exchange, String method, String path, JsonObject body) throws IOException {
+    Matcher matcher;
+    if ((matcher = TAGS.matcher(path)).matches()) {
+      tags(exchange, method, matcher.group(1), body);
+    } else if (LOCATIONS.matcher(path).matches()) {
+      respond(exchange, 200, list(locations()));
+    } else if (RESOURCE_GROUP_RESOURCES.matcher(path).matches()) {
+      respond(exchange, 200, list(resourcesWithTag(path.substring(0, path.length() - "/resources".length()), exchange.getRequestURI().getQuery())));
+    } else if ((matcher = IMAGE.matcher(path)).matches()) {
+      image(exchange, matcher);
+    } else if ((matcher = VIRTUAL_MACHINE_ACTION.matcher(path)).matches()) {
+      virtualMachineAction(exchange, matcher.group(1), matcher.group(2), body);
+    } else if (segments(path) % 2 == 1) {
+      respond(exchange, 200, list(children(path)));
+    } else {
+      resource(exchange, method, path, body);
+    }
+  }
+
+  private void resource(HttpExchange exchange, String method, String id, JsonObject body) throws IOException {
+    JsonObject resource = resources.get(id);
+    switch (method) {
+      case "HEAD":
+        respond(exchange, resource == null ? 404 : 204, null);
+        break;
+      case "GET":
+        if (resource == null) {
+          notFound(exchange, id);
+        } else {
+          respond(exchange, 200, withInstanceView(id, resource, exchange.getRequestURI().getQuery()));
+        }
+        break;
+      case "PUT":
+        respond(exchange, 200, store(id, body));
+        break;
+      case "PATCH":
+        if (resource == null) {
+          notFound(exchange, id);
+        } else {
+          body.entrySet().forEach(member -> resource.add(member.getKey(), member.getValue()));
+          respond(exchange, 200, resource);
+        }
+        break;
+      case "DELETE":
+        resources.keySet().removeIf(key -> key.equalsIgnoreCase(id) || key.toLowerCase(Locale.ROOT).startsWith(id.toLowerCase(Locale.ROOT) + "/"));
+        powerStates.remove(id.toLowerCase(Locale.ROOT));
+        lastActivity.remove(id.toLowerCase(Locale.ROOT));
+        respond(exchange, resource == null ? 204 : 200, null);
+        break;
+      default:
+        error(exchange, 405, "MethodNotAllowed", method + " is not supported on " + id);
+    }
+  }
+
+  private void tags(HttpExchange exchange, String method, String scope, JsonObject body) throws IOException {
+    JsonObject resource = resources.get(scope);
+    if (resource == null) {
+      notFound(exchange, scope);
+      return;
+    }
+    if (!"GET".equals(method)) {
+      JsonObject tags = body.has("properties") && body.getAsJsonObject("properties").has("tags")
+          ? body.getAsJsonObject("properties").getAsJsonObject("tags") : new JsonObject();
+      String operation = body.has("operation") ? body.get("operation").getAsString() : "Replace";
+      JsonObject current = resource.has("tags") ? resource.getAsJsonObject("tags") : new JsonObject();
+      if ("Merge".equalsIgnoreCase(operation)) {
+        tags.entrySet().forEach(tag -> current.add(tag.getKey(), tag.getValue()));
+      } else if ("Delete".equalsIgnoreCase(operation)) {
+        tags.keySet().forEach(current::remove);
+      } else {
+        current.entrySet().clear();
+        tags.entrySet().forEach(tag -> current.add(tag.getKey(), tag.getValue()));
+      }
+      resource.add("tags", current);
+    }
+    JsonObject tagsResource = object("id", scope + "/providers/Microsoft.Resources/tags/default");
+    tagsResource.addProperty("name", "default");
+    tagsResource.addProperty("type", "Microsoft.Resources/tags");
+    tagsResource.add("properties", member("tags", resource.has("tags") ? resource.get("tags") : new JsonObject()));
+    respond(exchange, 200, tagsResource);
+  }
+
+  private void virtualMachineAction(HttpExchange exchange, String id, String action, JsonObject body) throws IOException {
+    if (!resources.containsKey(id)) {
+      notFound(exchange, id);
+      return;
+    }
+    String key = id.toLowerCase(Locale.ROOT);
+    switch (action.toLowerCase(Locale.ROOT)) {
+      case "instanceview":
+        respond(exchange, 200, instanceView(id));
+        return;
+      case "start":
+      case "restart":
+        powerStates.put(key, "running");
+        break;
+      case "deallocate":
+        powerStates.put(key, "deallocated");
+        break;
+      case "poweroff":
+        powerStates.put(key, "stopped");
+        break;
+      case "runcommand":
+        List<String> script = new ArrayList<>();
+        if (body.has("script")) {
+          body.getAsJsonArray("script").forEach(line -> script.add(line.getAsString()));
+        }
+        commands.computeIfAbsent(key, ignored -> new CopyOnWriteArrayList<>()).add(String.join("\n", script));
+        lastActivity.put(key, System.currentTimeMillis());
+        JsonObject stdout = object("code", "ComponentStatus/StdOut/succeeded");
+        stdout.addProperty("level", "Info");
+        stdout.addProperty("displayStatus", "Provisioning succeeded");
+        stdout.addProperty("message", "Enable succeeded");
+        JsonObject stderr = object("code", "ComponentStatus/StdErr/succeeded");
+        stderr.addProperty("level", "Info");
+        stderr.addProperty("displayStatus", "Provisioning succeeded");
+        stderr.addProperty("message", "");
+        JsonArray value = new JsonArray();
+        value.add(stdout);
+        value.add(stderr);
+        respond(exchange, 200, member("value", value));
+        return;
+      default:
+        break;
+    }
+    respond(exchange, 200, null);
+  }
+
+  private void image(HttpExchange exchange, Matcher matcher) throws IOException {
+    String location = matcher.group(1);
+    String offer = matcher.group(3);
+    String versions = matcher.group(0).substring(0, matcher.end(4)) + "/versions";
+    if (matcher.group(5) == null) {
+      respond(exchange, 200, array(image(versions, location, offer, "1.0.0")));
+    } else {
+      respond(exchange, 200, image(versions, location, offer, matcher.group(5)));
+    }
+  }
+
+  private static JsonObject image(String versions, String location, String offer, String version) {
+    JsonObject image = object("id", versions + "/" + version);
+    image.addProperty("name", version);
+    image.addProperty("location", location);
+    String os = offer.toLowerCase(Locale.ROOT).contains("windows") ? "Windows" : "Linux";
+    JsonObject properties = member("osDiskImage", object("operatingSystem", os));
+    properties.add("dataDiskImages", new JsonArray());
+    image.add("properties", properties);
+    return image;
+  }
+
+  private JsonObject store(String id, JsonObject body) {
+    JsonObject resource = body.deepCopy();
+    resource.addProperty("id", id);
+    resource.addProperty("name", id.substring(id.lastIndexOf('/') + 1));
+    resource.addProperty("type", type(id));
+    if (!resource.has("location")) {
+      resource.addProperty("location", REGION);
+    }
+    JsonObject properties = resource.has("properties") ? resource.getAsJsonObject("properties") : new JsonObject();
+    properties.addProperty("provisioningState", "Succeeded");
+    resource.add("properties", properties);
+    if (VIRTUAL_MACHINE_TYPE.equalsIgnoreCase(type(id))) {
+      virtualMachine(id, resource, properties);
+    }
+    if (resources.put(id, resource) == null && VIRTUAL_MACHINE_TYPE.equalsIgnoreCase(type(id))) {
+      createdVirtualMachines.incrementAndGet();
+    }
+    Matcher virtualMachine = VIRTUAL_MACHINE_ID.matcher(id);
+    if (virtualMachine.lookingAt()) {
+      lastActivity.put(virtualMachine.group().toLowerCase(Locale.ROOT), System.currentTimeMillis());
+    }
+    return resource;
+  }
+
+  private void virtualMachine(String id, JsonObject resource, JsonObject properties) {
+    if (!properties.has("vmId")) {
+      properties.addProperty("vmId", UUID.randomUUID().toString());
+    }
+    if (properties.has("osProfile")) {
+      properties.getAsJsonObject("osProfile").remove("adminPassword");
+    }
+    JsonObject storageProfile = properties.has("storageProfile") ? properties.getAsJsonObject("storageProfile") : new JsonObject();
+    JsonObject osDisk = storageProfile.has("osDisk") ? storageProfile.getAsJsonObject("osDisk") : new JsonObject();
+    String diskName = osDisk.has("name") ? osDisk.get("name").getAsString() : resource.get("name").getAsString() + "_OsDisk";
+    String diskId = diskId(diskName);
+    osDisk.addProperty("name", diskName);
+    if (!osDisk.has("osType")) {
+      boolean windows = properties.has("osProfile") && properties.getAsJsonObject("osProfile").has("windowsConfiguration");
+      osDisk.addProperty("osType", windows ? "Windows" : "Linux");
+    }
+    JsonObject managedDisk = osDisk.has("managedDisk") ? osDisk.getAsJsonObject("managedDisk") : new JsonObject();
+    managedDisk.addProperty("id", diskId);
+    osDisk.add("managedDisk", managedDisk);
+    storageProfile.add("osDisk", osDisk);
+    properties.add("storageProfile", storageProfile);
+    if (!resources.containsKey(diskId)) {
+      JsonObject disk = new JsonObject();
+      disk.add("properties", member("diskSizeGB", osDisk.has("diskSizeGB") ? osDisk.get("diskSizeGB") : new JsonPrimitive(30)));
+      store(diskId, disk);
+    }
+    powerStates.putIfAbsent(id.toLowerCase(Locale.ROOT), "running");
+  }
+
+  private JsonObject withInstanceView(String id, JsonObject resource, String query) {
+    if (query == null || !query.toLowerCase(Locale.ROOT).contains("instanceview") || !VIRTUAL_MACHINE_TYPE.equalsIgnoreCase(type(id))) {
+      return resource;
+    }
+    JsonObject expanded = resource.deepCopy();
+    expanded.getAsJsonObject("properties").add("instanceView", instanceView(id));
+    return expanded;
+  }
+
+  private JsonObject instanceView(String id) {
+    JsonObject provisioned = object("code", "ProvisioningState/succeeded");
+    provisioned.addProperty("level", "Info");
+    provisioned.addProperty("displayStatus", "Provisioning succeeded");
+    String power = powerStates.getOrDefault(id.toLowerCase(Locale.ROOT), "running");
+    JsonObject powerState = object("code", "PowerState/" + power);
+    powerState.addProperty("level", "Info");
+    powerState.addProperty("displayStatus", "VM " + power);
+    JsonArray statuses = new JsonArray();
+    statuses.add(provisioned);
+    statuses.add(powerState);
+    JsonObject instanceView = object("computerName", id.substring(id.lastIndexOf('/') + 1));
+    instanceView.addProperty("osName", "ubuntu");
+    instanceView.addProperty("osVersion", "16.04");
+    instanceView.add("statuses", statuses);
+    return instanceView;
+  }
+
+  private JsonObject networkInterface(String id) {
+    JsonObject ipConfiguration = object("name", "primary");
+    ipConfiguration.addProperty("id", id + "/ipConfigurations/primary");
+    JsonObject ipProperties = object("privateIPAllocationMethod", "Dynamic");
+    ipProperties.addProperty("privateIPAddress", "10.0.0.4");
+    ipProperties.addProperty("primary", true);
+    ipProperties.add("subnet", object("id", networkId() + "/subnets/" + SUBNET));
+    ipConfiguration.add("properties", ipProperties);
+    JsonArray ipConfigurations = new JsonArray();
+    ipConfigurations.add(ipConfiguration);
+    JsonObject nic = new JsonObject();
+    nic.add("properties", member("ipConfigurations", ipConfigurations));
+    return nic;
+  }
+
+  private List<JsonObject> children(String collection) {
+    List<JsonObject> children = new ArrayList<>();
+    resources.forEach((id, resource) -> {
+      if (id.lastIndexOf('/') > 0 && id.substring(0, id.lastIndexOf('/')).equalsIgnoreCase(collection)) {
+        children.add(resource);
+      }
+    });
+    return children;
+  }
+
+  private List<JsonObject> resourcesWithTag(String resourceGroupId, String query) {
+    Matcher filter = TAG_FILTER.matcher(query == null ? "" : query);
+    boolean filtered = filter.find();
+    String prefix = resourceGroupId.toLowerCase(Locale.ROOT) + "/providers/";
+    List<JsonObject> matches = new ArrayList<>();
+    resources.forEach((id, resource) -> {
+      if (id.toLowerCase(Locale.ROOT).startsWith(prefix) && segments(id) == 8
+          && (!filtered || filter.group(2).equals(tags(id).get(filter.group(1))))) {
+        JsonObject generic = object("id", id);
+        generic.add("name", resource.get("name"));
+        generic.add("type", resource.get("type"));
+        generic.add("location", resource.get("location"));
+        generic.add("tags", resource.has("tags") ? resource.get("tags") : new JsonObject());
+        matches.add(generic);
+      }
+    });
+    return matches;
+  }
+
+  private List<JsonObject> locations() {
+    List<JsonObject> locations = new ArrayList<>();
+    for (String[] location : new String[][]{{REGION, "East US"}, {"westeurope", "West Europe"}, {"southeastasia", "Southeast Asia"}}) {
+      JsonObject json = object("id", "/subscriptions/" + SUBSCRIPTION_ID + "/locations/" + location[0]);
+      json.addProperty("name", location[0]);
+      json.addProperty("displayName", location[1]);
+      locations.add(json);
+    }
+    return locations;
+  }
+
+  private void delay() {
+    long jitter = latencyJitterMillis;
+    long millis = latencyMillis + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+    if (millis > 0) {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private boolean admit(HttpExchange exchange) {
+    int limit = requestsPerSecond;
+    if (limit <= 0) {
+      return true;
+    }
+    int remaining;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (now - windowStart >= 1000) {
+        windowStart = now;
+        windowRequests = 0;
+      }
+      remaining = limit - ++windowRequests;
+    }
+    String header = "GET".equals(exchange.getRequestMethod()) || "HEAD".equals(exchange.getRequestMethod())
+        ? ArmRequestScheduler.REMAINING_READS : ArmRequestScheduler.REMAINING_WRITES;
+    exchange.getResponseHeaders().add(header, Integer.toString(Math.max(0, remaining)));
+    return remaining >= 0;
+  }
+
+  private Integer fault(String method, String path) {
+    for (Iterator<Fault> iterator = faults.iterator(); iterator.hasNext(); ) {
+      Fault fault = iterator.next();
+      if (fault.method.equalsIgnoreCase(method) && fault.path.matcher(path).matches() && faults.remove(fault)) {
+        return fault.status;
+      }
+    }
+    double rate = failureRate;
+    return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate ? 500 : null;
+  }
+
+  private static JsonObject readBody(HttpExchange exchange) throws IOException {
+    try (InputStream in = exchange.getRequestBody()) {
+      String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+      if (body.isBlank()) {
+        return new JsonObject();
+      }
+      JsonElement json = JsonParser.parseString(body);
+      return json.isJsonObject() ? json.getAsJsonObject() : new JsonObject();
+    }
+  }
+
+  private static void notFound(HttpExchange exchange, String id) throws IOException {
+    error(exchange, 404, "ResourceNotFound", "The Resource '" + id + "' was not found.");
+  }
+
+  private static void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+    JsonObject error = object("code", code);
+    error.addProperty("message", message);
+    respond(exchange, status, member("error", error));
+  }
+
+  private static void respond(HttpExchange exchange, int status, JsonElement body) throws IOException {
+    exchange.getResponseHeaders().add("x-ms-request-id", UUID.randomUUID().toString());
+    if (body == null || "HEAD".equals(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    byte[] bytes = GSON.toJson(body).getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static JsonObject list(List<JsonObject> values) {
+    JsonArray array = new JsonArray();
+    values.forEach(array::add);
+    return member("value", array);
+  }
+
+  private static String type(String id) {
+    String[] segments = id.replaceAll("^/+", "").split("/");
+    int providers = -1;
+    for (int i = 0; i < segments.length; i++) {
+      if ("providers".equalsIgnoreCase(segments[i])) {
+        providers = i;
+      }
+    }
+    if (providers < 0) {
+      return segments.length == 2 ? "Microsoft.Resources/subscriptions" : "Microsoft.Resources/resourceGroups";
+    }
+    StringBuilder type = new StringBuilder(segments[providers + 1]);
+    for (int i = providers + 2; i < segments.length; i += 2) {
+      type.append('/').append(segments[i]);
+    }
+    return type.toString();
+  }
+
+  private static int segments(String path) {
+    return path.replaceAll("^/+", "").split("/").length;
+  }
+
+  private static JsonObject object(String name, String value) {
+    JsonObject object = new JsonObject();
+    object.addProperty(name, value);
+    return object;
+  }
+
+  private static JsonObject object(String name, boolean value) {
+    JsonObject object = new JsonObject();
+    object.addProperty(name, value);
+    return object;
+  }
+
+  private static JsonObject member(String name, JsonElement value) {
+    JsonObject object = new JsonObject();
+    object.add(name, value);
+    return object;
+  }
+
+  private static JsonArray array(JsonElement... elements) {
+    JsonArray array = new JsonArray();
+    for (JsonElement element : elements) {
+      array.add(element);
+    }
+    return array;
+  }
+
+  private static JsonArray array(String... values) {
+    JsonArray array = new JsonArray();
+    for (String value : values) {
+      array.add(value);
+    }
+    return array;
+  }
+
+  private static class Fault {
+    private final String method;
+    private final Pattern path;
+    private final int status;
+
+    private Fault(String method, Pattern path, int status) {
+      this.method = method;
+      this.path = path;
+      this.status = status;
+    }
+  }
+}
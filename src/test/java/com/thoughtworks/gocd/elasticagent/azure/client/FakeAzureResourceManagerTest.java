@@ -0,0 +1,162 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.microsoft.azure.management.compute.VirtualMachine;
+import org.joda.time.Period;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.thoughtworks.gocd.elasticagent.azure.client.FakeAzureResourceManager.*;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.GOCD_SERVER_ID_TAG_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FakeAzureResourceManagerTest {
+
+  private FakeAzureResourceManager arm;
+  private GoCDAzureClient client;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    arm = new FakeAzureResourceManager();
+    client = arm.client();
+  }
+
+  @AfterEach
+  void tearDown() {
+    arm.close();
+  }
+
+  @Test
+  void shouldServeTheLookupsOfPluginSettingsValidation() {
+    assertTrue(client.resourceGroupExists(RESOURCE_GROUP));
+    assertFalse(client.resourceGroupExists("someone-elses-group"));
+    assertTrue(client.networkExists(arm.networkId()));
+    assertTrue(client.subnetExists(arm.networkId(), SUBNET));
+    assertFalse(client.subnetExists(arm.networkId(), "missing-subnet"));
+    assertTrue(client.networkSecurityGroupExists(arm.networkSecurityGroupId()));
+    assertTrue(client.regionExists(REGION));
+  }
+
+  @Test
+  void shouldListTheVirtualMachinesTaggedWithTheServerId() {
+    arm.addVirtualMachine("agent-1", Map.of(GOCD_SERVER_ID_TAG_KEY, "server-1"));
+    arm.addVirtualMachine("agent-2", Map.of(GOCD_SERVER_ID_TAG_KEY, "server-1"));
+    arm.addVirtualMachine("other-agent", Map.of(GOCD_SERVER_ID_TAG_KEY, "server-2"));
+
+    Set<String> names = client.inventorySnapshot("server-1").allVirtualMachines().stream()
+        .map(VirtualMachine::name)
+        .collect(Collectors.toSet());
+
+    assertEquals(Set.of("agent-1", "agent-2"), names);
+  }
+
+  @Test
+  void shouldUpdateTagsOfAVirtualMachine() {
+    String id = arm.addVirtualMachine("agent-1", Map.of(GOCD_SERVER_ID_TAG_KEY, "server-1"));
+
+    client.updateTags(id, arm.tags(id), new TagChanges().set("job-identifier", "42"));
+
+    assertEquals(Map.of(GOCD_SERVER_ID_TAG_KEY, "server-1", "job-identifier", "42"), arm.tags(id));
+  }
+
+  @Test
+  void shouldSetAndRemoveTagsInOneWrite() {
+    String id = arm.addVirtualMachine("agent-1", Map.of(GOCD_SERVER_ID_TAG_KEY, "server-1", "job-identifier", "41"));
+
+    client.updateTags(id, arm.tags(id), new TagChanges().set("last-job-run", "1000").remove("job-identifier"));
+
+    assertEquals(Map.of(GOCD_SERVER_ID_TAG_KEY, "server-1", "last-job-run", "1000"), arm.tags(id));
+  }
+
+  @Test
+  void shouldTerminateAVirtualMachineWithItsNetworkInterfaceAndDisk() throws Exception {
+    String id = arm.addVirtualMachine("agent-1", Map.of(GOCD_SERVER_ID_TAG_KEY, "server-1"));
+
+    client.terminate(id).get(10, TimeUnit.SECONDS);
+
+    assertFalse(arm.contains(id));
+    assertFalse(arm.contains(arm.networkInterfaceId("agent-1-nic")));
+    assertFalse(arm.contains(arm.diskId("agent-1_OsDisk")));
+  }
+
+  @Test
+  void shouldDeallocateAndStartVirtualMachines() {
+    String id = arm.addVirtualMachine("agent-1", Map.of(GOCD_SERVER_ID_TAG_KEY, "server-1"));
+
+    client.deallocate("agent-1");
+    assertEquals("deallocated", arm.powerState(id));
+
+    client.start("agent-1");
+    assertEquals("running", arm.powerState(id));
+  }
+
+  @Test
+  void shouldThrottleRequestsBeyondTheSubscriptionLimit() {
+    arm.withRequestsPerSecond(2);
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(client.resourceGroupExists(RESOURCE_GROUP));
+    }
+
+    assertTrue(arm.throttledCount() > 0);
+  }
+
+  @Test
+  void shouldInjectFailures() {
+    arm.failNext("GET", ".*/virtualNetworks/.*", 400);
+
+    assertFalse(client.networkExists(arm.networkId()));
+    assertTrue(client.networkExists(arm.networkId()));
+    assertEquals(1, arm.failedCount());
+  }
+
+  @Test
+  void shouldServeConcurrentRequests() throws Exception {
+    arm.withLatency(Period.millis(10), Period.millis(10));
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      ids.add(arm.addVirtualMachine("agent-" + i, Map.of(GOCD_SERVER_ID_TAG_KEY, "server-1")));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(32);
+    try {
+      List<Future<?>> deallocations = new ArrayList<>();
+      for (int i = 0; i < ids.size(); i++) {
+        String name = "agent-" + i;
+        deallocations.add(executor.submit(() -> client.deallocate(name)));
+      }
+      for (Future<?> deallocation : deallocations) {
+        deallocation.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    ids.forEach(id -> assertEquals("deallocated", arm.powerState(id)));
+  }
+}
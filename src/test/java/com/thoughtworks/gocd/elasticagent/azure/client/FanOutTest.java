@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.google.common.collect.Iterables;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FanOutTest {
+
+  @Test
+  void shouldKeepTheOrderOfTheSource() {
+    List<Integer> source = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+
+    List<Integer> results = new FanOut("fan-out-test", 4).map(source, i -> {
+      sleep((100 - i) / 10);
+      return i * 2;
+    });
+
+    assertEquals(source.stream().map(i -> i * 2).collect(Collectors.toList()), results);
+  }
+
+  @Test
+  void shouldStartCallsForAPageBeforeTheNextPageIsFetched() {
+    CountDownLatch firstPageFetched = new CountDownLatch(2);
+    AtomicBoolean fetchedBeforeSecondPage = new AtomicBoolean();
+    Iterable<String> pages = Iterables.concat(Iterables.transform(asList(asList("a", "b"), asList("c")), page -> {
+      if (page.contains("c")) {
+        fetchedBeforeSecondPage.set(await(firstPageFetched));
+      }
+      return page;
+    }));
+
+    List<String> results = new FanOut("fan-out-test", 2).map(pages, id -> {
+      firstPageFetched.countDown();
+      return id.toUpperCase();
+    });
+
+    assertEquals(asList("A", "B", "C"), results);
+    assertTrue(fetchedBeforeSecondPage.get());
+  }
+
+  @Test
+  void shouldRunCallsConcurrently() {
+    CountDownLatch running = new CountDownLatch(4);
+
+    List<Boolean> results = new FanOut("fan-out-test", 4).map(asList(1, 2, 3, 4), i -> {
+      running.countDown();
+      return await(running);
+    });
+
+    assertEquals(asList(true, true, true, true), results);
+  }
+
+  @Test
+  void shouldRethrowTheFailureOfACall() {
+    IllegalStateException e = assertThrows(IllegalStateException.class, () -> new FanOut("fan-out-test", 2).map(asList(1, 2, 3), i -> {
+      if (i == 2) {
+        throw new IllegalStateException("vm " + i + " not found");
+      }
+      return i;
+    }));
+
+    assertEquals("vm 2 not found", e.getMessage());
+  }
+
+  private static boolean await(CountDownLatch latch) {
+    try {
+      return latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -1,9 +1,13 @@
 package com.thoughtworks.gocd.elasticagent.azure.client;
 
+import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
+import org.joda.time.Period;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.mockito.Mockito.*;
 
 class GoCDAzureClientFactoryTest {
@@ -14,6 +18,37 @@ class GoCDAzureClientFactoryTest {
         verifySubscriptionId("", "");
     }
 
+    @Test
+    void shouldReusePooledClientForUnchangedPluginSettings() throws IOException {
+        GoCDAzureClientFactory factory = spy(GoCDAzureClientFactory.class);
+        GoCDAzureClient client = mock(GoCDAzureClient.class);
+        doReturn(client).when(factory).createClient(anyString(), anyString(), anyString(), anyString(), anyString());
+        PluginSettings settings = new PluginSettings("serverUrl", "2", "15", "domain", "clientId", "secret", Period.minutes(2),
+            "/subscriptions/abcdef98-0123-4567-890a-fedcba01/resourceGroups/", "subnet", "nsg-123", "resourceGroup", "sshKey", "westus", "username", "adminUserName", "password");
+
+        assertSame(client, factory.initialize(settings));
+        assertSame(client, factory.initialize(settings));
+
+        verify(factory, times(1)).createClient(anyString(), anyString(), anyString(), anyString(), anyString());
+        assertEquals(1, factory.getClientPool().hits());
+        assertEquals(1, factory.getClientPool().misses());
+    }
+
+    @Test
+    void shouldApplyTheInventoryStalenessOfThePluginSettingsToPooledClients() throws IOException {
+        GoCDAzureClientFactory factory = spy(GoCDAzureClientFactory.class);
+        GoCDAzureClient client = mock(GoCDAzureClient.class);
+        doReturn(client).when(factory).createClient(anyString(), anyString(), anyString(), anyString(), anyString());
+        PluginSettings settings = PluginSettings.fromJSON("{\"client_id\": \"clientId\", \"domain\": \"domain\", \"secret\": \"secret\", " +
+            "\"resource_group\": \"resourceGroup\", \"network_id\": \"/subscriptions/abcdef98-0123-4567-890a-fedcba01/resourceGroups/\", " +
+            "\"inventory_staleness\": \"15\"}");
+
+        factory.initialize(settings);
+        factory.initialize(settings);
+
+        verify(client, times(2)).setInventoryStaleness(Period.seconds(15));
+    }
+
     private void verifySubscriptionId(String networkID, String expectedSubscriptionID) throws IOException {
         GoCDAzureClientFactory factory = spy(GoCDAzureClientFactory.class);
         when(factory.createClient(anyString(), anyString(), anyString(), anyString(), eq(expectedSubscriptionID))).thenReturn(mock(GoCDAzureClient.class));
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.thoughtworks.gocd.elasticagent.azure.BaseTest;
+import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
+import org.joda.time.Period;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class GoCDAzureClientPoolTest extends BaseTest {
+
+  private GoCDAzureClientPool pool;
+
+  @BeforeEach
+  void setUp() {
+    pool = new GoCDAzureClientPool();
+  }
+
+  @Test
+  void shouldReuseClientForSameSettings() throws Exception {
+    GoCDAzureClient client = mock(GoCDAzureClient.class);
+    GoCDAzureClientPool.ClientSupplier supplier = mock(GoCDAzureClientPool.ClientSupplier.class);
+    when(supplier.get()).thenReturn(client);
+
+    assertSame(client, pool.getOrCreate(createPluginSettings(), supplier));
+    assertSame(client, pool.getOrCreate(createPluginSettings(), supplier));
+
+    verify(supplier, times(1)).get();
+    assertEquals(1, pool.hits());
+    assertEquals(1, pool.misses());
+  }
+
+  @Test
+  void shouldEvictClientWhenConnectionSettingsChange() throws Exception {
+    GoCDAzureClient oldClient = mock(GoCDAzureClient.class);
+    GoCDAzureClient newClient = mock(GoCDAzureClient.class);
+
+    pool.getOrCreate(createPluginSettings(), () -> oldClient);
+    GoCDAzureClient client = pool.getOrCreate(settingsWithSecret("rotated-secret"), () -> newClient);
+
+    assertSame(newClient, client);
+    assertEquals(1, pool.size());
+    assertEquals(1, pool.evictions());
+    assertEquals(2, pool.misses());
+  }
+
+  @Test
+  void shouldDrainTeardownsOfEvictedClientsThatStillHaveSomeRunning() throws Exception {
+    GoCDAzureClient busyClient = mock(GoCDAzureClient.class);
+    GoCDAzureClient idleClient = mock(GoCDAzureClient.class);
+    GoCDAzureClient currentClient = mock(GoCDAzureClient.class);
+    when(busyClient.pendingTeardowns()).thenReturn(1);
+    when(busyClient.drainTeardowns(any(Period.class))).thenReturn(1);
+
+    pool.getOrCreate(createPluginSettings(), () -> busyClient);
+    pool.getOrCreate(settingsWithSecret("rotated-secret"), () -> idleClient);
+    pool.getOrCreate(settingsWithSecret("another-secret"), () -> currentClient);
+
+    assertEquals(1, pool.drainTeardowns(Period.seconds(1)));
+    verify(busyClient).drainTeardowns(any(Period.class));
+    verify(currentClient).drainTeardowns(any(Period.class));
+    verify(idleClient, never()).drainTeardowns(any(Period.class));
+  }
+
+  @Test
+  void shouldNotFingerprintSettingsUnrelatedToTheAzureConnection() {
+    PluginSettings settings = createPluginSettings();
+    PluginSettings settingsWithDifferentServerUrl = new PluginSettings("another-server-url", "5", "30", "domain", "clientId", "secret",
+        Period.minutes(5), "networkId", "subnet", "nsg-123", "resourceGroup", "sshKey", "westus", "username", "adminUserName", "password");
+
+    assertEquals(GoCDAzureClientPool.fingerprint(settings), GoCDAzureClientPool.fingerprint(settingsWithDifferentServerUrl));
+    assertNotEquals(GoCDAzureClientPool.fingerprint(settings), GoCDAzureClientPool.fingerprint(settingsWithSecret("another-secret")));
+  }
+
+  @Test
+  void shouldRecreateClientAfterInvalidation() throws Exception {
+    GoCDAzureClientPool.ClientSupplier supplier = mock(GoCDAzureClientPool.ClientSupplier.class);
+    when(supplier.get()).thenReturn(mock(GoCDAzureClient.class));
+
+    pool.getOrCreate(createPluginSettings(), supplier);
+    pool.invalidate(createPluginSettings());
+    pool.getOrCreate(createPluginSettings(), supplier);
+
+    verify(supplier, times(2)).get();
+  }
+
+  @Test
+  void shouldCreateOnlyOneClientForConcurrentRequests() throws Exception {
+    GoCDAzureClientPool.ClientSupplier supplier = mock(GoCDAzureClientPool.ClientSupplier.class);
+    when(supplier.get()).thenReturn(mock(GoCDAzureClient.class));
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<GoCDAzureClient>> futures = new ArrayList<>();
+
+    for (int i = 0; i < 64; i++) {
+      futures.add(executor.submit(() -> {
+        start.await();
+        return pool.getOrCreate(createPluginSettings(), supplier);
+      }));
+    }
+    start.countDown();
+    for (Future<GoCDAzureClient> future : futures) {
+      assertNotNull(future.get(10, TimeUnit.SECONDS));
+    }
+    executor.shutdown();
+
+    verify(supplier, times(1)).get();
+    assertEquals(63, pool.hits());
+  }
+
+  private PluginSettings settingsWithSecret(String secret) {
+    return new PluginSettings("serverUrl", "2", "15", "domain", "clientId", secret, Period.minutes(2), "networkId",
+        "subnet", "nsg-123", "resourceGroup", "sshKey", "westus", "username", "adminUserName", "@dminP@$$w0rd");
+  }
+}
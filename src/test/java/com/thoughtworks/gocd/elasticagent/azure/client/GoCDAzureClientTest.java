@@ -16,20 +16,25 @@
 
 package com.thoughtworks.gocd.elasticagent.azure.client;
 
+import com.google.common.collect.Iterables;
 import com.microsoft.azure.CloudError;
 import com.microsoft.azure.CloudException;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.azure.management.compute.*;
 import com.microsoft.azure.management.compute.VirtualMachine.DefinitionStages.*;
-import com.microsoft.azure.management.compute.VirtualMachine.Update;
 import com.microsoft.azure.management.network.Network;
 import com.microsoft.azure.management.network.NetworkInterface;
 import com.microsoft.azure.management.network.NetworkSecurityGroup;
 import com.microsoft.azure.management.resources.Location;
+import com.microsoft.azure.management.resources.TagsPatchResource;
+import com.microsoft.azure.management.resources.TagsPatchResourceOperation;
 import com.microsoft.azure.management.resources.fluentcore.arm.Region;
+import com.microsoft.azure.management.resources.implementation.TagsInner;
 import com.thoughtworks.gocd.elasticagent.azure.AgentConfig;
 import com.thoughtworks.gocd.elasticagent.azure.BaseTest;
+import com.thoughtworks.gocd.elasticagent.azure.Clock;
 import com.thoughtworks.gocd.elasticagent.azure.exceptions.ProvisionFailedException;
+import com.thoughtworks.gocd.elasticagent.azure.metrics.MetricsRegistry;
 import com.thoughtworks.gocd.elasticagent.azure.models.ImageURN;
 import com.thoughtworks.gocd.elasticagent.azure.models.Platform;
 import com.thoughtworks.gocd.elasticagent.azure.vm.AzureVMExtension;
@@ -37,16 +42,21 @@ import com.thoughtworks.gocd.elasticagent.azure.vm.PlatformConfigStrategy;
 import com.thoughtworks.gocd.elasticagent.azure.vm.VmConfig;
 import okhttp3.MediaType;
 import okhttp3.ResponseBody;
+import org.joda.time.Period;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import retrofit2.Response;
 
+import java.net.SocketTimeoutException;
 import java.security.InvalidParameterException;
 import java.util.*;
 
 import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.GOCD_SERVER_ID_TAG_KEY;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.PARKED_AT_TAG_KEY;
 import static java.util.Arrays.asList;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -71,32 +81,23 @@ class GoCDAzureClientTest extends BaseTest {
   }
 
   @Test
-  void testShouldFetchRunningVirtualMachinesInResourceGroupWithCaseInsensitivityAndWithServerIdTag() {
+  void testShouldFetchRunningVirtualMachinesWithServerIdTagThroughInventoryQuery() {
     VirtualMachine vm1 = mock(VirtualMachine.class);
-    VirtualMachine vm2 = mock(VirtualMachine.class);
     VirtualMachine vm3 = mock(VirtualMachine.class);
-
-    when(vm1.resourceGroupName()).thenReturn("agents-group");
     Map<String, String> tagsMap = new HashMap<String, String>() {{
       put(GOCD_SERVER_ID_TAG_KEY, "server_id");
     }};
     when(vm1.tags()).thenReturn(tagsMap);
-    when(vm2.resourceGroupName()).thenReturn("another-group");
-    when(vm3.resourceGroupName()).thenReturn("agents-group");
     when(vm3.tags()).thenReturn(tagsMap);
-    List<VirtualMachine> machines = asList(vm1, vm2, vm3);
-    when(azure.virtualMachines().list().stream()).thenReturn(machines.stream()).thenReturn(machines.stream());
-    List<VirtualMachine> vms = new GoCDAzureClient(azure, "agents-group", mockNetworkDecorator).runningVirtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, "server_id");
-
-    assertEquals(2, vms.size());
-    assertEquals(vm1, vms.get(0));
-    assertEquals(vm3, vms.get(1));
+    InventoryBackend backend = mock(InventoryBackend.class);
+    when(backend.virtualMachines()).thenReturn(asList(vm1, vm3));
 
-    vms = new GoCDAzureClient(azure, "AGENTS-group", mockNetworkDecorator).runningVirtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, "server_id");
+    List<VirtualMachine> vms = new GoCDAzureClient(azure, "agents-group", mockNetworkDecorator, new InventoryQuery(backend)).inventorySnapshot("server_id").runningVirtualMachines();
 
     assertEquals(2, vms.size());
     assertEquals(vm1, vms.get(0));
     assertEquals(vm3, vms.get(1));
+    verify(azure.virtualMachines(), never()).list();
   }
 
   @Test
@@ -107,15 +108,11 @@ class GoCDAzureClientTest extends BaseTest {
     Map<String, String> tagsMap = new HashMap<String, String>() {{
       put(GOCD_SERVER_ID_TAG_KEY, "server_id");
     }};
-    when(runningVm.resourceGroupName()).thenReturn("agents-group");
     when(runningVm.tags()).thenReturn(tagsMap);
     when(runningVm.provisioningState()).thenReturn("Succeeded");
-    when(failedVm.resourceGroupName()).thenReturn("agents-group");
     when(failedVm.provisioningState()).thenReturn("Failed");
     when(failedVm.tags()).thenReturn(tagsMap);
-    List<VirtualMachine> machines = asList(runningVm, failedVm);
-    when(azure.virtualMachines().list().stream()).thenReturn(machines.stream()).thenReturn(machines.stream());
-    List<VirtualMachine> vms = new GoCDAzureClient(azure, "agents-group", mockNetworkDecorator).runningVirtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, "server_id");
+    List<VirtualMachine> vms = clientWithInventory(runningVm, failedVm).inventorySnapshot("server_id").runningVirtualMachines();
 
     assertEquals(1, vms.size());
     assertEquals(runningVm, vms.get(0));
@@ -129,20 +126,98 @@ class GoCDAzureClientTest extends BaseTest {
     Map<String, String> tagsMap = new HashMap<String, String>() {{
       put(GOCD_SERVER_ID_TAG_KEY, "server_id");
     }};
-    when(runningVm.resourceGroupName()).thenReturn("agents-group");
     when(runningVm.tags()).thenReturn(tagsMap);
     when(runningVm.provisioningState()).thenReturn("Succeeded");
-    when(failedVm.resourceGroupName()).thenReturn("agents-group");
     when(failedVm.provisioningState()).thenReturn("Failed");
     when(failedVm.tags()).thenReturn(tagsMap);
-    List<VirtualMachine> machines = asList(runningVm, failedVm);
-    when(azure.virtualMachines().list().stream()).thenReturn(machines.stream()).thenReturn(machines.stream());
-    List<VirtualMachine> vms = new GoCDAzureClient(azure, "agents-group", mockNetworkDecorator).failedProvisioningStateVirtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, "server_id");
+    List<VirtualMachine> vms = clientWithInventory(runningVm, failedVm).inventorySnapshot("server_id").failedProvisioningVirtualMachines();
 
     assertEquals(1, vms.size());
     assertEquals(failedVm, vms.get(0));
   }
 
+  @Test
+  void shouldShareInventorySnapshotWithinStalenessWindow() {
+    VirtualMachine vm = mock(VirtualMachine.class);
+    when(vm.tags()).thenReturn(Collections.singletonMap(GOCD_SERVER_ID_TAG_KEY, "server_id"));
+    InventoryBackend backend = mock(InventoryBackend.class);
+    when(backend.virtualMachines()).thenReturn(asList(vm));
+    Clock.TestClock clock = new Clock.TestClock();
+    GoCDAzureClient client = new GoCDAzureClient(azure, resourceGroup, mockNetworkDecorator, new InventoryQuery(backend), new InventorySnapshots(clock, Period.seconds(30)));
+
+    InventorySnapshot snapshot = client.inventorySnapshot("server_id");
+    assertSame(snapshot, client.inventorySnapshot("server_id"));
+    verify(backend, times(1)).virtualMachines();
+
+    clock.forward(Period.seconds(30));
+    assertNotSame(snapshot, client.inventorySnapshot("server_id"));
+    verify(backend, times(2)).virtualMachines();
+  }
+
+  @Test
+  void shouldMapRunningVirtualMachinesAsTheirPageArrivesAndShareTheListingAsASnapshot() {
+    VirtualMachine first = mock(VirtualMachine.class);
+    VirtualMachine parked = mock(VirtualMachine.class);
+    VirtualMachine last = mock(VirtualMachine.class);
+    when(first.tags()).thenReturn(Collections.singletonMap(GOCD_SERVER_ID_TAG_KEY, "server_id"));
+    when(last.tags()).thenReturn(Collections.singletonMap(GOCD_SERVER_ID_TAG_KEY, "server_id"));
+    Map<String, String> parkedTags = new HashMap<>();
+    parkedTags.put(GOCD_SERVER_ID_TAG_KEY, "server_id");
+    parkedTags.put(PARKED_AT_TAG_KEY, "2020-01-01T00:00:00Z");
+    when(parked.tags()).thenReturn(parkedTags);
+    List<String> events = new ArrayList<>();
+    InventoryBackend backend = mock(InventoryBackend.class);
+    when(backend.virtualMachines()).thenReturn(() -> asList(first, parked, last).stream().peek(vm -> events.add("listed " + vm)).iterator());
+    GoCDAzureClient client = new GoCDAzureClient(azure, resourceGroup, mockNetworkDecorator, new InventoryQuery(backend));
+
+    List<VirtualMachine> mapped = client.mapRunningVirtualMachines("server_id", false, running -> {
+      List<VirtualMachine> vms = new ArrayList<>();
+      running.forEach(vm -> {
+        events.add("mapped " + vm);
+        vms.add(vm);
+      });
+      return vms;
+    });
+
+    assertEquals(asList(first, last), mapped);
+    assertEquals(asList("listed " + first, "mapped " + first, "listed " + parked, "listed " + last, "mapped " + last), events);
+    InventorySnapshot snapshot = client.inventorySnapshot("server_id");
+    assertEquals(asList(first, parked, last), snapshot.allVirtualMachines());
+    assertEquals(asList(parked), snapshot.parkedVirtualMachines());
+    verify(backend, times(1)).virtualMachines();
+  }
+
+  @Test
+  void shouldMapTheSnapshotWithinTheStalenessWindowUnlessAFreshListingIsAskedFor() {
+    VirtualMachine vm = mock(VirtualMachine.class);
+    when(vm.tags()).thenReturn(Collections.singletonMap(GOCD_SERVER_ID_TAG_KEY, "server_id"));
+    InventoryBackend backend = mock(InventoryBackend.class);
+    when(backend.virtualMachines()).thenReturn(asList(vm));
+    GoCDAzureClient client = new GoCDAzureClient(azure, resourceGroup, mockNetworkDecorator, new InventoryQuery(backend));
+    client.inventorySnapshot("server_id");
+
+    assertEquals(1, (int) client.mapRunningVirtualMachines("server_id", false, running -> Iterables.size(running)));
+    verify(backend, times(1)).virtualMachines();
+
+    assertEquals(1, (int) client.mapRunningVirtualMachines("server_id", true, running -> Iterables.size(running)));
+    verify(backend, times(2)).virtualMachines();
+  }
+
+  @Test
+  void shouldInvalidateInventorySnapshotOnTerminate() {
+    VirtualMachine vm = mock(VirtualMachine.class, RETURNS_DEEP_STUBS);
+    when(vm.tags()).thenReturn(Collections.singletonMap(GOCD_SERVER_ID_TAG_KEY, "server_id"));
+    when(vm.id()).thenReturn("vm-0");
+    when(vm.dataDisks()).thenReturn(Collections.emptyMap());
+    when(vm.networkInterfaceIds()).thenReturn(Collections.emptyList());
+    GoCDAzureClient client = clientWithInventory(vm);
+
+    InventorySnapshot snapshot = client.inventorySnapshot("server_id");
+    client.terminate(vm).join();
+
+    assertNotSame(snapshot, client.inventorySnapshot("server_id"));
+  }
+
   @Test
   void shouldReturnFalseIfNetworkDoesnotExist() {
     when(azure.networks().getById("invalid-network-id")).thenReturn(null);
@@ -335,6 +410,37 @@ class GoCDAzureClientTest extends BaseTest {
     verify(mockStrategy).startAgent("AGENTS", "vmName", mockVirtualMachines, agentConfig);
   }
 
+  @Test
+  void testReRegisterAgentShouldReRegisterAndStartTheAgent() {
+    VmConfig mockVMConfig = mock(VmConfig.class, RETURNS_DEEP_STUBS);
+    AgentConfig agentConfig = mock(AgentConfig.class);
+    PlatformConfigStrategy mockStrategy = mock(PlatformConfigStrategy.class, RETURNS_DEEP_STUBS);
+    VirtualMachines mockVirtualMachines = mock(VirtualMachines.class);
+    when(mockVMConfig.getPlatformStrategy()).thenReturn(mockStrategy);
+    when(mockVMConfig.getName()).thenReturn("vmName");
+    when(mockVMConfig.getResourceGroup()).thenReturn("AGENTS");
+    when(mockVMConfig.getAgentConfig()).thenReturn(agentConfig);
+    when(azure.virtualMachines()).thenReturn(mockVirtualMachines);
+
+    goCDAzureClient.reRegisterAgent(mockVMConfig);
+
+    InOrder inOrder = inOrder(mockStrategy);
+    inOrder.verify(mockStrategy).reRegisterAgent("AGENTS", "vmName", mockVirtualMachines, agentConfig);
+    inOrder.verify(mockStrategy).startAgent("AGENTS", "vmName", mockVirtualMachines, agentConfig);
+  }
+
+  @Test
+  void testShouldDeallocateAndStartVmInResourceGroup() {
+    VirtualMachines mockVirtualMachines = mock(VirtualMachines.class);
+    when(azure.virtualMachines()).thenReturn(mockVirtualMachines);
+
+    goCDAzureClient.deallocate("vmName");
+    goCDAzureClient.start("vmName");
+
+    verify(mockVirtualMachines).deallocate(resourceGroup, "vmName");
+    verify(mockVirtualMachines).start(resourceGroup, "vmName");
+  }
+
   @Test
   void testInstallAgentShouldInvokeCommand() throws ProvisionFailedException {
     GoCDAzureClient goCDAzureClient = new GoCDAzureClient(azure, resourceGroup, mockNetworkDecorator);
@@ -369,41 +475,43 @@ class GoCDAzureClientTest extends BaseTest {
             new CloudError()));
 
     assertThrows(ProvisionFailedException.class, () -> goCDAzureClient.runCustomScript(mockVMConfig));
-    verify(azure.virtualMachines()).deleteById("/resources/Test-123");
+    verify(azure.virtualMachines(), timeout(5000)).deleteById("/resources/Test-123");
   }
 
   @Test
-  void shouldAddTagToTheVirtualMachine() {
-    VirtualMachine mockVM = mock(VirtualMachine.class);
-    VirtualMachine mockVMWithTags = mock(VirtualMachine.class);
-    Update mockUpdate = mock(Update.class, RETURNS_DEEP_STUBS);
-    when(mockVM.update()).thenReturn(mockUpdate);
-    when(azure.virtualMachines().getById("vm-id")).thenReturn(mockVM);
-    when(mockUpdate.withTag("tag-1", "value-1").apply()).thenReturn(mockVMWithTags);
-
-    GoCDAzureClient goCDAzureClient = new GoCDAzureClient(azure, resourceGroup, mockNetworkDecorator);
-
-    VirtualMachine vmWithTags = goCDAzureClient.addTag("vm-id", "tag-1", "value-1");
-
-    verify(mockUpdate.withTag("tag-1", "value-1"), times(1)).apply();
-    assertEquals(mockVMWithTags, vmWithTags);
+  void shouldReplaceTagsWithTheCurrentTagsAndChangesInOnePatch() {
+    Map<String, String> currentTags = new HashMap<>();
+    currentTags.put("job-identifier", "job-hash");
+    currentTags.put("elastic-profile", "profile-hash");
+    Map<String, String> expectedTags = new HashMap<>();
+    expectedTags.put("elastic-profile", "profile-hash");
+    expectedTags.put("last-job-run", "1000");
+    TagsInner tagsClient = azure.genericResources().manager().inner().tags();
+    when(tagsClient.updateAtScope(eq("vm-id"), any(TagsPatchResource.class)).properties().tags()).thenReturn(expectedTags);
+
+    Map<String, String> tags = goCDAzureClient.updateTags("vm-id", currentTags, new TagChanges()
+        .set("last-job-run", "1000")
+        .remove("job-identifier"));
+
+    assertEquals(expectedTags, tags);
+    ArgumentCaptor<TagsPatchResource> patch = ArgumentCaptor.forClass(TagsPatchResource.class);
+    verify(tagsClient, times(1)).updateAtScope(eq("vm-id"), patch.capture());
+    assertEquals(TagsPatchResourceOperation.REPLACE, patch.getValue().operation());
+    assertEquals(expectedTags, patch.getValue().properties().tags());
+    verify(azure.virtualMachines(), never()).getById(anyString());
+    verify(azure.tagOperations(), never()).updateTags(anyString(), anyMap());
   }
 
   @Test
-  void shouldRemoveTagFromVirtualMachine() {
-    VirtualMachine mockVM = mock(VirtualMachine.class);
-    VirtualMachine mockVMWithoutTag = mock(VirtualMachine.class);
-    Update mockUpdate = mock(Update.class, RETURNS_DEEP_STUBS);
-    when(mockVM.update()).thenReturn(mockUpdate);
-    when(azure.virtualMachines().getById("vm-id")).thenReturn(mockVM);
-    when(mockUpdate.withoutTag("tag-1").apply()).thenReturn(mockVMWithoutTag);
-
-    GoCDAzureClient goCDAzureClient = new GoCDAzureClient(azure, resourceGroup, mockNetworkDecorator);
+  void shouldSkipTagWriteWhenChangesAreAlreadyApplied() {
+    Map<String, String> currentTags = Collections.singletonMap("last-job-run", "1000");
 
-    VirtualMachine vmWithoutTags = goCDAzureClient.removeTag("vm-id", "tag-1");
+    Map<String, String> tags = goCDAzureClient.updateTags("vm-id", currentTags, new TagChanges()
+        .set("last-job-run", "1000")
+        .remove("job-identifier"));
 
-    verify(mockUpdate.withoutTag("tag-1"), times(1)).apply();
-    assertEquals(mockVMWithoutTag, vmWithoutTags);
+    assertEquals(currentTags, tags);
+    verify(azure.genericResources().manager().inner().tags(), never()).updateAtScope(anyString(), any());
   }
 
   @Test
@@ -427,6 +535,27 @@ class GoCDAzureClientTest extends BaseTest {
     verify(azure.networkInterfaces()).deleteById("nicId");
   }
 
+  @Test
+  void shouldFailCreationFastWithoutCallingAzureWhileCreateCircuitIsOpen() {
+    VmConfig mockVMConfig = mock(VmConfig.class, RETURNS_DEEP_STUBS);
+    when(mockVMConfig.getName()).thenReturn("vm-123");
+    when(mockVMConfig.getJobIdentifier().getRepresentation()).thenReturn("jobid");
+    when(azure.virtualMachines().define("vm-123")).thenThrow(new RuntimeException(new SocketTimeoutException("read timed out")));
+    when(azure.virtualMachines().getByResourceGroup(anyString(), anyString())).thenReturn(null);
+    AzureCircuitBreakers circuitBreakers = new AzureCircuitBreakers(new Clock.TestClock(), 2, Period.seconds(30));
+    GoCDAzureClient goCDAzureClient = new GoCDAzureClient(azure, resourceGroup, mockNetworkDecorator, circuitBreakers, new MetricsRegistry());
+    assertThrows(ProvisionFailedException.class, () -> goCDAzureClient.createVM(mockVMConfig));
+    assertThrows(ProvisionFailedException.class, () -> goCDAzureClient.createVM(mockVMConfig));
+    clearInvocations(azure.virtualMachines());
+
+    ProvisionFailedException exception = assertThrows(ProvisionFailedException.class, () -> goCDAzureClient.createVM(mockVMConfig));
+
+    assertTrue(exception.getMessage().startsWith("Failed to create vm with name vm-123 for job jobid: Azure create requests are failing fast"));
+    verifyNoInteractions(azure.virtualMachines());
+    assertEquals("1", circuitBreakers.statusReportProperties().stream()
+        .filter(property -> property.getKey().equals("Azure create requests failed fast")).findFirst().get().getValue());
+  }
+
   @Test
   void shouldValidateTheImageURNChosenIsCorrespondingToThePlatformSelected() {
     VirtualMachineImage mockVMImage = mock(VirtualMachineImage.class);
@@ -454,7 +583,7 @@ class GoCDAzureClientTest extends BaseTest {
     when(vm.dataDisks()).thenReturn(Collections.emptyMap());
     when(vm.networkInterfaceIds()).thenReturn(asList("nic-1"));
 
-    goCDAzureClient.terminate("resource-id-to-be-deleted");
+    goCDAzureClient.terminate("resource-id-to-be-deleted").join();
     verify(azure.virtualMachines()).deleteById("resource-id-to-be-deleted");
     verify(azure.disks()).deleteById("os-disk-id");
     verify(azure.networkInterfaces()).deleteById("nic-1");
@@ -471,10 +600,15 @@ class GoCDAzureClientTest extends BaseTest {
     when(vm.dataDisks()).thenReturn(Collections.emptyMap());
     when(vm.networkInterfaceIds()).thenReturn(asList(""));
 
-    goCDAzureClient.terminate("resource-id-to-be-deleted");
+    goCDAzureClient.terminate("resource-id-to-be-deleted").join();
     verify(azure.virtualMachines()).deleteById("resource-id-to-be-deleted");
     verify(azure.disks(), never()).deleteById(null);
     verify(azure.networkInterfaces(), never()).deleteById(null);
   }
 
+  private GoCDAzureClient clientWithInventory(VirtualMachine... virtualMachines) {
+    InventoryBackend backend = mock(InventoryBackend.class);
+    when(backend.virtualMachines()).thenReturn(asList(virtualMachines));
+    return new GoCDAzureClient(azure, resourceGroup, mockNetworkDecorator, new InventoryQuery(backend));
+  }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.microsoft.azure.PagedList;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.VirtualMachine;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.GOCD_SERVER_ID_TAG_KEY;
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+class InventoryQueryTest {
+
+  @Test
+  void shouldKeepOnlyVirtualMachinesTaggedWithTheServerId() {
+    InventoryBackend backend = mock(InventoryBackend.class);
+    VirtualMachine vm = virtualMachineWithServerId("server_id");
+    VirtualMachine otherServer = virtualMachineWithServerId("another-server");
+    VirtualMachine untagged = mock(VirtualMachine.class);
+    when(backend.virtualMachines()).thenReturn(asList(vm, otherServer, untagged));
+
+    List<VirtualMachine> virtualMachines = new InventoryQuery(backend).virtualMachinesWithTag(GOCD_SERVER_ID_TAG_KEY, "server_id");
+
+    assertEquals(Collections.singletonList(vm), virtualMachines);
+  }
+
+  @Test
+  void azureBackendShouldListTheVirtualMachinesOfTheResourceGroupInOneListing() {
+    Azure azure = mock(Azure.class, RETURNS_DEEP_STUBS);
+    VirtualMachine vm = virtualMachineWithServerId("server_id");
+    PagedList<VirtualMachine> virtualMachines = mock(PagedList.class);
+    when(virtualMachines.iterator()).thenReturn(Collections.singletonList(vm).iterator());
+    when(azure.virtualMachines().listByResourceGroup("agents-group")).thenReturn(virtualMachines);
+
+    List<VirtualMachine> listed = new ArrayList<>();
+    new AzureInventoryBackend(azure, "agents-group").virtualMachines().forEach(listed::add);
+
+    assertEquals(Collections.singletonList(vm), listed);
+    verify(azure.virtualMachines(), never()).getById(anyString());
+    verify(azure.virtualMachines(), never()).list();
+  }
+
+  private VirtualMachine virtualMachineWithServerId(String serverId) {
+    VirtualMachine vm = mock(VirtualMachine.class);
+    Map<String, String> tags = new HashMap<>();
+    tags.put(GOCD_SERVER_ID_TAG_KEY, serverId);
+    when(vm.tags()).thenReturn(tags);
+    return vm;
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.microsoft.azure.management.compute.PowerState;
+import com.microsoft.azure.management.compute.VirtualMachine;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.ELASTIC_PROFILE_TAG_KEY;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.VMTags.PARKED_AT_TAG_KEY;
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class InventorySnapshotTest {
+
+  @Test
+  void shouldClassifyVirtualMachinesByProvisioningStateInOnePass() {
+    VirtualMachine running = virtualMachine("Succeeded", "profile-1");
+    VirtualMachine creating = virtualMachine(null, "profile-1");
+    VirtualMachine failed = virtualMachine("Failed", "profile-2");
+
+    InventorySnapshot snapshot = new InventorySnapshot(asList(running, failed, creating), new DateTime());
+
+    assertEquals(asList(running, creating), snapshot.runningVirtualMachines());
+    assertEquals(Collections.singletonList(failed), snapshot.failedProvisioningVirtualMachines());
+    assertEquals(3, snapshot.allVirtualMachines().size());
+  }
+
+  @Test
+  void shouldNotTreatParkedVirtualMachinesAsRunning() {
+    VirtualMachine running = virtualMachine("Succeeded", "profile-1");
+    VirtualMachine parked = virtualMachine("Succeeded", "profile-1");
+    when(parked.tags()).thenReturn(Map.of(ELASTIC_PROFILE_TAG_KEY, "profile-1", PARKED_AT_TAG_KEY, "1500000000000"));
+
+    InventorySnapshot snapshot = new InventorySnapshot(asList(running, parked), new DateTime());
+
+    assertEquals(Collections.singletonList(running), snapshot.runningVirtualMachines());
+    assertEquals(Collections.singletonList(parked), snapshot.parkedVirtualMachines());
+    assertEquals(asList(running, parked), snapshot.virtualMachinesWithElasticProfile("profile-1"));
+  }
+
+  @Test
+  void shouldPartitionVirtualMachinesByElasticProfile() {
+    VirtualMachine vm1 = virtualMachine("Succeeded", "profile-1");
+    VirtualMachine vm2 = virtualMachine("Succeeded", "profile-2");
+    VirtualMachine vm3 = virtualMachine("Succeeded", "profile-1");
+
+    InventorySnapshot snapshot = new InventorySnapshot(asList(vm1, vm2, vm3), new DateTime());
+
+    assertEquals(asList(vm1, vm3), snapshot.virtualMachinesWithElasticProfile("profile-1"));
+    assertEquals(Collections.singletonList(vm2), snapshot.virtualMachinesWithElasticProfile("profile-2"));
+    assertTrue(snapshot.virtualMachinesWithElasticProfile("unknown").isEmpty());
+  }
+
+  @Test
+  void shouldComputePowerStateOnlyWhenAskedAndOnlyOnce() {
+    VirtualMachine running = virtualMachine("Succeeded", "profile-1");
+    VirtualMachine deallocated = virtualMachine("Succeeded", "profile-1");
+    when(running.powerState()).thenReturn(PowerState.RUNNING);
+    when(deallocated.powerState()).thenReturn(PowerState.DEALLOCATED);
+
+    InventorySnapshot snapshot = new InventorySnapshot(asList(running, deallocated), new DateTime());
+    verify(running, never()).powerState();
+
+    List<VirtualMachine> runningVms = snapshot.runningVirtualMachinesInPowerState(PowerState.RUNNING);
+    List<VirtualMachine> deallocatedVms = snapshot.runningVirtualMachinesInPowerState(PowerState.DEALLOCATED);
+
+    assertEquals(Collections.singletonList(running), runningVms);
+    assertEquals(Collections.singletonList(deallocated), deallocatedVms);
+    verify(running, times(1)).powerState();
+    verify(deallocated, times(1)).powerState();
+  }
+
+  @Test
+  void shouldBeStaleOnceStalenessWindowHasElapsed() {
+    DateTime takenAt = new DateTime();
+    InventorySnapshot snapshot = new InventorySnapshot(Collections.emptyList(), takenAt);
+
+    assertFalse(snapshot.isStale(takenAt.plusSeconds(59), Period.minutes(1)));
+    assertTrue(snapshot.isStale(takenAt.plusMinutes(1), Period.minutes(1)));
+  }
+
+  private VirtualMachine virtualMachine(String provisioningState, String elasticProfileHash) {
+    VirtualMachine virtualMachine = mock(VirtualMachine.class);
+    when(virtualMachine.provisioningState()).thenReturn(provisioningState);
+    when(virtualMachine.tags()).thenReturn(Collections.singletonMap(ELASTIC_PROFILE_TAG_KEY, elasticProfileHash));
+    return virtualMachine;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.microsoft.azure.management.compute.VirtualMachine;
+import com.thoughtworks.gocd.elasticagent.azure.Clock;
+import org.joda.time.Period;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InventorySnapshotsTest {
+
+  @Test
+  void shouldNotHoldUpInvalidationBehindASlowListingNorKeepItsSnapshot() throws Exception {
+    InventorySnapshots snapshots = new InventorySnapshots(new Clock.TestClock(), Period.minutes(1));
+    CountDownLatch listing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    CompletableFuture<InventorySnapshot> slow = CompletableFuture.supplyAsync(() -> snapshots.get("server_id", blockingListing(listing, release)));
+    assertTrue(listing.await(5, TimeUnit.SECONDS));
+
+    CompletableFuture.runAsync(snapshots::invalidate).get(5, TimeUnit.SECONDS);
+    release.countDown();
+
+    assertNotNull(slow.get(5, TimeUnit.SECONDS));
+    assertNull(snapshots.current("server_id"));
+  }
+
+  @Test
+  void shouldShareOneListingBetweenConcurrentCallers() throws Exception {
+    InventorySnapshots snapshots = new InventorySnapshots(new Clock.TestClock(), Period.minutes(1));
+    CountDownLatch listing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger listings = new AtomicInteger();
+    Supplier<List<VirtualMachine>> blocking = blockingListing(listing, release);
+    Supplier<List<VirtualMachine>> counted = () -> {
+      listings.incrementAndGet();
+      return blocking.get();
+    };
+
+    CompletableFuture<InventorySnapshot> first = CompletableFuture.supplyAsync(() -> snapshots.get("server_id", counted));
+    assertTrue(listing.await(5, TimeUnit.SECONDS));
+    CompletableFuture<InventorySnapshot> second = CompletableFuture.supplyAsync(() -> snapshots.get("server_id", counted));
+    release.countDown();
+
+    assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+    assertEquals(1, listings.get());
+  }
+
+  @Test
+  void shouldListAgainAfterAListingFailed() {
+    InventorySnapshots snapshots = new InventorySnapshots(new Clock.TestClock(), Period.minutes(1));
+
+    assertThrows(IllegalStateException.class, () -> snapshots.get("server_id", () -> {
+      throw new IllegalStateException("listing failed");
+    }));
+    assertNotNull(snapshots.get("server_id", Collections::emptyList));
+  }
+
+  private static Supplier<List<VirtualMachine>> blockingListing(CountDownLatch listing, CountDownLatch release) {
+    return () -> {
+      listing.countDown();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return Collections.emptyList();
+    };
+  }
+}
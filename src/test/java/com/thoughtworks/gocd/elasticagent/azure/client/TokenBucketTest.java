@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.google.common.base.Ticker;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.gocd.elasticagent.azure.client.ArmRequestScheduler.Priority.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+  private FakeTicker ticker;
+  private TokenBucket bucket;
+
+  @BeforeEach
+  void setUp() {
+    ticker = new FakeTicker();
+    bucket = new TokenBucket("read", 2, 10, ticker);
+  }
+
+  @Test
+  void shouldHandOutTokensUntilTheBucketIsEmpty() {
+    assertEquals(0, bucket.tryAcquire(NORMAL));
+    assertEquals(0, bucket.tryAcquire(NORMAL));
+
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(100), bucket.tryAcquire(NORMAL));
+    assertEquals(100, bucket.saturation());
+  }
+
+  @Test
+  void shouldRefillUpToTheBucketSize() {
+    bucket.tryAcquire(NORMAL);
+    bucket.tryAcquire(NORMAL);
+
+    ticker.advance(TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(0, bucket.tryAcquire(NORMAL));
+
+    ticker.advance(TimeUnit.SECONDS.toNanos(10));
+    assertEquals(2, bucket.tokens(), 0.001);
+  }
+
+  @Test
+  void shouldTakeTheRemainingRequestsReportedByAzure() {
+    bucket.calibrate(0);
+
+    assertTrue(bucket.tryAcquire(NORMAL) > 0);
+    assertEquals(0, bucket.lastRemaining());
+
+    bucket.calibrate(1000);
+    assertEquals(2, bucket.tokens(), 0.001);
+  }
+
+  @Test
+  void shouldHoldBackRequestsUntilRetryAfterHasPassed() {
+    bucket.pause(3000);
+
+    assertEquals(TimeUnit.SECONDS.toNanos(3), bucket.tryAcquire(HIGH));
+    assertEquals(1, bucket.throttled());
+
+    ticker.advance(TimeUnit.SECONDS.toNanos(3));
+    assertEquals(0, bucket.tryAcquire(HIGH));
+  }
+
+  @Test
+  void shouldServeHigherPrioritiesFirst() {
+    bucket.enqueue(HIGH);
+
+    assertTrue(bucket.tryAcquire(LOW) > 0);
+    assertTrue(bucket.tryAcquire(NORMAL) > 0);
+    assertEquals(0, bucket.tryAcquire(HIGH));
+
+    bucket.dequeue(HIGH);
+    assertEquals(0, bucket.tryAcquire(LOW));
+  }
+
+  @Test
+  void shouldNotWaitWhenTokensAreAvailable() throws Exception {
+    bucket.acquire(LOW);
+
+    assertEquals(0, bucket.delayed());
+    assertEquals(1, bucket.tokens(), 0.001);
+  }
+
+  static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long nanos) {
+      this.nanos += nanos;
+    }
+  }
+}
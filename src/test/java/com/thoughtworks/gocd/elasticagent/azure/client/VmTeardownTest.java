@@ -0,0 +1,196 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.client;
+
+import com.microsoft.azure.CloudError;
+import com.microsoft.azure.CloudException;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.compute.VirtualMachine;
+import com.microsoft.azure.management.compute.VirtualMachineDataDisk;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import org.joda.time.Period;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Answers;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import retrofit2.Response;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+class VmTeardownTest {
+
+  @Mock(answer = Answers.RETURNS_DEEP_STUBS)
+  private Azure azure;
+
+  private ScheduledThreadPoolExecutor workers;
+  private VmTeardown teardown;
+
+  @BeforeEach
+  void setUp() {
+    openMocks(this);
+    workers = new ScheduledThreadPoolExecutor(2);
+    teardown = new VmTeardown(azure, workers, 3, Period.millis(1));
+  }
+
+  @AfterEach
+  void tearDown() {
+    workers.shutdownNow();
+  }
+
+  @Test
+  void shouldDeleteVmBeforeItsDisksAndNics() {
+    VirtualMachineDataDisk dataDisk = mock(VirtualMachineDataDisk.class);
+    when(dataDisk.id()).thenReturn("data-disk-id");
+    VirtualMachine vm = virtualMachine("vm-id");
+    when(vm.dataDisks()).thenReturn(Collections.singletonMap(0, dataDisk));
+    when(vm.networkInterfaceIds()).thenReturn(asList("nic-1", ""));
+
+    teardown.terminate(vm).join();
+
+    InOrder inOrder = inOrder(azure.virtualMachines(), azure.disks(), azure.networkInterfaces());
+    inOrder.verify(azure.virtualMachines()).deleteById("vm-id");
+    inOrder.verify(azure.disks()).deleteById("os-disk-id");
+    verify(azure.disks()).deleteById("data-disk-id");
+    verify(azure.networkInterfaces()).deleteById("nic-1");
+    verify(azure.networkInterfaces(), never()).deleteById("");
+  }
+
+  @Test
+  void shouldWaitForTeardownsInFlightWhenDrained() throws Exception {
+    VirtualMachine vm = virtualMachine("vm-id");
+    CountDownLatch deleting = new CountDownLatch(1);
+    doAnswer(invocation -> deleting.await(5, TimeUnit.SECONDS)).when(azure.virtualMachines()).deleteById("vm-id");
+    CompletableFuture<Void> termination = teardown.terminate(vm);
+
+    assertEquals(1, teardown.drain(Period.millis(50)));
+    assertFalse(termination.isDone());
+
+    deleting.countDown();
+
+    assertEquals(0, teardown.drain(Period.seconds(5)));
+    verify(azure.disks()).deleteById("os-disk-id");
+  }
+
+  @Test
+  void shouldRetryTransientFailures() {
+    VirtualMachine vm = virtualMachine("vm-id");
+    doThrow(cloudException(429)).doThrow(new RuntimeException(new IOException("connection reset"))).doNothing()
+        .when(azure.virtualMachines()).deleteById("vm-id");
+
+    teardown.terminate(vm).join();
+
+    verify(azure.virtualMachines(), times(3)).deleteById("vm-id");
+    verify(azure.disks()).deleteById("os-disk-id");
+  }
+
+  @Test
+  void shouldNotDeleteDependentsWhenVmCannotBeDeleted() {
+    VirtualMachine vm = virtualMachine("vm-id");
+    doThrow(cloudException(409)).when(azure.virtualMachines()).deleteById("vm-id");
+
+    CompletionException exception = assertThrows(CompletionException.class, () -> teardown.terminate(vm).join());
+
+    assertTrue(exception.getCause() instanceof CloudException);
+    verify(azure.virtualMachines(), times(1)).deleteById("vm-id");
+    verify(azure.disks(), never()).deleteById(anyString());
+    verify(azure.networkInterfaces(), never()).deleteById(anyString());
+  }
+
+  @Test
+  void shouldTreatResourcesThatAreAlreadyGoneAsDeleted() {
+    VirtualMachine vm = virtualMachine("vm-id");
+    doThrow(cloudException(404)).when(azure.disks()).deleteById("os-disk-id");
+
+    teardown.terminate(vm).join();
+
+    verify(azure.disks(), times(1)).deleteById("os-disk-id");
+    verify(azure.networkInterfaces()).deleteById("nic-id");
+  }
+
+  @Test
+  void shouldLookUpVmByIdOffTheCallingThread() {
+    VirtualMachine vm = virtualMachine("vm-id");
+    when(azure.virtualMachines().getById("vm-id")).thenReturn(vm);
+
+    teardown.terminate("vm-id").join();
+
+    verify(azure.virtualMachines()).deleteById("vm-id");
+  }
+
+  @Test
+  void shouldCompleteWhenVmDoesNotExist() {
+    when(azure.virtualMachines().getById("vm-id")).thenReturn(null);
+
+    teardown.terminate("vm-id").join();
+
+    verify(azure.virtualMachines(), never()).deleteById(anyString());
+  }
+
+  @Test
+  void shouldShareTeardownOfAVmThatIsAlreadyBeingTerminated() {
+    VirtualMachine vm = virtualMachine("vm-id");
+    CompletableFuture<Void> blocker = new CompletableFuture<>();
+    doAnswer(invocation -> blocker.join()).when(azure.virtualMachines()).deleteById("vm-id");
+
+    CompletableFuture<Void> first = teardown.terminate(vm);
+    CompletableFuture<Void> second = teardown.terminate(vm);
+    assertSame(first, second);
+    assertEquals(1, teardown.pending());
+
+    blocker.complete(null);
+    first.join();
+
+    verify(azure.virtualMachines(), times(1)).deleteById("vm-id");
+  }
+
+  @Test
+  void shouldClassifyTransientFailures() {
+    assertTrue(VmTeardown.isTransient(cloudException(429)));
+    assertTrue(VmTeardown.isTransient(cloudException(503)));
+    assertTrue(VmTeardown.isTransient(new RuntimeException(new IOException("timeout"))));
+    assertFalse(VmTeardown.isTransient(cloudException(400)));
+    assertFalse(VmTeardown.isTransient(new IllegalStateException("boom")));
+  }
+
+  private VirtualMachine virtualMachine(String id) {
+    VirtualMachine vm = mock(VirtualMachine.class);
+    when(vm.id()).thenReturn(id);
+    when(vm.name()).thenReturn(id);
+    when(vm.osDiskId()).thenReturn("os-disk-id");
+    when(vm.dataDisks()).thenReturn(Collections.emptyMap());
+    when(vm.networkInterfaceIds()).thenReturn(asList("nic-id"));
+    return vm;
+  }
+
+  private CloudException cloudException(int code) {
+    return new CloudException("request failed", Response.error(code, ResponseBody.create(MediaType.parse("application/json"), "{}")), new CloudError());
+  }
+}
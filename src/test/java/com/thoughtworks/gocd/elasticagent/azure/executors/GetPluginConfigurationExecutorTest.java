@@ -140,6 +140,32 @@ class GetPluginConfigurationExecutorTest {
         "    \"required\": true,\n" +
         "    \"secure\": true,\n" +
         "    \"display-order\": \"14\"\n" +
+        "  },\n" +
+        "  \"agent_download_base_url\": {\n" +
+        "    \"display-name\": \"Agent download base URL\",\n" +
+        "    \"required\": false,\n" +
+        "    \"secure\": false,\n" +
+        "    \"display-order\": \"15\"\n" +
+        "  },\n" +
+        "  \"metrics_export_path\": {\n" +
+        "    \"display-name\": \"Metrics export file\",\n" +
+        "    \"required\": false,\n" +
+        "    \"secure\": false,\n" +
+        "    \"display-order\": \"16\"\n" +
+        "  },\n" +
+        "  \"reconcile_interval\": {\n" +
+        "    \"display-name\": \"Instance reconciliation interval (in minutes)\",\n" +
+        "    \"default-value\": \"5\",\n" +
+        "    \"required\": false,\n" +
+        "    \"secure\": false,\n" +
+        "    \"display-order\": \"17\"\n" +
+        "  },\n" +
+        "  \"inventory_staleness\": {\n" +
+        "    \"display-name\": \"Inventory cache staleness (in seconds)\",\n" +
+        "    \"default-value\": \"60\",\n" +
+        "    \"required\": false,\n" +
+        "    \"secure\": false,\n" +
+        "    \"display-order\": \"18\"\n" +
         "  }\n" +
         "}";
 
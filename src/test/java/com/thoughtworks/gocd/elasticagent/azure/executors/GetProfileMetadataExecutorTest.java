@@ -106,6 +106,55 @@ class GetProfileMetadataExecutorTest {
         "      \"required\": false,\n" +
         "      \"secure\": false\n" +
         "    }\n" +
+        "  }," +
+        "  {\n" +
+        "    \"key\": \"warm_pool_min_idle\",\n" +
+        "    \"metadata\": {\n" +
+        "      \"required\": false,\n" +
+        "      \"secure\": false\n" +
+        "    }\n" +
+        "  }," +
+        "  {\n" +
+        "    \"key\": \"warm_pool_max_idle\",\n" +
+        "    \"metadata\": {\n" +
+        "      \"required\": false,\n" +
+        "      \"secure\": false\n" +
+        "    }\n" +
+        "  }," +
+        "  {\n" +
+        "    \"key\": \"warm_pool_max_total\",\n" +
+        "    \"metadata\": {\n" +
+        "      \"required\": false,\n" +
+        "      \"secure\": false\n" +
+        "    }\n" +
+        "  }," +
+        "  {\n" +
+        "    \"key\": \"stopped_pool_max_parked\",\n" +
+        "    \"metadata\": {\n" +
+        "      \"required\": false,\n" +
+        "      \"secure\": false\n" +
+        "    }\n" +
+        "  }," +
+        "  {\n" +
+        "    \"key\": \"stopped_pool_max_parked_age\",\n" +
+        "    \"metadata\": {\n" +
+        "      \"required\": false,\n" +
+        "      \"secure\": false\n" +
+        "    }\n" +
+        "  }," +
+        "  {\n" +
+        "    \"key\": \"linux_bootstrap\",\n" +
+        "    \"metadata\": {\n" +
+        "      \"required\": false,\n" +
+        "      \"secure\": false\n" +
+        "    }\n" +
+        "  }," +
+        "  {\n" +
+        "    \"key\": \"windows_bootstrap\",\n" +
+        "    \"metadata\": {\n" +
+        "      \"required\": false,\n" +
+        "      \"secure\": false\n" +
+        "    }\n" +
         "  }" +
         "]";
 
@@ -18,6 +18,7 @@ package com.thoughtworks.gocd.elasticagent.azure.executors;
 
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import com.thoughtworks.gocd.elasticagent.azure.*;
+import com.thoughtworks.gocd.elasticagent.azure.client.TagChanges;
 import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
 import com.thoughtworks.gocd.elasticagent.azure.requests.JobCompletionRequest;
 import org.joda.time.DateTime;
@@ -65,19 +66,20 @@ class JobCompletionRequestExecutorTest {
     when(mockPluginRequest.listAgents())
         .thenReturn(new Agents(asList(new Agent(elasticAgentId), new Agent("some-other-agent"))));
     AzureInstance mockAzureInstance = mock(AzureInstance.class);
-    when(mockAzureInstance.isIdleAfterIdleTimeout()).thenReturn(false);
+    when(mockAzureInstance.isIdleAfterIdleTimeout(mockClock)).thenReturn(false);
     when(mockAgentInstances.find(elasticAgentId)).thenReturn(mockAzureInstance);
     DateTime currentDateTimeInUTC = DateTime.now();
     when(mockClock.now()).thenReturn(currentDateTimeInUTC);
 
     GoPluginApiResponse response = executor.execute();
 
-    InOrder inOrder = inOrder(mockPluginRequest, mockAgentInstances);
-
-    inOrder.verify(mockAgentInstances).addTag(pluginSettings, elasticAgentId, LAST_JOB_RUN_TAG_KEY,
-        String.valueOf(currentDateTimeInUTC.toInstant().getMillis()));
-    inOrder.verify(mockAgentInstances).removeTag(pluginSettings, elasticAgentId, JOB_IDENTIFIER_TAG_KEY);
+    verify(mockAgentInstances).updateTags(pluginSettings, elasticAgentId, new TagChanges()
+        .set(LAST_JOB_RUN_TAG_KEY, String.valueOf(currentDateTimeInUTC.toInstant().getMillis()))
+        .remove(JOB_IDENTIFIER_TAG_KEY));
+    verify(mockAgentInstances, never()).addTag(any(), anyString(), anyString(), anyString());
+    verify(mockAgentInstances, never()).removeTag(any(), anyString(), anyString());
     verify(mockAgentInstances, never()).terminate(elasticAgentId, pluginSettings);
+    verify(mockAgentInstances, never()).retire(elasticAgentId, pluginSettings);
 
     assertEquals(200, response.responseCode());
     assertTrue(response.responseBody().isEmpty());
@@ -110,7 +112,7 @@ class JobCompletionRequestExecutorTest {
         .thenReturn(new Agents(asList(new Agent(elasticAgentId), new Agent("some-other-agent"))));
 
     AzureInstance mockAzureInstance = mock(AzureInstance.class);
-    when(mockAzureInstance.isIdleAfterIdleTimeout()).thenReturn(true);
+    when(mockAzureInstance.isIdleAfterIdleTimeout(mockClock)).thenReturn(true);
     when(mockAgentInstances.find(elasticAgentId)).thenReturn(mockAzureInstance);
     DateTime currentDateTimeInUTC = DateTime.now();
 
@@ -118,14 +120,12 @@ class JobCompletionRequestExecutorTest {
 
     GoPluginApiResponse response = executor.execute();
 
-    verify(mockAgentInstances, never()).addTag(pluginSettings, elasticAgentId, LAST_JOB_RUN_TAG_KEY,
-        String.valueOf(currentDateTimeInUTC.toInstant().getMillis()));
-    verify(mockAgentInstances, never()).removeTag(pluginSettings, elasticAgentId, JOB_IDENTIFIER_TAG_KEY);
+    verify(mockAgentInstances, never()).updateTags(any(), anyString(), any(TagChanges.class));
 
     InOrder inOrder = inOrder(mockPluginRequest, mockAgentInstances);
     inOrder.verify(mockPluginRequest).getPluginSettings();
     inOrder.verify(mockPluginRequest).disableAgents(agentsArgumentCaptor.capture());
-    inOrder.verify(mockAgentInstances).terminate(elasticAgentId, pluginSettings);
+    inOrder.verify(mockAgentInstances).retire(elasticAgentId, pluginSettings);
     inOrder.verify(mockPluginRequest).deleteAgents(agentsArgumentCaptor.capture());
 
     List<Agent> agentsToDisabled = agentsArgumentCaptor.getValue();
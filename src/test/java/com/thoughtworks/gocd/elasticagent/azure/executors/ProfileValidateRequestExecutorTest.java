@@ -76,7 +76,14 @@ class ProfileValidateRequestExecutorTest {
         "{\"message\":\"Azure plugin settings not configured.\",\"key\":\"subnet_name\"}," +
         "{\"message\":\"Azure plugin settings not configured.\",\"key\":\"os_disk_size\"}," +
         "{\"message\":\"Azure plugin settings not configured.\",\"key\":\"os_disk_storage_account_type\"}," +
-        "{\"message\":\"Azure plugin settings not configured.\",\"key\":\"custom_script\"}]", json, JSONCompareMode.NON_EXTENSIBLE);
+        "{\"message\":\"Azure plugin settings not configured.\",\"key\":\"custom_script\"}," +
+        "{\"message\":\"Azure plugin settings not configured.\",\"key\":\"warm_pool_min_idle\"}," +
+        "{\"message\":\"Azure plugin settings not configured.\",\"key\":\"warm_pool_max_idle\"}," +
+        "{\"message\":\"Azure plugin settings not configured.\",\"key\":\"warm_pool_max_total\"}," +
+        "{\"message\":\"Azure plugin settings not configured.\",\"key\":\"stopped_pool_max_parked\"}," +
+        "{\"message\":\"Azure plugin settings not configured.\",\"key\":\"stopped_pool_max_parked_age\"}," +
+        "{\"message\":\"Azure plugin settings not configured.\",\"key\":\"linux_bootstrap\"}," +
+        "{\"message\":\"Azure plugin settings not configured.\",\"key\":\"windows_bootstrap\"}]", json, JSONCompareMode.NON_EXTENSIBLE);
   }
 
   @Test
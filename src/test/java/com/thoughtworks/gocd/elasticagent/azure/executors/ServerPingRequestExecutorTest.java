@@ -18,6 +18,7 @@ package com.thoughtworks.gocd.elasticagent.azure.executors;
 
 import com.thoughtworks.gocd.elasticagent.azure.*;
 import com.thoughtworks.gocd.elasticagent.azure.Agent.AgentState;
+import com.thoughtworks.gocd.elasticagent.azure.metrics.PrometheusFileExporter;
 import com.thoughtworks.gocd.elasticagent.azure.models.ServerInfo;
 import com.thoughtworks.gocd.elasticagent.azure.service.ServerHealthMessagingService;
 import org.junit.jupiter.api.BeforeEach;
@@ -27,6 +28,7 @@ import org.mockito.Mock;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.UUID;
 
 import static java.util.Arrays.asList;
@@ -44,9 +46,19 @@ class ServerPingRequestExecutorTest extends BaseTest {
   @Mock
   private ServerHealthMessagingService serverHealthMessagingService;
 
+  @Mock
+  private WarmPool warmPool;
+
+  @Mock
+  private PrometheusFileExporter metricsExporter;
+
+  @Mock
+  private DownloadUrlResolver downloadUrlResolver;
+
   @BeforeEach
-  void setUp() {
+  void setUp() throws Exception {
     openMocks(this);
+    when(mockPluginRequest.getServerInfo()).thenReturn(mock(ServerInfo.class));
   }
 
   @Test
@@ -60,7 +72,7 @@ class ServerPingRequestExecutorTest extends BaseTest {
     when(mockAgentInstances.instancesToBeDisabled(pluginSettings, agents)).thenReturn(new Agents());
     verifyNoMoreInteractions(mockPluginRequest);
 
-    new ServerPingRequestExecutor(mockAgentInstances, mockPluginRequest, serverHealthMessagingService).execute();
+    new ServerPingRequestExecutor(mockAgentInstances, warmPool, mockPluginRequest, serverHealthMessagingService, metricsExporter, downloadUrlResolver).execute();
 
     verify(mockPluginRequest).disableAgents(argThat(collectionMatches(agents.agents())));
     verify(serverHealthMessagingService).clearExpiredHealthMessages();
@@ -82,7 +94,7 @@ class ServerPingRequestExecutorTest extends BaseTest {
     when(mockAgentInstances.instancesToBeDisabled(pluginSettings, agentsToBeDisabled)).thenReturn(agentsToBeDisabled);
     verifyNoMoreInteractions(mockPluginRequest);
 
-    new ServerPingRequestExecutor(mockAgentInstances, mockPluginRequest, serverHealthMessagingService).execute();
+    new ServerPingRequestExecutor(mockAgentInstances, warmPool, mockPluginRequest, serverHealthMessagingService, metricsExporter, downloadUrlResolver).execute();
 
     verify(mockPluginRequest).disableAgents(argThat(collectionMatches(idleAgents.agents())));
   }
@@ -92,7 +104,7 @@ class ServerPingRequestExecutorTest extends BaseTest {
   }
 
   @Test
-  void testShouldTerminateAndDeleteDisabledAgents() throws Exception {
+  void testShouldRetireAndDeleteDisabledIdleAgents() throws Exception {
     ServerInfo mockServerInfo = mock(ServerInfo.class);
     String agentId = UUID.randomUUID().toString();
     final Agents agents = new Agents(asList(new Agent(agentId, AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Disabled)));
@@ -105,14 +117,33 @@ class ServerPingRequestExecutorTest extends BaseTest {
     when(mockAgentInstances.instancesToBeDisabled(pluginSettings, agents)).thenReturn(new Agents());
     verifyNoMoreInteractions(mockPluginRequest);
 
-    new ServerPingRequestExecutor(mockAgentInstances, mockPluginRequest, serverHealthMessagingService).execute();
+    new ServerPingRequestExecutor(mockAgentInstances, warmPool, mockPluginRequest, serverHealthMessagingService, metricsExporter, downloadUrlResolver).execute();
     final Collection<Agent> values = agents.agents();
 
-    verify(mockAgentInstances).terminate(agentId, pluginSettings);
+    verify(mockAgentInstances).retire(agentId, pluginSettings);
     verify(mockAgentInstances).terminateProvisionFailedInstances(pluginSettings, mockServerInfo);
+    verify(mockAgentInstances).terminateExpiredParkedInstances(pluginSettings);
     verify(mockPluginRequest).deleteAgents(argThat(collectionMatches(values)));
   }
 
+  @Test
+  void testShouldTerminateDisabledAgentsThatLostContact() throws Exception {
+    String agentId = UUID.randomUUID().toString();
+    final Agents agents = new Agents(asList(new Agent(agentId, AgentState.LostContact, Agent.BuildState.Unknown, Agent.ConfigState.Disabled)));
+
+    PluginSettings pluginSettings = createPluginSettings();
+    when(mockPluginRequest.getPluginSettings()).thenReturn(pluginSettings);
+    when(mockPluginRequest.listAgents()).thenReturn(agents);
+    when(mockPluginRequest.getServerInfo()).thenReturn(mock(ServerInfo.class));
+    when(mockAgentInstances.instancesToBeDisabled(pluginSettings, agents)).thenReturn(new Agents());
+
+    new ServerPingRequestExecutor(mockAgentInstances, warmPool, mockPluginRequest, serverHealthMessagingService, metricsExporter, downloadUrlResolver).execute();
+
+    verify(mockAgentInstances).terminate(agentId, pluginSettings);
+    verify(mockAgentInstances, never()).retire(agentId, pluginSettings);
+    verify(mockPluginRequest).deleteAgents(argThat(collectionMatches(agents.agents())));
+  }
+
   @Test
   void testShouldTerminateInstancesThatNeverAutoRegistered() throws Exception {
     String agentId = UUID.randomUUID().toString();
@@ -125,13 +156,48 @@ class ServerPingRequestExecutorTest extends BaseTest {
 
     verifyNoMoreInteractions(mockPluginRequest);
 
-    ServerPingRequestExecutor serverPingRequestExecutor = new ServerPingRequestExecutor(mockAgentInstances, mockPluginRequest, serverHealthMessagingService);
+    ServerPingRequestExecutor serverPingRequestExecutor = new ServerPingRequestExecutor(mockAgentInstances, warmPool, mockPluginRequest, serverHealthMessagingService, metricsExporter, downloadUrlResolver);
     serverPingRequestExecutor.execute();
 
     verify(mockAgentInstances).terminateUnregisteredInstances(pluginSettings, allAgents);
     verify(serverHealthMessagingService).clearExpiredHealthMessages();
   }
 
+  @Test
+  void shouldDisableSurplusWarmPoolAgentsAndRefillThePool() throws Exception {
+    Agent surplusAgent = getAgent("pooled-1", AgentState.Idle);
+    Agent pooledAgent = getAgent("pooled-2", AgentState.Idle);
+    final Agents agents = new Agents(asList(surplusAgent, pooledAgent));
+    PluginSettings pluginSettings = createPluginSettings();
+    when(mockPluginRequest.getPluginSettings()).thenReturn(pluginSettings);
+    when(mockPluginRequest.listAgents()).thenReturn(agents);
+    when(mockAgentInstances.find(anyString())).thenReturn(mock(AzureInstance.class));
+    when(mockAgentInstances.instancesToBeDisabled(pluginSettings, agents)).thenReturn(new Agents());
+    when(warmPool.surplusAgentIds()).thenReturn(Collections.singleton("pooled-1"));
+
+    new ServerPingRequestExecutor(mockAgentInstances, warmPool, mockPluginRequest, serverHealthMessagingService, metricsExporter, downloadUrlResolver).execute();
+
+    verify(mockPluginRequest).disableAgents(argThat(collectionMatches(Collections.singletonList(surplusAgent))));
+    verify(warmPool).replenish(pluginSettings);
+  }
+
+  @Test
+  void shouldNotDisableIdleAgentsRetainedByTheWarmPool() throws Exception {
+    Agent pooledAgent = getAgent("pooled-1", AgentState.Idle);
+    Agent idleAgent = getAgent("idle-1", AgentState.Idle);
+    final Agents agents = new Agents(asList(pooledAgent, idleAgent));
+    PluginSettings pluginSettings = createPluginSettings();
+    when(mockPluginRequest.getPluginSettings()).thenReturn(pluginSettings);
+    when(mockPluginRequest.listAgents()).thenReturn(agents);
+    when(mockAgentInstances.find(anyString())).thenReturn(mock(AzureInstance.class));
+    when(mockAgentInstances.instancesToBeDisabled(pluginSettings, agents)).thenReturn(agents);
+    when(warmPool.retainedAgentIds()).thenReturn(Collections.singleton("pooled-1"));
+
+    new ServerPingRequestExecutor(mockAgentInstances, warmPool, mockPluginRequest, serverHealthMessagingService, metricsExporter, downloadUrlResolver).execute();
+
+    verify(mockPluginRequest).disableAgents(argThat(collectionMatches(Collections.singletonList(idleAgent))));
+  }
+
 
   private ArgumentMatcher<Collection<Agent>> collectionMatches(final Collection<Agent> values) {
     return argument -> new ArrayList<>(argument).equals(new ArrayList<>(values));
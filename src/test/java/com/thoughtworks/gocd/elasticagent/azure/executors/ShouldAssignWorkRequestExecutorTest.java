@@ -59,12 +59,14 @@ class ShouldAssignWorkRequestExecutorTest extends BaseTest {
   void setUp() {
     openMocks(this);
     when(agentInstances.find(agentId)).thenReturn(instance);
+    when(agentInstances.reserve(agentId, jobIdentifier)).thenReturn(true);
+    when(elasticProfile.hash()).thenReturn("profile-hash");
   }
 
   @Test
   void shouldAssignWorkToInstanceWhichIsAssignableToTheElasticProfileAndClearHealthMessages() throws Exception {
     ShouldAssignWorkRequest request = new ShouldAssignWorkRequest(new Agent(agentId, null, null, null), environment, jobIdentifier, elasticProfile);
-    when(instance.canBeAssigned(elasticProfile)).thenReturn(true);
+    when(instance.canBeAssigned("profile-hash")).thenReturn(true);
     when(instance.getName()).thenReturn(agentId);
 
     GoPluginApiResponse response = new ShouldAssignWorkRequestExecutor(request, agentInstances, pluginSettings, serverHealthMessagingService).execute();
@@ -72,7 +74,24 @@ class ShouldAssignWorkRequestExecutorTest extends BaseTest {
     assertThat(response.responseCode(), is(200));
     assertThat(response.responseBody(), is("true"));
     verify(agentInstances).addTag(pluginSettings, agentId, VMTags.JOB_IDENTIFIER_TAG_KEY, jobIdentifier.hash());
+    verify(agentInstances).reached(agentId, ProvisioningPhase.AGENT_REGISTERED);
+    verify(agentInstances).reached(agentId, ProvisioningPhase.FIRST_JOB_ASSIGNED);
     verify(serverHealthMessagingService).clearHealthMessage(jobIdentifier.getJobRepresentation());
+    verify(agentInstances).release(agentId, jobIdentifier);
+  }
+
+  @Test
+  void shouldNotAssignWorkToInstanceLeasedToAnotherJob() throws Exception {
+    ShouldAssignWorkRequest request = new ShouldAssignWorkRequest(new Agent(agentId, null, null, null), environment, jobIdentifier, elasticProfile);
+    when(instance.canBeAssigned("profile-hash")).thenReturn(true);
+    when(instance.getName()).thenReturn(agentId);
+    when(agentInstances.reserve(agentId, jobIdentifier)).thenReturn(false);
+
+    GoPluginApiResponse response = new ShouldAssignWorkRequestExecutor(request, agentInstances, pluginSettings, serverHealthMessagingService).execute();
+
+    assertThat(response.responseBody(), is("false"));
+    verify(agentInstances, never()).addTag(any(), anyString(), anyString(), anyString());
+    verify(agentInstances, never()).release(anyString(), any());
   }
 
   @Test
@@ -86,7 +105,7 @@ class ShouldAssignWorkRequestExecutorTest extends BaseTest {
   @Test
   void shouldNotAssignWorkToInstanceWhichIsNotAssignableToTheElasticProfile() throws Exception {
     ShouldAssignWorkRequest request = new ShouldAssignWorkRequest(new Agent(agentId, null, null, null), environment, jobIdentifier, elasticProfile);
-    when(instance.canBeAssigned(elasticProfile)).thenReturn(false);
+    when(instance.canBeAssigned("profile-hash")).thenReturn(false);
     when(instance.getName()).thenReturn(agentId);
 
     GoPluginApiResponse response = new ShouldAssignWorkRequestExecutor(request, agentInstances, pluginSettings, serverHealthMessagingService).execute();
@@ -94,5 +113,6 @@ class ShouldAssignWorkRequestExecutorTest extends BaseTest {
     assertThat(response.responseCode(), is(200));
     assertThat(response.responseBody(), is("false"));
     verify(agentInstances, never()).addTag(any(), anyString(), anyString(), anyString());
+    verify(agentInstances).release(agentId, jobIdentifier);
   }
 }
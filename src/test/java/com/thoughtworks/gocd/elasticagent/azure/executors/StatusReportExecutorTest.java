@@ -22,6 +22,8 @@ import com.thoughtworks.gocd.elasticagent.azure.AzureAgentInstances;
 import com.thoughtworks.gocd.elasticagent.azure.AzureInstance;
 import com.thoughtworks.gocd.elasticagent.azure.PluginRequest;
 import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
+import com.thoughtworks.gocd.elasticagent.azure.ProvisioningEngine;
+import com.thoughtworks.gocd.elasticagent.azure.WarmPool;
 import com.thoughtworks.gocd.elasticagent.azure.exceptions.PluginSettingsNotConfiguredException;
 import com.thoughtworks.gocd.elasticagent.azure.models.StatusReport;
 import com.thoughtworks.gocd.elasticagent.azure.utils.TemplateReader;
@@ -58,6 +60,12 @@ class StatusReportExecutorTest {
   @Mock
   private AzureAgentInstances agentInstances;
 
+  @Mock
+  private ProvisioningEngine provisioningEngine;
+
+  @Mock
+  private WarmPool warmPool;
+
   @Captor
   private ArgumentCaptor<Map<String, String>> templateParamCaptor;
 
@@ -74,7 +82,7 @@ class StatusReportExecutorTest {
     when(pluginRequest.getPluginSettings()).thenReturn(pluginSettings);
     when(agentInstances.getStatusReport(pluginSettings)).thenReturn(statusReport);
     when(templateReader.read(StatusReportExecutor.STATUS_REPORT_TEMPLATE, statusReport)).thenReturn("statusReportView");
-    StatusReportExecutor statusReportExecutor = new StatusReportExecutor(pluginRequest, agentInstances, templateReader);
+    StatusReportExecutor statusReportExecutor = new StatusReportExecutor(pluginRequest, agentInstances, provisioningEngine, warmPool, templateReader);
 
     GoPluginApiResponse goPluginApiResponse = statusReportExecutor.execute();
 
@@ -89,7 +97,7 @@ class StatusReportExecutorTest {
   void shouldGetErrorStatusReportWhenPluginNotConfigured() throws Exception {
     when(pluginRequest.getPluginSettings()).thenThrow(PluginSettingsNotConfiguredException.class);
     when(templateReader.read(eq(StatusReportExecutor.ERROR_TEMPLATE), templateParamCaptor.capture())).thenReturn("errorReportView");
-    StatusReportExecutor statusReportExecutor = new StatusReportExecutor(pluginRequest, agentInstances, templateReader);
+    StatusReportExecutor statusReportExecutor = new StatusReportExecutor(pluginRequest, agentInstances, provisioningEngine, warmPool, templateReader);
 
     GoPluginApiResponse goPluginApiResponse = statusReportExecutor.execute();
 
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistogramTest {
+
+  @Test
+  void shouldMapEveryValueIntoABucketWhoseBoundsContainIt() {
+    for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 33, 1000, 123_456_789, Long.MAX_VALUE}) {
+      int index = Histogram.index(value);
+      assertTrue(index < Histogram.BUCKETS);
+      assertTrue(value <= Histogram.upperBound(index), "upper bound of " + value);
+      assertTrue(index == 0 || value > Histogram.upperBound(index - 1), "lower bound of " + value);
+    }
+  }
+
+  @Test
+  void shouldReportPercentilesWithinBucketPrecision() {
+    Histogram histogram = new Histogram();
+    IntStream.rangeClosed(1, 1000).forEach(histogram::record);
+
+    assertEquals(1000, histogram.count());
+    assertEquals(500500, histogram.sum());
+    assertEquals(1000, histogram.max());
+    assertEquals(500, histogram.percentile(0.5), 500 / 16.0);
+    assertEquals(990, histogram.percentile(0.99), 990 / 16.0);
+    assertEquals(1000, histogram.percentile(1.0));
+  }
+
+  @Test
+  void shouldReportZeroWhenEmpty() {
+    Histogram histogram = new Histogram();
+
+    assertEquals(0, histogram.percentile(0.5));
+    assertEquals(0, histogram.max());
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.metrics;
+
+import com.google.common.base.Ticker;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.thoughtworks.gocd.elasticagent.azure.metrics.MetricsRegistry.AZURE_OPERATIONS;
+import static com.thoughtworks.gocd.elasticagent.azure.metrics.MetricsRegistry.PLUGIN_REQUESTS;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsRegistryTest {
+
+  private final AtomicLong nanos = new AtomicLong();
+  private MetricsRegistry registry;
+
+  @BeforeEach
+  void setUp() {
+    registry = new MetricsRegistry(new Ticker() {
+      @Override
+      public long read() {
+        return nanos.get();
+      }
+    });
+  }
+
+  @Test
+  void shouldTimeOperationsAndCountFailures() {
+    assertEquals("vm", registry.time(AZURE_OPERATIONS, "create_vm", () -> advance(200)));
+    assertThrows(IOException.class, () -> registry.time(AZURE_OPERATIONS, "create_vm", () -> {
+      advance(100);
+      throw new IOException("connection reset");
+    }));
+
+    Timer timer = registry.timer(AZURE_OPERATIONS, "create_vm");
+    assertEquals(2, timer.latencies().count());
+    assertEquals(300_000, timer.latencies().sum());
+    assertEquals(1, timer.failures());
+  }
+
+  @Test
+  void shouldTimeAsyncOperationsUntilTheyComplete() {
+    CompletableFuture<Void> pending = new CompletableFuture<>();
+    CompletableFuture<Void> timed = registry.timeAsync(AZURE_OPERATIONS, "terminate", () -> pending);
+    advance(1500);
+    pending.complete(null);
+
+    timed.join();
+    Timer timer = registry.timer(AZURE_OPERATIONS, "terminate");
+    assertEquals(1, timer.latencies().count());
+    assertEquals(1_500_000, timer.latencies().max(), 1_500_000 / 16.0);
+    assertEquals(0, timer.failures());
+  }
+
+  @Test
+  void shouldRenderPrometheusSummariesAndFailureCounters() {
+    registry.time(AZURE_OPERATIONS, "list_vms", () -> advance(250));
+    registry.time(PLUGIN_REQUESTS, "cd.go.elastic-agent.server-ping", () -> advance(10));
+
+    String text = registry.toPrometheusText();
+
+    assertTrue(text.contains("# TYPE gocd_azure_operation_duration_seconds summary\n"));
+    assertTrue(text.contains("gocd_azure_operation_duration_seconds{operation=\"list_vms\",quantile=\"0.5\"} 0.25\n"));
+    assertTrue(text.contains("gocd_azure_operation_duration_seconds_count{operation=\"list_vms\"} 1\n"));
+    assertTrue(text.contains("gocd_azure_operation_failures_total{operation=\"list_vms\"} 0\n"));
+    assertTrue(text.contains("gocd_plugin_request_duration_seconds_sum{request=\"cd.go.elastic-agent.server-ping\"} 0.01\n"));
+  }
+
+  @Test
+  void shouldSummarizeTimersForTheStatusReport() {
+    registry.time(AZURE_OPERATIONS, "list_vms", () -> advance(250));
+
+    assertTrue(registry.statusReportProperties().contains(Pair.of("Azure list_vms", "1 calls, 0 failed, p50 250ms, p95 250ms, p99 250ms, max 250ms")));
+  }
+
+  private String advance(long millis) {
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    return "vm";
+  }
+}
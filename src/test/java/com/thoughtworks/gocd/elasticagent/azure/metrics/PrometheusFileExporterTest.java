@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.metrics;
+
+import org.joda.time.Period;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.thoughtworks.gocd.elasticagent.azure.metrics.MetricsRegistry.AZURE_OPERATIONS;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class PrometheusFileExporterTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void shouldWriteTheRegistryToTheConfiguredFile() throws Exception {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.time(AZURE_OPERATIONS, "list_vms", () -> "vms");
+    PrometheusFileExporter exporter = new PrometheusFileExporter(registry, mock(ScheduledExecutorService.class), Period.seconds(30));
+    Path target = directory.resolve("metrics").resolve("gocd_azure.prom");
+
+    exporter.exportTo(target.toString());
+    exporter.export();
+
+    assertEquals(registry.toPrometheusText(), new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+    try (var files = Files.list(target.getParent())) {
+      assertEquals(1, files.count());
+    }
+  }
+
+  @Test
+  void shouldScheduleExportsOnceAndStopWritingWhenPathIsCleared() {
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    ScheduledFuture future = mock(ScheduledFuture.class);
+    when(scheduler.scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class))).thenReturn(future);
+    PrometheusFileExporter exporter = new PrometheusFileExporter(new MetricsRegistry(), scheduler, Period.seconds(30));
+    Path target = directory.resolve("gocd_azure.prom");
+
+    exporter.exportTo("");
+    exporter.exportTo(target.toString());
+    exporter.exportTo(target.toString());
+    exporter.exportTo(" ");
+    exporter.export();
+
+    verify(scheduler, times(1)).scheduleWithFixedDelay(any(Runnable.class), eq(0L), eq(30000L), eq(TimeUnit.MILLISECONDS));
+    verify(future).cancel(false);
+    assertFalse(Files.exists(target));
+
+    exporter.exportTo(target.toString());
+    verify(scheduler, times(2)).scheduleWithFixedDelay(any(Runnable.class), eq(0L), eq(30000L), eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  void shouldStopExportingForGoodWhenStopped() {
+    ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+    ScheduledFuture future = mock(ScheduledFuture.class);
+    when(scheduler.scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class))).thenReturn(future);
+    PrometheusFileExporter exporter = new PrometheusFileExporter(new MetricsRegistry(), scheduler, Period.seconds(30));
+    Path target = directory.resolve("gocd_azure.prom");
+    exporter.exportTo(target.toString());
+
+    exporter.stop();
+    when(scheduler.isShutdown()).thenReturn(true);
+    exporter.exportTo(target.toString());
+    exporter.export();
+
+    verify(future).cancel(false);
+    verify(scheduler).shutdown();
+    verify(scheduler, times(1)).scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class));
+    assertFalse(Files.exists(target));
+  }
+}
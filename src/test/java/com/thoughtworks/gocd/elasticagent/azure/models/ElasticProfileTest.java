@@ -19,6 +19,7 @@ package com.thoughtworks.gocd.elasticagent.azure.models;
 import com.microsoft.azure.management.compute.ImageReference;
 import com.microsoft.azure.management.compute.StorageAccountTypes;
 import com.thoughtworks.gocd.elasticagent.azure.BaseTest;
+import org.joda.time.Period;
 import org.junit.jupiter.api.Test;
 
 import static com.thoughtworks.gocd.elasticagent.azure.models.Platform.LINUX;
@@ -42,6 +43,16 @@ class ElasticProfileTest extends BaseTest {
     assertEquals("latest", imageReference.version());
   }
 
+  @Test
+  void shouldLabelProfilesByPlatformSizeAndImage() {
+    ElasticProfile fromImage = new ElasticProfile("Standard_D3_v2", "canonical:ubuntuServer:14.04.4-LTS", "", "", LINUX, "Standard_LRS", "", "50", "");
+    ElasticProfile fromCustomImage = new ElasticProfile("Standard_D3_v2", "", "/subscriptions/sub/resourceGroups/rg/providers/Microsoft.Compute/images/agent-image",
+        "", LINUX, "Standard_LRS", "", "50", "");
+
+    assertEquals("LINUX Standard_D3_v2 canonical:ubuntuServer:14.04.4-LTS (" + fromImage.hash() + ")", fromImage.label());
+    assertEquals("LINUX Standard_D3_v2 agent-image (" + fromCustomImage.hash() + ")", fromCustomImage.label());
+  }
+
   @Test
   void testGetImageReferenceShouldFetchNullWhenImageURNEmpty() {
     assertNull(new ElasticProfile(null, "", "", "", LINUX, "Standard_LRS", "", "50", "").getImageReference());
@@ -117,4 +128,75 @@ class ElasticProfileTest extends BaseTest {
 
     assertFalse(elasticProfile.getOsDiskSize().isPresent());
   }
+
+  @Test
+  void shouldDefaultWarmPoolMaxIdleToMinIdle() {
+    ElasticProfile elasticProfile = new ElasticProfile("", "canonical:ubuntuServer:14.04.4-LTS", "", "", LINUX, "",
+        "", "", "", "2", "", "");
+
+    assertTrue(elasticProfile.hasWarmPool());
+    assertEquals(2, elasticProfile.getWarmPoolMaxIdle());
+    assertFalse(elasticProfile.getWarmPoolMaxTotal().isPresent());
+  }
+
+  @Test
+  void shouldNotHaveWarmPoolWhenMinIdleNotSet() {
+    ElasticProfile elasticProfile = new ElasticProfile("", "canonical:ubuntuServer:14.04.4-LTS", "", "", LINUX, "",
+        "", "", "");
+
+    assertFalse(elasticProfile.hasWarmPool());
+    assertEquals(0, elasticProfile.getWarmPoolMaxIdle());
+  }
+
+  @Test
+  void shouldNotChangeHashWithWarmPoolSettings() {
+    ElasticProfile withoutPool = new ElasticProfile("", "canonical:ubuntuServer:14.04.4-LTS", "", "", LINUX, "",
+        "", "", "");
+    ElasticProfile withPool = new ElasticProfile("", "canonical:ubuntuServer:14.04.4-LTS", "", "", LINUX, "",
+        "", "", "", "1", "3", "10");
+
+    assertEquals(withoutPool.hash(), withPool.hash());
+  }
+
+  @Test
+  void shouldReadStoppedPoolSettingsAndKeepTheHash() {
+    ElasticProfile withoutPool = new ElasticProfile("", "canonical:ubuntuServer:14.04.4-LTS", "", "", LINUX, "",
+        "", "", "");
+    ElasticProfile withPool = withoutPool.withStoppedPool("3", "90");
+
+    assertEquals(0, withoutPool.getStoppedPoolMaxParked());
+    assertEquals(ElasticProfile.DEFAULT_MAX_PARKED_AGE, withoutPool.getStoppedPoolMaxParkedAge());
+    assertEquals(3, withPool.getStoppedPoolMaxParked());
+    assertEquals(Period.minutes(90), withPool.getStoppedPoolMaxParkedAge());
+    assertEquals(withoutPool.hash(), withPool.hash());
+  }
+
+  @Test
+  void shouldBootstrapWithCloudInitOnlyForLinux() {
+    ElasticProfile linux = new ElasticProfile("", "canonical:ubuntuServer:14.04.4-LTS", "", "", LINUX, "",
+        "", "", "");
+    ElasticProfile windows = new ElasticProfile("", "", "", "", Platform.WINDOWS, "",
+        "", "", "");
+
+    assertFalse(linux.isCloudInitBootstrap());
+    assertTrue(linux.withLinuxBootstrap(ElasticProfile.LINUX_BOOTSTRAP_CLOUD_INIT).isCloudInitBootstrap());
+    assertFalse(linux.withLinuxBootstrap(ElasticProfile.LINUX_BOOTSTRAP_EXTENSION).isCloudInitBootstrap());
+    assertFalse(windows.withLinuxBootstrap(ElasticProfile.LINUX_BOOTSTRAP_CLOUD_INIT).isCloudInitBootstrap());
+    assertEquals(linux.hash(), linux.withLinuxBootstrap(ElasticProfile.LINUX_BOOTSTRAP_CLOUD_INIT).hash());
+  }
+
+  @Test
+  void shouldBootstrapWithTheCustomScriptExtensionOnlyForWindows() {
+    ElasticProfile linux = new ElasticProfile("", "canonical:ubuntuServer:14.04.4-LTS", "", "", LINUX, "",
+        "", "", "");
+    ElasticProfile windows = new ElasticProfile("", "", "", "", Platform.WINDOWS, "",
+        "", "", "");
+
+    assertFalse(windows.isWindowsExtensionBootstrap());
+    assertTrue(windows.withWindowsBootstrap(ElasticProfile.WINDOWS_BOOTSTRAP_EXTENSION).isWindowsExtensionBootstrap());
+    assertFalse(windows.withWindowsBootstrap(ElasticProfile.WINDOWS_BOOTSTRAP_RUN_COMMAND).isWindowsExtensionBootstrap());
+    assertFalse(linux.withWindowsBootstrap(ElasticProfile.WINDOWS_BOOTSTRAP_EXTENSION).isWindowsExtensionBootstrap());
+    assertTrue(windows.withWindowsBootstrap(ElasticProfile.WINDOWS_BOOTSTRAP_EXTENSION).withLinuxBootstrap(null).isWindowsExtensionBootstrap());
+    assertEquals(windows.hash(), windows.withWindowsBootstrap(ElasticProfile.WINDOWS_BOOTSTRAP_EXTENSION).hash());
+  }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.models;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class UrlFieldTest {
+
+  private UrlField field = new UrlField("key", "field", null, false, false, "1");
+
+  @Test
+  void shouldAllowHttpAndHttpsUrls() {
+    assertNull(field.doValidate("https://mirror.example.com/gocd"));
+    assertNull(field.doValidate("http://mirror.example.com:8080/"));
+  }
+
+  @Test
+  void shouldNotAllowOtherUrls() {
+    assertEquals("field must be an http or https URL.", field.doValidate("ftp://mirror.example.com"));
+    assertEquals("field must be an http or https URL.", field.doValidate("mirror.example.com"));
+  }
+
+  @Test
+  void shouldValidateIfEmptyStringIsPassedAndItIsANotARequiredField() {
+    assertNull(field.doValidate(""));
+  }
+
+  @Test
+  void shouldValidateIfEmptyStringIsPassedAndItIsAARequiredField() {
+    field = new UrlField("key", "field", null, true, false, "1");
+    assertEquals("field must not be blank.", field.doValidate(""));
+  }
+}
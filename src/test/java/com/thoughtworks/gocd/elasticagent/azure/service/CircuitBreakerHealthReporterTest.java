@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.service;
+
+import com.thoughtworks.go.plugin.api.response.GoApiResponse;
+import com.thoughtworks.gocd.elasticagent.azure.exceptions.ServerRequestFailedException;
+import com.thoughtworks.gocd.elasticagent.azure.models.PluginHealthMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.IOException;
+
+import static com.thoughtworks.gocd.elasticagent.azure.client.AzureCircuitBreakers.Operation.RUN_COMMAND;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class CircuitBreakerHealthReporterTest {
+
+  @Mock
+  private ServerHealthMessagingService serverHealthMessagingService;
+
+  private CircuitBreakerHealthReporter reporter;
+
+  @BeforeEach
+  void setUp() {
+    reporter = new CircuitBreakerHealthReporter(serverHealthMessagingService);
+  }
+
+  @Test
+  void shouldWarnWhileCircuitIsOpenAndClearWarningOnceClosed() throws ServerRequestFailedException {
+    reporter.opened(RUN_COMMAND, new IOException("connect timed out"));
+    reporter.closed(RUN_COMMAND);
+
+    verify(serverHealthMessagingService).sendHealthMessage(eq("azure-circuit-run-command"), any(PluginHealthMessage.class));
+    verify(serverHealthMessagingService).clearHealthMessage("azure-circuit-run-command");
+  }
+
+  @Test
+  void shouldNotPropagateFailuresToReachTheServer() throws ServerRequestFailedException {
+    doThrow(ServerRequestFailedException.sendHealthMessages(mock(GoApiResponse.class))).when(serverHealthMessagingService).sendHealthMessage(anyString(), any());
+
+    reporter.opened(RUN_COMMAND, new IOException("connect timed out"));
+  }
+}
@@ -19,9 +19,12 @@ package com.thoughtworks.gocd.elasticagent.azure.utils;
 import freemarker.template.TemplateException;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -40,4 +43,45 @@ class TemplateReaderTest {
     assertEquals(expectedContent, content);
   }
 
+  @Test
+  void shouldPreloadAllBundledTemplates() throws URISyntaxException {
+    File resources = new File(TemplateReader.class.getResource("/linux_start_go_agent.template.ftl").toURI()).getParentFile();
+    String[] bundled = resources.list((dir, name) -> name.endsWith(".ftl") || name.endsWith(".ftlh"));
+
+    assertEquals(new TreeSet<>(Arrays.asList(bundled)), new TreeSet<>(TemplateReader.TEMPLATES));
+    new TemplateReader().preload();
+  }
+
+  @Test
+  void shouldRenderBase64EncodedScripts() throws IOException, TemplateException {
+    TemplateReader reader = new TemplateReader();
+    Map<String, String> data = new HashMap<>();
+    data.put("key", "server_url");
+    data.put("value", "https://127.0.0.1/g\u00f6");
+
+    String encoded = reader.readBase64("test_template.template.ftlh", data);
+
+    assertEquals("key=server_url\n" + "value=https://127.0.0.1/g\u00f6", new String(Base64.getDecoder().decode(encoded), StandardCharsets.UTF_8));
+    data.put("value", "https://127.0.0.2/go");
+    assertEquals("key=server_url\n" + "value=https://127.0.0.2/go", new String(Base64.getDecoder().decode(reader.readBase64("test_template.template.ftlh", data)), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void shouldRenderConcurrently() throws Exception {
+    TemplateReader reader = new TemplateReader();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> renders = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        Map<String, String> data = Map.of("key", "key-" + i, "value", "value-" + i);
+        renders.add(executor.submit(() -> reader.read("test_template.template.ftlh", data)));
+      }
+
+      for (int i = 0; i < renders.size(); i++) {
+        assertEquals("key=key-" + i + "\n" + "value=value-" + i, renders.get(i).get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 }
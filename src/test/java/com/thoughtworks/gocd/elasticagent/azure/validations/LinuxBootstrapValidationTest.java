@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.validations;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LinuxBootstrapValidationTest {
+
+  private Map<String, String> properties;
+
+  @BeforeEach
+  void setUp() {
+    properties = new HashMap<>();
+    properties.put("platform", "LINUX");
+  }
+
+  @Test
+  void shouldDefaultToTheCustomScriptExtension() {
+    assertTrue(new LinuxBootstrapValidation().run(properties, null, null).isEmpty());
+
+    properties.put("linux_bootstrap", "extension");
+    assertTrue(new LinuxBootstrapValidation().run(properties, null, null).isEmpty());
+  }
+
+  @Test
+  void shouldAllowCloudInitForLinux() {
+    properties.put("linux_bootstrap", "cloud-init");
+
+    assertTrue(new LinuxBootstrapValidation().run(properties, null, null).isEmpty());
+  }
+
+  @Test
+  void shouldNotAllowCloudInitForWindows() {
+    properties.put("platform", "WINDOWS");
+    properties.put("linux_bootstrap", "cloud-init");
+
+    Map<String, String> errors = new LinuxBootstrapValidation().run(properties, null, null);
+
+    assertEquals("Cloud-init bootstrap is only supported for Linux.", errors.get("linux_bootstrap"));
+  }
+
+  @Test
+  void shouldNotAllowUnknownBootstraps() {
+    properties.put("linux_bootstrap", "ignition");
+
+    Map<String, String> errors = new LinuxBootstrapValidation().run(properties, null, null);
+
+    assertEquals("Supported agent bootstraps: extension, cloud-init.", errors.get("linux_bootstrap"));
+  }
+}
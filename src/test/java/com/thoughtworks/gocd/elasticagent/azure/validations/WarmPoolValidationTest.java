@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.validations;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WarmPoolValidationTest {
+
+  private Map<String, String> properties;
+
+  @BeforeEach
+  void setUp() {
+    properties = new HashMap<>();
+  }
+
+  @Test
+  void shouldAllowProfilesWithoutWarmPool() {
+    assertTrue(new WarmPoolValidation().run(properties, null, null).isEmpty());
+  }
+
+  @Test
+  void shouldAllowConsistentWarmPoolSizes() {
+    properties.put("warm_pool_min_idle", "2");
+    properties.put("warm_pool_max_idle", "4");
+    properties.put("warm_pool_max_total", "10");
+
+    assertTrue(new WarmPoolValidation().run(properties, null, null).isEmpty());
+  }
+
+  @Test
+  void shouldNotAllowMaxIdleBelowMinIdle() {
+    properties.put("warm_pool_min_idle", "3");
+    properties.put("warm_pool_max_idle", "2");
+
+    Map<String, String> errors = new WarmPoolValidation().run(properties, null, null);
+
+    assertEquals(1, errors.size());
+    assertEquals("Warm pool maximum idle agents should not be less than the minimum idle agents.", errors.get("warm_pool_max_idle"));
+  }
+
+  @Test
+  void shouldNotAllowMaxTotalBelowIdleAgents() {
+    properties.put("warm_pool_min_idle", "3");
+    properties.put("warm_pool_max_total", "2");
+
+    Map<String, String> errors = new WarmPoolValidation().run(properties, null, null);
+
+    assertEquals(1, errors.size());
+    assertEquals("Warm pool maximum agents should not be less than the idle agents.", errors.get("warm_pool_max_total"));
+  }
+
+  @Test
+  void shouldLeaveNonNumericValuesToMetadataValidation() {
+    properties.put("warm_pool_min_idle", "abc");
+    properties.put("warm_pool_max_total", "xyz");
+
+    assertTrue(new WarmPoolValidation().run(properties, null, null).isEmpty());
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.validations;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WindowsBootstrapValidationTest {
+
+  private Map<String, String> properties;
+
+  @BeforeEach
+  void setUp() {
+    properties = new HashMap<>();
+    properties.put("platform", "WINDOWS");
+  }
+
+  @Test
+  void shouldDefaultToRunCommands() {
+    assertTrue(new WindowsBootstrapValidation().run(properties, null, null).isEmpty());
+
+    properties.put("windows_bootstrap", "run-command");
+    assertTrue(new WindowsBootstrapValidation().run(properties, null, null).isEmpty());
+  }
+
+  @Test
+  void shouldAllowTheCustomScriptExtensionForWindows() {
+    properties.put("windows_bootstrap", "extension");
+
+    assertTrue(new WindowsBootstrapValidation().run(properties, null, null).isEmpty());
+  }
+
+  @Test
+  void shouldNotAllowCustomScriptsTooLongForTheExtensionCommandLine() {
+    properties.put("windows_bootstrap", "extension");
+    properties.put("custom_script", StringUtils.repeat("x", 4096));
+
+    Map<String, String> errors = new WindowsBootstrapValidation().run(properties, null, null);
+
+    assertTrue(errors.get("custom_script").startsWith("Custom script extension bootstrap passes the custom script on a command line limited to 8191 characters"));
+  }
+
+  @Test
+  void shouldAllowLongCustomScriptsWithRunCommands() {
+    properties.put("windows_bootstrap", "run-command");
+    properties.put("custom_script", StringUtils.repeat("x", 4096));
+
+    assertTrue(new WindowsBootstrapValidation().run(properties, null, null).isEmpty());
+  }
+
+  @Test
+  void shouldNotAllowTheCustomScriptExtensionForLinux() {
+    properties.put("platform", "LINUX");
+    properties.put("windows_bootstrap", "extension");
+
+    Map<String, String> errors = new WindowsBootstrapValidation().run(properties, null, null);
+
+    assertEquals("Custom script extension bootstrap is only supported for Windows.", errors.get("windows_bootstrap"));
+  }
+
+  @Test
+  void shouldNotAllowUnknownBootstraps() {
+    properties.put("windows_bootstrap", "dsc");
+
+    Map<String, String> errors = new WindowsBootstrapValidation().run(properties, null, null);
+
+    assertEquals("Supported agent bootstraps: run-command, extension.", errors.get("windows_bootstrap"));
+  }
+}
@@ -55,4 +55,24 @@ class AzureCustomScriptBuilderTest extends BaseTest {
     assertNull(builder.base64Encoded().build());
   }
 
+  @Test
+  void shouldBase64EncodeScriptsGeneratedFromTemplates() {
+    Map<String, String> data = new HashMap<>();
+    data.put("key", "some-key");
+    data.put("value", "some-value");
+
+    String script = new CustomScriptBuilder().withScript("test_template.template.ftlh", data).base64Encoded().build();
+
+    assertEquals("a2V5PXNvbWUta2V5CnZhbHVlPXNvbWUtdmFsdWU=", script);
+  }
+
+  @Test
+  void shouldNotChangeTheBuilderItIsDerivedFrom() {
+    CustomScriptBuilder builder = new CustomScriptBuilder().withScript("dummy-script");
+
+    builder.base64Encoded();
+    builder.withScript("other-script");
+
+    assertEquals("dummy-script", builder.build());
+  }
 }
@@ -16,6 +16,7 @@
 
 package com.thoughtworks.gocd.elasticagent.azure.vm;
 
+import com.thoughtworks.gocd.elasticagent.azure.DownloadUrlResolver;
 import com.thoughtworks.gocd.elasticagent.azure.DownloadUrls;
 import org.junit.jupiter.api.Test;
 
@@ -36,11 +37,12 @@ class LinuxCustomScriptExtensionTest {
         "auto-register-key",
         "test",
         "plugin-id",
-        "agent-id"
+        "agent-id",
+        new DownloadUrlResolver()
     );
 
     List<String> expectedFileUris = Arrays.asList(UNZIP_TAR_DOWNLOAD_URL,
-        String.format(DownloadUrls.GO_AGENT_LINUX_DOWNLOAD_URL_FORMAT, DEFAULT_GO_SERVER_VERSION, DEFAULT_GO_SERVER_VERSION));
+        DownloadUrls.url(DownloadUrls.GO_AGENT_LINUX_DOWNLOAD_URL_FORMAT, null, DEFAULT_GO_SERVER_VERSION));
     String base64EncodedScript = new CustomScriptBuilder()
         .withScript("post_provision_script.template.ftl", extension.getInstallParams())
         .base64Encoded()
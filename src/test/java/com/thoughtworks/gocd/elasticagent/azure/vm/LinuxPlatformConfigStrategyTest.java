@@ -20,6 +20,8 @@ import com.microsoft.azure.management.compute.*;
 import com.microsoft.azure.management.compute.VirtualMachine.DefinitionStages.WithCreate;
 import com.thoughtworks.gocd.elasticagent.azure.AgentConfig;
 import com.thoughtworks.gocd.elasticagent.azure.BaseTest;
+import com.thoughtworks.gocd.elasticagent.azure.DownloadUrlResolver;
+import com.thoughtworks.gocd.elasticagent.azure.DownloadUrls;
 import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
 import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
 import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
@@ -36,6 +38,7 @@ import org.mockito.Mockito;
 import java.util.*;
 
 import static com.thoughtworks.gocd.elasticagent.azure.models.Platform.LINUX;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.LinuxPlatformConfigStrategy.LINUX_REREGISTER_GO_AGENT_TEMPLATE;
 import static com.thoughtworks.gocd.elasticagent.azure.vm.LinuxPlatformConfigStrategy.LINUX_START_GO_AGENT_TEMPLATE;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -55,7 +58,7 @@ class LinuxPlatformConfigStrategyTest extends BaseTest {
   @BeforeEach
   void setUp() {
     openMocks(this);
-    linuxPlatformConfigStrategy = new LinuxPlatformConfigStrategy(mockCustomScriptBuilder);
+    linuxPlatformConfigStrategy = new LinuxPlatformConfigStrategy(mockCustomScriptBuilder, new DownloadUrlResolver());
   }
 
   @Test
@@ -182,4 +185,68 @@ class LinuxPlatformConfigStrategyTest extends BaseTest {
     assertEquals(mockResult, actualResult);
   }
 
+  @Test
+  void testReRegisterAgentShouldWriteAutoRegisterPropertiesForTheNewRequest() {
+    VirtualMachines mockVirtualMachines = mock(VirtualMachines.class);
+    RunCommandResult mockResult = mock(RunCommandResult.class);
+    AgentConfig agentConfig = new AgentConfig("https://localhost:8154/go", "new-key", "19.1.0", "prod", "vmName");
+
+    when(mockCustomScriptBuilder.withScript(eq(LINUX_REREGISTER_GO_AGENT_TEMPLATE), paramCaptor.capture())).thenReturn(mockCustomScriptBuilder);
+    when(mockCustomScriptBuilder.build()).thenReturn("re-register script");
+    when(mockVirtualMachines.runShellScript("groupName", "vmName", Collections.singletonList("re-register script"), Collections.emptyList())).thenReturn(mockResult);
+
+    RunCommandResult actualResult = linuxPlatformConfigStrategy.reRegisterAgent("groupName", "vmName", mockVirtualMachines, agentConfig);
+
+    assertEquals(Map.of("autoregister_key", "new-key", "environment", "prod", "plugin_id", Util.pluginId(), "agent_id", "vmName"), paramCaptor.getValue());
+    assertEquals(mockResult, actualResult);
+  }
+
+  @Test
+  void addOSShouldPassCloudInitAsCustomDataForCloudInitBootstrap() {
+    VmConfig vmConfig = cloudInitVmConfig();
+    when(mockCustomScriptBuilder.withScript(anyString())).thenReturn(mockCustomScriptBuilder);
+    when(mockCustomScriptBuilder.withScript(anyString(), anyMap())).thenReturn(mockCustomScriptBuilder);
+    when(mockCustomScriptBuilder.base64Encoded()).thenReturn(mockCustomScriptBuilder);
+    when(mockCustomScriptBuilder.build()).thenReturn("cloud-init");
+    VirtualMachine.DefinitionStages.WithOS withOS = Mockito.mock(VirtualMachine.DefinitionStages.WithOS.class, Mockito.RETURNS_DEEP_STUBS);
+    WithCreate mockReturn = mock(WithCreate.class);
+    when(withOS.withSpecificLinuxImageVersion(any())
+        .withRootUsername("username")
+        .withSsh("sshKey")
+        .withCustomData("cloud-init")
+        .withOSDiskStorageAccountType(StorageAccountTypes.STANDARD_LRS)
+        .withSize("Size"))
+        .thenReturn(mockReturn);
+
+    assertEquals(mockReturn, linuxPlatformConfigStrategy.addOS(withOS, vmConfig));
+    assertTrue(linuxPlatformConfigStrategy.getExtensions(vmConfig).isEmpty());
+    verify(mockCustomScriptBuilder).withScript("echo custom");
+  }
+
+  @Test
+  void cloudInitShouldInstallRunCustomScriptAndStartTheAgentAtFirstBoot() {
+    LinuxPlatformConfigStrategy strategy = new LinuxPlatformConfigStrategy(new CustomScriptBuilder(), new DownloadUrlResolver());
+    VmConfig vmConfig = cloudInitVmConfig();
+
+    String cloudInit = new String(Base64.getDecoder().decode(strategy.cloudInit(vmConfig)));
+
+    assertTrue(cloudInit.startsWith("#cloud-config"));
+    assertTrue(cloudInit.contains("/var/lib/go-agent-bootstrap/install_go_agent.sh"));
+    assertTrue(cloudInit.contains("wget -q -O unzip.tar '" + DownloadUrls.UNZIP_TAR_DOWNLOAD_URL + "'"));
+    assertTrue(cloudInit.contains("bash install_go_agent.sh; bash custom_script.sh; bash start_go_agent.sh"));
+    assertTrue(cloudInit.contains("trap 'echo $BASH_COMMAND > /var/lib/go-agent-bootstrap/failed' ERR"));
+    assertTrue(cloudInit.contains("content: '" + Base64.getEncoder().encodeToString("echo custom".getBytes()) + "'"));
+  }
+
+  private VmConfig cloudInitVmConfig() {
+    ElasticProfile profile = new ElasticProfile("Size", "Canonical:UbuntuServer:14.04.4-LTS", "", "echo custom",
+        LINUX, "Standard_LRS", "", "50", "").withLinuxBootstrap(ElasticProfile.LINUX_BOOTSTRAP_CLOUD_INIT);
+    ServerInfo serverInfo = mock(ServerInfo.class);
+    when(serverInfo.getServerVersion()).thenReturn("19.1.0-7703");
+    return new VmConfig.Builder()
+        .setRequestParams(new CreateAgentRequest("register-key", profile, "Test", new JobIdentifier()))
+        .setSettingsParams(createPluginSettings())
+        .setServerInfoParams(serverInfo)
+        .build();
+  }
 }
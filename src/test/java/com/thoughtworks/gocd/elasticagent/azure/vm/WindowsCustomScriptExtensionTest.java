@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020 Thoughtworks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thoughtworks.gocd.elasticagent.azure.vm;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WindowsCustomScriptExtensionTest {
+
+  @Test
+  void shouldCreateAzureCustomScriptExtensionToBootstrapGoAgent() {
+    WindowsCustomScriptExtension extension = new WindowsCustomScriptExtension("Write-Host 'h\u00e9llo'");
+
+    String script = new String(Base64.getDecoder().decode(extension.getScript()), StandardCharsets.UTF_8);
+
+    assertEquals("Write-Host 'h\u00e9llo'", script);
+    assertEquals("1.10", extension.getVersion());
+    assertEquals("CustomScriptExtension", extension.getType());
+    assertEquals("Microsoft.Compute", extension.getPublisher());
+    assertTrue(extension.publicSettings().isEmpty());
+  }
+
+  @Test
+  void shouldWriteTheScriptToAFileAndRunItFromTheProtectedCommand() {
+    WindowsCustomScriptExtension extension = new WindowsCustomScriptExtension("Write-Host 'hello'");
+
+    Map<String, Object> settings = extension.protectedSettings();
+
+    assertEquals(1, settings.size());
+    assertEquals("powershell -NoProfile -ExecutionPolicy Unrestricted -Command \"" +
+        "[IO.File]::WriteAllText('go-agent-bootstrap.ps1', [Text.Encoding]::UTF8.GetString([Convert]::FromBase64String('" + extension.getScript() + "'))); " +
+        "& .\\go-agent-bootstrap.ps1\"", settings.get("commandToExecute"));
+  }
+
+  @Test
+  void shouldAcceptTheLargestScriptThatFitsTheCommandLine() {
+    WindowsCustomScriptExtension extension = new WindowsCustomScriptExtension("x".repeat(WindowsCustomScriptExtension.maxScriptBytes()));
+
+    assertTrue(extension.getCommandToExecute().length() <= WindowsCustomScriptExtension.MAX_COMMAND_LENGTH);
+  }
+
+  @Test
+  void shouldRejectScriptsThatDoNotFitTheCommandLine() {
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+        () -> new WindowsCustomScriptExtension("x".repeat(WindowsCustomScriptExtension.maxScriptBytes() + 3)));
+
+    assertTrue(e.getMessage().contains("longer than the 8191 characters Windows allows"));
+  }
+}
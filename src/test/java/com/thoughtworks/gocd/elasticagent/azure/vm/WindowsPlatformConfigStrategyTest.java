@@ -19,6 +19,7 @@ package com.thoughtworks.gocd.elasticagent.azure.vm;
 import com.microsoft.azure.management.compute.*;
 import com.thoughtworks.gocd.elasticagent.azure.AgentConfig;
 import com.thoughtworks.gocd.elasticagent.azure.BaseTest;
+import com.thoughtworks.gocd.elasticagent.azure.DownloadUrlResolver;
 import com.thoughtworks.gocd.elasticagent.azure.PluginSettings;
 import com.thoughtworks.gocd.elasticagent.azure.models.ElasticProfile;
 import com.thoughtworks.gocd.elasticagent.azure.models.JobIdentifier;
@@ -31,10 +32,12 @@ import org.mockito.*;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static com.thoughtworks.gocd.elasticagent.azure.models.Platform.WINDOWS;
 import static com.thoughtworks.gocd.elasticagent.azure.vm.WindowsPlatformConfigStrategy.WINDOWS_INSTALL_GO_AGENT_TEMPLATE;
+import static com.thoughtworks.gocd.elasticagent.azure.vm.WindowsPlatformConfigStrategy.WINDOWS_REREGISTER_GO_AGENT_TEMPLATE;
 import static com.thoughtworks.gocd.elasticagent.azure.vm.WindowsPlatformConfigStrategy.WINDOWS_START_GO_AGENT_TEMPLATE;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -53,7 +56,7 @@ class WindowsPlatformConfigStrategyTest extends BaseTest {
   @BeforeEach
   void setUp() {
     MockitoAnnotations.openMocks(this);
-    windowsPlatformConfigStrategy = new WindowsPlatformConfigStrategy(mockCustomScriptBuilder);
+    windowsPlatformConfigStrategy = new WindowsPlatformConfigStrategy(mockCustomScriptBuilder, new DownloadUrlResolver());
   }
 
   @Test
@@ -118,7 +121,22 @@ class WindowsPlatformConfigStrategyTest extends BaseTest {
 
   @Test
   void testGetExtensionsShouldReturnNoExtensions() {
-    assertTrue(windowsPlatformConfigStrategy.getExtensions(null).isEmpty());
+    assertTrue(windowsPlatformConfigStrategy.getExtensions(mock(VmConfig.class)).isEmpty());
+  }
+
+  @Test
+  void testGetExtensionsShouldBootstrapTheAgentWithTheCustomScriptExtension() {
+    VmConfig mockVmConfig = mock(VmConfig.class);
+    when(mockVmConfig.isWindowsExtensionBootstrap()).thenReturn(true);
+    when(mockVmConfig.getCustomScript()).thenReturn("custom script");
+    when(mockVmConfig.getAgentConfig()).thenReturn(new AgentConfig("serverurl", "autoregisterkey", "version", "environment", "agentId"));
+    when(mockCustomScriptBuilder.withScript(eq(WINDOWS_INSTALL_GO_AGENT_TEMPLATE), anyMap())).thenReturn(mockCustomScriptBuilder);
+    when(mockCustomScriptBuilder.withScript(WINDOWS_START_GO_AGENT_TEMPLATE, Collections.emptyMap())).thenReturn(mockCustomScriptBuilder);
+    when(mockCustomScriptBuilder.build()).thenReturn("install script", "start agent script");
+
+    List<AzureVMExtension> extensions = windowsPlatformConfigStrategy.getExtensions(mockVmConfig);
+
+    assertEquals(Collections.singletonList(new WindowsCustomScriptExtension("install script\ncustom script\nstart agent script")), extensions);
   }
 
   @Test
@@ -148,6 +166,22 @@ class WindowsPlatformConfigStrategyTest extends BaseTest {
     assertEquals(mockResult, actualResult);
   }
 
+  @Test
+  void testReRegisterAgentShouldWriteAutoRegisterPropertiesForTheNewRequest() {
+    VirtualMachines mockVirtualMachines = mock(VirtualMachines.class);
+    RunCommandResult mockResult = mock(RunCommandResult.class);
+    AgentConfig agentConfig = new AgentConfig("https://localhost:8154/go", "new-key", "19.1.0", "prod", "vmName");
+
+    when(mockCustomScriptBuilder.withScript(eq(WINDOWS_REREGISTER_GO_AGENT_TEMPLATE), paramsCaptor.capture())).thenReturn(mockCustomScriptBuilder);
+    when(mockCustomScriptBuilder.build()).thenReturn("re-register script");
+    when(mockVirtualMachines.runPowerShellScript("groupName", "vmName", Collections.singletonList("re-register script"), Collections.emptyList())).thenReturn(mockResult);
+
+    RunCommandResult actualResult = windowsPlatformConfigStrategy.reRegisterAgent("groupName", "vmName", mockVirtualMachines, agentConfig);
+
+    assertEquals(Map.of("autoregister_key", "new-key", "environment", "prod", "plugin_id", Util.pluginId(), "agent_id", "vmName"), paramsCaptor.getValue());
+    assertEquals(mockResult, actualResult);
+  }
+
   @Test
   void testInstallAgentShouldInvokeInstallAgentScriptWithCorrectParams() {
     VirtualMachines mockVirtualMachines = mock(VirtualMachines.class);